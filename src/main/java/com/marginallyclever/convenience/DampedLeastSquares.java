@@ -0,0 +1,133 @@
+package com.marginallyclever.convenience;
+
+/**
+ * Finds the joint velocities that best make a cartesian velocity, for any number of joints, without allocating.
+ * <p>
+ * Solves qDot = Jt * (J * Jt + damping^2 * I)^-1 * v, where J is the 6xN Jacobian.  Far from a singularity there is
+ * no damping and this is the exact (least norm) answer.  As the arm nears a singularity the manipulability
+ * sqrt(det(J * Jt)) drops, damping rises toward its maximum, and the answer trades accuracy for joint velocities
+ * that stay small instead of blowing up.  With fewer than 6 joints J * Jt is always singular, so the damping is
+ * always at its maximum.
+ * See Nakamura and Hanafusa, "Inverse kinematic solutions with singularity robustness for robot manipulator
+ * control", 1986.
+ * <p>
+ * Not thread safe.  Keep one per thread.
+ * @author Dan Royer
+ */
+public class DampedLeastSquares {
+	public static final int ROWS = 6;
+
+	private final double maxDamping;
+	private final double threshold;
+
+	// J * Jt
+	private final double [][] jjt = new double[ROWS][ROWS];
+	// Cholesky factor of J * Jt + damping^2 * I
+	private final double [][] l = new double[ROWS][ROWS];
+	private final double [] y = new double[ROWS];
+
+	private double manipulability;
+	private double damping;
+
+	/**
+	 * @param maxDamping damping at a singularity.
+	 * @param threshold manipulability below which damping starts.  Depends on the size of the arm.
+	 */
+	public DampedLeastSquares(double maxDamping,double threshold) {
+		this.maxDamping = maxDamping;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param jacobian [N][6], one column of linear and angular velocity per joint, like DHChain.getJacobian().
+	 * @param v the 6 cartesian velocities wanted.
+	 * @param qDot receives the N joint velocities.
+	 * @return false if there is no answer, in which case qDot is all zeros.
+	 */
+	public boolean solve(double [][] jacobian,double [] v,double [] qDot) {
+		int n = jacobian.length;
+		for(int r=0;r<ROWS;++r) {
+			for(int c=r;c<ROWS;++c) {
+				double sum=0;
+				for(int k=0;k<n;++k) sum += jacobian[k][r]*jacobian[k][c];
+				jjt[r][c] = jjt[c][r] = sum;
+			}
+		}
+
+		// the product of the diagonal of the Cholesky factor is sqrt(det(J * Jt)).
+		manipulability=0;
+		if(factor(0)) {
+			manipulability=1;
+			for(int i=0;i<ROWS;++i) manipulability *= l[i][i];
+		}
+
+		damping=0;
+		if(manipulability<threshold) {
+			double f = manipulability/threshold;
+			damping = maxDamping*Math.sqrt(1-f*f);
+			if(!factor(damping*damping)) {
+				for(int k=0;k<n;++k) qDot[k]=0;
+				return false;
+			}
+		}
+
+		// l * lt * y = v
+		for(int i=0;i<ROWS;++i) {
+			double sum = v[i];
+			for(int k=0;k<i;++k) sum -= l[i][k]*y[k];
+			y[i] = sum/l[i][i];
+		}
+		for(int i=ROWS-1;i>=0;--i) {
+			double sum = y[i];
+			for(int k=i+1;k<ROWS;++k) sum -= l[k][i]*y[k];
+			y[i] = sum/l[i][i];
+		}
+
+		// qDot = Jt * y
+		for(int k=0;k<n;++k) {
+			double sum=0;
+			for(int r=0;r<ROWS;++r) sum += jacobian[k][r]*y[r];
+			if(Double.isNaN(sum)) {
+				for(int j=0;j<n;++j) qDot[j]=0;
+				return false;
+			}
+			qDot[k] = sum;
+		}
+		return true;
+	}
+
+	/**
+	 * Cholesky factor of J * Jt + lambda2 * I into l.
+	 * @return false if the matrix is not positive definite.
+	 */
+	private boolean factor(double lambda2) {
+		for(int i=0;i<ROWS;++i) {
+			for(int j=0;j<=i;++j) {
+				double sum = jjt[i][j];
+				if(i==j) sum += lambda2;
+				for(int k=0;k<j;++k) sum -= l[i][k]*l[j][k];
+				if(i==j) {
+					if(!(sum>0)) return false;
+					l[i][i] = Math.sqrt(sum);
+				} else {
+					l[i][j] = sum/l[j][j];
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return sqrt(det(J * Jt)) from the last solve().  0 at a singularity.
+	 */
+	public double getManipulability() {
+		return manipulability;
+	}
+
+	/**
+	 * @return the damping used by the last solve().
+	 */
+	public double getDamping() {
+		return damping;
+	}
+}
@@ -3,11 +3,10 @@ package com.marginallyclever.convenience;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
 
 /**
  * Methods to make loading files from disk or jar resource easier.
@@ -18,7 +17,7 @@ public class FileAccess {
 
 	/**
 	 * Open a file.  open() looks in three places:<br>
-	 *  - The file may be contained inside a zip, as indicated by the filename "zipname:filename".<br>
+	 *  - The file may be contained inside a zip, as indicated by the filename "zipname:filename".  See {@link ZipAssetProvider}.<br>
 	 *  - The file may be a resource inside a jar file.
 	 *  - The file may be on disk.
 	 *     
@@ -37,6 +36,33 @@ public class FileAccess {
 	}
 	
 	
+	/**
+	 * Find the file on disk that open() would read, so it can be memory mapped or otherwise
+	 * accessed randomly.  Files inside a zip or a jar have no such file.
+	 * @param filename The file to find
+	 * @return the File on disk, or null if the contents are only available as a stream.
+	 */
+	public static File getFile(String filename) {
+		int index = filename.lastIndexOf(":");
+		int index2 = filename.lastIndexOf(":\\");  // hack for windows file system
+		if(index!=-1 && index!=index2) return null;
+
+		URL url = FileAccess.class.getResource(filename);
+		if(url!=null) {
+			// a resource.  only usable if it has not been packed into a jar.
+			if(!url.getProtocol().equals("file")) return null;
+			try {
+				return new File(url.toURI());
+			} catch (URISyntaxException e) {
+				return null;
+			}
+		}
+		
+		File f = new File(filename);
+		return f.isFile() ? f : null;
+	}
+	
+	
 	private static InputStream getInputStream(String fname) throws IOException {
 		InputStream s = FileAccess.class.getResourceAsStream(fname);
 		if( s==null ) {
@@ -47,35 +73,6 @@ public class FileAccess {
 	
 	
 	private static BufferedInputStream loadFromZip(String zipName,String fname) throws IOException {
-		ZipInputStream zipFile=null;
-		ZipEntry entry;
-		
-		zipFile = new ZipInputStream(getInputStream(zipName));
-		
-		String fnameSuffix = fname.substring(fname.lastIndexOf(".")+1);
-		String fnameNoSuffix = fname.substring(0,fname.length()-(fnameSuffix.length()+1));
-
-		while((entry = zipFile.getNextEntry())!=null) {
-	        if( entry.getName().equals(fname) ) {
-		        // read buffered stream into temp file.
-		        File f = File.createTempFile(fnameNoSuffix, fnameSuffix);
-		        f.setReadable(true);
-		        f.setWritable(true);
-                f.deleteOnExit();
-		        FileOutputStream fos = new FileOutputStream(f);
-	    		byte[] buffer = new byte[2048];
-	    		int len;
-                while ((len = zipFile.read(buffer)) > 0) {
-                    fos.write(buffer, 0, len);
-                }
-                fos.close();
-		        // return temp file as input stream
-                return new BufferedInputStream(new FileInputStream(f));
-	        }
-	    }
-		    
-	    zipFile.close();
-
-	    throw new IOException("file not found in zip.");
+		return new BufferedInputStream(ZipAssetProvider.open(zipName, fname));
 	}
 }
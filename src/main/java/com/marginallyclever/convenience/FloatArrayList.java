@@ -0,0 +1,141 @@
+package com.marginallyclever.convenience;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive floats.  Behaves like ArrayList&lt;Float&gt; without boxing every value,
+ * so large meshes don't fill the heap with millions of tiny objects.
+ * @author Dan Royer
+ */
+public class FloatArrayList {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	protected float [] data;
+	protected int size;
+
+	public FloatArrayList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public FloatArrayList(int initialCapacity) {
+		data = new float[Math.max(initialCapacity,1)];
+		size = 0;
+	}
+
+	/**
+	 * Make sure there is room for at least minCapacity floats without another allocation.
+	 * @param minCapacity
+	 */
+	public void ensureCapacity(int minCapacity) {
+		if(minCapacity <= data.length) return;
+
+		int newCapacity = data.length + (data.length >> 1);
+		if(newCapacity < minCapacity) newCapacity = minCapacity;
+		data = Arrays.copyOf(data, newCapacity);
+	}
+
+	public void add(float v) {
+		if(size == data.length) ensureCapacity(size+1);
+		data[size++] = v;
+	}
+
+	public void add(float x,float y) {
+		ensureCapacity(size+2);
+		data[size++] = x;
+		data[size++] = y;
+	}
+
+	public void add(float x,float y,float z) {
+		ensureCapacity(size+3);
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+	}
+
+	public void add(float x,float y,float z,float w) {
+		ensureCapacity(size+4);
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+		data[size++] = w;
+	}
+
+	/**
+	 * Append length floats from src, starting at src[offset].
+	 */
+	public void addAll(float [] src,int offset,int length) {
+		ensureCapacity(size+length);
+		System.arraycopy(src, offset, data, size, length);
+		size+=length;
+	}
+
+	/**
+	 * Grow the list by length floats without setting their values.  Lets a loader write
+	 * directly into getArray() instead of calling add() once per value.
+	 * @param length number of floats to append
+	 * @return the index of the first new float.
+	 */
+	public int expand(int length) {
+		ensureCapacity(size+length);
+		int start = size;
+		size+=length;
+		return start;
+	}
+
+	public float get(int index) {
+		if(index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		return data[index];
+	}
+
+	public void set(int index,float v) {
+		if(index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		data[index] = v;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Forget the contents but keep the memory for reuse.
+	 */
+	public void clear() {
+		size=0;
+	}
+
+	/**
+	 * Release any memory not currently used.
+	 */
+	public void trimToSize() {
+		if(size < data.length) data = Arrays.copyOf(data, Math.max(size,1));
+	}
+
+	/**
+	 * Direct access to the backing array.  Only the first size() elements are valid.
+	 * The array is replaced whenever the list grows, so don't hold on to it.
+	 * @return the backing array
+	 */
+	public float [] getArray() {
+		return data;
+	}
+
+	/**
+	 * @return a copy of the valid contents.
+	 */
+	public float [] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	/**
+	 * Copy the contents into a FloatBuffer at its current position.
+	 * @param buffer destination
+	 */
+	public void putInto(FloatBuffer buffer) {
+		buffer.put(data, 0, size);
+	}
+}
@@ -0,0 +1,148 @@
+package com.marginallyclever.convenience;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints.  Behaves like ArrayList&lt;Integer&gt; without boxing every value.
+ * @author Dan Royer
+ */
+public class IntArrayList {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	protected int [] data;
+	protected int size;
+
+	public IntArrayList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IntArrayList(int initialCapacity) {
+		data = new int[Math.max(initialCapacity,1)];
+		size = 0;
+	}
+
+	/**
+	 * Make sure there is room for at least minCapacity ints without another allocation.
+	 * @param minCapacity
+	 */
+	public void ensureCapacity(int minCapacity) {
+		if(minCapacity <= data.length) return;
+
+		int newCapacity = data.length + (data.length >> 1);
+		if(newCapacity < minCapacity) newCapacity = minCapacity;
+		data = Arrays.copyOf(data, newCapacity);
+	}
+
+	public void add(int v) {
+		if(size == data.length) ensureCapacity(size+1);
+		data[size++] = v;
+	}
+
+	public void add(int x,int y) {
+		ensureCapacity(size+2);
+		data[size++] = x;
+		data[size++] = y;
+	}
+
+	public void add(int x,int y,int z) {
+		ensureCapacity(size+3);
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+	}
+
+	public void add(int x,int y,int z,int w) {
+		ensureCapacity(size+4);
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+		data[size++] = w;
+	}
+
+	/**
+	 * Append length ints from src, starting at src[offset].
+	 */
+	public void addAll(int [] src,int offset,int length) {
+		ensureCapacity(size+length);
+		System.arraycopy(src, offset, data, size, length);
+		size+=length;
+	}
+
+	/**
+	 * Grow the list by length ints without setting their values.  Lets a loader write
+	 * directly into getArray() instead of calling add() once per value.
+	 * @param length number of ints to append
+	 * @return the index of the first new int.
+	 */
+	public int expand(int length) {
+		ensureCapacity(size+length);
+		int start = size;
+		size+=length;
+		return start;
+	}
+
+	public int get(int index) {
+		if(index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		return data[index];
+	}
+
+	public void set(int index,int v) {
+		if(index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		data[index] = v;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Forget the contents but keep the memory for reuse.
+	 */
+	public void clear() {
+		size=0;
+	}
+
+	/**
+	 * Forget everything after the first newSize values.
+	 */
+	public void truncate(int newSize) {
+		if(newSize<0 || newSize>size) throw new IndexOutOfBoundsException("Size: "+newSize+", was: "+size);
+		size=newSize;
+	}
+
+	/**
+	 * Release any memory not currently used.
+	 */
+	public void trimToSize() {
+		if(size < data.length) data = Arrays.copyOf(data, Math.max(size,1));
+	}
+
+	/**
+	 * Direct access to the backing array.  Only the first size() elements are valid.
+	 * The array is replaced whenever the list grows, so don't hold on to it.
+	 * @return the backing array
+	 */
+	public int [] getArray() {
+		return data;
+	}
+
+	/**
+	 * @return a copy of the valid contents.
+	 */
+	public int [] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	/**
+	 * Copy the contents into an IntBuffer at its current position.
+	 * @param buffer destination
+	 */
+	public void putInto(IntBuffer buffer) {
+		buffer.put(data, 0, size);
+	}
+}
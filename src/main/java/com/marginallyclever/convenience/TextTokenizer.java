@@ -0,0 +1,341 @@
+package com.marginallyclever.convenience;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads text one line at a time into a reusable byte buffer and parses numbers in place.
+ * Meant for big ASCII model files (OBJ, STL, CSV) where String.split() and Float.parseFloat()
+ * would create several objects for every number read.
+ * <p>
+ * Only understands single-byte (ASCII/UTF-8) keywords and numbers, which is all the model formats need.
+ * @author Dan Royer
+ */
+public class TextTokenizer {
+	private static final int DEFAULT_BUFFER_SIZE = 1<<16;
+	// 10^0...10^22 are exact as doubles.
+	private static final double [] POWERS_OF_TEN = {
+		1e0,1e1,1e2,1e3,1e4,1e5,1e6,1e7,1e8,1e9,1e10,1e11,
+		1e12,1e13,1e14,1e15,1e16,1e17,1e18,1e19,1e20,1e21,1e22
+	};
+	// a double has 29 more mantissa bits than a float.
+	private static final long FLOAT_DROPPED_BITS = (1L<<29)-1;
+	private static final long FLOAT_HALFWAY = 1L<<28;
+
+	private InputStream inputStream;
+	private byte [] buffer;
+	// valid bytes in buffer
+	private int limit;
+	// current line is buffer[lineStart...lineEnd)
+	private int lineStart;
+	private int lineEnd;
+	// read position within the current line
+	private int position;
+	private boolean endOfStream;
+	private int lineNumber;
+	private long bytesRead;
+
+	public TextTokenizer(InputStream inputStream) {
+		this(inputStream,DEFAULT_BUFFER_SIZE);
+	}
+
+	public TextTokenizer(InputStream inputStream,int bufferSize) {
+		this.inputStream = inputStream;
+		buffer = new byte[Math.max(bufferSize,16)];
+		limit=0;
+		lineStart=0;
+		lineEnd=0;
+		position=0;
+		endOfStream=false;
+		lineNumber=0;
+		bytesRead=0;
+	}
+
+	/**
+	 * Advance to the next line.
+	 * @return false when there are no more lines.
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		// step past the end of the previous line
+		int start = lineEnd;
+		if(start<limit && buffer[start]=='\n') start++;
+
+		int end = start;
+		while(true) {
+			while(end<limit && buffer[end]!='\n') end++;
+			if(end<limit || endOfStream) break;
+
+			// line continues past the end of the buffer.  move it to the front and read more.
+			int length = end-start;
+			if(start>0) {
+				System.arraycopy(buffer, start, buffer, 0, length);
+			} else if(length==buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length*2);
+			}
+			start=0;
+			end=length;
+			limit=length;
+			fill();
+		}
+
+		if(start>=limit && endOfStream) {
+			lineStart=lineEnd=position=limit;
+			return false;
+		}
+
+		lineStart=start;
+		lineEnd=end;
+		position=start;
+		lineNumber++;
+		return true;
+	}
+
+	private void fill() throws IOException {
+		int n = inputStream.read(buffer, limit, buffer.length-limit);
+		if(n<0) {
+			endOfStream=true;
+		} else {
+			limit+=n;
+			bytesRead+=n;
+		}
+	}
+
+	private static boolean isWhitespace(byte c) {
+		return c==' ' || c=='\t' || c=='\r' || c=='\f';
+	}
+
+	private void skipWhitespace() {
+		while(position<lineEnd && isWhitespace(buffer[position])) position++;
+	}
+
+	/**
+	 * @return true if there is anything but whitespace left on this line.
+	 */
+	public boolean hasMoreTokens() {
+		skipWhitespace();
+		return position<lineEnd;
+	}
+
+	/**
+	 * If the next token is exactly keyword, consume it.  Case insensitive.
+	 * @param keyword the word to look for
+	 * @return true if the keyword was found and consumed.
+	 */
+	public boolean matchKeyword(String keyword) {
+		skipWhitespace();
+		int len = keyword.length();
+		if(lineEnd-position<len) return false;
+		for(int i=0;i<len;++i) {
+			if(Character.toLowerCase((char)buffer[position+i]) != Character.toLowerCase(keyword.charAt(i))) return false;
+		}
+		int after = position+len;
+		if(after<lineEnd && !isWhitespace(buffer[after])) return false;
+		position = after;
+		return true;
+	}
+
+	/**
+	 * If the next character is c, consume it.  Does not skip whitespace.
+	 * @return true if c was found and consumed.
+	 */
+	public boolean skip(char c) {
+		if(position<lineEnd && buffer[position]==c) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Consume the next whitespace delimited token without looking at it.
+	 */
+	public void skipToken() {
+		skipWhitespace();
+		while(position<lineEnd && !isWhitespace(buffer[position])) position++;
+	}
+
+	/**
+	 * @return the next whitespace delimited token.  Allocates a String, so avoid it in inner loops.
+	 */
+	public String nextToken() {
+		skipWhitespace();
+		int start=position;
+		while(position<lineEnd && !isWhitespace(buffer[position])) position++;
+		return new String(buffer,start,position-start,StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the rest of the current line.  Allocates a String, so avoid it in inner loops.
+	 */
+	public String restOfLine() {
+		skipWhitespace();
+		int start=position;
+		position=lineEnd;
+		return new String(buffer,start,lineEnd-start,StandardCharsets.UTF_8).trim();
+	}
+
+	/**
+	 * Parse a decimal integer at the current position.  Stops at the first character that isn't part of the number.
+	 * @return the value
+	 * @throws NumberFormatException if there is no number here.
+	 */
+	public int nextInt() {
+		skipWhitespace();
+		int i=position;
+		boolean negative=false;
+		if(i<lineEnd && (buffer[i]=='-' || buffer[i]=='+')) {
+			negative = buffer[i]=='-';
+			i++;
+		}
+		int start=i;
+		long value=0;
+		while(i<lineEnd) {
+			int d = buffer[i]-'0';
+			if(d<0 || d>9) break;
+			value = value*10+d;
+			if(value>(long)Integer.MAX_VALUE+1) throw error("integer too large");
+			i++;
+		}
+		if(i==start) throw error("expected integer");
+		if(negative) value=-value;
+		if(value>Integer.MAX_VALUE) throw error("integer too large");
+		position=i;
+		return (int)value;
+	}
+
+	/**
+	 * Parse a decimal floating point number at the current position.  Stops at the first character
+	 * that isn't part of the number.  Common cases are parsed in place; very long mantissas,
+	 * extreme exponents, NaN, Infinity, and the rare number that lands next to the halfway point between two
+	 * floats go through Float.parseFloat(), so the result always matches Float.parseFloat().
+	 * @return the value
+	 * @throws NumberFormatException if there is no number here.
+	 */
+	public float nextFloat() {
+		skipWhitespace();
+		int start=position;
+		int i=position;
+		boolean negative=false;
+		if(i<lineEnd && (buffer[i]=='-' || buffer[i]=='+')) {
+			negative = buffer[i]=='-';
+			i++;
+		}
+
+		long mantissa=0;
+		int digits=0;
+		int exponent=0;
+		boolean anyDigits=false;
+		// integer part
+		while(i<lineEnd) {
+			int d = buffer[i]-'0';
+			if(d<0 || d>9) break;
+			anyDigits=true;
+			if(mantissa!=0 || d!=0) {
+				if(digits<18) {
+					mantissa = mantissa*10+d;
+					digits++;
+				} else exponent++;
+			}
+			i++;
+		}
+		// fraction part
+		if(i<lineEnd && buffer[i]=='.') {
+			i++;
+			while(i<lineEnd) {
+				int d = buffer[i]-'0';
+				if(d<0 || d>9) break;
+				anyDigits=true;
+				if(mantissa!=0 || d!=0) {
+					if(digits<18) {
+						mantissa = mantissa*10+d;
+						digits++;
+						exponent--;
+					}
+				} else exponent--;
+				i++;
+			}
+		}
+		if(!anyDigits) {
+			return parseSlow(start);
+		}
+		// exponent part
+		if(i<lineEnd && (buffer[i]=='e' || buffer[i]=='E')) {
+			int j=i+1;
+			boolean negativeExponent=false;
+			if(j<lineEnd && (buffer[j]=='-' || buffer[j]=='+')) {
+				negativeExponent = buffer[j]=='-';
+				j++;
+			}
+			int e=0;
+			int expStart=j;
+			while(j<lineEnd) {
+				int d = buffer[j]-'0';
+				if(d<0 || d>9) break;
+				if(e<10000) e = e*10+d;
+				j++;
+			}
+			if(j>expStart) {
+				exponent += negativeExponent ? -e : e;
+				i=j;
+			}
+		}
+		// trailing 'f' or 'd' is legal for Float.parseFloat(), so it is skipped here too.
+		if(i<lineEnd && (buffer[i]=='f' || buffer[i]=='F' || buffer[i]=='d' || buffer[i]=='D')) i++;
+
+		if(mantissa==0) {
+			position=i;
+			return negative ? -0.0f : 0.0f;
+		}
+		if(mantissa >= (1L<<53) || exponent<-22 || exponent>22) {
+			position=start;
+			return parseSlow(start);
+		}
+		// exact inputs, one correctly rounded operation.
+		double value = exponent<0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		// value is within half a double ulp of the real number.  Narrowing it to float rounds the same way as the
+		// real number unless value is next to the halfway point between two floats, or outside the normal floats.
+		long low = Double.doubleToRawLongBits(value) & FLOAT_DROPPED_BITS;
+		if(Math.abs(low-FLOAT_HALFWAY)<=1 || value<Float.MIN_NORMAL || value>Float.MAX_VALUE) {
+			position=start;
+			return parseSlow(start);
+		}
+		position=i;
+		float f = (float)value;
+		return negative ? -f : f;
+	}
+
+	private float parseSlow(int start) {
+		int end=start;
+		while(end<lineEnd && !isWhitespace(buffer[end]) && buffer[end]!=',' && buffer[end]!='/') end++;
+		if(end==start) throw error("expected number");
+		String s = new String(buffer,start,end-start,StandardCharsets.US_ASCII);
+		try {
+			float f = Float.parseFloat(s);
+			position=end;
+			return f;
+		} catch(NumberFormatException e) {
+			throw error("bad number '"+s+"'");
+		}
+	}
+
+	private NumberFormatException error(String message) {
+		return new NumberFormatException("line "+lineNumber+": "+message);
+	}
+
+	/**
+	 * @return the number of the current line, starting at 1.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return total bytes read from the stream so far.  Useful for measuring throughput.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+}
@@ -0,0 +1,364 @@
+package com.marginallyclever.convenience;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads files out of zip archives without unpacking them to disk.
+ * <p>
+ * Each archive is opened once.  A zip on disk is memory mapped; a zip packed inside the jar is read into memory.
+ * The central directory is read once and kept, so finding an entry doesn't mean scanning the whole archive.
+ * Any number of threads may read from the same archive at the same time.  Only the last {@link #MAX_OPEN_ARCHIVES}
+ * archives used are kept open; older ones are dropped and read again if they are needed again.
+ * @author Dan Royer
+ */
+public class ZipAssetProvider {
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+	private static final int LOCAL_FILE_HEADER = 0x04034b50;
+	private static final int END_RECORD_SIZE = 22;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_ENTRY_SIZE = 46;
+	// deflate can't shrink anything by more than about 1032:1, so a bigger claimed size is a damaged entry.
+	private static final long MAX_DEFLATE_RATIO = 1032;
+	// the biggest byte[] most JVMs allow.
+	private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE-8;
+
+	public static final int MAX_OPEN_ARCHIVES = 8;
+
+	// least recently used first.  only held long enough to find or add a Holder, never while reading an archive.
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<String,Holder> archives = new LinkedHashMap<String,Holder>(16,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Holder> eldest) {
+			return size()>MAX_OPEN_ARCHIVES;
+		}
+	};
+
+	/**
+	 * Opens an archive the first time it is needed.  Threads that want the same archive wait for each other here,
+	 * not on the list of all archives.
+	 */
+	private static class Holder {
+		private final String zipName;
+		private Archive archive;
+
+		public Holder(String zipName) {
+			this.zipName = zipName;
+		}
+
+		public synchronized Archive get() throws IOException {
+			if(archive==null) {
+				archive = new Archive(readArchive(zipName));
+			}
+			return archive;
+		}
+	}
+
+	/**
+	 * One entry from the central directory.
+	 */
+	private static class Entry {
+		public int method;
+		public int compressedSize;
+		public int size;
+		public int localHeaderOffset;
+	}
+
+	/**
+	 * An opened zip file and the index of its contents.
+	 */
+	private static class Archive {
+		// the whole archive.  never read directly; always duplicate() so each reader has its own position.
+		private final ByteBuffer data;
+		private final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+
+		public Archive(ByteBuffer data) throws IOException {
+			this.data = data;
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			readCentralDirectory();
+		}
+
+		private void readCentralDirectory() throws IOException {
+			// the end record is last, followed by a comment of up to 64kb.
+			int end=-1;
+			for(int i=data.limit()-END_RECORD_SIZE; i>=0 && i>=data.limit()-END_RECORD_SIZE-0xFFFF; --i) {
+				if(data.getInt(i)==END_OF_CENTRAL_DIRECTORY) {
+					end=i;
+					break;
+				}
+			}
+			if(end==-1) throw new IOException("not a zip file.");
+
+			int count = data.getShort(end+10) & 0xFFFF;
+			long offset = data.getInt(end+16) & 0xFFFFFFFFL;
+			if(count==0xFFFF || offset==0xFFFFFFFFL) throw new IOException("zip64 is not supported.");
+
+			// every offset and size is checked against the archive before it is used.  The archive is smaller than
+			// 2GB, so anything that passes fits in an int.
+			long limit = data.limit();
+			long p = offset;
+			for(int i=0;i<count;++i) {
+				if(p+CENTRAL_ENTRY_SIZE>limit || data.getInt((int)p)!=CENTRAL_DIRECTORY_ENTRY) throw new IOException("zip central directory is damaged.");
+				int q = (int)p;
+				Entry e = new Entry();
+				e.method = data.getShort(q+10) & 0xFFFF;
+				long compressedSize = data.getInt(q+20) & 0xFFFFFFFFL;
+				long size = data.getInt(q+24) & 0xFFFFFFFFL;
+				int nameLength = data.getShort(q+28) & 0xFFFF;
+				int extraLength = data.getShort(q+30) & 0xFFFF;
+				int commentLength = data.getShort(q+32) & 0xFFFF;
+				long localHeaderOffset = data.getInt(q+42) & 0xFFFFFFFFL;
+				if(compressedSize==0xFFFFFFFFL || size==0xFFFFFFFFL || localHeaderOffset==0xFFFFFFFFL) throw new IOException("zip64 is not supported.");
+
+				long next = p+CENTRAL_ENTRY_SIZE+nameLength+extraLength+commentLength;
+				if(next>limit) throw new IOException("zip central directory is damaged.");
+				if(localHeaderOffset+LOCAL_HEADER_SIZE+compressedSize>limit) throw new IOException("zip central directory is damaged.");
+				if(size>MAX_ARRAY_SIZE) throw new IOException("zip entry is too big.");
+				if(e.method==ZipEntry.STORED && size!=compressedSize) throw new IOException("zip central directory is damaged.");
+				if(e.method==ZipEntry.DEFLATED && size>compressedSize*MAX_DEFLATE_RATIO+1024) throw new IOException("zip central directory is damaged.");
+				e.compressedSize = (int)compressedSize;
+				e.size = (int)size;
+				e.localHeaderOffset = (int)localHeaderOffset;
+
+				byte [] name = new byte[nameLength];
+				ByteBuffer b = data.duplicate();
+				b.position(q+CENTRAL_ENTRY_SIZE);
+				b.get(name);
+				entries.put(new String(name,StandardCharsets.UTF_8), e);
+				p = next;
+			}
+		}
+
+		private Entry getEntry(String name) throws FileNotFoundException {
+			Entry e = entries.get(name);
+			if(e==null) throw new FileNotFoundException(name+" not found in zip.");
+			return e;
+		}
+
+		/**
+		 * @return the compressed bytes of the entry.
+		 */
+		private ByteBuffer getRawData(Entry e) throws IOException {
+			int p = e.localHeaderOffset;
+			if((long)p+LOCAL_HEADER_SIZE>data.limit() || data.getInt(p)!=LOCAL_FILE_HEADER) throw new IOException("zip entry is damaged.");
+			// the local header can have a different extra field than the central directory.
+			long start = (long)p+LOCAL_HEADER_SIZE + (data.getShort(p+26) & 0xFFFF) + (data.getShort(p+28) & 0xFFFF);
+			if(start+e.compressedSize>data.limit()) throw new IOException("zip entry is damaged.");
+			ByteBuffer b = data.duplicate();
+			b.position((int)start);
+			b.limit((int)start+e.compressedSize);
+			return b.slice();
+		}
+
+		public InputStream open(String name) throws IOException {
+			Entry e = getEntry(name);
+			ByteBuffer raw = getRawData(e);
+			switch(e.method) {
+			case ZipEntry.STORED:
+				return new ByteBufferInputStream(raw,false);
+			case ZipEntry.DEFLATED:
+				final Inflater inflater = new Inflater(true);
+				return new InflaterInputStream(new ByteBufferInputStream(raw,true),inflater,Math.max(512,Math.min(e.compressedSize,1<<16))) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						inflater.end();
+					}
+				};
+			default:
+				throw new IOException("zip compression method "+e.method+" is not supported.");
+			}
+		}
+
+		public ByteBuffer getBuffer(String name) throws IOException {
+			Entry e = getEntry(name);
+			ByteBuffer raw = getRawData(e);
+			switch(e.method) {
+			case ZipEntry.STORED:
+				return raw.asReadOnlyBuffer();
+			case ZipEntry.DEFLATED:
+				Inflater inflater = new Inflater(true);
+				try {
+					// one extra byte at the end.  Inflater in nowrap mode sometimes wants it.
+					byte [] input = new byte[raw.remaining()+1];
+					raw.get(input,0,input.length-1);
+					inflater.setInput(input);
+					byte [] output = new byte[e.size];
+					int total=0;
+					while(total<output.length) {
+						int n = inflater.inflate(output,total,output.length-total);
+						if(n==0) break;
+						total+=n;
+					}
+					if(total!=output.length) throw new IOException("zip entry "+name+" is damaged.");
+					return ByteBuffer.wrap(output).asReadOnlyBuffer();
+				} catch(DataFormatException ex) {
+					throw new IOException("zip entry "+name+" is damaged.",ex);
+				} finally {
+					inflater.end();
+				}
+			default:
+				throw new IOException("zip compression method "+e.method+" is not supported.");
+			}
+		}
+	}
+
+	/**
+	 * Reads a ByteBuffer as a stream.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		// Inflater in nowrap mode sometimes wants one extra byte after the compressed data.
+		private boolean dummyByte;
+
+		public ByteBufferInputStream(ByteBuffer buffer,boolean dummyByte) {
+			this.buffer = buffer;
+			this.dummyByte = dummyByte;
+		}
+
+		@Override
+		public int read() {
+			if(buffer.hasRemaining()) return buffer.get() & 0xFF;
+			if(dummyByte) {
+				dummyByte=false;
+				return 0;
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte [] b,int off,int len) {
+			if(len==0) return 0;
+			if(!buffer.hasRemaining()) {
+				int c = read();
+				if(c==-1) return -1;
+				b[off]=(byte)c;
+				return 1;
+			}
+			len = Math.min(len,buffer.remaining());
+			buffer.get(b,off,len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int k = (int)Math.max(0,Math.min(n,buffer.remaining()));
+			buffer.position(buffer.position()+k);
+			return k;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	private static Archive getArchive(String zipName) throws IOException {
+		Holder h;
+		synchronized(archives) {
+			h = archives.get(zipName);
+			if(h==null) {
+				h = new Holder(zipName);
+				archives.put(zipName, h);
+			}
+		}
+		return h.get();
+	}
+
+	private static ByteBuffer readArchive(String zipName) throws IOException {
+		File file = FileAccess.getFile(zipName);
+		if(file!=null) {
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				if(channel.size()>Integer.MAX_VALUE) throw new IOException(zipName+" is too large.");
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+
+		// packed in a jar.  keep the whole archive in memory.
+		InputStream in = FileAccess.open(zipName);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte [] buffer = new byte[1<<16];
+			int n;
+			while((n=in.read(buffer))>0) {
+				bytes.write(buffer,0,n);
+			}
+			return ByteBuffer.wrap(bytes.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param zipName the archive.  may be a file on disk or a resource.
+	 * @param entryName the file inside the archive.
+	 * @return a stream of the uncompressed contents.
+	 * @throws IOException if the archive can't be read or doesn't hold entryName.
+	 */
+	public static InputStream open(String zipName,String entryName) throws IOException {
+		return getArchive(zipName).open(entryName);
+	}
+
+	/**
+	 * @param zipName the archive.  may be a file on disk or a resource.
+	 * @param entryName the file inside the archive.
+	 * @return a read only buffer of the uncompressed contents.  Stored (uncompressed) entries of a zip on disk
+	 * are mapped straight from the file.
+	 * @throws IOException if the archive can't be read or doesn't hold entryName.
+	 */
+	public static ByteBuffer getBuffer(String zipName,String entryName) throws IOException {
+		return getArchive(zipName).getBuffer(entryName);
+	}
+
+	/**
+	 * @return true if the archive holds entryName.
+	 * @throws IOException if the archive can't be read.
+	 */
+	public static boolean contains(String zipName,String entryName) throws IOException {
+		return getArchive(zipName).entries.containsKey(entryName);
+	}
+
+	/**
+	 * Forget an archive, so it will be read again next time.  Use this if the zip file changes, or to let go of
+	 * the memory.  Buffers already handed out stay valid; the archive is released when the last of them is gone.
+	 */
+	public static void forget(String zipName) {
+		synchronized(archives) {
+			archives.remove(zipName);
+		}
+	}
+
+	/**
+	 * Forget every archive.
+	 */
+	public static void forgetAll() {
+		synchronized(archives) {
+			archives.clear();
+		}
+	}
+
+	/**
+	 * @return the number of archives kept open.
+	 */
+	public static int getOpenCount() {
+		synchronized(archives) {
+			return archives.size();
+		}
+	}
+}
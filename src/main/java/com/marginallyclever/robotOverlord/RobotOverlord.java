@@ -20,6 +20,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.prefs.Preferences;
 
 import javax.swing.JFrame;
@@ -41,7 +42,6 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL2;
 import com.jogamp.opengl.GLAutoDrawable;
@@ -54,9 +54,12 @@ import com.jogamp.opengl.util.FPSAnimator;
 import com.marginallyclever.robotOverlord.entity.Entity;
 import com.marginallyclever.robotOverlord.entity.scene.CameraEntity;
 import com.marginallyclever.robotOverlord.entity.scene.DragBallEntity;
+import com.marginallyclever.robotOverlord.entity.scene.RayPicker;
 import com.marginallyclever.robotOverlord.entity.scene.Scene;
 import com.marginallyclever.robotOverlord.entity.scene.ViewCubeEntity;
 import com.marginallyclever.robotOverlord.entity.scene.ViewportEntity;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoaderService;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
 import com.marginallyclever.robotOverlord.log.Log;
 import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
 import com.marginallyclever.robotOverlord.swingInterface.EntityTreePanel;
@@ -117,10 +120,10 @@ public class RobotOverlord extends Entity implements MouseListener, MouseMotionL
 	
 	
 	// click on screen to change which entity is selected
-	// select buffer depth
-	static final public int SELECT_BUFFER_SIZE=256;
 	// when to pick
 	protected transient boolean pickNow;
+	// a ray being cast off the GL thread.  See RayPicker.
+	protected transient CompletableFuture<RayPicker.Hit> pendingPick;
 	// where on screen to pick
 	protected transient double pickX, pickY;
 	// ray picking visualization
@@ -754,6 +757,11 @@ public class RobotOverlord extends Entity implements MouseListener, MouseMotionL
     	// RENDER STEP
 
     	GL2 gl2 = drawable.getGL().getGL2();
+    	
+    	// free the GPU memory of any models evicted from the pool.
+    	ModelPool.update(gl2);
+    	// upload models that finished loading in the background.
+    	ModelLoaderService.update(gl2);
 
 		if(checkStackSize) {
     		IntBuffer stackDepth = IntBuffer.allocate(1);
@@ -775,8 +783,12 @@ public class RobotOverlord extends Entity implements MouseListener, MouseMotionL
 		//pickNow=true;
         if(pickNow) {
 	        pickNow=false;
-	        int pickName = findItemUnderCursor(gl2);
-        	Entity next = scene.pickPhysicalEntityWithName(pickName);
+	        // the scene is copied now and the ray is cast on another thread.
+	        pendingPick = RayPicker.pickLater(scene,viewport.rayPick(pickX,pickY));
+        }
+        if(pendingPick!=null && pendingPick.isDone()) {
+        	Entity next = findItemUnderCursor(pendingPick);
+        	pendingPick=null;
     		undoableEditHappened(new UndoableEditEvent(this,new ActionEntitySelect(this,selectedEntity,next) ) );
         }
 		
@@ -788,71 +800,23 @@ public class RobotOverlord extends Entity implements MouseListener, MouseMotionL
     }
 	
     /**
-     * Use glRenderMode(GL_SELECT) to ray pick the item under the cursor.
-     * https://github.com/sgothel/jogl-demos/blob/master/src/demos/misc/Picking.java
-     * http://web.engr.oregonstate.edu/~mjb/cs553/Handouts/Picking/picking.pdf
-     * @param gl2 the openGL render context
+     * @param pick a finished ray cast from the camera through the cursor.
+     * @return the child of the scene that holds whatever the ray hit first, or null.
      */
-    protected int findItemUnderCursor(GL2 gl2) {
-    	// select buffer
-    	IntBuffer pickBuffer = Buffers.newDirectIntBuffer(SELECT_BUFFER_SIZE);
-    	// set up the buffer that will hold the names found under the cursor in furthest to closest.
-        gl2.glSelectBuffer(SELECT_BUFFER_SIZE, pickBuffer);
-
-        // change the render mode
-		gl2.glRenderMode( GL2.GL_SELECT );
-		// wipe the select buffer
-		gl2.glInitNames();
-
-		viewport.renderPick(gl2,pickX,pickY);
-		
-        gl2.glPushName(0);
-
-        // render in selection mode, without advancing time in the simulation.
-        scene.render(gl2);
-
-        gl2.glPopName();
-
-        gl2.glFlush();
-        
-        // get the picking results and return the render mode to the default 
-        int hits = gl2.glRenderMode( GL2.GL_RENDER );
-
-        boolean verbose=false;
-        
-		if(verbose) Log.message("\n"+hits+" PICKS @ "+pickX+","+pickY);
-        float z1,z2;
-		
-        float zMinBest = Float.MAX_VALUE;
-    	int i, j, index=0, nameCount, pickName=0, bestPickName=0;
-    	
-    	for(i=0;i<hits;++i) {
-    		nameCount=pickBuffer.get(index++);
-    		z1 = (float) (pickBuffer.get(index++) & 0xffffffffL) / (float)0x7fffffff;
-    		z2 = (float) (pickBuffer.get(index++) & 0xffffffffL) / (float)0x7fffffff;
-    		
-    		if(verbose) {
-    			Log.message("  names="+nameCount+" zMin="+z1+" zMax="+z2);
-    		}
-    		String add=": ";
-    		
-			for(j=0;j<nameCount;++j) {
-    			pickName = pickBuffer.get(index++);
-        		if(verbose) {
-        			Log.message(add+pickName);
-            		add=", ";
-        		}
-			}
-			if(nameCount>0) {
-				//pickName = pickBuffer.get(index++);
-				if(verbose) Log.message(add+" BEST="+pickName);
-        		if(zMinBest > z1) {
-        			zMinBest = z1;
-        			bestPickName = pickName;
-        		}
-    		}
+    protected Entity findItemUnderCursor(CompletableFuture<RayPicker.Hit> pick) {
+    	RayPicker.Hit hit;
+    	try {
+    		hit = pick.join();
+    	} catch(Exception e) {
+    		Log.error("Picking failed: "+e.getLocalizedMessage());
+    		return null;
+    	}
+    	Entity e = hit.entity;
+    	// select the whole robot, not one link of it.
+    	while(e!=null && e.getParent()!=scene) {
+    		e = e.getParent();
     	}
-    	return bestPickName;
+    	return e;
     }
     
     public void updateEntityTree() {
@@ -2,6 +2,7 @@ package com.marginallyclever.robotOverlord.entity.scene;
 
 import java.util.ArrayList;
 
+import javax.vecmath.Matrix4d;
 import javax.vecmath.Vector3d;
 
 import com.jogamp.opengl.GL2;
@@ -98,6 +99,7 @@ public class LightEntity extends PoseEntity {
 		}
 		gl2.glEnable(i);
 		
+		Matrix4d poseWorld = getPoseWorld();
 		position[0]=(float)poseWorld.m03;
 		position[1]=(float)poseWorld.m13;
 		position[2]=(float)poseWorld.m23;
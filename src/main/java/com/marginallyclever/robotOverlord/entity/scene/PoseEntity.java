@@ -18,25 +18,38 @@ import com.marginallyclever.robotOverlord.entity.Entity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.BooleanEntity;
 import com.marginallyclever.robotOverlord.swingInterface.view.ViewPanel;
 
+/**
+ * An {@link Entity} with a pose relative to its parent.
+ * <p>
+ * The world pose is worked out when asked for and kept until this entity or one of its parents moves.  That cache
+ * is only read or written while holding one lock shared by every PoseEntity, so getPoseWorld() and the other world
+ * pose methods may be called from any thread: the GL thread, picking and IK workers, or a serial reader.  Change
+ * the local pose with setPose() so the change is made under the same lock.
+ * @author Dan Royer
+ */
 public class PoseEntity extends Entity {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = -1959037711655040359L;
 	
-	// unique ids for all objects in the world.  
-	// zero is reserved to indicate no object.
-	@JsonIgnore
-	static private int pickNameCounter=1;
-	// my unique id
-	@JsonIgnore
-	private int pickName;	
-	
 	// pose relative to my parent Entity.
 	public Matrix4d pose = new Matrix4d();
-	// pose relative to the world.
+	// pose relative to the world.  Calculated when asked for, and only if poseWorldDirty.  See getPoseWorld().
+	@JsonIgnore
+	private Matrix4d poseWorld = new Matrix4d();
+	// true when poseWorld must be recalculated.  If I am dirty, so are all my children.
 	@JsonIgnore
-	public Matrix4d poseWorld = new Matrix4d();
+	private boolean poseWorldDirty=true;
+	// counts every recalculation of poseWorld, so others can tell when it has changed.
+	@JsonIgnore
+	private long poseWorldVersion;
+	// poseWorldVersion when the cuboid was last moved.
+	@JsonIgnore
+	private long cuboidVersion=-1;
+	// guards pose, poseWorld, poseWorldDirty, and poseWorldVersion of every PoseEntity.  One lock for the whole
+	// tree, because refreshing a world pose reads every parent.
+	private static final Object poseWorldLock = new Object();
 	
 	protected ReentrantLock lock1 = new ReentrantLock();
 	protected ReentrantLock lock2 = new ReentrantLock();
@@ -57,8 +70,6 @@ public class PoseEntity extends Entity {
 		super();
 		setName("Pose");
 		
-		pickName = pickNameCounter++;
-		
 		addChild(showBoundingBox);
 		addChild(showLocalOrigin);
 		addChild(showLineage);
@@ -74,15 +85,13 @@ public class PoseEntity extends Entity {
 	
 	public void set(PoseEntity b) {
 		super.set(b);
-		pose.set(b.pose);
-		poseWorld.set(b.poseWorld);
+		synchronized(poseWorldLock) {
+			pose.set(b.pose);
+			markPoseWorldDirty();
+		}
 		cuboid.set(b.cuboid);
 	}
 
-	public int getPickName() {
-		return pickName;
-	}
-
 	/**
 	 * Render this physicalEntity into the view
 	 * @param gl2
@@ -203,44 +212,65 @@ public class PoseEntity extends Entity {
 
 	/**
 	 * Set the local pose (relative to my parent)
-	 * Automatically updates the cumulative pose.
+	 * The world pose of this and all children is recalculated the next time it is needed.
 	 * @param arg0 the local pose
 	 */
 	public void setPose(Matrix4d arg0) {
 		//if(!arg0.epsilonEquals(pose.get(), 1e-6)) {
-			pose.set(arg0);
+			synchronized(poseWorldLock) {
+				pose.set(arg0);
+				markPoseWorldDirty();
+			}
 			setChanged();
-			updatePoseWorld();
 			notifyObservers();
 		//}
 	}
 	
 	/**
-	 * Recalculates poseWorld from pose and parent.poseWorld.  
-	 * Does not crawl up the parent hierarchy.
+	 * Mark the world pose of this and every child as out of date.  Stops early at any entity that is already
+	 * marked, because its children must be too.  Call after changing pose without setPose().
 	 */
-	public void updatePoseWorld() {
-		Matrix4d m;
+	public void markPoseWorldDirty() {
+		synchronized(poseWorldLock) {
+			if(poseWorldDirty) return;
+			poseWorldDirty=true;
+			for( Entity c : children ) {
+				if(c instanceof PoseEntity) {
+					((PoseEntity)c).markPoseWorldDirty();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Recalculate poseWorld if it is out of date, after the parent has done the same.
+	 * Only call while holding poseWorldLock.
+	 */
+	private void refreshPoseWorld() {
+		if(!poseWorldDirty) return;
 		if(parent instanceof PoseEntity) {
-			// this poseWorld is my pose * my parent's pose.
+			// this poseWorld is my parent's poseWorld * my pose.
 			PoseEntity peParent = (PoseEntity)parent;
-			m = new Matrix4d(peParent.poseWorld);
-			m.mul(pose);
+			peParent.refreshPoseWorld();
+			poseWorld.mul(peParent.poseWorld,pose);
 		} else {
 			// this poseWorld is my pose
-			m = pose;
+			poseWorld.set(pose);
 		}
-		
-
-		//if(!m.epsilonEquals(poseWorld.get(), 1e-6))
-		{
-			poseWorld.set(m);
-			cuboid.setPoseWorld(this.getPoseWorld());
-			
+		poseWorldDirty=false;
+		poseWorldVersion++;
+	}
+	
+	/**
+	 * Recalculates poseWorld of this and all children now, in one pass from the top down.
+	 * Only needed before reading many world poses at once; getPoseWorld() is always up to date.
+	 */
+	public void updatePoseWorld() {
+		synchronized(poseWorldLock) {
+			refreshPoseWorld();
 			for( Entity c : children ) {
 				if(c instanceof PoseEntity) {
-					PoseEntity pe = (PoseEntity)c;
-					pe.updatePoseWorld();
+					((PoseEntity)c).updatePoseWorld();
 				}
 			}
 		}
@@ -255,9 +285,47 @@ public class PoseEntity extends Entity {
 	 * @return {@link Matrix4d} of the world pose
 	 */
 	public Matrix4d getPoseWorld() {
-		return new Matrix4d(poseWorld);
+		synchronized(poseWorldLock) {
+			refreshPoseWorld();
+			return new Matrix4d(poseWorld);
+		}
 	}
 	
+	/**
+	 * Same as getPoseWorld() without making a new matrix.
+	 * @param out receives the world pose.
+	 */
+	public void getPoseWorld(Matrix4d out) {
+		synchronized(poseWorldLock) {
+			refreshPoseWorld();
+			out.set(poseWorld);
+		}
+	}
+	
+	/**
+	 * @return a number that changes every time the world pose changes.
+	 */
+	public long getPoseWorldVersion() {
+		synchronized(poseWorldLock) {
+			refreshPoseWorld();
+			return poseWorldVersion;
+		}
+	}
+	
+	/**
+	 * The world pose of my parent changes when I move to a new parent.
+	 */
+	@Override
+	public void setParent(Entity e) {
+		super.setParent(e);
+		markPoseWorldDirty();
+	}
+	
+	@Override
+	public void removeParent() {
+		super.removeParent();
+		markPoseWorldDirty();
+	}
 	
 	/**
 	 * Set the pose and poseWorld of this item
@@ -266,7 +334,7 @@ public class PoseEntity extends Entity {
 	public void setPoseWorld(Matrix4d m) {
 		if(parent instanceof PoseEntity) {
 			PoseEntity pep = (PoseEntity)parent;
-			Matrix4d newPose = new Matrix4d(pep.poseWorld);
+			Matrix4d newPose = pep.getPoseWorld();
 			newPose.invert();
 			newPose.mul(m);
 			setPose(newPose);
@@ -286,7 +354,18 @@ public class PoseEntity extends Entity {
 		return null;
 	}
 
+	/**
+	 * @return the cuboid, moved to the current world pose.  The cuboid itself belongs to the thread that owns
+	 * the scene, usually the GL thread.
+	 */
 	public Cuboid getCuboid() {
+		synchronized(poseWorldLock) {
+			refreshPoseWorld();
+			if(cuboidVersion!=poseWorldVersion) {
+				cuboid.setPoseWorld(poseWorld);
+				cuboidVersion=poseWorldVersion;
+			}
+		}
 		return cuboid;
 	}
 	
@@ -297,8 +376,7 @@ public class PoseEntity extends Entity {
 	public ArrayList<Cuboid> getCuboidList() {		
 		ArrayList<Cuboid> cuboidList = new ArrayList<Cuboid>();
 		
-		cuboid.setPoseWorld(this.getPoseWorld());
-		cuboidList.add(cuboid);
+		cuboidList.add(getCuboid());
 
 		return cuboidList;
 	}
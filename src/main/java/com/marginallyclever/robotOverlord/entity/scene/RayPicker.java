@@ -0,0 +1,530 @@
+package com.marginallyclever.robotOverlord.entity.scene;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import com.marginallyclever.convenience.Cuboid;
+import com.marginallyclever.convenience.Ray;
+import com.marginallyclever.robotOverlord.entity.Entity;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelBVH;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
+
+/**
+ * Finds the nearest thing in a {@link Scene} that a {@link Ray} touches, without drawing anything.
+ * <p>
+ * The constructor copies what it needs from the scene: the world pose and {@link Cuboid} of every
+ * {@link PoseEntity}, and the {@link Model} of every {@link ModelEntity}.  After that the scene may change freely,
+ * so the ray can be cast on another thread.  Given the picker from the last pick, only entities whose world pose
+ * or bounds have changed since are copied again, found with {@link PoseEntity#getPoseWorldVersion()}.
+ * <p>
+ * The world bounds of every entity are kept in a tree.  Casting walks the tree to find the cuboids the ray touches,
+ * then tests the triangles of their models, nearest box first, with {@link ModelBVH}.  The tree is made again when
+ * entities are added or removed, and otherwise refit to the new bounds.  Entities with a cuboid but no model, or
+ * whose model has no triangles left to search, are hit on their cuboid.
+ * @author Dan Royer
+ */
+public class RayPicker {
+	// most candidates in one leaf of the tree.
+	private static final int LEAF_SIZE = 4;
+
+	/**
+	 * What a ray touched.
+	 */
+	public static class Hit {
+		// the deepest entity touched.
+		public PoseEntity entity;
+		// distance along the ray, in lengths of the ray direction.
+		public double t = Double.POSITIVE_INFINITY;
+		// where, in world space.
+		public Point3d point = new Point3d();
+		// unit normal of the surface touched, in world space.
+		public Vector3d normal = new Vector3d();
+	}
+
+	/**
+	 * One entity that could be hit.  Never changed once made, so pickers can share them.
+	 */
+	private static class Candidate {
+		PoseEntity entity;
+		// what this copy was made from.
+		long poseWorldVersion;
+		int boundsVersion;
+		// world space to entity space.
+		Matrix4d worldToLocal;
+		// bounds in entity space.
+		Point3d bottom, top;
+		// bounds in world space.  bottom xyz, top xyz.
+		double [] world = new double[6];
+		Model model;
+		// entity space to the space of the model, before adjust.
+		Matrix4d localToModel;
+	}
+
+	// a candidate the ray passes through.
+	private static class Touch {
+		Candidate candidate;
+		// where the ray enters the cuboid.
+		double entry;
+	}
+
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"RayPicker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+	private IdentityHashMap<PoseEntity,Candidate> byEntity = new IdentityHashMap<PoseEntity,Candidate>();
+	private int numReused;
+
+	// the tree, in flat arrays.  Children always come after their parent.
+	// 6 per node: bottom xyz, top xyz, in world space.
+	private double [] nodeBounds;
+	// branch: index of each child.  leaf: -1, and the candidates order[first...first+count).
+	private int [] nodeLeft, nodeRight, nodeFirst, nodeCount;
+	private int [] order;
+	private int numNodes;
+
+	/**
+	 * Copy the parts of the scene needed to cast rays.  Call from the thread that changes the scene.
+	 * @param scene the scene.
+	 */
+	public RayPicker(Scene scene) {
+		this(scene,null);
+	}
+
+	/**
+	 * Copy the parts of the scene needed to cast rays, reusing what hasn't changed since an earlier copy.
+	 * Call from the thread that changes the scene.
+	 * @param scene the scene.
+	 * @param previous an earlier picker of the same scene, or null.  Not changed.
+	 */
+	public RayPicker(Scene scene,RayPicker previous) {
+		addChildren(scene,previous);
+		if(previous!=null && hasSameEntities(previous)) {
+			refit(previous);
+		} else {
+			build();
+		}
+	}
+
+	private void addChildren(Entity parent,RayPicker previous) {
+		for(Entity e : parent.getChildren()) {
+			if(!(e instanceof PoseEntity)) continue;
+			PoseEntity pe = (PoseEntity)e;
+			add(pe,previous);
+			addChildren(pe,previous);
+		}
+	}
+
+	private void add(PoseEntity pe,RayPicker previous) {
+		Model model = null;
+		if(pe instanceof ModelEntity) {
+			ModelEntity me = (ModelEntity)pe;
+			// still loading?  pick the cuboid instead.
+			model = me.getModelIfReady();
+		}
+		Cuboid cuboid = (model!=null) ? model.getCuboid() : pe.getCuboid();
+		Point3d bottom = cuboid.getBoundsBottom();
+		Point3d top = cuboid.getBoundsTop();
+		// nothing to hit.
+		if(!(bottom.x<top.x || bottom.y<top.y || bottom.z<top.z)) return;
+
+		long version = pe.getPoseWorldVersion();
+		int boundsVersion = (model!=null) ? model.getBoundsVersion() : 0;
+		Candidate c = (previous!=null) ? previous.byEntity.get(pe) : null;
+		if(c!=null && c.poseWorldVersion==version && c.model==model && c.boundsVersion==boundsVersion
+				&& c.bottom.equals(bottom) && c.top.equals(top)) {
+			numReused++;
+		} else {
+			c = new Candidate();
+			c.entity = pe;
+			c.poseWorldVersion = version;
+			c.boundsVersion = boundsVersion;
+			c.bottom = new Point3d(bottom);
+			c.top = new Point3d(top);
+			Matrix4d poseWorld = pe.getPoseWorld();
+			getWorldBounds(poseWorld,c.bottom,c.top,c.world);
+			c.worldToLocal = poseWorld;
+			c.worldToLocal.invert();
+			c.model = model;
+			if(model!=null) {
+				// the model is drawn with adjust applied in the entity's space.
+				c.localToModel = model.getAdjustMatrix();
+				c.localToModel.invert();
+			}
+		}
+		candidates.add(c);
+		byEntity.put(pe,c);
+	}
+
+	/**
+	 * @param world receives the bounds of the eight corners of the box moved by pose.
+	 */
+	private static void getWorldBounds(Matrix4d pose,Point3d bottom,Point3d top,double [] world) {
+		for(int k=0;k<3;++k) {
+			world[k] = Double.POSITIVE_INFINITY;
+			world[3+k] = Double.NEGATIVE_INFINITY;
+		}
+		Point3d p = new Point3d();
+		for(int i=0;i<8;++i) {
+			p.x = ((i&1)==0) ? bottom.x : top.x;
+			p.y = ((i&2)==0) ? bottom.y : top.y;
+			p.z = ((i&4)==0) ? bottom.z : top.z;
+			pose.transform(p);
+			world[0] = Math.min(world[0],p.x);	world[3] = Math.max(world[3],p.x);
+			world[1] = Math.min(world[1],p.y);	world[4] = Math.max(world[4],p.y);
+			world[2] = Math.min(world[2],p.z);	world[5] = Math.max(world[5],p.z);
+		}
+	}
+
+	private boolean hasSameEntities(RayPicker previous) {
+		if(previous.candidates.size()!=candidates.size()) return false;
+		for(int i=0;i<candidates.size();++i) {
+			if(previous.candidates.get(i).entity!=candidates.get(i).entity) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Make a new tree over the world bounds of the candidates.
+	 */
+	private void build() {
+		int count = candidates.size();
+		order = new int[count];
+		double [] center = new double[count*3];
+		for(int i=0;i<count;++i) {
+			order[i]=i;
+			double [] w = candidates.get(i).world;
+			for(int k=0;k<3;++k) center[i*3+k] = (w[k]+w[3+k])/2;
+		}
+		int maxNodes = Math.max(1,count*2);
+		nodeBounds = new double[maxNodes*6];
+		nodeLeft = new int[maxNodes];
+		nodeRight = new int[maxNodes];
+		nodeFirst = new int[maxNodes];
+		nodeCount = new int[maxNodes];
+		numNodes = 0;
+		buildNode(0,count,center);
+	}
+
+	/**
+	 * Make a node for order[first...first+count) and everything below it.  Split at the middle candidate along
+	 * the longest side of the box around their centers.
+	 * @return index of the new node.
+	 */
+	private int buildNode(int first,int count,double [] center) {
+		int node = numNodes++;
+		nodeFirst[node] = first;
+		nodeCount[node] = count;
+		nodeLeft[node] = nodeRight[node] = -1;
+		fitLeaf(node);
+		if(count<=LEAF_SIZE) return node;
+
+		double [] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double [] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for(int i=first;i<first+count;++i) {
+			for(int k=0;k<3;++k) {
+				lo[k] = Math.min(lo[k],center[order[i]*3+k]);
+				hi[k] = Math.max(hi[k],center[order[i]*3+k]);
+			}
+		}
+		int axis=0;
+		for(int k=1;k<3;++k) {
+			if(hi[k]-lo[k] > hi[axis]-lo[axis]) axis=k;
+		}
+		int half = count/2;
+		select(first,first+count-1,first+half,center,axis);
+		nodeLeft[node] = buildNode(first,half,center);
+		nodeRight[node] = buildNode(first+half,count-half,center);
+		return node;
+	}
+
+	/**
+	 * Partly sort order[left...right] so that order[nth] is where it would be if sorted by center along axis,
+	 * with nothing larger before it and nothing smaller after.
+	 */
+	private void select(int left,int right,int nth,double [] center,int axis) {
+		while(left<right) {
+			double pivot = center[order[(left+right)>>>1]*3+axis];
+			int i=left, j=right;
+			while(i<=j) {
+				while(center[order[i]*3+axis]<pivot) ++i;
+				while(center[order[j]*3+axis]>pivot) --j;
+				if(i<=j) {
+					int t=order[i];
+					order[i]=order[j];
+					order[j]=t;
+					++i;
+					--j;
+				}
+			}
+			if(nth<=j) right=j;
+			else if(nth>=i) left=i;
+			else return;
+		}
+	}
+
+	/**
+	 * Reuse the shape of the last tree, with the bounds worked out again.  Children come after their parent,
+	 * so going backwards fits every child before its parent.
+	 */
+	private void refit(RayPicker previous) {
+		order = previous.order;
+		nodeLeft = previous.nodeLeft;
+		nodeRight = previous.nodeRight;
+		nodeFirst = previous.nodeFirst;
+		nodeCount = previous.nodeCount;
+		numNodes = previous.numNodes;
+		if(numReused==candidates.size()) {
+			nodeBounds = previous.nodeBounds;
+			return;
+		}
+		nodeBounds = new double[previous.nodeBounds.length];
+		for(int node=numNodes-1;node>=0;--node) {
+			if(nodeLeft[node]==-1) {
+				fitLeaf(node);
+			} else {
+				int a = nodeLeft[node]*6;
+				int b = nodeRight[node]*6;
+				for(int k=0;k<3;++k) {
+					nodeBounds[node*6+k] = Math.min(nodeBounds[a+k],nodeBounds[b+k]);
+					nodeBounds[node*6+3+k] = Math.max(nodeBounds[a+3+k],nodeBounds[b+3+k]);
+				}
+			}
+		}
+	}
+
+	private void fitLeaf(int node) {
+		for(int k=0;k<3;++k) {
+			nodeBounds[node*6+k] = Double.POSITIVE_INFINITY;
+			nodeBounds[node*6+3+k] = Double.NEGATIVE_INFINITY;
+		}
+		for(int i=nodeFirst[node];i<nodeFirst[node]+nodeCount[node];++i) {
+			double [] w = candidates.get(order[i]).world;
+			for(int k=0;k<3;++k) {
+				nodeBounds[node*6+k] = Math.min(nodeBounds[node*6+k],w[k]);
+				nodeBounds[node*6+3+k] = Math.max(nodeBounds[node*6+3+k],w[3+k]);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entities that could be hit.
+	 */
+	public int getNumCandidates() {
+		return candidates.size();
+	}
+
+	/**
+	 * @return the number of entities copied from the previous picker instead of from the scene.
+	 */
+	public int getNumReused() {
+		return numReused;
+	}
+
+	/**
+	 * Find the nearest thing a ray touches.  Any number of threads may pick at the same time.
+	 * @param ray the ray, in world space.
+	 * @param hit receives the nearest hit, if any.
+	 * @return true if something was hit.
+	 */
+	public boolean pick(Ray ray,Hit hit) {
+		// broad phase: every cuboid the ray passes through, nearest first.
+		ArrayList<Touch> touched = new ArrayList<Touch>();
+		Point3d start = new Point3d();
+		Vector3d direction = new Vector3d();
+		if(!candidates.isEmpty()) {
+			int [] stack = new int[numNodes];
+			int top=0;
+			stack[top++]=0;
+			while(top>0) {
+				int node = stack[--top];
+				if(rayBox(ray.start,ray.direction,nodeBounds,node*6)==Double.POSITIVE_INFINITY) continue;
+				if(nodeLeft[node]!=-1) {
+					stack[top++]=nodeLeft[node];
+					stack[top++]=nodeRight[node];
+					continue;
+				}
+				for(int i=nodeFirst[node];i<nodeFirst[node]+nodeCount[node];++i) {
+					Candidate c = candidates.get(order[i]);
+					toLocal(c,ray,start,direction);
+					double entry = rayBox(start,direction,c.bottom,c.top);
+					if(entry==Double.POSITIVE_INFINITY) continue;
+					Touch touch = new Touch();
+					touch.candidate = c;
+					touch.entry = entry;
+					touched.add(touch);
+				}
+			}
+		}
+		Collections.sort(touched,new Comparator<Touch>() {
+			@Override
+			public int compare(Touch a, Touch b) {
+				return Double.compare(a.entry, b.entry);
+			}
+		});
+
+		// narrow phase: stop when the next box starts beyond the best hit.
+		hit.entity = null;
+		hit.t = Double.POSITIVE_INFINITY;
+		ModelBVH.RayHit modelHit = new ModelBVH.RayHit();
+		Vector3d normal = new Vector3d();
+		for(Touch touch : touched) {
+			if(touch.entry>=hit.t) break;
+			Candidate c = touch.candidate;
+			toLocal(c,ray,start,direction);
+			ModelBVH tree = (c.model!=null) ? c.model.getBVH() : null;
+			if(tree!=null) {
+				c.localToModel.transform(start);
+				c.localToModel.transform(direction);
+				if(!tree.intersectRay(start, direction, hit.t, modelHit)) continue;
+				// normals go back through the inverse transpose.
+				normal.set(modelHit.normal);
+				transformNormal(c.localToModel,normal);
+				transformNormal(c.worldToLocal,normal);
+				setHit(hit,c,ray,modelHit.t,normal);
+			} else {
+				getBoxNormal(start,direction,touch.entry,c,normal);
+				transformNormal(c.worldToLocal,normal);
+				setHit(hit,c,ray,touch.entry,normal);
+			}
+		}
+		return hit.entity!=null;
+	}
+
+	/**
+	 * Copy the scene now and cast the ray on a worker thread, so the caller doesn't wait.
+	 * @param scene the scene.  Read now, on the calling thread.
+	 * @param ray the ray, in world space.
+	 * @return the pending result.  The hit has a null entity if nothing was hit.
+	 */
+	public static CompletableFuture<Hit> pickLater(Scene scene,final Ray ray) {
+		final RayPicker picker = new RayPicker(scene,scene.lastPicker);
+		scene.lastPicker = picker;
+		return CompletableFuture.supplyAsync(new Supplier<Hit>() {
+			@Override
+			public Hit get() {
+				Hit hit = new Hit();
+				picker.pick(ray, hit);
+				return hit;
+			}
+		}, worker);
+	}
+
+	private void setHit(Hit hit,Candidate c,Ray ray,double t,Vector3d normal) {
+		hit.entity = c.entity;
+		hit.t = t;
+		hit.point.scaleAdd(t, ray.direction, ray.start);
+		hit.normal.set(normal);
+		if(hit.normal.lengthSquared()>0) hit.normal.normalize();
+	}
+
+	/**
+	 * Move a ray into the space of a candidate.  The direction is not normalized, so distances along the ray
+	 * stay the same in both spaces.
+	 */
+	private void toLocal(Candidate c,Ray ray,Point3d start,Vector3d direction) {
+		start.set(ray.start);
+		direction.set(ray.direction);
+		c.worldToLocal.transform(start);
+		c.worldToLocal.transform(direction);
+	}
+
+	/**
+	 * Move a normal out of a space, given the matrix into that space.
+	 */
+	private void transformNormal(Matrix4d into,Vector3d n) {
+		double x = into.m00*n.x + into.m10*n.y + into.m20*n.z;
+		double y = into.m01*n.x + into.m11*n.y + into.m21*n.z;
+		double z = into.m02*n.x + into.m12*n.y + into.m22*n.z;
+		n.set(x,y,z);
+	}
+
+	/**
+	 * @param bounds bottom xyz, top xyz, starting at offset.
+	 * @return distance along the ray where it enters the box, 0 if it starts inside, or infinity if it misses.
+	 */
+	static double rayBox(Point3d start,Vector3d direction,double [] bounds,int offset) {
+		double near = 0;
+		double far = Double.POSITIVE_INFINITY;
+		double [] s = { start.x, start.y, start.z };
+		double [] d = { direction.x, direction.y, direction.z };
+		for(int i=0;i<3;++i) {
+			double lo = bounds[offset+i];
+			double hi = bounds[offset+3+i];
+			if(d[i]==0) {
+				if(s[i]<lo || s[i]>hi) return Double.POSITIVE_INFINITY;
+				continue;
+			}
+			double t0 = (lo-s[i])/d[i];
+			double t1 = (hi-s[i])/d[i];
+			near = Math.max(near,Math.min(t0,t1));
+			far = Math.min(far,Math.max(t0,t1));
+			if(near>far) return Double.POSITIVE_INFINITY;
+		}
+		return near;
+	}
+
+	/**
+	 * @return distance along the ray where it enters the box, 0 if it starts inside, or infinity if it misses.
+	 */
+	static double rayBox(Point3d start,Vector3d direction,Point3d bottom,Point3d top) {
+		double near = 0;
+		double far = Double.POSITIVE_INFINITY;
+		double [] s = { start.x, start.y, start.z };
+		double [] d = { direction.x, direction.y, direction.z };
+		double [] lo = { bottom.x, bottom.y, bottom.z };
+		double [] hi = { top.x, top.y, top.z };
+		for(int i=0;i<3;++i) {
+			if(d[i]==0) {
+				if(s[i]<lo[i] || s[i]>hi[i]) return Double.POSITIVE_INFINITY;
+				continue;
+			}
+			double t0 = (lo[i]-s[i])/d[i];
+			double t1 = (hi[i]-s[i])/d[i];
+			near = Math.max(near,Math.min(t0,t1));
+			far = Math.min(far,Math.max(t0,t1));
+			if(near>far) return Double.POSITIVE_INFINITY;
+		}
+		return near;
+	}
+
+	/**
+	 * @param n receives the normal of the face of the box where the ray enters, in the space of the box.
+	 */
+	private void getBoxNormal(Point3d start,Vector3d direction,double entry,Candidate c,Vector3d n) {
+		Point3d p = new Point3d();
+		p.scaleAdd(entry, direction, start);
+		double [] distance = {
+			Math.abs(p.x-c.bottom.x), Math.abs(p.x-c.top.x),
+			Math.abs(p.y-c.bottom.y), Math.abs(p.y-c.top.y),
+			Math.abs(p.z-c.bottom.z), Math.abs(p.z-c.top.z) };
+		int best=0;
+		for(int i=1;i<6;++i) {
+			if(distance[i]<distance[best]) best=i;
+		}
+		n.set(0,0,0);
+		double sign = (best%2==0) ? -1 : 1;
+		switch(best/2) {
+		case 0:  n.x=sign;  break;
+		case 1:  n.y=sign;  break;
+		default: n.z=sign;  break;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Vector3d;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.jogamp.opengl.GL2;
 import com.marginallyclever.convenience.Cuboid;
 import com.marginallyclever.convenience.IntersectionTester;
@@ -31,6 +32,10 @@ public class Scene extends Entity {
 	
 	public ColorEntity ambientLight = new ColorEntity("Ambient light",0.2,0.2,0.2,1);
 	
+	// the last picker made by RayPicker.pickLater(), so the next pick only copies what has moved.
+	@JsonIgnore
+	transient RayPicker lastPicker;
+	
 	public Scene() {
 		super();
 		setName("World");
@@ -132,29 +137,13 @@ public class Scene extends Entity {
 			if(!(obj instanceof PoseEntity)) continue;
 			if(obj instanceof LightEntity) continue;
 			PoseEntity pe = (PoseEntity)obj;
-			
-			gl2.glPushName(pe.getPickName());
 			pe.render(gl2);
-			gl2.glPopName();
 		}
 		
 		// PASS 2: everything transparent?
 
 	}
 
-	// Search only my children to find the PhysicalEntity with matchin pickName.
-	public PoseEntity pickPhysicalEntityWithName(int pickName) {
-		for( Entity obj : children ) {
-			if(!(obj instanceof PoseEntity)) continue;
-			PoseEntity pe = (PoseEntity)obj;
-			if( pe.getPickName()==pickName ) {
-				return pe;  // found!
-			}
-		}
-		
-		return null;
-	}
-		
 	/**
 	 * Find all Entities within epsilon mm of pose.
 	 * TODO Much optimization could be done here to reduce the search time.
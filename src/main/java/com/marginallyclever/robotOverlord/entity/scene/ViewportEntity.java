@@ -5,7 +5,6 @@ import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
 
 import com.jogamp.opengl.GL2;
-import com.jogamp.opengl.glu.GLU;
 import com.marginallyclever.convenience.MatrixHelper;
 import com.marginallyclever.convenience.PrimitiveSolids;
 import com.marginallyclever.convenience.Ray;
@@ -34,6 +33,10 @@ public class ViewportEntity extends Entity {
 
 	// calculated when rendering.  so won't be valid on the first frame.
 	protected Matrix4d projectionMatrix = new Matrix4d();
+	protected Point3d cameraPosition = new Point3d();
+	// pixels covered by one unit of length one unit away from the camera.  0 if not rendered yet.
+	protected double pixelsPerUnit;
+	protected boolean lastRenderWasOrtho;
 	
 	public DoubleEntity nearZ=new DoubleEntity("Near Z",5.0);
 	public DoubleEntity farZ=new DoubleEntity("Far Z",2000.0);
@@ -96,8 +99,33 @@ public class ViewportEntity extends Entity {
     	
 		PoseEntity camera = getAttachedTo();
 		Matrix4d mFinal = camera.getPoseWorld();
+		Vector3d eye = new Vector3d();
+		mFinal.get(eye);
+		cameraPosition.set(eye);
 		mFinal.invert();
 		MatrixHelper.applyMatrix(gl2, mFinal);
+		
+		lastRenderWasOrtho = drawOrtho.get();
+		if(lastRenderWasOrtho) {
+			// see renderOrtho()
+			pixelsPerUnit = 5.0 * ((CameraEntity)camera).getZoom()/100;
+		} else {
+			pixelsPerUnit = (canvasHeight/2.0) / Math.tan(Math.toRadians(fieldOfView.get()/2));
+		}
+	}
+	
+	/**
+	 * Estimate how big a sphere looks in the last frame drawn.
+	 * @param center center of the sphere in world space
+	 * @param radius radius of the sphere
+	 * @return the diameter in pixels.  Infinite before the first frame is drawn or if the camera is inside the sphere.
+	 */
+	public double getProjectedSize(Point3d center,double radius) {
+		if(pixelsPerUnit<=0) return Double.POSITIVE_INFINITY;
+		if(lastRenderWasOrtho) return 2*radius*pixelsPerUnit;
+		double distance = center.distance(cameraPosition);
+		if(distance<=radius) return Double.POSITIVE_INFINITY;
+		return 2*radius*pixelsPerUnit/distance;
 	}
 	
 	public void renderChosenProjection(GL2 gl2) {
@@ -110,58 +138,55 @@ public class ViewportEntity extends Entity {
         renderShared(gl2);
 	}
 	
-	public void renderPick(GL2 gl2,double pickX,double pickY) {
-        gl2.glMatrixMode(GL2.GL_PROJECTION);
-        gl2.glLoadIdentity();
-        
-        // get the current viewport dimensions to set up the projection matrix
-        int[] viewportDimensions = new int[4];
-		gl2.glGetIntegerv(GL2.GL_VIEWPORT,viewportDimensions,0);
-
-		GLU glu = GLU.createGLU(gl2);
-        
-		// Set up a tiny viewport that only covers the area behind the cursor. 
-		// Tiny viewports are faster.
-		glu.gluPickMatrix(pickX, canvasHeight-pickY, 5.0, 5.0, viewportDimensions,0);
-
-		if(drawOrtho.get()) {
-			renderOrtho(gl2);
-		} else {
-			renderPerspective(gl2);
-		}
-		
-		renderShared(gl2);
+	/**
+	 * @return the ray from the camera through the cursor, in world space.  See {@link #setCursor(int, int)}.
+	 */
+	public Ray rayPick() {
+		return rayThroughCanvas(cursorX,cursorY);
 	}
 	
-	// reach out from the camera into the world and find the nearest object (if any) that the ray intersects.
-	public Ray rayPick() {
+	/**
+	 * @param x distance from the left side of the canvas, in pixels.
+	 * @param y distance from the top of the canvas, in pixels.
+	 * @return the ray from the camera through that point of the canvas, in world space.
+	 */
+	public Ray rayPick(double x,double y) {
+		return rayThroughCanvas((2.0*x/canvasWidth)-1.0, 1.0-(2.0*y/canvasHeight));
+	}
+	
+	/**
+	 * Reach out from the camera into the world.  See {@link RayPicker} to find what the ray touches.
+	 * @param cx -1 for the left side of the canvas, +1 for the right.
+	 * @param cy -1 for the bottom of the canvas, +1 for the top.
+	 * @return the ray, with a unit length direction.
+	 */
+	protected Ray rayThroughCanvas(double cx,double cy) {
 		// OpenGL camera: -Z=forward, +X=right, +Y=up
 		// get the ray coming through the viewport in the current projection.
 		Ray ray = new Ray();
+		PoseEntity camera = getAttachedTo();
+		Matrix4d m2 = camera.getPoseWorld();
 
 		if(drawOrtho.get()) {
-			// orthographic projection
-			ray.start = new Point3d(
-					cursorX*canvasWidth/10,
-					cursorY*canvasHeight/10,
+			// orthographic projection.  see renderOrtho()
+			double zoom = ((CameraEntity)camera).getZoom()/100;
+			ray.start.set(
+					cx*(canvasWidth/10)/zoom,
+					cy*(canvasHeight/10)/zoom,
 					0);
 			ray.direction.set(0,0,-1);
-			PoseEntity camera = getAttachedTo();
-			Matrix4d m2 = camera.getPoseWorld();
-			m2.transform(ray.direction);
 			m2.transform(ray.start);
 		} else {
 			// perspective projection
 			double aspect = (double)canvasWidth / (double)canvasHeight;
 			double t = Math.tan(Math.toRadians(fieldOfView.get()/2));
-			ray.direction.set(cursorX*t*aspect,cursorY*t,-1);
-			
-			// adjust the ray by the camera world pose.
-			PoseEntity camera = getAttachedTo();
-			Matrix4d m2 = camera.getPoseWorld();
-			m2.transform(ray.direction);
-			ray.start.set(camera.getPosition());
+			ray.direction.set(cx*t*aspect,cy*t,-1);
+			Vector3d eye = new Vector3d();
+			m2.get(eye);
+			ray.start.set(eye);
 		}
+		// adjust the ray by the camera world pose.
+		m2.transform(ray.direction);
 		ray.direction.normalize();
 		
 		return ray; 
@@ -0,0 +1,427 @@
+package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity;
+
+import javax.vecmath.Matrix4d;
+
+import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
+
+/**
+ * An unchanging copy of the kinematic chain of a {@link DHRobotEntity}: the D-H parameters, flags and range limits
+ * of every link, where the robot stands, and where the end effector is on the last link.
+ * <p>
+ * Forward kinematics and the Jacobian work on plain arrays of adjustable values (one per adjustable link, in the
+ * same order as {@link DHKeyframe#fkValues}) and never touch the robot, so any number of threads can share one
+ * chain while the robot is drawn.  Matrices are stored as 16 doubles, row major.  Methods that need scratch space
+ * take a {@link Workspace}, which belongs to one thread at a time.
+ * @author Dan Royer
+ */
+public class DHChain {
+	/**
+	 * Scratch space for one thread.  See {@link DHChain#createWorkspace()}.
+	 */
+	public static class Workspace {
+		final double [] q;
+		final double [] m0 = new double[16];
+		final double [] poses;
+
+		Workspace(int numAdjustable,int posesSize) {
+			q = new double[numAdjustable];
+			poses = new double[posesSize];
+		}
+	}
+
+	private final int numLinks;
+	private final double [] d;
+	private final double [] theta;
+	private final double [] r;
+	private final double [] alpha;
+	private final LinkAdjust [] flags;
+
+	private final int numAdjustable;
+	// link index of each adjustable value.
+	private final int [] adjustableLink;
+	private final double [] rangeMin;
+	private final double [] rangeMax;
+	// adjustable values when the copy was made.
+	private final double [] initialValues;
+
+	// world pose of the robot.
+	private final double [] base = new double[16];
+	// end effector relative to the last link.
+	private final double [] tool = new double[16];
+	// see matches()
+	private final long baseVersion;
+	private final boolean hasTool;
+
+	/**
+	 * Copy the chain of a robot as it is now.  Call from the thread that changes the robot.
+	 * @param robot the robot.
+	 */
+	public DHChain(DHRobotEntity robot) {
+		numLinks = robot.getNumLinks();
+		d = new double[numLinks];
+		theta = new double[numLinks];
+		r = new double[numLinks];
+		alpha = new double[numLinks];
+		flags = new LinkAdjust[numLinks];
+
+		int count=0;
+		for(int i=0;i<numLinks;++i) {
+			DHLink link = robot.getLink(i);
+			d[i] = link.getD();
+			theta[i] = link.getTheta();
+			r[i] = link.getR();
+			alpha[i] = link.getAlpha();
+			flags[i] = link.flags;
+			if(link.hasAdjustableValue()) ++count;
+		}
+
+		numAdjustable = count;
+		adjustableLink = new int[count];
+		rangeMin = new double[count];
+		rangeMax = new double[count];
+		initialValues = new double[count];
+		int j=0;
+		for(int i=0;i<numLinks;++i) {
+			DHLink link = robot.getLink(i);
+			if(!link.hasAdjustableValue()) continue;
+			adjustableLink[j] = i;
+			rangeMin[j] = link.getRangeMin();
+			rangeMax[j] = link.getRangeMax();
+			initialValues[j] = link.getAdjustableValue();
+			++j;
+		}
+
+		setArray(robot.getPoseWorld(),base,0);
+		baseVersion = robot.getPoseWorldVersion();
+		PoseEntity tip = robot.getEndEffector();
+		hasTool = (tip!=null);
+		if(tip==null) {
+			tool[0]=tool[5]=tool[10]=tool[15]=1;
+		} else {
+			setArray(tip.getPose(),tool,0);
+		}
+	}
+
+	public Workspace createWorkspace() {
+		return new Workspace(numAdjustable,getPosesSize());
+	}
+
+	public int getNumLinks() {
+		return numLinks;
+	}
+
+	/**
+	 * @return the number of values in a keyframe for this chain.
+	 */
+	public int getNumAdjustable() {
+		return numAdjustable;
+	}
+
+	/**
+	 * @param j index of an adjustable value
+	 * @return index of the link it moves.
+	 */
+	public int getAdjustableLink(int j) {
+		return adjustableLink[j];
+	}
+
+	public LinkAdjust getFlags(int linkIndex) {
+		return flags[linkIndex];
+	}
+
+	public double getD(int linkIndex) {
+		return d[linkIndex];
+	}
+
+	public double getR(int linkIndex) {
+		return r[linkIndex];
+	}
+
+	public double getAlpha(int linkIndex) {
+		return alpha[linkIndex];
+	}
+
+	/**
+	 * @param j index of an adjustable value
+	 * @return true if the value is an angle in degrees, false if it is a length.
+	 */
+	public boolean isRotary(int j) {
+		LinkAdjust f = flags[adjustableLink[j]];
+		return f==LinkAdjust.THETA || f==LinkAdjust.ALPHA;
+	}
+
+	public double getRangeMin(int j) {
+		return rangeMin[j];
+	}
+
+	public double getRangeMax(int j) {
+		return rangeMax[j];
+	}
+
+	/**
+	 * @param q receives the adjustable values the robot had when this copy was made.
+	 */
+	public void getInitialValues(double [] q) {
+		System.arraycopy(initialValues, 0, q, 0, numAdjustable);
+	}
+
+	/**
+	 * @param out receives the world pose of the robot, 16 doubles row major.
+	 */
+	public void getBase(double [] out) {
+		System.arraycopy(base, 0, out, 0, 16);
+	}
+
+	/**
+	 * @param out receives the pose of the end effector relative to the last link, 16 doubles row major.
+	 */
+	public void getTool(double [] out) {
+		System.arraycopy(tool, 0, out, 0, 16);
+	}
+
+	/**
+	 * Keep every value within its range limits, the same as {@link DHLink#setAdjustableValue(double)}.
+	 * @param q the values to change.
+	 */
+	public void clamp(double [] q) {
+		for(int j=0;j<numAdjustable;++j) {
+			q[j] = Math.max(Math.min(q[j], rangeMax[j]), rangeMin[j]);
+		}
+	}
+
+	/**
+	 * @return true if every value is within its range limits.
+	 */
+	public boolean isWithinLimits(double [] q) {
+		for(int j=0;j<numAdjustable;++j) {
+			if(q[j]<rangeMin[j] || q[j]>rangeMax[j]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the size of the array needed by {@link #getPoses(double[], double[])}.
+	 */
+	public int getPosesSize() {
+		return 16*(numLinks+1);
+	}
+
+	/**
+	 * Forward kinematics for every link.  The values are not clamped.
+	 * @param q adjustable values
+	 * @param poses receives the world pose of link i at 16*i, then the end effector at 16*getNumLinks().
+	 */
+	public void getPoses(double [] q,double [] poses) {
+		System.arraycopy(base, 0, poses, 0, 16);
+		int j=0;
+		for(int i=0;i<numLinks;++i) {
+			if(i>0) System.arraycopy(poses, 16*(i-1), poses, 16*i, 16);
+			double v = (j<numAdjustable && adjustableLink[j]==i) ? q[j++] : 0;
+			mulLink(poses,16*i,i,v);
+		}
+		System.arraycopy(poses, 16*(numLinks>0?numLinks-1:0), poses, 16*numLinks, 16);
+		mul(poses,16*numLinks,tool);
+	}
+
+	/**
+	 * Forward kinematics for the end effector.  The values are not clamped.
+	 * @param q adjustable values
+	 * @param out receives the world pose of the end effector.
+	 */
+	public void getEndEffector(double [] q,double [] out) {
+		System.arraycopy(base, 0, out, 0, 16);
+		int j=0;
+		for(int i=0;i<numLinks;++i) {
+			double v = (j<numAdjustable && adjustableLink[j]==i) ? q[j++] : 0;
+			mulLink(out,0,i,v);
+		}
+		mul(out,0,tool);
+	}
+
+	/**
+	 * Forward kinematics for the end effector.  The values are not clamped.
+	 * @param q adjustable values
+	 * @param work scratch space
+	 * @param out receives the world pose of the end effector.
+	 */
+	public void getEndEffector(double [] q,Workspace work,Matrix4d out) {
+		getEndEffector(q,work.m0);
+		getMatrix(work.m0,0,out);
+	}
+
+	/**
+	 * The geometric Jacobian, from one pass of forward kinematics.  Each column is the linear velocity (mm) and
+	 * angular velocity (radians, right handed, world space) of the end effector per radian of a rotary value or
+	 * per mm of a sliding value.
+	 * <p>
+	 * Theta and d move along the z axis of the previous link, alpha and r along the x axis of the link itself.
+	 * A rotary column is (axis x (end effector - point on axis), axis) and a sliding column is (axis, 0).
+	 * @param q adjustable values
+	 * @param work scratch space
+	 * @param jacobian receives [getNumAdjustable()][6].
+	 */
+	public void getJacobian(double [] q,Workspace work,double [][] jacobian) {
+		double [] poses = work.poses;
+		getPoses(q,poses);
+		int e = 16*numLinks;
+		double ex = poses[e+3], ey = poses[e+7], ez = poses[e+11];
+
+		for(int j=0;j<numAdjustable;++j) {
+			int i = adjustableLink[j];
+			LinkAdjust f = flags[i];
+			double [] column = jacobian[j];
+			if(f!=LinkAdjust.THETA && f!=LinkAdjust.D && f!=LinkAdjust.ALPHA && f!=LinkAdjust.R) {
+				// nothing moves.
+				for(int k=0;k<6;++k) column[k]=0;
+				continue;
+			}
+			// the frame the value moves in: the previous link (or the base) for theta and d, this link for alpha and r.
+			double [] frame = poses;
+			int k = 16*(i-1);
+			if(f==LinkAdjust.ALPHA || f==LinkAdjust.R) k = 16*i;
+			else if(i==0) {
+				frame = base;
+				k = 0;
+			}
+			// column 2 is the z axis, column 0 the x axis.
+			int c = (f==LinkAdjust.THETA || f==LinkAdjust.D) ? 2 : 0;
+			double ax = frame[k+c], ay = frame[k+4+c], az = frame[k+8+c];
+
+			if(f==LinkAdjust.THETA || f==LinkAdjust.ALPHA) {
+				double px = ex-frame[k+3];
+				double py = ey-frame[k+7];
+				double pz = ez-frame[k+11];
+				column[0] = ay*pz - az*py;
+				column[1] = az*px - ax*pz;
+				column[2] = ax*py - ay*px;
+				column[3] = ax;
+				column[4] = ay;
+				column[5] = az;
+			} else {
+				column[0] = ax;
+				column[1] = ay;
+				column[2] = az;
+				column[3] = 0;
+				column[4] = 0;
+				column[5] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the robot has the same links, limits, world pose and end effector as when this copy was
+	 * made.  The adjustable values may differ.
+	 */
+	public boolean matches(DHRobotEntity robot) {
+		if(robot.getNumLinks()!=numLinks) return false;
+		if(robot.getPoseWorldVersion()!=baseVersion) return false;
+		int j=0;
+		for(int i=0;i<numLinks;++i) {
+			DHLink link = robot.getLink(i);
+			LinkAdjust f = link.flags;
+			if(f!=flags[i]) return false;
+			if(f!=LinkAdjust.D     && link.getD()    !=d[i]    ) return false;
+			if(f!=LinkAdjust.THETA && link.getTheta()!=theta[i]) return false;
+			if(f!=LinkAdjust.R     && link.getR()    !=r[i]    ) return false;
+			if(f!=LinkAdjust.ALPHA && link.getAlpha()!=alpha[i]) return false;
+			if(!link.hasAdjustableValue()) continue;
+			if(link.getRangeMin()!=rangeMin[j] || link.getRangeMax()!=rangeMax[j]) return false;
+			++j;
+		}
+		PoseEntity tip = robot.getEndEffector();
+		if((tip!=null)!=hasTool) return false;
+		if(tip==null) return true;
+		Matrix4d m = tip.pose;
+		return m.m00==tool[0] && m.m01==tool[1] && m.m02==tool[ 2] && m.m03==tool[ 3]
+			&& m.m10==tool[4] && m.m11==tool[5] && m.m12==tool[ 6] && m.m13==tool[ 7]
+			&& m.m20==tool[8] && m.m21==tool[9] && m.m22==tool[10] && m.m23==tool[11];
+	}
+
+	/**
+	 * @return a hash of the links, limits and end effector, but not the world pose.  Anything worked out in the
+	 * frame of the base stays good for as long as this does not change.
+	 */
+	public long hashShape() {
+		long h = numLinks;
+		for(int i=0;i<numLinks;++i) {
+			LinkAdjust f = flags[i];
+			h = h*31 + f.ordinal();
+			// the adjustable value is not part of the shape.
+			if(f!=LinkAdjust.D    ) h = h*31 + Double.doubleToLongBits(d[i]);
+			if(f!=LinkAdjust.THETA) h = h*31 + Double.doubleToLongBits(theta[i]);
+			if(f!=LinkAdjust.R    ) h = h*31 + Double.doubleToLongBits(r[i]);
+			if(f!=LinkAdjust.ALPHA) h = h*31 + Double.doubleToLongBits(alpha[i]);
+		}
+		for(int j=0;j<numAdjustable;++j) {
+			h = h*31 + Double.doubleToLongBits(rangeMin[j]);
+			h = h*31 + Double.doubleToLongBits(rangeMax[j]);
+		}
+		for(int k=0;k<12;++k) {
+			h = h*31 + Double.doubleToLongBits(tool[k]);
+		}
+		return h;
+	}
+
+	/**
+	 * m = m * (D-H matrix of link i), in place.
+	 * @param v the adjustable value of link i, if it has one.
+	 */
+	private void mulLink(double [] m,int offset,int i,double v) {
+		double dd=d[i], tt=theta[i], rr=r[i], aa=alpha[i];
+		switch(flags[i]) {
+		case D    :  dd=v;  break;
+		case THETA:  tt=v;  break;
+		case R    :  rr=v;  break;
+		case ALPHA:  aa=v;  break;
+		default   :  break;
+		}
+		double ct = Math.cos(Math.toRadians(tt));
+		double st = Math.sin(Math.toRadians(tt));
+		double ca = Math.cos(Math.toRadians(aa));
+		double sa = Math.sin(Math.toRadians(aa));
+		// see DHLink.getDHMatrix()
+		for(int row=0;row<4;++row) {
+			int k = offset+row*4;
+			double x=m[k], y=m[k+1], z=m[k+2], w=m[k+3];
+			m[k  ] = x*ct + y*st;
+			m[k+1] = (y*ct - x*st)*ca + z*sa;
+			m[k+2] = (x*st - y*ct)*sa + z*ca;
+			m[k+3] = (x*ct + y*st)*rr + z*dd + w;
+		}
+	}
+
+	/**
+	 * m = m * b, in place.
+	 */
+	private static void mul(double [] m,int offset,double [] b) {
+		for(int row=0;row<4;++row) {
+			int k = offset+row*4;
+			double x=m[k], y=m[k+1], z=m[k+2], w=m[k+3];
+			m[k  ] = x*b[0] + y*b[4] + z*b[ 8] + w*b[12];
+			m[k+1] = x*b[1] + y*b[5] + z*b[ 9] + w*b[13];
+			m[k+2] = x*b[2] + y*b[6] + z*b[10] + w*b[14];
+			m[k+3] = x*b[3] + y*b[7] + z*b[11] + w*b[15];
+		}
+	}
+
+	/**
+	 * Copy a matrix into 16 doubles, row major.
+	 */
+	public static void setArray(Matrix4d m,double [] out,int offset) {
+		out[offset   ]=m.m00;	out[offset+ 1]=m.m01;	out[offset+ 2]=m.m02;	out[offset+ 3]=m.m03;
+		out[offset+ 4]=m.m10;	out[offset+ 5]=m.m11;	out[offset+ 6]=m.m12;	out[offset+ 7]=m.m13;
+		out[offset+ 8]=m.m20;	out[offset+ 9]=m.m21;	out[offset+10]=m.m22;	out[offset+11]=m.m23;
+		out[offset+12]=m.m30;	out[offset+13]=m.m31;	out[offset+14]=m.m32;	out[offset+15]=m.m33;
+	}
+
+	/**
+	 * Copy 16 doubles, row major, into a matrix.
+	 */
+	public static void getMatrix(double [] in,int offset,Matrix4d m) {
+		m.m00=in[offset   ];	m.m01=in[offset+ 1];	m.m02=in[offset+ 2];	m.m03=in[offset+ 3];
+		m.m10=in[offset+ 4];	m.m11=in[offset+ 5];	m.m12=in[offset+ 6];	m.m13=in[offset+ 7];
+		m.m20=in[offset+ 8];	m.m21=in[offset+ 9];	m.m22=in[offset+10];	m.m23=in[offset+11];
+		m.m30=in[offset+12];	m.m31=in[offset+13];	m.m32=in[offset+14];	m.m33=in[offset+15];
+	}
+}
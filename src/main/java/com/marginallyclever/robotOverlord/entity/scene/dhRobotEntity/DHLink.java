@@ -93,6 +93,10 @@ public class DHLink extends ModelEntity {
 	@JsonIgnore
 	protected DHRobotEntity robot;
 	
+	// reused by refreshPoseMatrix()
+	@JsonIgnore
+	private transient Matrix4d dhPose;
+	
 	
 	public DHLink() {
 		super();
@@ -132,7 +136,7 @@ public class DHLink extends ModelEntity {
 		theta.set(arg0.theta.get());
 		r.set(arg0.r.get());
 		alpha.set(arg0.alpha.get());
-		model =arg0.model;
+		setModel(arg0.getModel());
 		rangeMin.set(arg0.rangeMin.get());
 		rangeMax.set(arg0.rangeMax.get());
 		/*
@@ -149,25 +153,52 @@ public class DHLink extends ModelEntity {
 	 * Equivalent to T(n) = TransZ(d) * RotZ(theta) * TransX(r) * RotX(alpha)
 	 */
 	public void refreshPoseMatrix() {
-		double t=theta.get();
-		double a=alpha.get();
-		assert(!Double.isNaN(t));
-		assert(!Double.isNaN(a));
+		assert(!Double.isNaN(theta.get()));
+		assert(!Double.isNaN(alpha.get()));
 		assert(!Double.isNaN(r.get()));
 		assert(!Double.isNaN(d.get()));
-		double ct = Math.cos(Math.toRadians(t));
-		double ca = Math.cos(Math.toRadians(a));
-		double st = Math.sin(Math.toRadians(t));
-		double sa = Math.sin(Math.toRadians(a));
-		Matrix4d m = new Matrix4d();
+		if(dhPose==null) dhPose = new Matrix4d();
+		getDHMatrix(d.get(),theta.get(),r.get(),alpha.get(),dhPose);
 		
-		m.m00 = ct;		m.m01 = -st*ca;		m.m02 = st*sa;		m.m03 = r.get()*ct;
-		m.m10 = st;		m.m11 = ct*ca;		m.m12 = -ct*sa;		m.m13 = r.get()*st;
-		m.m20 = 0;		m.m21 = sa;			m.m22 = ca;			m.m23 = d.get();
-		m.m30 = 0;		m.m31 = 0;			m.m32 = 0;			m.m33 = 1;
+		//Log.message(letter.get() + "="+dhPose);
+		setPose(dhPose);
+	}
+	
+	/**
+	 * Fill a matrix with T = TransZ(d) * RotZ(theta) * TransX(r) * RotX(alpha)
+	 * @param d length along previous Z
+	 * @param theta degrees about previous Z
+	 * @param r length along the common normal
+	 * @param alpha degrees about the common normal
+	 * @param m receives the result.
+	 */
+	public static void getDHMatrix(double d,double theta,double r,double alpha,Matrix4d m) {
+		double ct = Math.cos(Math.toRadians(theta));
+		double ca = Math.cos(Math.toRadians(alpha));
+		double st = Math.sin(Math.toRadians(theta));
+		double sa = Math.sin(Math.toRadians(alpha));
 		
-		//Log.message(letter.get() + "="+m);
-		setPose(m);
+		m.m00 = ct;		m.m01 = -st*ca;		m.m02 = st*sa;		m.m03 = r*ct;
+		m.m10 = st;		m.m11 = ct*ca;		m.m12 = -ct*sa;		m.m13 = r*st;
+		m.m20 = 0;		m.m21 = sa;			m.m22 = ca;			m.m23 = d;
+		m.m30 = 0;		m.m31 = 0;			m.m32 = 0;			m.m33 = 1;
+	}
+
+	/**
+	 * Fill a matrix with the pose this link would have if its adjustable value were v.  Nothing changes.
+	 * @param v the adjustable value.  Not checked against the range limits.
+	 * @param m receives the result.
+	 */
+	public void getPoseWithAdjustableValue(double v,Matrix4d m) {
+		double dd=d.get(), tt=theta.get(), rr=r.get(), aa=alpha.get();
+		switch(flags) {
+		case D    :  dd=v;  break;
+		case THETA:  tt=v;  break;
+		case R    :  rr=v;  break;
+		case ALPHA:  aa=v;  break;
+		default   :  break;
+		}
+		getDHMatrix(dd,tt,rr,aa,m);
 	}
 
 	@Override
@@ -518,7 +549,7 @@ public class DHLink extends ModelEntity {
 	public boolean canYouMoveTo(Matrix4d newWorldPose) {
 		if( parent instanceof DHLink || parent instanceof DHRobotEntity ) {
 			if( !this.getLetter().isEmpty() ) {
-				Matrix4d oldPose=poseWorld;
+				Matrix4d oldPose=getPoseWorld();
 				// we have newPose ...but is it something this DHLink could do?
 				// For D-H links, the convention is that rotations are always around the Z axis.  the Z axis of each matrix should match.
 				// TODO Today this is the only case I care about. make it better later.
@@ -4,16 +4,24 @@ import java.util.List;
 import java.util.Observable;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
 
 import javax.vecmath.Matrix4d;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.jogamp.opengl.GL2;
+import com.marginallyclever.convenience.Cuboid;
 import com.marginallyclever.convenience.IntersectionTester;
+import com.marginallyclever.convenience.MatrixHelper;
 import com.marginallyclever.robotOverlord.RobotOverlord;
 import com.marginallyclever.robotOverlord.entity.Entity;
+import com.marginallyclever.robotOverlord.entity.basicDataTypes.BooleanEntity;
 import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
 import com.marginallyclever.robotOverlord.entity.scene.Scene;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.dhTool.DHTool;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKBatch;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKCache;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
 import com.marginallyclever.robotOverlord.log.Log;
 import com.marginallyclever.robotOverlord.swingInterface.view.ViewPanel;
@@ -42,6 +50,22 @@ public class DHRobotEntity extends PoseEntity {
 	// a DHTool attached to the arm.
 	public DHTool dhTool;
 
+	// results of the last computePoseFK(), reused to save allocating.  see commitPoseFK()
+	private transient Matrix4d [] fkLocal;
+	private transient Matrix4d [] fkWorld;
+	private transient Matrix4d fkEndEffector;
+	private transient double [] fkValues;
+	private transient int fkNumValues;
+	// see getDHChain()
+	private transient DHChain chain;
+	// see getIKCache()
+	private transient DHIKCache ikCache;
+
+	@JsonIgnore
+	public transient BooleanEntity showReachability = new BooleanEntity("Show Reachability",false);
+	// loaded or made in the background when showReachability is turned on.
+	private transient Future<ReachabilityMap> reachabilityTask;
+
 	// more debug output, please.
 	static final boolean VERBOSE=false;
 
@@ -52,6 +76,7 @@ public class DHRobotEntity extends PoseEntity {
 		showBoundingBox.addObserver(this);
 		showLocalOrigin.addObserver(this);
 		showLineage.addObserver(this);
+		showReachability.addObserver(this);
 	}
 	
 	public DHRobotEntity(DHRobotEntity b) {
@@ -205,34 +230,44 @@ public class DHRobotEntity extends PoseEntity {
 	 * @return true if there are no collisions
 	 */
 	public boolean collidesWithSelf(DHKeyframe futureKey) {
-		DHKeyframe originalKey = solver.createDHKeyframe();
-		getPoseFK(originalKey);
-		// move the clone to the keyframe pose
-		setPoseFK(futureKey);
+		// work out the future pose without moving the robot.
+		DHChain chain = getDHChain();
+		double [] poses = new double[chain.getPosesSize()];
+		double [] q = new double[chain.getNumAdjustable()];
+		for(int j=0;j<q.length;++j) q[j] = links.get(chain.getAdjustableLink(j)).getAdjustableValue();
+		System.arraycopy(futureKey.fkValues, 0, q, 0, Math.min(q.length, futureKey.fkValues.length));
+		chain.clamp(q);
+		chain.getPoses(q, poses);
 		
 		int size = links.size();
+		Cuboid [] future = new Cuboid[size];
+		Matrix4d m = new Matrix4d();
 		for (int i = 0; i < size; ++i) {
 			if (links.get(i).getModel() == null)
 				continue;
+			future[i] = new Cuboid();
+			future[i].set(links.get(i).getCuboid());
+			DHChain.getMatrix(poses, 16*i, m);
+			future[i].setPoseWorld(m);
+		}
+		
+		for (int i = 0; i < size; ++i) {
+			if (future[i] == null)
+				continue;
 
 			for (int j = i + 2; j < size; ++j) {
-				if (links.get(j).getModel() == null)
+				if (future[j] == null)
 					continue;
 
-				if (IntersectionTester.cuboidCuboid(
-						links.get(i).getCuboid(),
-						links.get(j).getCuboid())) {
+				if (IntersectionTester.cuboidCuboid(future[i],future[j])) {
 						Log.message("Self collision between "+
 									i+":"+links.get(i).getName()+" and "+
 									j+":"+links.get(j).getName());
-
-					setPoseFK(originalKey);
 					return true;
 				}
 			}
 		}
 
-		setPoseFK(originalKey);
 		return false;
 	}
 
@@ -305,6 +340,21 @@ public class DHRobotEntity extends PoseEntity {
 		return false;
 	}
 	
+	/**
+	 * Use IK to find the FK pose for every end effector pose along a path, in parallel.  The robot does not move.
+	 * The first pose starts from where the robot is now.  The solver must be able to solve a DHChain.
+	 * See {@link DHIKBatch}.
+	 * 
+	 * @param path end effector world pose matrixes.
+	 * @param keyframes receives one FK pose per matrix.
+	 * @return the solution type for each matrix.
+	 */
+	public DHIKSolver.SolutionType [] solvePathIK(Matrix4d [] path,DHKeyframe [] keyframes) {
+		DHKeyframe start = solver.createDHKeyframe();
+		getPoseFK(start);
+		return DHIKBatch.solve(solver, getDHChain(), path, start, keyframes);
+	}
+	
 	/**
 	 * Verifies if the requested end effector pose of the robot is reachable and sane.
 	 * Leaves the robot in the state it was found except for the newPose/oldPose keyframes, which are only used for this method. 
@@ -318,9 +368,9 @@ public class DHRobotEntity extends PoseEntity {
 		if(VERBOSE) Log.message("\n\nold: "+poseFKold);
 		
 		boolean isSane = false;
-		DHIKSolver.SolutionType s = solver.solveWithSuggestion(this, m, poseFKnew,poseFKold);
+		DHIKSolver.SolutionType s = getIKCache().solveWithSuggestion(solver, this, m, poseFKnew, poseFKold);
 		if(VERBOSE) Log.message("new: "+poseFKnew + "\t"+s);
-		if (s == DHIKSolver.SolutionType.ONE_SOLUTION) {
+		if (s != DHIKSolver.SolutionType.NO_SOLUTIONS) {
 			if (sanityCheck(poseFKnew)) {
 				if(VERBOSE) Log.message("Sane");
 				isSane = true;
@@ -339,17 +389,118 @@ public class DHRobotEntity extends PoseEntity {
 	 * @param keyframe
 	 */
 	public void setPoseFK(DHKeyframe keyframe) {
+		computePoseFK(keyframe);
+		commitPoseFK();
+	}
+	
+	/**
+	 * Work out where every link would be for a keyframe without moving the robot.
+	 * Nothing is allocated after the first call and no observers are told.
+	 * Read the results with {@link #getComputedPoseWorld(int, Matrix4d)} and {@link #getComputedEndEffector(Matrix4d)}.
+	 * Call {@link #commitPoseFK()} to make the robot match.
+	 * @param keyframe the FK values, clamped to the range of each link.  Links past the end of the keyframe keep their current value.
+	 */
+	public void computePoseFK(DHKeyframe keyframe) {
+		int size = links.size();
+		if(fkLocal==null || fkLocal.length!=size) {
+			fkLocal = new Matrix4d[size];
+			fkWorld = new Matrix4d[size];
+			fkValues = new double[size];
+			for(int i=0;i<size;++i) {
+				fkLocal[i] = new Matrix4d();
+				fkWorld[i] = new Matrix4d();
+			}
+			fkEndEffector = new Matrix4d();
+		}
+		
 		int stop=keyframe.fkValues.length;
 		int j = 0;
+		Matrix4d prev = fkEndEffector;
+		getPoseWorld(prev);
+		for(int i=0;i<size;++i) {
+			DHLink link = links.get(i);
+			if(link.hasAdjustableValue() && j<stop) {
+				// same as DHLink.setAdjustableValue()
+				fkValues[j] = Math.max(Math.min(keyframe.fkValues[j], link.rangeMax.get()), link.rangeMin.get());
+				link.getPoseWithAdjustableValue(fkValues[j], fkLocal[i]);
+				++j;
+			} else {
+				link.getPoseWithAdjustableValue(link.getAdjustableValue(), fkLocal[i]);
+			}
+			fkWorld[i].mul(prev,fkLocal[i]);
+			prev = fkWorld[i];
+		}
+		fkNumValues = j;
 		
-		for( DHLink link : links ) {
-			if(j==stop) break;
-			if(link.hasAdjustableValue()) {
-				link.setAdjustableValue(keyframe.fkValues[j++]);
+		if(size==0) return;
+		PoseEntity tip = getEndEffector();
+		if(tip==null) {
+			fkEndEffector.set(fkWorld[size-1]);
+		} else {
+			fkEndEffector.mul(fkWorld[size-1],tip.pose);
+		}
+	}
+	
+	/**
+	 * Make the robot match the last {@link #computePoseFK(DHKeyframe)}.  Each link that moves tells its observers once.
+	 */
+	public void commitPoseFK() {
+		if(fkLocal==null || fkLocal.length!=links.size()) return;
+		
+		int j = 0;
+		for(int i=0;i<fkLocal.length;++i) {
+			DHLink link = links.get(i);
+			if(link.hasAdjustableValue() && j<fkNumValues) {
+				// a link that watches its own parameters refreshes its pose here...
+				link.setAdjustableValue(fkValues[j++]);
+			}
+			// ...one that doesn't (a copy, say) gets the pose already worked out.
+			if(!link.pose.equals(fkLocal[i])) {
+				link.setPose(fkLocal[i]);
 			}
 		}
-
-		refreshPose();
+	}
+	
+	/**
+	 * @param i index of the link
+	 * @param out receives the world pose of link i from the last {@link #computePoseFK(DHKeyframe)}.
+	 */
+	public void getComputedPoseWorld(int i,Matrix4d out) {
+		out.set(fkWorld[i]);
+	}
+	
+	/**
+	 * @param out receives the world pose of the end effector from the last {@link #computePoseFK(DHKeyframe)}.
+	 */
+	public void getComputedEndEffector(Matrix4d out) {
+		out.set(fkEndEffector);
+	}
+	
+	/**
+	 * @return the answers to recent IK requests, which jogging asks for again and again.
+	 */
+	public DHIKCache getIKCache() {
+		if(ikCache==null) {
+			ikCache = new DHIKCache();
+		}
+		return ikCache;
+	}
+	
+	/**
+	 * @return a {@link DHChain} copy of this robot, made again only if the robot changed since the last call.
+	 */
+	public DHChain getDHChain() {
+		if(chain==null || !chain.matches(this)) {
+			chain = new DHChain(this);
+		}
+		return chain;
+	}
+	
+	/**
+	 * @return the entity at the tip of the arm, a child of the last link.  null means the last link itself.
+	 */
+	protected PoseEntity getEndEffector() {
+		return dhTool;
 	}
 
 	/**
@@ -383,6 +534,7 @@ public class DHRobotEntity extends PoseEntity {
 		view.add(showBoundingBox);
 		view.add(showLocalOrigin);
 		view.add(showLineage);
+		view.add(showReachability);
 		
 		for( DHLink link : links ) {
 			view.addRange(link.theta,
@@ -449,5 +601,53 @@ public class DHRobotEntity extends PoseEntity {
 		if(o==showBoundingBox) setShowBoundingBox((boolean)arg);
 		if(o==showLocalOrigin) setShowLocalOrigin((boolean)arg);
 		if(o==showLineage) setShowLineage((boolean)arg);
+		if(o==showReachability && (boolean)arg) loadReachabilityMap();
+	}
+	
+	/**
+	 * Load the reachability map of this robot in the background, or make it if it is missing or out of date.
+	 * Making it takes a few seconds.  See {@link ReachabilityMap}.
+	 * @return the map when it is ready.  Asking again before then returns the same one.
+	 */
+	public synchronized Future<ReachabilityMap> loadReachabilityMap() {
+		// already on the way.
+		if(reachabilityTask!=null && !reachabilityTask.isDone()) return reachabilityTask;
+		reachabilityTask = ReachabilityMap.loadOrBuildLater(getDHChain(),ReachabilityMap.getFile(this));
+		return reachabilityTask;
+	}
+	
+	/**
+	 * @return the reachability map from the last {@link #loadReachabilityMap()}, or null if it is not ready.
+	 */
+	public synchronized ReachabilityMap getReachabilityMap() {
+		if(reachabilityTask==null || !reachabilityTask.isDone()) return null;
+		try {
+			return reachabilityTask.get();
+		} catch(Exception e) {
+			Log.error("Reachability map of "+getName()+" failed: "+e.getLocalizedMessage());
+			// don't complain every frame.
+			reachabilityTask=null;
+			return null;
+		}
+	}
+	
+	@Override
+	public void render(GL2 gl2) {
+		super.render(gl2);
+		gl2.glPushMatrix();
+			MatrixHelper.applyMatrix(gl2, pose);
+			renderReachability(gl2);
+		gl2.glPopMatrix();
+	}
+	
+	/**
+	 * Draw the reachability map as a cloud of points, if it is shown and ready.
+	 * Call with the pose of this robot on the matrix stack.
+	 * @param gl2 the render context
+	 */
+	protected void renderReachability(GL2 gl2) {
+		if(!showReachability.get()) return;
+		ReachabilityMap map = getReachabilityMap();
+		if(map!=null) map.render(gl2);
 	}
 }
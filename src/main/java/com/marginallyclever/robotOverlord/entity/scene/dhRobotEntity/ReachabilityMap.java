@@ -0,0 +1,531 @@
+package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.vecmath.Matrix4d;
+
+import com.jogamp.opengl.GL2;
+import com.marginallyclever.robotOverlord.log.Log;
+
+/**
+ * Which places the end effector of a robot can reach, and how freely it can move there.
+ * <p>
+ * A cube around the base of the robot is cut into cells.  Random poses from the whole range of every link are
+ * sampled in parallel and each cell remembers the best manipulability of the end effector seen inside it.  The
+ * manipulability is sqrt(det(Jv * Jvt)) of the position rows of the Jacobian: 0 where the end effector can't move
+ * in some direction, bigger where it moves easily in all of them.  Each cell is one byte: 0 for never reached, then
+ * 1 to 255 for the manipulability from 0 to the best anywhere.  Looking up a point is a single read.
+ * <p>
+ * Everything is in the frame of the base, so the map stays good when the robot moves, and is only made again when
+ * the shape of the robot changes.  See {@link DHChain#hashShape()}.
+ * <p>
+ * The file is little endian: int magic "RORM", int version, long shape hash, int cells per side, int unused,
+ * double cell size, double[3] lowest corner, double best manipulability, long number of samples, then one byte per
+ * cell, x fastest.  Loaded maps are memory mapped.
+ * <p>
+ * To make the map for a robot:<br>
+ * <code>ReachabilityMap [-c cells] [-s samples] com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model</code>
+ * @author Dan Royer
+ */
+public class ReachabilityMap {
+	public static final int MAGIC = ('R') | ('O'<<8) | ('R'<<16) | ('M'<<24);
+	public static final int VERSION = 1;
+	public static final String EXTENSION = ".rorm";
+	private static final int HEADER_SIZE = 72;
+
+	public static final int DEFAULT_CELLS = 64;
+	public static final int DEFAULT_SAMPLES = 1<<20;
+	// samples per fork/join task.
+	private static final int TASK_SIZE = 4096;
+
+	private static File directory = new File(System.getProperty("user.home") + File.separator + "robotOverlord" + File.separator + "reachability");
+
+	// maps are loaded or made one at a time, so two robots never write the same file at once.
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"ReachabilityMap");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final long shapeHash;
+	private final int cells;
+	private final double cellSize;
+	// lowest corner of the cube, in the frame of the base.
+	private final double x0, y0, z0;
+	private final double maxManipulability;
+	private final long samples;
+	private final ByteBuffer voxels;
+
+	// see render()
+	private transient FloatBuffer pointBuffer;
+	private transient FloatBuffer colorBuffer;
+	private transient int numPoints;
+
+	private ReachabilityMap(long shapeHash,int cells,double cellSize,double x0,double y0,double z0,double maxManipulability,long samples,ByteBuffer voxels) {
+		this.shapeHash = shapeHash;
+		this.cells = cells;
+		this.cellSize = cellSize;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.z0 = z0;
+		this.maxManipulability = maxManipulability;
+		this.samples = samples;
+		this.voxels = voxels;
+	}
+
+	public static void main(String[] argv) throws Exception {
+		int cells = DEFAULT_CELLS;
+		int samples = DEFAULT_SAMPLES;
+
+		int i=0;
+		while(i<argv.length && argv[i].startsWith("-")) {
+			if(i+1>=argv.length) throw new IllegalArgumentException("missing value for "+argv[i]);
+			if(argv[i].equals("-c")) cells = Integer.parseInt(argv[i+1]);
+			else if(argv[i].equals("-s")) samples = Integer.parseInt(argv[i+1]);
+			else throw new IllegalArgumentException("unknown option "+argv[i]);
+			i+=2;
+		}
+		if( argv.length - i == 0 ) throw new IllegalArgumentException("not enough parameters");
+
+		for(;i<argv.length;++i) {
+			DHRobotEntity robot = (DHRobotEntity)Class.forName(argv[i]).getDeclaredConstructor().newInstance();
+			File file = getFile(robot);
+			Log.message("Sampling "+samples+" poses of "+robot.getName()+" into "+file);
+			long start = System.currentTimeMillis();
+			ReachabilityMap map = build(robot.getDHChain(),cells,samples);
+			map.save(file);
+			Log.message("Done in "+(System.currentTimeMillis()-start)+"ms.");
+		}
+	}
+
+	/**
+	 * Sample the reach of a robot, splitting the work across the fork/join pool.
+	 * @param chain the robot.
+	 * @param cells number of cells along each side of the cube.
+	 * @param samples number of random poses to try.  More fills in more of the edges.
+	 * @return the map.
+	 */
+	public static ReachabilityMap build(final DHChain chain,final int cells,int samples) {
+		// no link moves the next one farther than this, so the end effector is always inside the cube.
+		double reach = getReach(chain);
+		final double cellSize = Math.max(reach*2/cells,1e-9);
+		final double x0 = -reach, y0 = -reach, z0 = -reach;
+
+		// world to base
+		Matrix4d m = new Matrix4d();
+		double [] base = new double[16];
+		chain.getBase(base);
+		DHChain.getMatrix(base, 0, m);
+		m.invert();
+		final double [] inverse = new double[16];
+		DHChain.setArray(m, inverse, 0);
+
+		// the best manipulability in each cell, as the bits of a float plus one.  0 is never reached.
+		final AtomicIntegerArray best = new AtomicIntegerArray(cells*cells*cells);
+		ForkJoinPool.commonPool().invoke(new SampleTask(0,samples,new SampleVisitor() {
+			@Override
+			public void visit(int from,int to) {
+				int n = chain.getNumLinks();
+				int numAdjustable = chain.getNumAdjustable();
+				DHChain.Workspace work = chain.createWorkspace();
+				double [][] jacobian = new double[numAdjustable][6];
+				double [] q = new double[numAdjustable];
+				// the same samples every time.
+				Random random = new Random(from);
+				for(int s=from;s<to;++s) {
+					for(int j=0;j<numAdjustable;++j) {
+						q[j] = chain.getRangeMin(j) + random.nextDouble()*(chain.getRangeMax(j)-chain.getRangeMin(j));
+					}
+					// also fills work.poses
+					chain.getJacobian(q, work, jacobian);
+					int k = 16*n;
+					double wx = work.poses[k+3], wy = work.poses[k+7], wz = work.poses[k+11];
+					double x = inverse[0]*wx + inverse[1]*wy + inverse[ 2]*wz + inverse[ 3];
+					double y = inverse[4]*wx + inverse[5]*wy + inverse[ 6]*wz + inverse[ 7];
+					double z = inverse[8]*wx + inverse[9]*wy + inverse[10]*wz + inverse[11];
+					int index = getIndex(x,y,z,x0,y0,z0,cellSize,cells);
+					if(index<0) continue;
+
+					int bits = Float.floatToIntBits((float)getManipulability(jacobian))+1;
+					int old;
+					while(bits>(old=best.get(index)) && !best.compareAndSet(index, old, bits));
+				}
+			}
+		}));
+
+		double maxManipulability=0;
+		for(int i=0;i<best.length();++i) {
+			int bits = best.get(i);
+			if(bits!=0) maxManipulability = Math.max(maxManipulability, Float.intBitsToFloat(bits-1));
+		}
+		ByteBuffer voxels = ByteBuffer.allocate(best.length());
+		for(int i=0;i<best.length();++i) {
+			int bits = best.get(i);
+			int value = 0;
+			if(bits!=0) {
+				double w = Float.intBitsToFloat(bits-1);
+				value = 1 + (maxManipulability>0 ? (int)Math.round(254*w/maxManipulability) : 0);
+			}
+			voxels.put(i,(byte)value);
+		}
+
+		return new ReachabilityMap(chain.hashShape(),cells,cellSize,x0,y0,z0,maxManipulability,samples,voxels);
+	}
+
+	/**
+	 * @return the farthest the end effector could be from the base.
+	 */
+	private static double getReach(DHChain chain) {
+		int n = chain.getNumLinks();
+		double [] base = new double[16];
+		double [] poses = new double[chain.getPosesSize()];
+		chain.getBase(base);
+		chain.getPoses(new double[chain.getNumAdjustable()], poses);
+		// each link is the same distance from the one before at any angle.  A slide adds at most its range.
+		double reach=0;
+		int j=0;
+		for(int i=0;i<=n;++i) {
+			double [] from = (i==0) ? base : poses;
+			int a = (i==0) ? 0 : 16*(i-1);
+			int b = 16*i;
+			double dx = poses[b+3]-from[a+3], dy = poses[b+7]-from[a+7], dz = poses[b+11]-from[a+11];
+			reach += Math.sqrt(dx*dx+dy*dy+dz*dz);
+			if(i<n && j<chain.getNumAdjustable() && chain.getAdjustableLink(j)==i) {
+				DHLink.LinkAdjust f = chain.getFlags(i);
+				if(f==DHLink.LinkAdjust.D || f==DHLink.LinkAdjust.R) {
+					reach += Math.max(Math.abs(chain.getRangeMin(j)), Math.abs(chain.getRangeMax(j)));
+				}
+				++j;
+			}
+		}
+		return reach*1.001+1e-6;
+	}
+
+	/**
+	 * @return sqrt(det(Jv * Jvt)), from the position rows of the Jacobian.
+	 */
+	private static double getManipulability(double [][] jacobian) {
+		double a=0,b=0,c=0,d=0,e=0,f=0;
+		for(int k=0;k<jacobian.length;++k) {
+			double x=jacobian[k][0], y=jacobian[k][1], z=jacobian[k][2];
+			a+=x*x;  b+=x*y;  c+=x*z;
+			d+=y*y;  e+=y*z;
+			f+=z*z;
+		}
+		double det = a*(d*f-e*e) - b*(b*f-e*c) + c*(b*e-d*c);
+		return det>0 ? Math.sqrt(det) : 0;
+	}
+
+	private static int getIndex(double x,double y,double z,double x0,double y0,double z0,double cellSize,int cells) {
+		int ix = (int)Math.floor((x-x0)/cellSize);
+		int iy = (int)Math.floor((y-y0)/cellSize);
+		int iz = (int)Math.floor((z-z0)/cellSize);
+		if(ix<0 || iy<0 || iz<0 || ix>=cells || iy>=cells || iz>=cells) return -1;
+		return (iz*cells+iy)*cells+ix;
+	}
+
+	/**
+	 * @param x in the frame of the base.
+	 * @param y in the frame of the base.
+	 * @param z in the frame of the base.
+	 * @return 0 if the end effector never reached this cell, otherwise 1 to 255 for its best manipulability.
+	 */
+	public int getValue(double x,double y,double z) {
+		int index = getIndex(x,y,z,x0,y0,z0,cellSize,cells);
+		return index<0 ? 0 : voxels.get(index)&0xFF;
+	}
+
+	/**
+	 * @return true if the end effector reached the cell holding this point, in the frame of the base.
+	 */
+	public boolean isReachable(double x,double y,double z) {
+		return getValue(x,y,z)!=0;
+	}
+
+	/**
+	 * @return the best manipulability seen in the cell holding this point, in the frame of the base, to within
+	 * 1/254 of the best anywhere.  0 if it was never reached.
+	 */
+	public double getManipulability(double x,double y,double z) {
+		int v = getValue(x,y,z);
+		return v==0 ? 0 : (v-1)*maxManipulability/254.0;
+	}
+
+	/**
+	 * @param chain the robot, which may have moved since the map was made.
+	 * @param worldPose a pose of the end effector, in world space.
+	 * @return true if the end effector reached the cell holding the position of worldPose.  The orientation is not
+	 * checked, so this is a quick filter before solving IK and not a replacement for it.
+	 */
+	public boolean isReachable(DHChain chain,Matrix4d worldPose) {
+		double [] base = new double[16];
+		chain.getBase(base);
+		double dx = worldPose.m03-base[3], dy = worldPose.m13-base[7], dz = worldPose.m23-base[11];
+		// rigid, so the inverse is the transpose.
+		double x = base[0]*dx + base[4]*dy + base[ 8]*dz;
+		double y = base[1]*dx + base[5]*dy + base[ 9]*dz;
+		double z = base[2]*dx + base[6]*dy + base[10]*dz;
+		return isReachable(x,y,z);
+	}
+
+	/**
+	 * @return true if the map was made for a robot of this shape.
+	 */
+	public boolean matches(DHChain chain) {
+		return chain.hashShape()==shapeHash;
+	}
+
+	public int getCells() {
+		return cells;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public double getMaxManipulability() {
+		return maxManipulability;
+	}
+
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the number of cells reached.
+	 */
+	public int getReachedCount() {
+		int count=0;
+		int size = cells*cells*cells;
+		for(int i=0;i<size;++i) {
+			if(voxels.get(i)!=0) ++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Write somewhere else first and then move, so nobody maps half a file.
+	 */
+	public void save(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't create "+dir);
+		}
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(shapeHash);
+			header.putInt(cells);
+			header.putInt(0);
+			header.putDouble(cellSize);
+			header.putDouble(x0);
+			header.putDouble(y0);
+			header.putDouble(z0);
+			header.putDouble(maxManipulability);
+			header.putLong(samples);
+
+			int size = cells*cells*cells;
+			byte [] body = new byte[size];
+			for(int i=0;i<size;++i) body[i] = voxels.get(i);
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				out.write(header.array());
+				out.write(body);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Memory map a map saved with {@link #save(File)}.
+	 * @throws IOException if the file can't be read or is not a map.
+	 */
+	public static ReachabilityMap load(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if(channel.size()<HEADER_SIZE) throw new IOException("too short");
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt()!=MAGIC) throw new IOException("not a reachability map");
+			int version = buffer.getInt();
+			if(version!=VERSION) throw new IOException("unknown version "+version);
+			long shapeHash = buffer.getLong();
+			int cells = buffer.getInt();
+			buffer.getInt();
+			double cellSize = buffer.getDouble();
+			double x0 = buffer.getDouble();
+			double y0 = buffer.getDouble();
+			double z0 = buffer.getDouble();
+			double maxManipulability = buffer.getDouble();
+			long samples = buffer.getLong();
+			if(cells<=0 || (long)cells*cells*cells != channel.size()-HEADER_SIZE) throw new IOException("wrong size");
+
+			buffer.position(HEADER_SIZE);
+			// the mapping stays valid after the channel is closed.
+			return new ReachabilityMap(shapeHash,cells,cellSize,x0,y0,z0,maxManipulability,samples,buffer.slice());
+		}
+	}
+
+	/**
+	 * @return where the map of this robot lives, in the reachability folder of the user.  See {@link #getDirectory()}.
+	 */
+	public static File getFile(DHRobotEntity robot) {
+		String name = robot.getName().replaceAll("[^A-Za-z0-9._-]", "_")+EXTENSION;
+		return new File(directory,name);
+	}
+
+	/**
+	 * @param chain the robot.
+	 * @param file see {@link #getFile(DHRobotEntity)}
+	 * @return the map saved in file if it is for a robot of this shape, otherwise a new one, which is saved in file
+	 * for next time.
+	 */
+	public static ReachabilityMap loadOrBuild(DHChain chain,File file) {
+		if(file.isFile()) {
+			try {
+				ReachabilityMap map = load(file);
+				if(map.matches(chain)) return map;
+			} catch(IOException e) {
+				Log.error("Reachability map "+file+" is damaged: "+e.getLocalizedMessage());
+			}
+		}
+		ReachabilityMap map = build(chain,DEFAULT_CELLS,DEFAULT_SAMPLES);
+		try {
+			map.save(file);
+		} catch(IOException e) {
+			Log.error("Saving reachability map "+file+" failed: "+e.getLocalizedMessage());
+		}
+		return map;
+	}
+
+	/**
+	 * {@link #loadOrBuild(DHChain, File)} in the background.  Only one map is loaded or made at a time.
+	 * @return the map, when it is ready.
+	 */
+	public static Future<ReachabilityMap> loadOrBuildLater(final DHChain chain,final File file) {
+		return worker.submit(new Callable<ReachabilityMap>() {
+			@Override
+			public ReachabilityMap call() {
+				return loadOrBuild(chain,file);
+			}
+		});
+	}
+
+	public static void setDirectory(File dir) {
+		directory = dir;
+	}
+
+	public static File getDirectory() {
+		return directory;
+	}
+
+	private interface SampleVisitor {
+		public void visit(int from,int to);
+	}
+
+	/**
+	 * Visit every sample in [from,to), splitting the work across the fork/join pool.
+	 */
+	private static class SampleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+		private final SampleVisitor visitor;
+
+		public SampleTask(int from,int to,SampleVisitor visitor) {
+			this.from=from;
+			this.to=to;
+			this.visitor=visitor;
+		}
+
+		@Override
+		protected void compute() {
+			if(to-from<=TASK_SIZE) {
+				visitor.visit(from,to);
+				return;
+			}
+			int mid = (from+to)>>>1;
+			invokeAll(new SampleTask(from,mid,visitor), new SampleTask(mid,to,visitor));
+		}
+	}
+
+	/**
+	 * Draw a point in the middle of every reached cell, from red for the lowest manipulability to green for the
+	 * highest.  Call with the frame of the base on the matrix stack.
+	 * @param gl2 the render context
+	 */
+	public void render(GL2 gl2) {
+		if(pointBuffer==null) buildPoints();
+
+		boolean lightWasOn = gl2.glIsEnabled(GL2.GL_LIGHTING);
+		gl2.glDisable(GL2.GL_LIGHTING);
+		boolean isTex = gl2.glIsEnabled(GL2.GL_TEXTURE_2D);
+		gl2.glDisable(GL2.GL_TEXTURE_2D);
+
+		gl2.glPointSize(3);
+		gl2.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl2.glEnableClientState(GL2.GL_COLOR_ARRAY);
+		gl2.glVertexPointer(3, GL2.GL_FLOAT, 0, pointBuffer);
+		gl2.glColorPointer(3, GL2.GL_FLOAT, 0, colorBuffer);
+		gl2.glDrawArrays(GL2.GL_POINTS, 0, numPoints);
+		gl2.glDisableClientState(GL2.GL_COLOR_ARRAY);
+		gl2.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+		gl2.glPointSize(1);
+
+		if(isTex) gl2.glEnable(GL2.GL_TEXTURE_2D);
+		if(lightWasOn) gl2.glEnable(GL2.GL_LIGHTING);
+	}
+
+	private void buildPoints() {
+		numPoints = getReachedCount();
+		FloatBuffer points = ByteBuffer.allocateDirect(numPoints*3*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer colors = ByteBuffer.allocateDirect(numPoints*3*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		int i=0;
+		for(int z=0;z<cells;++z) {
+			for(int y=0;y<cells;++y) {
+				for(int x=0;x<cells;++x,++i) {
+					int v = voxels.get(i)&0xFF;
+					if(v==0) continue;
+					points.put((float)(x0+(x+0.5)*cellSize));
+					points.put((float)(y0+(y+0.5)*cellSize));
+					points.put((float)(z0+(z+0.5)*cellSize));
+					float t = (v-1)/254.0f;
+					colors.put(1-t);
+					colors.put(t);
+					colors.put(0.2f);
+				}
+			}
+		}
+		points.rewind();
+		colors.rewind();
+		colorBuffer = colors;
+		pointBuffer = points;
+	}
+}
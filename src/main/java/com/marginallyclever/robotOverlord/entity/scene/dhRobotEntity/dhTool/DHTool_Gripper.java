@@ -148,12 +148,13 @@ public class DHTool_Gripper extends DHTool {
 		
 		if(InputManager.isOn(InputManager.Source.STICK_CIRCLE) && !wasGripping) {
 			wasGripping=true;
+			Matrix4d poseWorld = getPoseWorld();
 			// grab release
 			if(subjectBeingHeld==null) {
 				//Log.message("Grab");
 				// Get the object at the targetPos.
 				Vector3d target = new Vector3d();
-				this.poseWorld.get(target);
+				poseWorld.get(target);
 				List<PoseEntity> list = this.getWorld().findPhysicalObjectsNear(target, 10);
 				if(!list.isEmpty()) {
 					subjectBeingHeld = list.get(0);
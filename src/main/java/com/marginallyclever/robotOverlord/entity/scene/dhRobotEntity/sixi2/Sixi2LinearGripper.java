@@ -111,6 +111,7 @@ public class Sixi2LinearGripper extends DHTool {
 		
 		if(InputManager.isOn(InputManager.Source.STICK_CIRCLE) && !wasGripping) {
 			wasGripping=true;
+			Matrix4d poseWorld = getPoseWorld();
 			// grab release
 			if(subjectBeingHeld==null) {
 				//Log.message("Grab");
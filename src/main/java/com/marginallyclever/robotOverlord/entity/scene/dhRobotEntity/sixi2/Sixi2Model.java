@@ -1,21 +1,22 @@
 package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2;
 
-import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
 
+import com.marginallyclever.convenience.DampedLeastSquares;
 import com.marginallyclever.convenience.MathHelper;
 import com.marginallyclever.convenience.MatrixHelper;
 import com.marginallyclever.convenience.StringHelper;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.DoubleEntity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.IntEntity;
 import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
-import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_GradientDescent;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_LevenbergMarquardt;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
 import com.marginallyclever.robotOverlord.swingInterface.view.ViewPanel;
 
@@ -65,6 +66,20 @@ public abstract class Sixi2Model extends DHRobotEntity {
 	protected Matrix4d mTarget = new Matrix4d();
 
 	protected double[] cartesianForceDesired = {0,0,0,0,0,0};
+
+	// Damping starts when the manipulability of the arm falls below this.  About 1 degree from a straight wrist.
+	protected static final double DLS_THRESHOLD = 1000;
+	// Damping when the arm is at a singularity.
+	protected static final double DLS_MAX_DAMPING = 0.5;
+	// turns cartesian force into joint velocity.  see getJointVelocityFromCartesianForce()
+	private transient DampedLeastSquares dls;
+
+	// reused by getJacobian()
+	private transient double [][] jacobian;
+	private transient double [] jacobianQ;
+	private transient DHChain jacobianChain;
+	private transient DHChain.Workspace jacobianWork;
+
 	protected double[] jointVelocityDesired;
 	
 	public Sixi2Model() {
@@ -74,7 +89,7 @@ public abstract class Sixi2Model extends DHRobotEntity {
 		addChild(acceleration);
 
 		//this.setIKSolver(new DHIKSolver_RTTRTR());
-		this.setIKSolver(new DHIKSolver_GradientDescent());
+		this.setIKSolver(new DHIKSolver_LevenbergMarquardt());
 
 		ModelEntity base = new ModelEntity();
 		addChild(base);
@@ -263,14 +278,11 @@ public abstract class Sixi2Model extends DHRobotEntity {
 	        mLive.set(endEffector.getPoseWorld());
 	        mFrom.set(mLive);
 	        
-	        // get the target matrix
-	        DHKeyframe oldPose = solver.createDHKeyframe();
-	        getPoseFK(oldPose);
-		        DHKeyframe newPose = solver.createDHKeyframe();
-		        newPose.set(poseFKTarget);
-		        setPoseFK(newPose);
-		        mTarget.set(endEffector.getPoseWorld());
-	        setPoseFK(oldPose);
+	        // get the target matrix without moving the arm
+	        DHKeyframe newPose = solver.createDHKeyframe();
+	        newPose.set(poseFKTarget);
+	        computePoseFK(newPose);
+	        getComputedEndEffector(mTarget);
 
 	        double travelS = dMax/(double)feedRate.get();
 	        
@@ -502,9 +514,9 @@ public abstract class Sixi2Model extends DHRobotEntity {
 		cartesianForce[0]=dp.x;
 		cartesianForce[1]=dp.y;
 		cartesianForce[2]=dp.z;
-		cartesianForce[3]=-w.x;
-		cartesianForce[4]=-w.y;
-		cartesianForce[5]=-w.z;
+		cartesianForce[3]=w.x;
+		cartesianForce[4]=w.y;
+		cartesianForce[5]=w.z;
 		
 		return true;
 	}
@@ -514,23 +526,15 @@ public abstract class Sixi2Model extends DHRobotEntity {
 	 * @param keyframe the current pose at which to calculate
 	 * @param cartesianForce the XYZ translation and UVW rotation forces on the end effector
 	 * @param jvot joint velocity over time.  Will be filled with the new velocity
-	 * @return false if joint velocities have NaN values
+	 * @return false if there is no answer, in which case the joint velocities are zero.
 	 */
 	protected boolean getJointVelocityFromCartesianForce(DHKeyframe keyframe,double[] cartesianForce,double [] jvot) {
 		// jvot = joint velocity over time
-		
-		double[][] jacobian = approximateJacobian(keyframe);
-		double[][] inverseJacobian = MatrixHelper.invert(jacobian);
+		double[][] jacobian = getJacobian(keyframe);
+		if(dls==null) dls = new DampedLeastSquares(DLS_MAX_DAMPING,DLS_THRESHOLD);
+		if(!dls.solve(jacobian, cartesianForce, jvot)) return false;
 
-		int j,k;
-		for(j = 0; j < keyframe.fkValues.length; ++j) {
-			for(k = 0; k < 6; ++k) {
-				jvot[j] += inverseJacobian[k][j] * cartesianForce[k];
-			}
-			if(Double.isNaN(jvot[j])) {
-				for(k = 0; k < 6; ++k) jvot[k]=0;
-				return false;
-			}
+		for(int j = 0; j < keyframe.fkValues.length; ++j) {
 			jvot[j]=MathHelper.wrapRadians(jvot[j]);
 		}
 		
@@ -544,7 +548,7 @@ public abstract class Sixi2Model extends DHRobotEntity {
 	 */
 	public double [] getCartesianForceFromJointVelocity(DHKeyframe keyframe,double [] jointVelocity) {
 		double [] cf = new double[6];  // cartesian force calculated
-		double[][] jacobian = approximateJacobian(keyframe);
+		double[][] jacobian = getJacobian(keyframe);
 
 		for( int k=0;k<keyframe.fkValues.length;++k ) {
 			for( int j=0;j<6;++j ) {
@@ -555,100 +559,33 @@ public abstract class Sixi2Model extends DHRobotEntity {
 	}
 	
 	/**
-	 * Use Forward Kinematics to approximate the Jacobian matrix for Sixi.
+	 * The Jacobian matrix for Sixi, worked out from the joint axes in one pass of forward kinematics.
 	 * See also https://robotacademy.net.au/masterclass/velocity-kinematics-in-3d/?lesson=346
+	 * @param keyframe the pose at which to calculate.  The robot does not move.
+	 * @return [joint][6], the linear and angular velocity of the end effector per radian of each joint.
+	 * Reused by the next call.
 	 */
-	public double [][] approximateJacobian(DHKeyframe keyframe) {
-		double [][] jacobian = new double[6][6];
-		
-		double ANGLE_STEP_SIZE_DEGREES=0.5;  // degrees
-		
-		DHKeyframe oldPoseFK = getIKSolver().createDHKeyframe();
-		getPoseFK(oldPoseFK);
-		
-		setPoseFK(keyframe);
-		Matrix4d T = endEffector.getPoseWorld();
-		
-		DHKeyframe newPoseFK = getIKSolver().createDHKeyframe();
-		int i=0;
-		// for all adjustable joints
-		for( DHLink link : links ) {
-			if(link.flags == LinkAdjust.NONE) continue;
-			
-			// use anglesB to get the hand matrix after a tiny adjustment on one joint.
-			newPoseFK.set(keyframe);
-			newPoseFK.fkValues[i]+=ANGLE_STEP_SIZE_DEGREES;
-			setPoseFK(newPoseFK);
-			// Tnew will be different from T because of the changes in setPoseFK().
-			Matrix4d Tnew = endEffector.getPoseWorld();
-			
-			// use the finite difference in the two matrixes
-			// aka the approximate the rate of change (aka the integral, aka the velocity)
-			// in one column of the jacobian matrix at this position.
-			Matrix4d dT = new Matrix4d();
-			dT.sub(Tnew,T);
-			dT.mul(1.0/Math.toRadians(ANGLE_STEP_SIZE_DEGREES));
-			
-			jacobian[i][0]=dT.m03;
-			jacobian[i][1]=dT.m13;
-			jacobian[i][2]=dT.m23;
-
-			// find the rotation part
-			// these initialT and initialTd were found in the comments on
-			// https://robotacademy.net.au/masterclass/velocity-kinematics-in-3d/?lesson=346
-			// and used to confirm that our skew-symmetric matrix match theirs.
-			/*
-			double[] initialT = {
-					 0,  0   , 1   ,  0.5963,
-					 0,  1   , 0   , -0.1501,
-					-1,  0   , 0   , -0.01435,
-					 0,  0   , 0   ,  1 };
-			double[] initialTd = {
-					 0, -0.01, 1   ,  0.5978,
-					 0,  1   , 0.01, -0.1441,
-					-1,  0   , 0   , -0.01435,
-					 0,  0   , 0   ,  1 };
-			T.set(initialT);
-			Td.set(initialTd);
-			dT.sub(Td,T);
-			dT.mul(1.0/Math.toRadians(ANGLE_STEP_SIZE_DEGREES));//*/
-			
-			//Log.message("T="+T);
-			//Log.message("Td="+Td);
-			//Log.message("dT="+dT);
-			Matrix3d T3 = new Matrix3d(
-					T.m00,T.m01,T.m02,
-					T.m10,T.m11,T.m12,
-					T.m20,T.m21,T.m22);
-			//Log.message("R="+R);
-			Matrix3d dT3 = new Matrix3d(
-					dT.m00,dT.m01,dT.m02,
-					dT.m10,dT.m11,dT.m12,
-					dT.m20,dT.m21,dT.m22);
-			//Log.message("dT3="+dT3);
-			Matrix3d skewSymmetric = new Matrix3d();
-			
-			T3.transpose();  // inverse of a rotation matrix is its transpose
-			skewSymmetric.mul(dT3,T3);
-			
-			//Log.message("SS="+skewSymmetric);
-			//[  0 -Wz  Wy]
-			//[ Wz   0 -Wx]
-			//[-Wy  Wx   0]
-			
-			jacobian[i][3]=skewSymmetric.m12;
-			jacobian[i][4]=skewSymmetric.m20;
-			jacobian[i][5]=skewSymmetric.m01;
-			
-			++i;
+	public double [][] getJacobian(DHKeyframe keyframe) {
+		DHChain chain = getDHChain();
+		int size = chain.getNumAdjustable();
+		if(jacobian==null || jacobian.length!=size) {
+			jacobian = new double[size][6];
+			jacobianQ = new double[size];
 		}
-		
-		// undo our changes.
-		setPoseFK(oldPoseFK);
-		
+		if(jacobianWork==null || jacobianChain!=chain) {
+			jacobianWork = chain.createWorkspace();
+			jacobianChain = chain;
+		}
+		System.arraycopy(keyframe.fkValues, 0, jacobianQ, 0, Math.min(size, keyframe.fkValues.length));
+		chain.getJacobian(jacobianQ, jacobianWork, jacobian);
 		return jacobian;
 	}
 
+	@Override
+	protected PoseEntity getEndEffector() {
+		return endEffector;
+	}
+
 	public void goHome() {
 	    // the home position
 		DHKeyframe homeKey = getIKSolver().createDHKeyframe();
@@ -0,0 +1,130 @@
+package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.vecmath.Matrix4d;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+
+/**
+ * Solves IK for every pose along a path at once, without touching the robot.
+ * <p>
+ * The path is cut into contiguous segments that are solved in parallel on the fork/join pool.  Inside a segment each
+ * pose starts from the answer to the one before it, which is usually a few degrees away, so the numerical solvers
+ * need only a few iterations.  The first pose of every segment can only start from the start keyframe, so it might
+ * land on a different branch (elbow up instead of elbow down) than the end of the segment before it.  A last pass
+ * walks the seams in order and solves again from the neighbour until the new answers agree with the old ones,
+ * which is usually the first pose.
+ * @author Dan Royer
+ */
+public class DHIKBatch {
+	// fewest poses per segment.  Shorter segments share the work better, longer segments have fewer seams.
+	public static final int MIN_SEGMENT_SIZE = 256;
+	// segments per thread in the pool, so that a thread that finishes early can take work from the others.
+	public static final int SEGMENTS_PER_THREAD = 4;
+	// at a seam, answers this close (in degrees, or units for a sliding link) are the same branch.
+	public static final double SEAM_TOLERANCE = 1;
+
+	/**
+	 * @param solver must be able to solve on a copy of the robot.  See {@link DHIKSolver#canSolveChain()}.
+	 * @param chain the robot.
+	 * @param targets the end effector pose at each point of the path.
+	 * @param start where to start looking for the first pose, usually where the robot is now.  If null, start from
+	 * where the robot was when the chain was made.
+	 * @param keyframes receives one answer per target.  Missing keyframes are made.  A keyframe with no solution
+	 * holds the closest values found.
+	 * @return the result for each target.
+	 */
+	public static DHIKSolver.SolutionType [] solve(DHIKSolver solver,DHChain chain,Matrix4d [] targets,DHKeyframe start,DHKeyframe [] keyframes) {
+		if(!solver.canSolveChain()) {
+			throw new IllegalArgumentException(solver.getClass().getSimpleName()+" can't solve a DHChain.");
+		}
+		if(keyframes.length<targets.length) {
+			throw new IllegalArgumentException("Need "+targets.length+" keyframes, got "+keyframes.length+".");
+		}
+		for(int i=0;i<targets.length;++i) {
+			if(keyframes[i]==null) keyframes[i] = new DHKeyframe(chain.getNumAdjustable());
+		}
+
+		DHIKSolver.SolutionType [] results = new DHIKSolver.SolutionType[targets.length];
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int size = Math.max(MIN_SEGMENT_SIZE, targets.length/(pool.getParallelism()*SEGMENTS_PER_THREAD)+1);
+		int numSegments = (targets.length+size-1)/size;
+		pool.invoke(new SegmentTask(solver,chain,targets,start,keyframes,results,size,0,numSegments));
+
+		// fix the seams in order, so each starts from a settled neighbour.
+		DHKeyframe answer = new DHKeyframe(chain.getNumAdjustable());
+		for(int s=1;s<numSegments;++s) {
+			int end = Math.min(targets.length,(s+1)*size);
+			for(int i=s*size;i<end;++i) {
+				DHIKSolver.SolutionType result = solver.solveWithSuggestion(chain, targets[i], answer, suggestionFor(keyframes,results,i,Math.max(0,i-size),start));
+				boolean same = (result==results[i]) && isClose(answer,keyframes[i]);
+				keyframes[i].set(answer);
+				results[i] = result;
+				if(same) break;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Solve segments [from,to) of size poses each, splitting the work across the fork/join pool.
+	 */
+	private static class SegmentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final DHIKSolver solver;
+		private final DHChain chain;
+		private final Matrix4d [] targets;
+		private final DHKeyframe start;
+		private final DHKeyframe [] keyframes;
+		private final DHIKSolver.SolutionType [] results;
+		private final int size, from, to;
+
+		public SegmentTask(DHIKSolver solver,DHChain chain,Matrix4d [] targets,DHKeyframe start,DHKeyframe [] keyframes,DHIKSolver.SolutionType [] results,int size,int from,int to) {
+			this.solver=solver;
+			this.chain=chain;
+			this.targets=targets;
+			this.start=start;
+			this.keyframes=keyframes;
+			this.results=results;
+			this.size=size;
+			this.from=from;
+			this.to=to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to-from>1) {
+				int mid = (from+to)>>>1;
+				invokeAll(new SegmentTask(solver,chain,targets,start,keyframes,results,size,from,mid),
+						  new SegmentTask(solver,chain,targets,start,keyframes,results,size,mid,to));
+				return;
+			}
+			int first = from*size;
+			int end = Math.min(targets.length,first+size);
+			for(int i=first;i<end;++i) {
+				// don't look back past the start of the segment, the segment before might not be done yet.
+				results[i] = solver.solveWithSuggestion(chain, targets[i], keyframes[i], suggestionFor(keyframes,results,i,first,start));
+			}
+		}
+	}
+
+	/**
+	 * @return the answer to the nearest solved pose in [lowest,i), or start if there isn't one.
+	 */
+	private static DHKeyframe suggestionFor(DHKeyframe [] keyframes,DHIKSolver.SolutionType [] results,int i,int lowest,DHKeyframe start) {
+		for(int k=i-1;k>=lowest;--k) {
+			if(results[k]!=DHIKSolver.SolutionType.NO_SOLUTIONS) return keyframes[k];
+		}
+		return start;
+	}
+
+	private static boolean isClose(DHKeyframe a,DHKeyframe b) {
+		for(int j=0;j<a.fkValues.length;++j) {
+			if(Math.abs(a.fkValues[j]-b.fkValues[j])>SEAM_TOLERANCE) return false;
+		}
+		return true;
+	}
+}
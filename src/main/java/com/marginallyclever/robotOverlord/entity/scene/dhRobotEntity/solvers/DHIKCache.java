@@ -0,0 +1,296 @@
+package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.vecmath.Matrix4d;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.log.Log;
+
+/**
+ * Remembers the last few IK answers so that jogging, which asks for nearly the same pose every frame, doesn't solve
+ * them again.
+ * <p>
+ * A target within the position and angle tolerances of a known answer gets that answer, so the tolerances are how far
+ * the robot can be from where it was asked to go.  The defaults are about one frame of a slow jog.  Answers are found
+ * by solver and by the target position rounded to a grid of CELL_SIZE tolerances.  A target near the edge of its cell
+ * can be within tolerance of an answer in the next cell, so on a miss those neighbours are asked too.  The cell only
+ * narrows the search; a hit also compares the real poses, including the x and y axes.
+ * <p>
+ * Most poses have more than one answer, so a hit is only used if every value of the answer is within
+ * SUGGESTION_TOLERANCE of the suggestion; otherwise the solver is asked and may pick another branch.  The least
+ * recently used answer is dropped when the cache is full.  Everything is dropped when the
+ * shape of the robot or its base changes.
+ * <p>
+ * Only solutions are kept.  A numerical solver that fails from one suggestion might succeed from another.
+ * Any number of threads may use the cache at once.
+ * @author Dan Royer
+ */
+public class DHIKCache {
+	public static final int DEFAULT_CAPACITY = 1024;
+	// poses closer than this share an answer, in the length units of the robot.  0.1mm for the Sixi 2, which is in cm.
+	public static final double DEFAULT_POSITION_TOLERANCE = 1e-2;
+	// poses closer than this share an answer, in radians.  about 0.06 degrees.
+	public static final double DEFAULT_ANGLE_TOLERANCE = 1e-3;
+	// the grid is this many position tolerances wide, so most targets are far enough from the edges that no
+	// neighbour has to be asked.
+	private static final double CELL_SIZE = 4;
+	// a known answer farther than this from the suggestion, in any value, is solved again.  in degrees, or the
+	// length units of the robot for sliding links.
+	public static final double SUGGESTION_TOLERANCE = 10;
+
+	private static class Key {
+		public final DHIKSolver solver;
+		public final long [] cell = new long[3];
+		public final int hash;
+
+		public Key(DHIKSolver solver,long x,long y,long z) {
+			this.solver = solver;
+			cell[0] = x;
+			cell[1] = y;
+			cell[2] = z;
+			int h = System.identityHashCode(solver);
+			for(int i=0;i<cell.length;++i) h = h*31 + (int)(cell[i]^(cell[i]>>>32));
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) return false;
+			Key b = (Key)obj;
+			if(solver!=b.solver) return false;
+			for(int i=0;i<cell.length;++i) {
+				if(cell[i]!=b.cell[i]) return false;
+			}
+			return true;
+		}
+	}
+
+	private static class Entry {
+		public final Matrix4d target = new Matrix4d();
+		public final DHKeyframe keyframe = new DHKeyframe();
+		public DHIKSolver.SolutionType result;
+		// how long the solve took.
+		public long nanos;
+	}
+
+	private final int capacity;
+	private final double positionTolerance;
+	private final double angleTolerance;
+	// access ordered, so the eldest is the least recently used.
+	private final LinkedHashMap<Key,Entry> entries;
+	// answers are only good for the robot they were found on.
+	private DHChain chain;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long savedNanos;
+
+	public DHIKCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the most answers to keep.
+	 */
+	public DHIKCache(final int capacity) {
+		this(capacity,DEFAULT_POSITION_TOLERANCE,DEFAULT_ANGLE_TOLERANCE);
+	}
+
+	/**
+	 * @param capacity the most answers to keep.
+	 * @param positionTolerance targets closer than this share an answer, in the length units of the robot.
+	 * @param angleTolerance targets turned less than this share an answer, in radians.
+	 */
+	public DHIKCache(final int capacity,double positionTolerance,double angleTolerance) {
+		if(positionTolerance<=0 || angleTolerance<=0) throw new IllegalArgumentException("tolerances must be more than zero.");
+		this.capacity = capacity;
+		this.positionTolerance = positionTolerance;
+		this.angleTolerance = angleTolerance;
+		entries = new LinkedHashMap<Key,Entry>(16,0.75f,true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+				if(size()<=capacity) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Same as {@link DHIKSolver#solveWithSuggestion(DHRobotEntity, Matrix4d, DHKeyframe, DHKeyframe)}, but if the
+	 * answer for this target is already known the solver is not asked.
+	 */
+	public DHIKSolver.SolutionType solveWithSuggestion(DHIKSolver solver,DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		double cellSize = positionTolerance*CELL_SIZE;
+		double [] p = { targetMatrix.m03/cellSize, targetMatrix.m13/cellSize, targetMatrix.m23/cellSize };
+		long [] cell = new long[3];
+		// which neighbour is close enough to hold a hit, if any.  -1, 0, or +1 on each axis.
+		int [] side = new int[3];
+		for(int i=0;i<3;++i) {
+			cell[i] = (long)Math.floor(p[i]);
+			double f = p[i]-cell[i];
+			if(f*CELL_SIZE<=1) side[i]=-1;
+			else if((1-f)*CELL_SIZE<=1) side[i]=1;
+		}
+		Key key = new Key(solver,cell[0],cell[1],cell[2]);
+		DHChain robotChain = robot.getDHChain();
+
+		synchronized(entries) {
+			if(chain!=robotChain) {
+				entries.clear();
+				chain = robotChain;
+			}
+			// the target's own cell first, then every combination of the near neighbours.
+			for(int n=0;n<8;++n) {
+				if(((n&1)!=0 && side[0]==0) || ((n&2)!=0 && side[1]==0) || ((n&4)!=0 && side[2]==0)) continue;
+				Entry entry = entries.get(n==0 ? key : new Key(solver,
+						cell[0]+((n&1)!=0?side[0]:0),
+						cell[1]+((n&2)!=0?side[1]:0),
+						cell[2]+((n&4)!=0?side[2]:0)));
+				if(entry!=null && isClose(entry.target,targetMatrix) && isNearSuggestion(entry.keyframe,robot,robotChain,suggestion)) {
+					hits++;
+					savedNanos += entry.nanos;
+					keyframe.set(entry.keyframe);
+					return entry.result;
+				}
+			}
+			misses++;
+		}
+
+		long start = System.nanoTime();
+		DHIKSolver.SolutionType result = solver.solveWithSuggestion(robot, targetMatrix, keyframe, suggestion);
+		long nanos = System.nanoTime()-start;
+		if(result==DHIKSolver.SolutionType.NO_SOLUTIONS) return result;
+
+		Entry entry = new Entry();
+		entry.target.set(targetMatrix);
+		entry.keyframe.set(keyframe);
+		entry.result = result;
+		entry.nanos = nanos;
+		synchronized(entries) {
+			// don't keep an answer for a robot that changed while solving.
+			if(chain==robotChain) entries.put(key, entry);
+		}
+		return result;
+	}
+
+	private boolean isClose(Matrix4d a,Matrix4d b) {
+		if(Math.abs(a.m03-b.m03)>positionTolerance) return false;
+		if(Math.abs(a.m13-b.m13)>positionTolerance) return false;
+		if(Math.abs(a.m23-b.m23)>positionTolerance) return false;
+		// for small angles each axis moves by about the angle.
+		if(Math.abs(a.m00-b.m00)>angleTolerance) return false;
+		if(Math.abs(a.m10-b.m10)>angleTolerance) return false;
+		if(Math.abs(a.m20-b.m20)>angleTolerance) return false;
+		if(Math.abs(a.m01-b.m01)>angleTolerance) return false;
+		if(Math.abs(a.m11-b.m11)>angleTolerance) return false;
+		if(Math.abs(a.m21-b.m21)>angleTolerance) return false;
+		return true;
+	}
+
+	/**
+	 * @param suggestion if null, where the robot is now.
+	 * @return true if the answer is on the same branch as the suggestion.
+	 */
+	private boolean isNearSuggestion(DHKeyframe answer,DHRobotEntity robot,DHChain chain,DHKeyframe suggestion) {
+		int m = Math.min(answer.fkValues.length,chain.getNumAdjustable());
+		for(int j=0;j<m;++j) {
+			double s = (suggestion!=null && j<suggestion.fkValues.length)
+					? suggestion.fkValues[j]
+					: robot.getLink(chain.getAdjustableLink(j)).getAdjustableValue();
+			if(Math.abs(answer.fkValues[j]-s)>SUGGESTION_TOLERANCE) return false;
+		}
+		return true;
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public double getPositionTolerance() {
+		return positionTolerance;
+	}
+
+	public double getAngleTolerance() {
+		return angleTolerance;
+	}
+
+	public long getHitCount() {
+		synchronized(entries) {
+			return hits;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized(entries) {
+			return misses;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized(entries) {
+			return evictions;
+		}
+	}
+
+	/**
+	 * @return hits / (hits + misses), or 0 before the first call.
+	 */
+	public double getHitRate() {
+		synchronized(entries) {
+			long total = hits+misses;
+			return total==0 ? 0 : (double)hits/(double)total;
+		}
+	}
+
+	/**
+	 * @return the time the solver would have spent finding the answers that were hits, in nanoseconds.
+	 */
+	public long getSavedNanos() {
+		synchronized(entries) {
+			return savedNanos;
+		}
+	}
+
+	public String getStatistics() {
+		synchronized(entries) {
+			return "DHIKCache: "+entries.size()+"/"+capacity+" answers, "
+					+hits+" hits, "
+					+misses+" misses, "
+					+evictions+" evictions, "
+					+String.format("%.1f",getHitRate()*100)+"% hit rate, "
+					+(savedNanos/1000000)+"ms saved";
+		}
+	}
+
+	/**
+	 * Log the cache statistics.
+	 */
+	public void logStatistics() {
+		Log.message(getStatistics());
+	}
+}
@@ -0,0 +1,105 @@
+package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+
+/**
+ * Every answer an analytic solver found for one pose, cheapest first.  The cost of an answer is the squared
+ * joint space distance from the suggestion, so the first answer is the one that moves the robot least.
+ * <p>
+ * Keep one and pass it to each solve.  Nothing is allocated after it is made.  Not safe for more than one thread.
+ * @author Dan Royer
+ */
+public class DHIKSolutionSet {
+	// answers closer than this, in each value, are the same answer.
+	public static final double SAME_TOLERANCE = 1e-6;
+
+	private final DHKeyframe [] solutions;
+	private final double [] costs;
+	private int size;
+
+	/**
+	 * @param capacity the most answers to keep.
+	 * @param solutionSize the number of values in each answer.
+	 */
+	public DHIKSolutionSet(int capacity,int solutionSize) {
+		solutions = new DHKeyframe[capacity];
+		costs = new double[capacity];
+		for(int i=0;i<capacity;++i) {
+			solutions[i] = new DHKeyframe(solutionSize);
+		}
+	}
+
+	public void clear() {
+		size=0;
+	}
+
+	/**
+	 * Keep an answer in order of cost.
+	 * @param values the answer.
+	 * @param suggestion the values the robot is moving from.
+	 * @return false if the answer was already found or there is no room.
+	 */
+	public boolean add(double [] values,double [] suggestion) {
+		for(int i=0;i<size;++i) {
+			if(isSame(solutions[i].fkValues,values)) return false;
+		}
+		if(size==solutions.length) return false;
+
+		double cost=0;
+		for(int j=0;j<values.length;++j) {
+			double d = values[j]-suggestion[j];
+			cost += d*d;
+		}
+
+		// insertion sort.  The keyframes are moved, not copied, so nothing is allocated.
+		DHKeyframe spare = solutions[size];
+		int i=size;
+		while(i>0 && costs[i-1]>cost) {
+			solutions[i] = solutions[i-1];
+			costs[i] = costs[i-1];
+			--i;
+		}
+		solutions[i] = spare;
+		costs[i] = cost;
+		System.arraycopy(values, 0, spare.fkValues, 0, values.length);
+		++size;
+		return true;
+	}
+
+	private boolean isSame(double [] a,double [] b) {
+		for(int j=0;j<b.length;++j) {
+			if(Math.abs(a[j]-b[j])>SAME_TOLERANCE) return false;
+		}
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return solutions.length;
+	}
+
+	/**
+	 * @param i 0 is the cheapest.
+	 * @return the answer.  Do not keep it, the next solve changes it.
+	 */
+	public DHKeyframe get(int i) {
+		return solutions[i];
+	}
+
+	/**
+	 * @param i 0 is the cheapest.
+	 * @return the squared joint space distance from the suggestion, in degrees^2.
+	 */
+	public double getCost(int i) {
+		return costs[i];
+	}
+
+	public DHIKSolver.SolutionType getSolutionType() {
+		if(size==0) return DHIKSolver.SolutionType.NO_SOLUTIONS;
+		if(size==1) return DHIKSolver.SolutionType.ONE_SOLUTION;
+		return DHIKSolver.SolutionType.MANY_SOLUTIONS;
+	}
+}
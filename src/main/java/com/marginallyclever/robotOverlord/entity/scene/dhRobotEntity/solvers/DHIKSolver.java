@@ -2,6 +2,7 @@ package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
 
 import javax.vecmath.Matrix4d;
 
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
 
@@ -55,4 +56,25 @@ public class DHIKSolver {
 		// default action do nothing.
 		return SolutionType.NO_SOLUTIONS;
 	}
+
+	/**
+	 * Same as {@link #solveWithSuggestion(DHRobotEntity, Matrix4d, DHKeyframe, DHKeyframe)} on a copy of the robot,
+	 * which any number of threads may do at once.  Only numerical solvers can work on a copy.
+	 * @param chain the copy of the robot.
+	 * @param targetMatrix the pose that robot is attempting to reach in this solution.
+	 * @param keyframe store the computed solution in keyframe.
+	 * @param suggestion where to start looking.
+	 */
+	public SolutionType solveWithSuggestion(DHChain chain,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		keyframe.fkValues[0]=0;
+		// default action do nothing.
+		return SolutionType.NO_SOLUTIONS;
+	}
+
+	/**
+	 * @return true if {@link #solveWithSuggestion(DHChain, Matrix4d, DHKeyframe, DHKeyframe)} works.
+	 */
+	public boolean canSolveChain() {
+		return false;
+	}
 }
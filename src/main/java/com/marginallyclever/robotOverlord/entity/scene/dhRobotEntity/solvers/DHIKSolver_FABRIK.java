@@ -2,28 +2,261 @@ package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
 
 import javax.vecmath.Matrix4d;
 
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
 
 /**
- * TODO FABRIK solver (http://www.andreasaristidou.com/publications/papers/FABRIK.pdf)
+ * FABRIK solver (http://www.andreasaristidou.com/publications/papers/FABRIK.pdf)
+ * <p>
+ * Each iteration does the two FABRIK passes on the origins of the links: backward from the target to the base,
+ * then forward from the base, keeping the distance between neighbours.  A D-H joint can only turn about (or slide
+ * along) one axis, so the new points are then projected back onto the joints one at a time from the base out:
+ * each joint takes the value, within its range, that best moves the points beyond it onto their FABRIK positions.
+ * The end effector and two handles on its x and y axes are always aimed at the target, so the orientation is
+ * matched too.  With fewer than 6 adjustable links only the position is matched.
+ * <p>
+ * No matrices are inverted, so each iteration is cheap.  Any number of threads may solve at once.
  * @author Dan Royer
  * @since 1.6.0
  *
  */
 public class DHIKSolver_FABRIK extends DHIKSolver {
+	// give up after this many iterations.
+	public static final int MAX_ITERATIONS = 200;
+	// close enough, in the length units of the robot.
+	public static final double POSITION_TOLERANCE = 1e-2;
+	// close enough, in radians.
+	public static final double ANGLE_TOLERANCE = 1e-3;
+	// each joint moves this much farther than its projection says.  Over-relaxing makes up for moving one joint at
+	// a time, which on its own creeps up on the answer.
+	public static final double OVER_RELAXATION = 1.6;
+
+	protected int solutionSize;
+
+	public DHIKSolver_FABRIK() {
+		this(6);
+	}
+
+	/**
+	 * @param solutionSize number of adjustable links in the robots this will solve.
+	 */
+	public DHIKSolver_FABRIK(int solutionSize) {
+		super();
+		this.solutionSize = solutionSize;
+	}
+
 	/**
 	 * @return the number of double values needed to store a valid solution from this DHIKSolver.
 	 */
 	public int getSolutionSize() {
-		return 6;
+		return solutionSize;
+	}
+
+	@Override
+	public SolutionType solve(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe) {
+		return solveWithSuggestion(robot,targetMatrix,keyframe,null);
 	}
-	
+
 	/**
-	 * 
+	 * The robot does not move.
+	 * @param suggestion where to start looking.  If null, start from where the robot is now.
+	 * @return ONE_SOLUTION if the end effector reaches the target within the range limits, NO_SOLUTIONS if it
+	 * does not.  Either way keyframe holds the closest values found.
 	 */
 	@Override
 	public SolutionType solveWithSuggestion(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
-		return SolutionType.NO_SOLUTIONS;
+		DHChain chain = robot.getDHChain();
+		if(suggestion==null) {
+			suggestion = new DHKeyframe(chain.getNumAdjustable());
+			for(int j=0;j<chain.getNumAdjustable();++j) {
+				suggestion.fkValues[j] = robot.getLink(chain.getAdjustableLink(j)).getAdjustableValue();
+			}
+		}
+		return solveWithSuggestion(chain,targetMatrix,keyframe,suggestion);
+	}
+
+	@Override
+	public boolean canSolveChain() {
+		return true;
+	}
+
+	/**
+	 * Same as {@link #solveWithSuggestion(DHRobotEntity, Matrix4d, DHKeyframe, DHKeyframe)} on a copy of the robot.
+	 * @param suggestion where to start looking.  If null, start from where the robot was when the chain was made.
+	 */
+	@Override
+	public SolutionType solveWithSuggestion(DHChain chain,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		int n = chain.getNumLinks();
+		int m = chain.getNumAdjustable();
+		boolean matchOrientation = m>=6;
+		double [] q = new double[m];
+		double [] poses = new double[chain.getPosesSize()];
+		double [] base = new double[16];
+		double [] target = new double[16];
+		double [] tip = new double[16];
+		double [] error = new double[6];
+		// points are the base, the origin of every link, the end effector, then two handles.
+		int numPoints = n+4;
+		double [] now = new double[numPoints*3];
+		double [] goal = new double[numPoints*3];
+		double [] lengths = new double[n+1];
+
+		DHChain.setArray(targetMatrix, target, 0);
+		chain.getBase(base);
+		chain.getInitialValues(q);
+		if(suggestion!=null) {
+			System.arraycopy(suggestion.fkValues, 0, q, 0, Math.min(m, suggestion.fkValues.length));
+		}
+		chain.clamp(q);
+
+		// the handles are a quarter as far from the end effector as the arm is long, so that turning counts about as
+		// much as moving.
+		chain.getPoses(q, poses);
+		getPoints(poses,base,n,1,now);
+		double reach=0;
+		for(int k=0;k<=n;++k) reach += distance(now,k,now,k+1);
+		double handle = Math.max(reach*0.25,1e-6);
+		setPoint(goal,n+1,target[3],target[7],target[11]);
+		setPoint(goal,n+2,target[3]+target[0]*handle,target[7]+target[4]*handle,target[11]+target[ 8]*handle);
+		setPoint(goal,n+3,target[3]+target[1]*handle,target[7]+target[5]*handle,target[11]+target[ 9]*handle);
+
+		boolean done=false;
+		for(int iter=0;iter<MAX_ITERATIONS;++iter) {
+			chain.getPoses(q, poses);
+			System.arraycopy(poses, 16*n, tip, 0, 16);
+			DHIKSolver_LevenbergMarquardt.getError(tip, target, error);
+			if(isCloseEnough(error,matchOrientation)) {
+				done=true;
+				break;
+			}
+			getPoints(poses,base,n,handle,now);
+			for(int k=0;k<=n;++k) lengths[k] = distance(now,k,now,k+1);
+
+			// backward: from the target to the base.
+			for(int k=n;k>=0;--k) {
+				placeAtLength(goal,k+1,now,k,lengths[k],goal,k);
+			}
+			// forward: from the base to the end effector.
+			setPoint(goal,0,now[0],now[1],now[2]);
+			for(int k=0;k<n;++k) {
+				placeAtLength(goal,k,goal,k+1,lengths[k],goal,k+1);
+			}
+
+			// project onto the joints, from the base out.
+			for(int j=0;j<m;++j) {
+				if(j>0) {
+					chain.getPoses(q, poses);
+					getPoints(poses,base,n,handle,now);
+				}
+				q[j] = projectJoint(chain,j,poses,base,now,goal,n,matchOrientation,q[j]);
+			}
+		}
+
+		for(int j=0;j<m && j<keyframe.fkValues.length;++j) {
+			keyframe.fkValues[j] = q[j];
+		}
+		return done ? SolutionType.ONE_SOLUTION : SolutionType.NO_SOLUTIONS;
+	}
+
+	private boolean isCloseEnough(double [] error,boolean matchOrientation) {
+		double p = error[0]*error[0] + error[1]*error[1] + error[2]*error[2];
+		if(p>=POSITION_TOLERANCE*POSITION_TOLERANCE) return false;
+		if(!matchOrientation) return true;
+		double o = error[3]*error[3] + error[4]*error[4] + error[5]*error[5];
+		return o<ANGLE_TOLERANCE*ANGLE_TOLERANCE;
+	}
+
+	/**
+	 * The value of joint j that best moves the points beyond it toward their goals, clamped to its range.
+	 */
+	private double projectJoint(DHChain chain,int j,double [] poses,double [] base,double [] now,double [] goal,int n,boolean matchOrientation,double value) {
+		int i = chain.getAdjustableLink(j);
+		LinkAdjust f = chain.getFlags(i);
+		if(f!=LinkAdjust.THETA && f!=LinkAdjust.D && f!=LinkAdjust.ALPHA && f!=LinkAdjust.R) return value;
+
+		// theta and d move about the z axis of the previous link, alpha and r about the x axis of this link.
+		double [] frame = poses;
+		int k = 16*(i-1);
+		if(f==LinkAdjust.ALPHA || f==LinkAdjust.R) k = 16*i;
+		else if(i==0) {
+			frame = base;
+			k = 0;
+		}
+		int c = (f==LinkAdjust.THETA || f==LinkAdjust.D) ? 2 : 0;
+		double ax = frame[k+c], ay = frame[k+4+c], az = frame[k+8+c];
+		double ox = frame[k+3], oy = frame[k+7], oz = frame[k+11];
+
+		// the points this joint moves: the origins of this link and those after, the end effector, the handles.
+		int first = i+1;
+		int last = matchOrientation ? n+3 : n+1;
+		double dot=0, cross=0, slide=0;
+		for(int p=first;p<=last;++p) {
+			if(f==LinkAdjust.D || f==LinkAdjust.R) {
+				slide += (goal[p*3]-now[p*3])*ax + (goal[p*3+1]-now[p*3+1])*ay + (goal[p*3+2]-now[p*3+2])*az;
+				continue;
+			}
+			// b and g are the point now and the goal, relative to the axis.
+			double bx = now[p*3]-ox, by = now[p*3+1]-oy, bz = now[p*3+2]-oz;
+			double gx = goal[p*3]-ox, gy = goal[p*3+1]-oy, gz = goal[p*3+2]-oz;
+			// flatten onto the plane of the turn.
+			double bd = bx*ax + by*ay + bz*az;
+			bx -= ax*bd;  by -= ay*bd;  bz -= az*bd;
+			double gd = gx*ax + gy*ay + gz*az;
+			gx -= ax*gd;  gy -= ay*gd;  gz -= az*gd;
+			dot += bx*gx + by*gy + bz*gz;
+			cross += ax*(by*gz-bz*gy) + ay*(bz*gx-bx*gz) + az*(bx*gy-by*gx);
+		}
+
+		if(f==LinkAdjust.D || f==LinkAdjust.R) {
+			value += OVER_RELAXATION*slide/(last-first+1);
+		} else if(dot!=0 || cross!=0) {
+			value += OVER_RELAXATION*Math.toDegrees(Math.atan2(cross,dot));
+		}
+		return Math.max(Math.min(value, chain.getRangeMax(j)), chain.getRangeMin(j));
+	}
+
+	/**
+	 * Fill points with the base, the origin of every link, the end effector, and two handles on its x and y axes.
+	 */
+	private void getPoints(double [] poses,double [] base,int n,double handle,double [] points) {
+		setPoint(points,0,base[3],base[7],base[11]);
+		for(int i=0;i<=n;++i) {
+			int k=16*i;
+			setPoint(points,i+1,poses[k+3],poses[k+7],poses[k+11]);
+		}
+		int k=16*n;
+		setPoint(points,n+2,poses[k+3]+poses[k  ]*handle,poses[k+7]+poses[k+4]*handle,poses[k+11]+poses[k+8]*handle);
+		setPoint(points,n+3,poses[k+3]+poses[k+1]*handle,poses[k+7]+poses[k+5]*handle,poses[k+11]+poses[k+9]*handle);
+	}
+
+	private void setPoint(double [] points,int i,double x,double y,double z) {
+		points[i*3  ]=x;
+		points[i*3+1]=y;
+		points[i*3+2]=z;
+	}
+
+	private double distance(double [] a,int i,double [] b,int j) {
+		double dx = a[i*3  ]-b[j*3  ];
+		double dy = a[i*3+1]-b[j*3+1];
+		double dz = a[i*3+2]-b[j*3+2];
+		return Math.sqrt(dx*dx+dy*dy+dz*dz);
+	}
+
+	/**
+	 * out[o] = from[f] + length * unit vector toward toward[t].  If they are the same point, out[o] = toward[t].
+	 */
+	private void placeAtLength(double [] from,int f,double [] toward,int t,double length,double [] out,int o) {
+		double dx = toward[t*3  ]-from[f*3  ];
+		double dy = toward[t*3+1]-from[f*3+1];
+		double dz = toward[t*3+2]-from[f*3+2];
+		double d = Math.sqrt(dx*dx+dy*dy+dz*dz);
+		if(d<1e-12) {
+			setPoint(out,o,toward[t*3],toward[t*3+1],toward[t*3+2]);
+			return;
+		}
+		double s = length/d;
+		setPoint(out,o,from[f*3]+dx*s,from[f*3+1]+dy*s,from[f*3+2]+dz*s);
 	}
 }
@@ -1,11 +1,9 @@
 package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
 
 import javax.vecmath.Matrix4d;
-import javax.vecmath.Vector3d;
 
-import com.marginallyclever.convenience.MatrixHelper;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
-import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
 
 /**
@@ -28,15 +26,6 @@ public class DHIKSolver_GradientDescent extends DHIKSolver {
 	// If distanceToTarget() score is within threshold, quit with success. 
 	protected static final double THRESHOLD = 0.1;
 
-	// how big a step to take with each partial descent?
-	protected double [] samplingDistances = { 0,0,0,0,0,0 };
-	// how much of that partial descent to actually apply?
-	protected double learningRate=0;
-	
-	protected DHRobotEntity robot;
-	protected Matrix4d targetMatrix;
-	protected DHLink endEffector;
-	
 	/**
 	 * @return the number of double values needed to store a valid solution from this DHIKSolver.
 	 */
@@ -44,58 +33,50 @@ public class DHIKSolver_GradientDescent extends DHIKSolver {
 		return 6;
 	}
 	
-	public double distanceToTarget() {
-		Matrix4d currentMatrix = endEffector.getPoseWorld();
-		
+	/**
+	 * @param current world pose of the end effector, 16 doubles row major.
+	 * @param target world pose of the target, 16 doubles row major.
+	 * @return the error term.  0 is a perfect match.
+	 */
+	public static double distanceToTarget(double [] current,double [] target) {
 		// linear difference in centers
-		Vector3d c0 = new Vector3d();
-		Vector3d c1 = new Vector3d();
-		currentMatrix.get(c0);
-		targetMatrix.get(c1);
-		c1.sub(c0);
-		double dC = c1.lengthSquared();
+		double dx = target[3]-current[3];
+		double dy = target[7]-current[7];
+		double dz = target[11]-current[11];
+		double dC = dx*dx+dy*dy+dz*dz;
 		
-		// linear difference in X handles
-		Vector3d x0 = MatrixHelper.getXAxis(targetMatrix);
-		Vector3d x1 = MatrixHelper.getXAxis(currentMatrix);
-		x1.scale(CORRECTIVE_FACTOR);
-		x0.scale(CORRECTIVE_FACTOR);
-		x1.sub(x0);
-		double dX = x1.lengthSquared();
-		
-		// linear difference in Y handles
-		Vector3d y0 = MatrixHelper.getYAxis(targetMatrix);
-		Vector3d y1 = MatrixHelper.getYAxis(currentMatrix);
-		y1.scale(CORRECTIVE_FACTOR);
-		y0.scale(CORRECTIVE_FACTOR);
-		y1.sub(y0);
-		double dY = y1.lengthSquared();		
+		// linear difference in X and Y handles
+		double dX=0, dY=0;
+		for(int k=0;k<3;++k) {
+			double x = (current[k*4  ]-target[k*4  ])*CORRECTIVE_FACTOR;
+			double y = (current[k*4+1]-target[k*4+1])*CORRECTIVE_FACTOR;
+			dX += x*x;
+			dY += y*y;
+		}
 
 	    // now sum these to get the error term.
 		return dC+dX+dY;
 	}
 
 	/**
-	 * Adjust one link angle.  Is it better?  Also check if both directions are equally bad, which means we're near the minimum.
+	 * Adjust one value.  Is it better?  Also check if both directions are equally bad, which means we're near the minimum.
 	 * 
-	 * @param link
-	 * @param i
-	 * @return
+	 * @return the gradient, or 0 if both directions are worse.
 	 */
-	protected double partialDescent(DHLink link,int i) {
-		double oldValue = link.getAdjustableValue();
-		double Fx = distanceToTarget();
+	protected double partialDescent(DHChain chain,double [] q,int i,double [] samplingDistances,double [] target,double [] current) {
+		double oldValue = q[i];
+		chain.getEndEffector(q, current);
+		double Fx = distanceToTarget(current,target);
 
-		link.setAdjustableValue(oldValue + samplingDistances[i]);
-		link.refreshPoseMatrix();
-		double FxPlusD = distanceToTarget();
+		q[i] = clamp(chain,i,oldValue + samplingDistances[i]);
+		chain.getEndEffector(q, current);
+		double FxPlusD = distanceToTarget(current,target);
 
-		link.setAdjustableValue(oldValue - samplingDistances[i]);
-		link.refreshPoseMatrix();
-		double FxMinusD = distanceToTarget();
+		q[i] = clamp(chain,i,oldValue - samplingDistances[i]);
+		chain.getEndEffector(q, current);
+		double FxMinusD = distanceToTarget(current,target);
 
-		link.setAdjustableValue(oldValue);
-		link.refreshPoseMatrix();
+		q[i] = oldValue;
 
 		if( FxMinusD > Fx && FxPlusD > Fx ) {
 			samplingDistances[i] *= 2.0/3.0;
@@ -105,54 +86,67 @@ public class DHIKSolver_GradientDescent extends DHIKSolver {
 		double gradient = ( FxPlusD - Fx ) / samplingDistances[i];
 		return gradient;
 	}
+	
+	private static double clamp(DHChain chain,int i,double v) {
+		return Math.max(Math.min(v, chain.getRangeMax(i)), chain.getRangeMin(i));
+	}
 
 	/**
 	 * We're going to blindly jiggle the arm very slightly and see which jiggle gets us closer to the target.
 	 * Eventually we get close enough and quit.
 	 * We might not actually reach the target by the time we've done interating.
+	 * Starts from where the robot is now.  The robot does not move.
 	 */
 	@Override
 	public SolutionType solveWithSuggestion(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
-		this.robot = robot;
-		this.targetMatrix = targetMatrix;
-		
-		// TODO get a better method of finding the end effector
-		this.endEffector = (DHLink)robot.findByPath("./X/Y/Z/U/V/W/End Effector");
+		return solveWithSuggestion(new DHChain(robot), targetMatrix, keyframe, suggestion);
+	}
+	
+	@Override
+	public boolean canSolveChain() {
+		return true;
+	}
 
-		// these need to be reset each run.
-		learningRate=0.125;
-		samplingDistances[0]=SENSOR_RESOLUTION; 
-		samplingDistances[1]=SENSOR_RESOLUTION;
-		samplingDistances[2]=SENSOR_RESOLUTION;
-		samplingDistances[3]=SENSOR_RESOLUTION;
-		samplingDistances[4]=SENSOR_RESOLUTION;
-		samplingDistances[5]=SENSOR_RESOLUTION;
+	/**
+	 * Same as {@link #solveWithSuggestion(DHRobotEntity, Matrix4d, DHKeyframe, DHKeyframe)} on a copy of the robot.
+	 * Any number of threads may solve at once.
+	 */
+	@Override
+	public SolutionType solveWithSuggestion(DHChain chain,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		int size = chain.getNumAdjustable();
+		double [] target = new double[16];
+		DHChain.setArray(targetMatrix, target, 0);
+		double [] current = new double[16];
+		double [] q = new double[size];
+		chain.getInitialValues(q);
 		
+		// these need to be reset each run.
+		// how much of each partial descent to actually apply?
+		double learningRate=0.125;
+		// how big a step to take with each partial descent?
+		double [] samplingDistances = new double[size];
+		for(int i=0;i<size;++i) samplingDistances[i]=SENSOR_RESOLUTION;
 
 		double dtt=10;
 		
 		for(int iter=0;iter<ITERATIONS;++iter) {
 			// seems to work better ascending than descending
-			//for( int i=0; i<robot.getNumLinks(); ++i ) {
-			for( int i=robot.getNumLinks()-1; i>=0; --i ) {
-				DHLink link = robot.links.get(i);
-				
-				double oldValue = link.getAdjustableValue();
-				double gradient = partialDescent( link, i );
+			//for( int i=0; i<size; ++i ) {
+			for( int i=size-1; i>=0; --i ) {
+				double oldValue = q[i];
+				double gradient = partialDescent( chain, q, i, samplingDistances, target, current );
 				double newValue = oldValue - gradient * learningRate; 
-				newValue = Math.max(Math.min(newValue, link.rangeMax.get()-1e-6), link.rangeMin.get()+1e-6);
-				
-				link.setAdjustableValue(newValue);
-				link.refreshPoseMatrix();
+				q[i] = Math.max(Math.min(newValue, chain.getRangeMax(i)-1e-6), chain.getRangeMin(i)+1e-6);
 		
-				dtt=distanceToTarget();
+				chain.getEndEffector(q, current);
+				dtt=distanceToTarget(current,target);
 				if(dtt<THRESHOLD) break;
 			}
 			if(dtt<THRESHOLD) break;
 		}
 		
-		for( int i=0; i<robot.getNumLinks(); ++i ) {
-			keyframe.fkValues[i] = robot.links.get(i).getAdjustableValue();
+		for( int i=0; i<size && i<keyframe.fkValues.length; ++i ) {
+			keyframe.fkValues[i] = q[i];
 		}
 		
 		return SolutionType.ONE_SOLUTION;
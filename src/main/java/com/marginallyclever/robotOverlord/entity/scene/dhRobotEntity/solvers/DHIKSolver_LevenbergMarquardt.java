@@ -0,0 +1,231 @@
+package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
+
+import javax.vecmath.Matrix4d;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+
+/**
+ * Numerical IK for any D-H chain with Levenberg-Marquardt.  Each iteration solves
+ * (Jt W J + lambda * diag(Jt W J)) * step = Jt W * error, where error is the position and orientation of the target
+ * relative to the end effector.  A step that makes the error smaller is kept and lambda shrinks (more like
+ * Gauss-Newton), otherwise lambda grows (more like gradient descent) and the step is tried again.  Every step is
+ * clamped to the range limits of each link.
+ * <p>
+ * Starting from a nearby suggestion, as when jogging, it usually converges in two or three iterations.
+ * See http://people.duke.edu/~hpgavin/ce281/lm.pdf
+ * @author Dan Royer
+ */
+public class DHIKSolver_LevenbergMarquardt extends DHIKSolver {
+	// give up after this many iterations.
+	public static final int MAX_ITERATIONS = 50;
+	// give up after this many bad steps in a row.
+	public static final int MAX_RETRIES = 10;
+	// close enough, in the length units of the robot.
+	public static final double POSITION_TOLERANCE = 1e-3;
+	// close enough, in radians.
+	public static final double ANGLE_TOLERANCE = 1e-5;
+	// How many units of length one radian of orientation error is worth.
+	public static final double ORIENTATION_WEIGHT = 10;
+
+	protected int solutionSize;
+
+	public DHIKSolver_LevenbergMarquardt() {
+		this(6);
+	}
+
+	/**
+	 * @param solutionSize number of adjustable links in the robots this will solve.
+	 */
+	public DHIKSolver_LevenbergMarquardt(int solutionSize) {
+		super();
+		this.solutionSize = solutionSize;
+	}
+
+	/**
+	 * @return the number of double values needed to store a valid solution from this DHIKSolver.
+	 */
+	@Override
+	public int getSolutionSize() {
+		return solutionSize;
+	}
+
+	@Override
+	public SolutionType solve(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe) {
+		return solveWithSuggestion(robot,targetMatrix,keyframe,null);
+	}
+
+	/**
+	 * The robot does not move.
+	 * @param suggestion where to start looking.  If null, start from where the robot is now.
+	 * @return ONE_SOLUTION if the end effector reaches the target within the range limits, NO_SOLUTIONS if it
+	 * does not.  Either way keyframe holds the closest values found.
+	 */
+	@Override
+	public SolutionType solveWithSuggestion(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		DHChain chain = robot.getDHChain();
+		if(suggestion==null) {
+			suggestion = new DHKeyframe(chain.getNumAdjustable());
+			for(int j=0;j<chain.getNumAdjustable();++j) {
+				suggestion.fkValues[j] = robot.getLink(chain.getAdjustableLink(j)).getAdjustableValue();
+			}
+		}
+		return solveWithSuggestion(chain,targetMatrix,keyframe,suggestion);
+	}
+
+	@Override
+	public boolean canSolveChain() {
+		return true;
+	}
+
+	/**
+	 * Same as {@link #solveWithSuggestion(DHRobotEntity, Matrix4d, DHKeyframe, DHKeyframe)} on a copy of the robot.
+	 * Any number of threads may solve at once.
+	 * @param suggestion where to start looking.  If null, start from where the robot was when the chain was made.
+	 */
+	@Override
+	public SolutionType solveWithSuggestion(DHChain chain,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		int n = chain.getNumAdjustable();
+		DHChain.Workspace work = chain.createWorkspace();
+		double [] target = new double[16];
+		double [] current = new double[16];
+		double [] q = new double[n];
+		double [] qNew = new double[n];
+		double [] error = new double[6];
+		double [] errorNew = new double[6];
+		double [][] jacobian = new double[n][6];
+		double [][] a = new double[n][n];
+		double [][] l = new double[n][n];
+		double [] g = new double[n];
+		double [] step = new double[n];
+
+		DHChain.setArray(targetMatrix, target, 0);
+		chain.getInitialValues(q);
+		if(suggestion!=null) {
+			System.arraycopy(suggestion.fkValues, 0, q, 0, Math.min(n, suggestion.fkValues.length));
+		}
+		chain.clamp(q);
+
+		chain.getEndEffector(q, current);
+		double cost = getError(current,target,error);
+		double lambda = 1e-3;
+		boolean done = isCloseEnough(error);
+
+		for(int iter=0;iter<MAX_ITERATIONS && !done;++iter) {
+			chain.getJacobian(q, work, jacobian);
+			// a = Jt W J, g = Jt W error
+			for(int i=0;i<n;++i) {
+				for(int j=i;j<n;++j) {
+					double sum=0;
+					for(int r=0;r<6;++r) sum += jacobian[i][r]*jacobian[j][r]*weight(r);
+					a[i][j] = a[j][i] = sum;
+				}
+				double sum=0;
+				for(int r=0;r<6;++r) sum += jacobian[i][r]*error[r]*weight(r);
+				g[i] = sum;
+			}
+
+			boolean better=false;
+			for(int tries=0;tries<MAX_RETRIES && !better;++tries) {
+				if(solveDamped(a,lambda,g,l,step)) {
+					for(int j=0;j<n;++j) {
+						qNew[j] = q[j] + (chain.isRotary(j) ? Math.toDegrees(step[j]) : step[j]);
+					}
+					chain.clamp(qNew);
+					chain.getEndEffector(qNew, current);
+					double costNew = getError(current,target,errorNew);
+					if(costNew<cost) {
+						better=true;
+						cost=costNew;
+						System.arraycopy(qNew, 0, q, 0, n);
+						System.arraycopy(errorNew, 0, error, 0, 6);
+						lambda = Math.max(lambda*0.1, 1e-12);
+						continue;
+					}
+				}
+				lambda *= 10;
+			}
+			// stuck in a corner or a local minimum.
+			if(!better) break;
+			done = isCloseEnough(error);
+		}
+
+		for(int j=0;j<n && j<keyframe.fkValues.length;++j) {
+			keyframe.fkValues[j] = q[j];
+		}
+		return done ? SolutionType.ONE_SOLUTION : SolutionType.NO_SOLUTIONS;
+	}
+
+	private static double weight(int r) {
+		return r<3 ? 1 : ORIENTATION_WEIGHT*ORIENTATION_WEIGHT;
+	}
+
+	private static boolean isCloseEnough(double [] error) {
+		double p = error[0]*error[0] + error[1]*error[1] + error[2]*error[2];
+		double o = error[3]*error[3] + error[4]*error[4] + error[5]*error[5];
+		return p<POSITION_TOLERANCE*POSITION_TOLERANCE && o<ANGLE_TOLERANCE*ANGLE_TOLERANCE;
+	}
+
+	/**
+	 * The move from current to target.  The orientation part is half the sum of the cross products of matching
+	 * axes, which points along the axis of rotation and is sin(angle) long.
+	 * @param current 16 doubles, row major.
+	 * @param target 16 doubles, row major.
+	 * @param error receives the position then orientation error, in world space.
+	 * @return the weighted sum of squares of the error.
+	 */
+	public static double getError(double [] current,double [] target,double [] error) {
+		error[0] = target[ 3]-current[ 3];
+		error[1] = target[ 7]-current[ 7];
+		error[2] = target[11]-current[11];
+		double x=0,y=0,z=0;
+		for(int k=0;k<3;++k) {
+			double cx=current[k], cy=current[4+k], cz=current[8+k];
+			double tx=target [k], ty=target [4+k], tz=target [8+k];
+			x += cy*tz - cz*ty;
+			y += cz*tx - cx*tz;
+			z += cx*ty - cy*tx;
+		}
+		error[3] = x*0.5;
+		error[4] = y*0.5;
+		error[5] = z*0.5;
+
+		double sum=0;
+		for(int r=0;r<6;++r) sum += error[r]*error[r]*weight(r);
+		return sum;
+	}
+
+	/**
+	 * Solve (a + lambda * diag(a)) * step = g with a Cholesky factor in l.
+	 * @return false if the matrix is not positive definite.
+	 */
+	private static boolean solveDamped(double [][] a,double lambda,double [] g,double [][] l,double [] step) {
+		int n = g.length;
+		for(int i=0;i<n;++i) {
+			for(int j=0;j<=i;++j) {
+				double sum = a[i][j];
+				// the small constant keeps a link that does nothing from making the matrix singular.
+				if(i==j) sum += lambda*(a[i][i]+1e-9);
+				for(int k=0;k<j;++k) sum -= l[i][k]*l[j][k];
+				if(i==j) {
+					if(!(sum>0)) return false;
+					l[i][i] = Math.sqrt(sum);
+				} else {
+					l[i][j] = sum/l[j][j];
+				}
+			}
+		}
+		for(int i=0;i<n;++i) {
+			double sum = g[i];
+			for(int k=0;k<i;++k) sum -= l[i][k]*step[k];
+			step[i] = sum/l[i][i];
+		}
+		for(int i=n-1;i>=0;--i) {
+			double sum = step[i];
+			for(int k=i+1;k<n;++k) sum -= l[k][i]*step[k];
+			step[i] = sum/l[i][i];
+		}
+		return true;
+	}
+}
@@ -1,30 +1,43 @@
 package com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers;
 
+import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
-import javax.vecmath.Point3d;
 import javax.vecmath.SingularMatrixException;
-import javax.vecmath.Vector3d;
 
 import com.marginallyclever.convenience.MathHelper;
-import com.marginallyclever.convenience.StringHelper;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
-import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
-import com.marginallyclever.robotOverlord.log.Log;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
 
 /**
  * Solves Inverse Kinematics for a RTTRTR robot.  It is assumed the first three joints position the end effector
  * and the last three joints orient the end effector.
+ * <p>
+ * The robot has six links that each turn theta.  Link 0 and link 2 have an alpha of +/-90, link 1 has no alpha,
+ * and the last three links meet at one point, the wrist: link 3 has an alpha of +/-90, link 4 the opposite, and
+ * link 4 has no length.  Most poses have eight answers: shoulder front or back, elbow up or down, and wrist flipped
+ * or not.  {@link #solveAll(DHChain, Matrix4d, DHKeyframe, DHIKSolutionSet)} finds every answer within the range
+ * limits, nearest to the suggestion first.  Any pose the robot can't reach exactly is NO_SOLUTIONS, and so is any
+ * robot of another shape, such as one with fixed links or links that turn alpha.  See {@link #isRTTRTR(DHChain)}.
  * @author Dan Royer
  * See https://www.youtube.com/watch?v=V_6diIcQl0U
  * See https://www.youtube.com/watch?v=74tbl9q2_qI
  */
 public class DHIKSolver_RTTRTR extends DHIKSolver {
-	//public double theta0,alpha1,alpha2;
-	// link 3 is a dummy to draw the skeleton correctly.
-	//public double theta4,alpha5,theta6;
-	// link 7 is the final output that we started with.
-	
+	// shoulder x elbow x wrist
+	public static final int MAX_SOLUTIONS = 8;
+	// every answer is checked with forward kinematics.  in the length units of the robot.
+	public static final double VERIFY_TOLERANCE = 1e-3;
+
+	// answers for solveWithSuggestion().  One per thread, so a DHIKBatch can share this solver.
+	private final ThreadLocal<DHIKSolutionSet> scratch = new ThreadLocal<DHIKSolutionSet>() {
+		@Override
+		protected DHIKSolutionSet initialValue() {
+			return createSolutionSet();
+		}
+	};
+
 	/**
 	 * @return the number of double values needed to store a valid solution from this DHIKSolver.
 	 */
@@ -32,321 +45,214 @@ public class DHIKSolver_RTTRTR extends DHIKSolver {
 		return 6;
 	}
 
+	/**
+	 * @return a set big enough for every answer this solver can find.
+	 */
+	public DHIKSolutionSet createSolutionSet() {
+		return new DHIKSolutionSet(MAX_SOLUTIONS,getSolutionSize());
+	}
+
 	@Override
 	public SolutionType solve(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe) {
 		return solveWithSuggestion(robot,targetMatrix,keyframe,null);
 	}
-	
+
 	/**
-	 * Starting from a known local origin and a known local hand position, calculate the angles for the given pose.
-	 * @param robot The DHRobot description. 
+	 * The robot does not move.
+	 * @param robot The DHRobot description.
 	 * @param targetMatrix the pose that robot is attempting to reach in this solution.
 	 * @param keyframe store the computed solution in keyframe.
-	 * @param suggestion a hint about the previous position, to prevent instantaneous flips
+	 * @param suggestion a hint about the previous position, to prevent instantaneous flips.  If null, where the
+	 * robot is now.
 	 */
-	@SuppressWarnings("unused")
 	@Override
 	public SolutionType solveWithSuggestion(DHRobotEntity robot,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
-		DHLink link0 = robot.links.get(0);
-		DHLink link1 = robot.links.get(1);
-		DHLink link2 = robot.links.get(2);
-		DHLink link3 = robot.links.get(3);
-		DHLink link4 = robot.links.get(4);
-		DHLink link5 = robot.links.get(5);
-
-		Matrix4d iRoot = new Matrix4d(robot.getParentMatrix());
-		try {
-			iRoot.invert();
-		} catch(SingularMatrixException e) {
-			return SolutionType.NO_SOLUTIONS;
+		DHChain chain = robot.getDHChain();
+		if(suggestion==null && chain.getNumAdjustable()==getSolutionSize()) {
+			suggestion = new DHKeyframe(chain.getNumAdjustable());
+			for(int j=0;j<chain.getNumAdjustable();++j) {
+				suggestion.fkValues[j] = robot.getLink(chain.getAdjustableLink(j)).getAdjustableValue();
+			}
 		}
-		
-		Matrix4d targetMatrixAdj = new Matrix4d(targetMatrix);
-		
-		if(robot.dhTool!=null) {
-			// There is a transform between the wrist and the tool tip.
-			// use the inverse to calculate the wrist transform.
-			robot.dhTool.refreshPoseMatrix();
+		return solveWithSuggestion(chain,targetMatrix,keyframe,suggestion);
+	}
 
-			// remove R component (x axis)
-			targetMatrixAdj.m03-=targetMatrixAdj.m00 * robot.dhTool.getR();
-			targetMatrixAdj.m13-=targetMatrixAdj.m10 * robot.dhTool.getR();
-			targetMatrixAdj.m23-=targetMatrixAdj.m20 * robot.dhTool.getR();
-			// remove D component (z axis)
-			targetMatrixAdj.m03-=targetMatrixAdj.m02 * robot.dhTool.getD();
-			targetMatrixAdj.m13-=targetMatrixAdj.m12 * robot.dhTool.getD();
-			targetMatrixAdj.m23-=targetMatrixAdj.m22 * robot.dhTool.getD();
+	/**
+	 * @param suggestion a hint about the previous position, to prevent instantaneous flips.
+	 * @return NO_SOLUTIONS, or the number of answers found.  keyframe holds the one nearest the suggestion.
+	 */
+	@Override
+	public SolutionType solveWithSuggestion(DHChain chain,Matrix4d targetMatrix,DHKeyframe keyframe,DHKeyframe suggestion) {
+		DHIKSolutionSet solutions = scratch.get();
+		SolutionType result = solveAll(chain,targetMatrix,suggestion,solutions);
+		if(result!=SolutionType.NO_SOLUTIONS) {
+			keyframe.set(solutions.get(0));
 		}
-		
-		targetMatrixAdj.mul(iRoot);
-		Point3d pEndEffector = new Point3d(
-				targetMatrixAdj.m03,
-				targetMatrixAdj.m13,
-				targetMatrixAdj.m23);		
-		Vector3d n5z = new Vector3d(
-				targetMatrixAdj.m02,
-				targetMatrixAdj.m12,
-				targetMatrixAdj.m22);
-
-		// Work backward to get link5 position
-		Point3d p5 = new Point3d(n5z);
-		p5.scaleAdd(-link5.getD(),pEndEffector);
+		return result;
+	}
 
-		// Work forward to get p1 position
-		Point3d p1 = new Point3d(0,0,link0.getD());
+	@Override
+	public boolean canSolveChain() {
+		return true;
+	}
 
-		if(false) {
-			Matrix4d link4m = new Matrix4d(link4.getPoseWorld());
-			link4m.mul(iRoot,link4m);
-			Vector3d p5confirm = new Vector3d(
-					link4m.m03,
-					link4m.m13,
-					link4m.m23);
-			Log.message(
-					"p6="+pEndEffector+"\t"+
-					"n6z="+n5z+"\t"+
-					"d5="+link5.getD()+"\t"+
-					"p5="+p5+"\t"+
-					"p5c="+p5confirm+"\t"+
-					"p1="+p1+"\t"
-					);
+	/**
+	 * @return true if the chain is the shape this solver expects.  Link lengths and alphas are checked by the
+	 * forward kinematics of each answer.
+	 */
+	public boolean isRTTRTR(DHChain chain) {
+		if(chain.getNumLinks()!=6 || chain.getNumAdjustable()!=6) return false;
+		for(int i=0;i<6;++i) {
+			if(chain.getFlags(i)!=LinkAdjust.THETA) return false;
 		}
-		
-		// p5 is at the center of the wrist.  As long as the wrist is not directly on the same z axis as the base
-		// I can find the angle around j0 to point at the wrist.
-		// (1) theta0 = atan2(y07/x07);
-		keyframe.fkValues[0] = MathHelper.wrapDegrees(Math.toDegrees(Math.atan2(p5.y,p5.x)),link0.getRangeCenter());
-		if(false) Log.message("theta0="+keyframe.fkValues[0]+"\t");
-		
-		// (2) c=z15
-		double z15 = p5.z-p1.z;
-		if(false) Log.message("c="+z15+"\t");
-		
-		// (3) 
-		double x15 = p5.x-p1.x;
-		double y15 = p5.y-p1.y;
-		double d = Math.sqrt(x15*x15 + y15*y15);
-		if(false) Log.message("d="+d+"\t");
-		
-		// (4) e = The distance from the shoulder to the center of picassobox
-		double e = Math.sqrt(z15*z15 + d*d);
-		if(false) Log.message("e="+e+"\t");
+		return true;
+	}
+
+	/**
+	 * Find every answer for the target pose within the range limits.  The robot does not move.
+	 * @param chain the robot.
+	 * @param targetMatrix the world pose of the end effector.
+	 * @param suggestion the values the robot is moving from.  If null, the values the robot had when the chain was made.
+	 * @param solutions receives the answers, cheapest first.
+	 * @return NO_SOLUTIONS, ONE_SOLUTION, or MANY_SOLUTIONS.
+	 */
+	public SolutionType solveAll(DHChain chain,Matrix4d targetMatrix,DHKeyframe suggestion,DHIKSolutionSet solutions) {
+		solutions.clear();
+		if(!isRTTRTR(chain)) return SolutionType.NO_SOLUTIONS;
+
+		double [] s = new double[6];
+		if(suggestion!=null) System.arraycopy(suggestion.fkValues, 0, s, 0, 6);
+		else chain.getInitialValues(s);
 
-		// (5) phi = acos( (b^2 - a^2 - e^2) / (-2*a*e) ) 
-		double a = link1.getR();
-		double b1 = link2.getR();
-		double b2 = link3.getD();
-		double b = Math.sqrt(b2*b2+b1*b1);
-		if(false) Log.message("b="+b+"\t");
-			
-		
-		if( e > a+b ) {
-			// target matrix impossibly far away
-			if(false) Log.message("NO SOLUTIONS (1)");
+		// remove the tool to get the world pose of link 5, then remove the base.
+		double [] m = new double[chain.getPosesSize()];
+		Matrix4d iBase = new Matrix4d();
+		Matrix4d iTool = new Matrix4d();
+		chain.getBase(m);
+		DHChain.getMatrix(m, 0, iBase);
+		chain.getTool(m);
+		DHChain.getMatrix(m, 0, iTool);
+		try {
+			iBase.invert();
+			iTool.invert();
+		} catch(SingularMatrixException e) {
 			return SolutionType.NO_SOLUTIONS;
 		}
-		
-		double phi = Math.acos( (b*b-a*a-e*e) / (-2.0*a*e) );
-		if(false) Log.message("phi="+Math.toDegrees(phi)+"\t");
-		
-		// (6) rho = atan2(d,c)
-		double rho = Math.atan2(d,z15);
-		if(false) Log.message("rho="+Math.toDegrees(rho)+"\t");
-		
-		// (7) theta1 = phi-rho
-		keyframe.fkValues[1] = MathHelper.wrapDegrees(Math.toDegrees(rho-phi)-90,link1.getRangeCenter());
-		if(false) Log.message("alpha1="+keyframe.fkValues[1]+"\t");
-		
-		// (8) omega = acos( (a^2-b^2-e^2) / (-2be) )
-		double omega = Math.acos( (a*a-b*b-e*e) / (-2.0*b*e) );
-		if(false) Log.message("omega="+Math.toDegrees(omega)+"\t");
-		
-		// (9) phi3 = phi + omega
-		double phi3 = phi+omega;
-		if(false) Log.message("phi3="+Math.toDegrees(phi3)+"\t");
-		
-		// angle of triangle j3-j2-j5 is phi4.
-		// b2^2 = b*b + b1*b1 - 2*b*b1 * cos(phi4)
-		double phi4 = Math.acos( (b2*b2-b1*b1-b*b) / (-2.0*b1*b) );
-		if(false) Log.message("phi4="+Math.toDegrees(phi4)+"\t");
-		
-		// (10) theta2 - phi3-phi4
-		keyframe.fkValues[2] = MathHelper.wrapDegrees(Math.toDegrees(phi3 - phi4),link2.getRangeCenter());
-		if(false) Log.message("alpha2="+keyframe.fkValues[2]+"\t");
-		
-		// FIRST HALF DONE
-		Matrix4d link3m = link3.getPoseWorld();
-		
-		// Now to a partial DHRobot.setRobotPose() up to link4.
-		link0.setTheta(keyframe.fkValues[0]);
-		link1.setTheta(keyframe.fkValues[1]);
-		link2.setTheta(keyframe.fkValues[2]);
-		link3.setTheta(0);
+		Matrix4d hand = new Matrix4d();
+		hand.mul(targetMatrix,iTool);
+		Matrix4d local = new Matrix4d();
+		local.mul(iBase,hand);
+		Matrix3d r06 = new Matrix3d();
+		hand.getRotationScale(r06);
 
-		for( DHLink link : robot.links ) {
-			link.refreshPoseMatrix();
-		}
-		Matrix4d r03 = link4.getPoseWorld();
-		r03.mul(iRoot);
+		// the wrist, where the last three axes meet, is d5 back along z and r5 back along x of link 5.
+		double d5 = chain.getD(5);
+		double r5 = chain.getR(5);
+		double px = local.m03 - local.m02*d5 - local.m00*r5;
+		double py = local.m13 - local.m12*d5 - local.m10*r5;
+		double pz = local.m23 - local.m22*d5 - local.m20*r5;
 
-		if(false) {
-			link3m.mul(iRoot,link3m);
-			Vector3d p3original = new Vector3d();
-			link3m.get(p3original);
-			
-			Vector3d p3cloned = new Vector3d();
-			link3.getPoseWorld().get(p3cloned);
-			p3cloned.sub(p3original);
-			Log.message("p3d="+p3cloned);
-		}
-		
-		// endMatrix is now at j3, but the rotation is unknown.
-		Point3d p3 = new Point3d(r03.m03,r03.m13,r03.m23);
-		
-		// test to see if we are near the singularity (when hand nearly straight aka maximum reach)
-		double h = p3.distance(pEndEffector);
-		double f = link3.getD()+link3.getR();
-		double g = link5.getD()+link5.getR();
-		double maximumReach = f+g;
+		// the elbow triangle.  a is the upper arm, b is from the elbow to the wrist.
+		double a = chain.getR(1);
+		double b1 = chain.getR(2);
+		double b2 = -Math.sin(Math.toRadians(chain.getAlpha(2)))*chain.getD(3);
+		double b = Math.sqrt(b1*b1+b2*b2);
+		double gamma = Math.atan2(b2,b1);
 
-		if(false) Log.message("p7="+pEndEffector+"\t");
-		if(false) Log.message("p5="+p5+"\t");
-		if(false) Log.message("p3="+p3+"\t");
-		if(false) Log.message("f="+f+"\t");
-		if(false) Log.message("g="+g+"\t");
-		if(false) Log.message("h="+h+"\t");
+		double sinAlpha0 = Math.sin(Math.toRadians(chain.getAlpha(0)));
+		double cosAlpha0 = Math.cos(Math.toRadians(chain.getAlpha(0)));
+		double r0 = chain.getR(0);
+		double d0 = chain.getD(0);
 
-		if( h-maximumReach > EPSILON ) {
-			// out of reach
-			if(false) Log.message("NO SOLUTIONS (2)");
-			keyframe.fkValues[3]=
-			keyframe.fkValues[4]=
-			keyframe.fkValues[5]=0;
-			return SolutionType.NO_SOLUTIONS;
-		}
-		
-		// We have found matrix r03 and we started with r06 (targetPoseAdj).
-		// We can get r36 = r03inv * r06 
-		r03.setTranslation(new Vector3d(0,0,0));
+		// link 3 and link 4 together turn about -y by theta4 (or +y if alpha3 is negative).
+		double wristSign = -Math.signum(Math.sin(Math.toRadians(chain.getAlpha(3))));
+		Matrix3d iRx5 = new Matrix3d();
+		iRx5.rotX(-Math.toRadians(chain.getAlpha(5)));
 
-		Matrix4d r06 = new Matrix4d(targetMatrixAdj);
-		r06.setTranslation(new Vector3d(0,0,0));
+		DHChain.Workspace work = chain.createWorkspace();
+		Matrix4d found = new Matrix4d();
+		Matrix3d r02 = new Matrix3d();
+		Matrix3d r35 = new Matrix3d();
+		Matrix3d n = new Matrix3d();
+		double [] q = new double[6];
 
-		// r04 is a rotation matrix.  The inverse of a rotation matrix is its transpose.
-		Matrix4d r03inv = new Matrix4d(r03);
-		// transpose is the same as inverse in a matrix with no translation.
-		r03inv.transpose();
+		// (1) the shoulder points at the wrist, or away from it.
+		double theta0 = (px*px+py*py < EPSILON*EPSILON) ? Math.toRadians(s[0]) : Math.atan2(py,px);
+		for(int shoulder=0;shoulder<2;++shoulder) {
+			double t0 = theta0 + shoulder*Math.PI;
+			double c0 = Math.cos(t0);
+			double s0 = Math.sin(t0);
+			// the wrist in the plane of the arm, relative to link 1.
+			double ex = px - r0*c0;
+			double ey = py - r0*s0;
+			double ez = pz - d0;
+			double u = ex*c0 + ey*s0;
+			double v = -ex*s0*cosAlpha0 + ey*c0*cosAlpha0 + ez*sinAlpha0;
 
-		
-		Matrix4d r36 = new Matrix4d();
-		r36.mul(r03inv,r06);
-		// sometimes the r46.r22 value was ever so slightly out of range [-1...1]
+			// (2) law of cosines for the elbow.
+			double cosE = (u*u + v*v - a*a - b*b) / (2.0*a*b);
+			if(Math.abs(cosE)>1+EPSILON) continue;
+			cosE = Math.max(-1,Math.min(1,cosE));
+			for(int elbow=0;elbow<2;++elbow) {
+				double e = (elbow==0 ? 1 : -1) * Math.acos(cosE);
+				double t1 = Math.atan2(v,u) - Math.atan2(b*Math.sin(e), a+b*Math.cos(e));
+				double t2 = e - gamma;
 
-		if(false) Log.message("r36.m22="+r36.m22);
-		
-		// with r36 we can find theta4
-		double t4 = Math.acos(r36.m22);
-		
-		if(false) {
-			Log.message(
-					"r36.m22="+r36.m22+"\t"+
-					"t4="+t4+"\t");
-		}
-		
-		// if (theta4 % 180) == 0 then we have the singularity.
-		double t4copy = MathHelper.wrapRadians(t4);
-		if(Math.abs(t4copy)<EPSILON) {
-			// singularity!
-			double t5 = Math.acos(r36.m00);
-			keyframe.fkValues[4] = 0;
-			keyframe.fkValues[5] = MathHelper.wrapDegrees(Math.toDegrees(t5),link5.getRangeCenter());
-			if(false) Log.message(
-					"j0="+StringHelper.formatDouble(keyframe.fkValues[0])+"\t"+
-					"j1="+StringHelper.formatDouble(keyframe.fkValues[1])+"\t"+
-					"j2="+StringHelper.formatDouble(keyframe.fkValues[2])+"\t"+
-					"j3="+StringHelper.formatDouble(keyframe.fkValues[3])+"\t"+
-					"j4="+StringHelper.formatDouble(keyframe.fkValues[4])+"\t"+
-					"j5="+StringHelper.formatDouble(keyframe.fkValues[5])+"\t");
-			if(suggestion!=null) {
-				if(true) Log.message("ONE OF MANY SOLUTIONS");
-				keyframe.fkValues[3] = MathHelper.wrapDegrees(suggestion.fkValues[3],link3.getRangeCenter());
-				return SolutionType.ONE_SOLUTION;
-			} else {
-				if(true) Log.message("MANY SOLUTIONS");
-				keyframe.fkValues[3] = 0;
-				return SolutionType.MANY_SOLUTIONS;
+				q[0] = Math.toDegrees(t0);
+				q[1] = Math.toDegrees(t1);
+				q[2] = Math.toDegrees(t2);
+				q[3] = q[4] = q[5] = 0;
+				chain.getPoses(q, m);
+				r02.m00=m[32];	r02.m01=m[33];	r02.m02=m[34];
+				r02.m10=m[36];	r02.m11=m[37];	r02.m12=m[38];
+				r02.m20=m[40];	r02.m21=m[41];	r02.m22=m[42];
+
+				// (3) r35 = r02t * r06 * RotX(-alpha5) = RotZ(t3) * RotY(beta) * RotZ(t5)
+				r35.mulTransposeLeft(r02, r06);
+				r35.mul(iRx5);
+				double cosBeta = Math.max(-1,Math.min(1,r35.m22));
+				double sinBeta = Math.sqrt(1.0-cosBeta*cosBeta);
+				if(sinBeta<EPSILON) {
+					// singularity.  Only t3+t5 is known, so keep t3 where it was.
+					double t3 = Math.toRadians(s[3]);
+					double beta = cosBeta>0 ? 0 : Math.PI;
+					n.rotZ(-t3);
+					n.mul(r35);
+					r35.rotY(-beta);
+					r35.mul(n);
+					double t5 = Math.atan2(r35.m10,r35.m00);
+					addSolution(chain,targetMatrix,q,t3,wristSign*beta,t5,s,work,found,solutions);
+				} else {
+					// (4) the wrist flipped or not.
+					for(int flip=1;flip>-2;flip-=2) {
+						double t3 = Math.atan2(flip*r35.m12, flip*r35.m02);
+						double beta = Math.atan2(flip*sinBeta, cosBeta);
+						double t5 = Math.atan2(flip*r35.m21,-flip*r35.m20);
+						addSolution(chain,targetMatrix,q,t3,wristSign*beta,t5,s,work,found,solutions);
+					}
+				}
 			}
 		}
 
-		// no singularity, so we can continue to solve for theta4 and theta6.
-		
-		// https://www.eecs.yorku.ca/course_archive/2017-18/W/4421/lectures/Inverse%20kinematics%20-%20annotated.pdf
-		double s4 = Math.sin(t4);
-		if(Math.abs(s4)<1e-6) {
-			// Only the sum of t4+t6 can be found, not the individual angles.
-			// this is the same as if(Math.abs(a5copy)<EPSILON) above, so this should
-			// be unreachable.
-			if(true) Log.message("NO SOLUTIONS (3)");
-			keyframe.fkValues[3]=
-			keyframe.fkValues[4]=
-			keyframe.fkValues[5]=0;
-			return SolutionType.NO_SOLUTIONS;
-		}
-		
-		double r22=r36.m22;
-		double t3,t5;
-		double t4Pos = Math.atan2( Math.sqrt(1.0-r22*r22),r22);
-		double t4Neg = Math.atan2(-Math.sqrt(1.0-r22*r22),r22);
-		
-		if(s4>0) {
-			t3 = Math.atan2(r36.m12, r36.m02);
-			t4 = t4Pos;
-			t5 = Math.atan2(r36.m21,-r36.m20);
-		} else {
-			//if(true) Log.message("B");
-			t3 = Math.atan2(-r36.m12,-r36.m02);
-			t4 = t4Neg;
-			t5 = Math.atan2(-r36.m21, r36.m20);
-		}
-		
-		if(false) Log.message("5="+t4+"\tpos="+t4);
+		return solutions.getSolutionType();
+	}
 
-		keyframe.fkValues[3] = MathHelper.wrapDegrees(Math.toDegrees(t3),link3.getRangeCenter());
-		keyframe.fkValues[4] = MathHelper.wrapDegrees(Math.toDegrees(t4),link4.getRangeCenter());
-		//keyframe.fkValues[5] = MathHelper.capRotationDegrees(Math.toDegrees(t5),link5.getRangeCenter());
+	/**
+	 * Wrap the angles into the range of each link, then keep the answer if it is within the limits and reaches
+	 * the target.
+	 */
+	private void addSolution(DHChain chain,Matrix4d targetMatrix,double [] q,double t3,double t4,double t5,double [] suggestion,DHChain.Workspace work,Matrix4d found,DHIKSolutionSet solutions) {
+		q[3] = Math.toDegrees(t3);
+		q[4] = Math.toDegrees(t4);
+		q[5] = Math.toDegrees(t5);
+		for(int j=0;j<6;++j) {
+			q[j] = MathHelper.wrapDegrees(q[j],(chain.getRangeMin(j)+chain.getRangeMax(j))/2);
+		}
+		if(!chain.isWithinLimits(q)) return;
 
-		/*if(suggestion!=null) {
-			if(Math.abs(suggestion.fkValues[3]-keyframe.fkValues[3])>20) {
-				// probably a flip in the joint
-				Log.message(
-						suggestion.fkValues[3]+"/"+keyframe.fkValues[3]+"\t"+
-						suggestion.fkValues[4]+"/"+keyframe.fkValues[4]+"\t"+
-						suggestion.fkValues[5]+"/"+keyframe.fkValues[5]
-						);
-				t4-=Math.PI;
-				a5=-a5;
-				t6+=Math.PI;
-				keyframe.fkValues[3] = MathHelper.capRotationDegrees(Math.toDegrees(t4)-90,0);
-				keyframe.fkValues[4] = MathHelper.capRotationDegrees(-Math.toDegrees(a5),0);
-				keyframe.fkValues[5] = MathHelper.capRotationDegrees(Math.toDegrees(t6)+90,0);
-			}
-		}*/
-		if(false) Log.message("r36.m20="+StringHelper.formatDouble(r36.m20)+"\t"
-									+"t5="+StringHelper.formatDouble(t5)+"\t"
-									+"theta5="+StringHelper.formatDouble(keyframe.fkValues[5])+"\t"
-									+"Math.sin(t4)="+StringHelper.formatDouble(Math.sin(t4))+"\t"
-									+"r36.m12="+StringHelper.formatDouble(r36.m12)+"\t"
-									+"t3="+StringHelper.formatDouble(t3)+"\t"
-									+"theta3="+StringHelper.formatDouble(keyframe.fkValues[3])+"\t");
+		chain.getEndEffector(q, work, found);
+		if(!found.epsilonEquals(targetMatrix, VERIFY_TOLERANCE)) return;
 
-		if(false) Log.message("result={"
-					+StringHelper.formatDouble(keyframe.fkValues[0])+","
-					+StringHelper.formatDouble(keyframe.fkValues[1])+","
-					+StringHelper.formatDouble(keyframe.fkValues[2])+","
-					+StringHelper.formatDouble(keyframe.fkValues[3])+","
-					+StringHelper.formatDouble(keyframe.fkValues[4])+","
-					+StringHelper.formatDouble(keyframe.fkValues[5])+"}\t");
-		
-		return SolutionType.ONE_SOLUTION;
+		solutions.add(q, suggestion);
 	}
 }
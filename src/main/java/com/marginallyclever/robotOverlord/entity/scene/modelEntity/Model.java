@@ -1,8 +1,10 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
@@ -12,6 +14,10 @@ import javax.vecmath.Vector3d;
 
 import com.jogamp.opengl.GL2;
 import com.marginallyclever.convenience.Cuboid;
+import com.marginallyclever.convenience.FloatArrayList;
+import com.marginallyclever.convenience.IntArrayList;
+import com.marginallyclever.convenience.MatrixHelper;
+import com.marginallyclever.robotOverlord.log.Log;
 
 /**
  * contains the vertex, normal, and texture data for a 3D model.
@@ -19,17 +25,29 @@ import com.marginallyclever.convenience.Cuboid;
  *
  */
 public class Model {
-	public final static int NUM_BUFFERS=4;  // verts, normals, colors, textureCoordinates
+	public final static int NUM_BUFFERS=2;  // interleaved vertexes, normals, colors, and textureCoordinates; indexes
+	private final static int VERTEX_BUFFER=0;
+	private final static int INDEX_BUFFER=1;
+	// vertexes interleaved per pass of updateBuffers().
+	private final static int CHUNK_SIZE=4096;
+	// upload staging buffers up to this size are kept for the next upload.
+	private final static int SCRATCH_LIMIT=1<<22;
+	// staging memory for uploads.  Only touched from the GL thread.
+	private static ByteBuffer scratch;
 	
 	protected String sourceName;
 	protected transient ModelLoadAndSave loader;
 	protected transient boolean isLoaded;
 	protected transient boolean unloadASAP;
+	// set by other threads to have the GL thread call releaseCPUData() at the next upload().
+	protected transient volatile boolean releaseCPUDataASAP;
 	
-	public transient ArrayList<Float> vertexArray = new ArrayList<Float>();
-	public transient ArrayList<Float> normalArray = new ArrayList<Float>();
-	public transient ArrayList<Float> colorArray = new ArrayList<Float>();
-	public transient ArrayList<Float> texCoordArray = new ArrayList<Float>();
+	public transient FloatArrayList vertexArray = new FloatArrayList();
+	public transient FloatArrayList normalArray = new FloatArrayList();
+	public transient FloatArrayList colorArray = new FloatArrayList();
+	public transient FloatArrayList texCoordArray = new FloatArrayList();
+	// if hasIndexes, every three entries are the vertexes of one triangle.  See ModelWelder.
+	public transient IntArrayList indexArray = new IntArrayList();
 	public int renderStyle; 
 	
 	protected transient int VBO[];
@@ -37,12 +55,49 @@ public class Model {
 	public transient boolean hasNormals;
 	public transient boolean hasColors;
 	public transient boolean hasUVs;
+	public transient boolean hasIndexes;
+	// how far apart vertexes could be and still be welded.  Used to weld again after a reload.
+	protected transient float weldEpsilon;
 	
 	public transient boolean isDirty;
-	// correction matrix
+	
+	// number of vertexes in the GPU buffers, and the size of each in floats.
+	protected transient int vertexCount;
+	protected transient int vertexStride;
+	// number of indexes in the GPU buffers, and their type.
+	protected transient int indexCount;
+	protected transient int indexType;
+	// bytes of GPU memory used by the buffers.
+	protected transient long gpuMemoryUsed;
+	// if true, drop the CPU-side arrays once the GPU has a copy.  See ModelPool.
+	protected transient boolean releaseCPUDataAfterUpload;
+	protected transient boolean cpuDataReleased;
+	// if true, the arrays may be released even with no source to reload them from.  See ModelDecimator.
+	protected transient boolean cpuDataDisposable;
+	// true while waiting in the ModelLoaderService upload queue.
+	protected transient volatile boolean uploadQueued;
+	// true while a ModelLoaderService worker is restoring the CPU-side arrays.
+	protected transient volatile boolean restoreQueued;
+	// correction matrix.  Applied when drawing, never to the vertexes themselves.
 	protected Matrix4d adjust = new Matrix4d();
+	// adjust in OpenGL's column-major order, and what kind of transform it is.
+	protected transient double [] adjustGL = new double[16];
+	protected transient boolean adjustIsIdentity;
+	protected transient boolean adjustHasScale;
 	// bounding limits
 	protected Cuboid cuboid = new Cuboid();
+	// bounding limits before adjust is applied.  The cuboid is these corners after adjust.
+	protected transient Point3d rawBoundTop = new Point3d();
+	protected transient Point3d rawBoundBottom = new Point3d();
+	protected transient boolean rawBoundsValid;
+	// changes every time the cuboid is recalculated.  See ModelEntity.
+	protected transient volatile int boundsVersion;
+	// simpler copies for drawing far away, most detailed first.  See ModelDecimator.
+	protected transient volatile Model [] levelsOfDetail = new Model[0];
+	// true once someone has asked for levelsOfDetail to be made.
+	protected transient volatile boolean levelsOfDetailRequested;
+	// triangle search tree, made on first use.  See ModelBVH.
+	protected transient volatile ModelBVH bvh;
 
 	public Model() {
 		super();
@@ -51,13 +106,28 @@ public class Model {
 		loader=null;
 		isLoaded=false;
 		unloadASAP=false;
+		releaseCPUDataASAP=false;
 		VBO = null;
 		hasNormals=false;
 		hasColors=false;
 		hasUVs=false;
+		hasIndexes=false;
+		weldEpsilon=0;
 		renderStyle = GL2.GL_TRIANGLES;
 		isDirty=false;
+		vertexCount=0;
+		vertexStride=3;
+		indexCount=0;
+		indexType=GL2.GL_UNSIGNED_INT;
+		gpuMemoryUsed=0;
+		releaseCPUDataAfterUpload=false;
+		cpuDataReleased=false;
+		cpuDataDisposable=false;
+		uploadQueued=false;
+		restoreQueued=false;
+		rawBoundsValid=false;
 		adjust.setIdentity();
+		adjustChanged();
 	}
 	
 	/**
@@ -68,6 +138,11 @@ public class Model {
 		normalArray.clear();
 		colorArray.clear();
 		texCoordArray.clear();
+		indexArray.clear();
+		hasIndexes=false;
+		cpuDataReleased=false;
+		rawBoundsValid=false;
+		bvh=null;
 		isDirty=true;
 	}
 
@@ -94,6 +169,101 @@ public class Model {
 		gl2.glDeleteBuffers(NUM_BUFFERS, VBO,0);
 		VBO=null;
 		isLoaded=false;
+		gpuMemoryUsed=0;
+		boolean lost=false;
+		for(Model lod : levelsOfDetail) {
+			lod.unload(gl2);
+			if(lod.isCPUDataReleased()) lost=true;
+		}
+		if(lost) {
+			// nothing left to upload them from.  make them again if they are wanted.
+			synchronized(this) {
+				levelsOfDetail = new Model[0];
+				levelsOfDetailRequested=false;
+			}
+		}
+	}
+	
+	/**
+	 * Free the CPU-side vertex, normal, color, and texture arrays.  They will be reloaded from the source
+	 * if they are needed again.  Does nothing if there is no source to reload from, unless the model is disposable.
+	 */
+	public synchronized void releaseCPUData() {
+		if(cpuDataReleased) return;
+		if(!cpuDataDisposable && (loader==null || sourceName==null)) return;
+		if(!rawBoundsValid) updateCuboid();
+		vertexCount = vertexArray.size()/3;
+		indexCount = indexArray.size();
+		vertexArray = new FloatArrayList();
+		normalArray = new FloatArrayList();
+		colorArray = new FloatArrayList();
+		texCoordArray = new FloatArrayList();
+		indexArray = new IntArrayList();
+		cpuDataReleased=true;
+	}
+	
+	/**
+	 * Reload the CPU-side arrays from the source if they were released.  This parses the file, so don't call it
+	 * from the GL thread.  upload() asks {@link ModelLoaderService#requestRestore(Model)} to do it instead.
+	 */
+	public synchronized void restoreCPUData() {
+		if(!cpuDataReleased || loader==null || sourceName==null) return;
+		cpuDataReleased=false;
+		boolean wasIndexed = hasIndexes;
+		hasIndexes=false;
+		try {
+			if(!ModelCache.load(sourceName,this)) {
+				loader.load(sourceName,this);
+				if(wasIndexed) ModelWelder.weld(this,weldEpsilon);
+			}
+		} catch(Exception e) {
+			Log.error("Reloading model '"+sourceName+"' failed: "+e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Release the CPU-side arrays the next time the model is uploaded, on the GL thread.  Use this instead of
+	 * releaseCPUData() from any other thread, so the arrays don't vanish in the middle of an upload.
+	 */
+	public void requestReleaseCPUData() {
+		releaseCPUDataASAP=true;
+	}
+	
+	public boolean isCPUDataReleased() {
+		return cpuDataReleased;
+	}
+	
+	/**
+	 * @return true if the arrays were released and can be reloaded from the source.
+	 */
+	public synchronized boolean canRestoreCPUData() {
+		return cpuDataReleased && loader!=null && sourceName!=null;
+	}
+	
+	/**
+	 * See {@link ModelLoaderService#requestRestore(Model)}.
+	 * @return true if no restore was already waiting.
+	 */
+	public synchronized boolean markRestoreRequested() {
+		if(restoreQueued) return false;
+		restoreQueued=true;
+		return true;
+	}
+	
+	public void setReleaseCPUDataAfterUpload(boolean state) {
+		releaseCPUDataAfterUpload = state;
+	}
+	
+	/**
+	 * @return bytes used by this model in CPU and GPU memory.
+	 */
+	public long getMemoryUsed() {
+		long floats = vertexArray.size()+normalArray.size()+colorArray.size()+texCoordArray.size();
+		long sum = floats*(Float.SIZE/8) + indexArray.size()*(Integer.SIZE/8) + gpuMemoryUsed;
+		for(Model lod : levelsOfDetail) sum += lod.getMemoryUsed();
+		ModelBVH tree = bvh;
+		if(tree!=null) sum += tree.getMemoryUsed();
+		return sum;
 	}
 	
 	private void createBuffers(GL2 gl2) {
@@ -101,110 +271,139 @@ public class Model {
 		gl2.glGenBuffers(NUM_BUFFERS, VBO, 0);
 	}
 	
+	/**
+	 * @return a native order buffer of at least size bytes, cleared.  Small buffers are reused.
+	 */
+	private static ByteBuffer getScratch(int size) {
+		if(size>SCRATCH_LIMIT) {
+			return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		}
+		if(scratch==null || scratch.capacity()<size) {
+			scratch = ByteBuffer.allocateDirect(Math.max(size,1<<16)).order(ByteOrder.nativeOrder());
+		}
+		scratch.clear();
+		return scratch;
+	}
+	
 	/**
 	 * Regenerate the optimized rendering buffers for the fixed function pipeline.
+	 * Vertexes, normals, colors, and texture coordinates are interleaved into one buffer in a single pass.
 	 * Also recalculate the bounding box.
 	 * @param gl2
 	 */
 	private void updateBuffers(GL2 gl2) {
 		int numVertexes = vertexArray.size()/3;
-		Iterator<Float> fi;
-		int j=0;
+		int stride = 3 + (hasNormals?3:0) + (hasColors?4:0) + (hasUVs?2:0);
+		int s=(Float.SIZE/8);  // bits per float / bits per byte = bytes per float
+		int totalBufferSize = numVertexes*stride*s;
 
-		Point3d boundBottom = new Point3d(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE);
-		Point3d boundTop = new Point3d(-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE);
+		float [] v = vertexArray.getArray();
+		float [] n = normalArray.getArray();
+		float [] c = colorArray.getArray();
+		float [] t = texCoordArray.getArray();
+		int nSize = normalArray.size();
+		int cSize = colorArray.size();
+		int tSize = texCoordArray.size();
 
-		FloatBuffer vertices = FloatBuffer.allocate(vertexArray.size());
-		fi = vertexArray.iterator();
-		Point3d p = new Point3d();
-		while(fi.hasNext()) {
-			p.x = fi.next().floatValue();
-			p.y = fi.next().floatValue();
-			p.z = fi.next().floatValue();
-			adjust.transform(p);
-			vertices.put(j++, (float)p.x);
-			vertices.put(j++, (float)p.y);
-			vertices.put(j++, (float)p.z);
-			
-			// also recalculate the bounding limits			
-			if(boundBottom.x>p.x) boundBottom.x=p.x;
-			if(boundBottom.y>p.y) boundBottom.y=p.y;
-			if(boundBottom.z>p.z) boundBottom.z=p.z;
-			if(boundTop.x<p.x) boundTop.x=p.x;
-			if(boundTop.y<p.y) boundTop.y=p.y;
-			if(boundTop.z<p.z) boundTop.z=p.z;
-		}
-		
-		cuboid.setBounds(boundTop, boundBottom);
+		double minX=Double.MAX_VALUE, minY=Double.MAX_VALUE, minZ=Double.MAX_VALUE;
+		double maxX=-Double.MAX_VALUE, maxY=-Double.MAX_VALUE, maxZ=-Double.MAX_VALUE;
 
-		int s=(Float.SIZE/8);  // bits per float / bits per byte = bytes per float
-		int totalBufferSize = numVertexes*3*s;
-		int vboIndex=0;
-		
-		// bind a buffer
-		vertices.rewind();
-		gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex]);
-	    // Write out vertex buffer to the currently bound VBO.
-	    gl2.glBufferData(GL2.GL_ARRAY_BUFFER, totalBufferSize, vertices, GL2.GL_STATIC_DRAW);
-	    vboIndex++;
-	    
-		if(hasNormals) {
-			j=0;
-		    // repeat for normals
-			Matrix3d pose = new Matrix3d();
-			adjust.get(pose);
-			FloatBuffer normals = FloatBuffer.allocate(normalArray.size());
-			fi = normalArray.iterator();
-			while(fi.hasNext()) {
-				p.x = fi.next().floatValue();
-				p.y = fi.next().floatValue();
-				p.z = fi.next().floatValue();
-				pose.transform(p);
-				normals.put(j++, (float)p.x);
-				normals.put(j++, (float)p.y);
-				normals.put(j++, (float)p.z);
+		FloatBuffer vertices = getScratch(totalBufferSize).asFloatBuffer();
+		float [] chunk = new float[Math.min(numVertexes,CHUNK_SIZE)*stride];
+		for(int first=0;first<numVertexes;first+=CHUNK_SIZE) {
+			int last = Math.min(numVertexes,first+CHUNK_SIZE);
+			int k=0;
+			for(int i=first;i<last;++i) {
+				float x=v[i*3+0], y=v[i*3+1], z=v[i*3+2];
+				chunk[k++]=x;
+				chunk[k++]=y;
+				chunk[k++]=z;
+				if(minX>x) minX=x;
+				if(minY>y) minY=y;
+				if(minZ>z) minZ=z;
+				if(maxX<x) maxX=x;
+				if(maxY<y) maxY=y;
+				if(maxZ<z) maxZ=z;
+				// missing attributes are left as zero.
+				if(hasNormals) {
+					int j=i*3;
+					chunk[k++] = j+0<nSize ? n[j+0] : 0;
+					chunk[k++] = j+1<nSize ? n[j+1] : 0;
+					chunk[k++] = j+2<nSize ? n[j+2] : 0;
+				}
+				if(hasColors) {
+					int j=i*4;
+					chunk[k++] = j+0<cSize ? c[j+0] : 0;
+					chunk[k++] = j+1<cSize ? c[j+1] : 0;
+					chunk[k++] = j+2<cSize ? c[j+2] : 0;
+					chunk[k++] = j+3<cSize ? c[j+3] : 0;
+				}
+				if(hasUVs) {
+					int j=i*2;
+					chunk[k++] = j+0<tSize ? t[j+0] : 0;
+					chunk[k++] = j+1<tSize ? t[j+1] : 0;
+				}
 			}
-			
-			normals.rewind();
-			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex]);
-		    gl2.glBufferData(GL2.GL_ARRAY_BUFFER, totalBufferSize, normals, GL2.GL_STATIC_DRAW);
-		    vboIndex++;
+			vertices.put(chunk,0,k);
 		}
+		vertices.rewind();
 
-		if(hasColors) {
-		    // repeat for colors
-			FloatBuffer colors = FloatBuffer.allocate(colorArray.size());
-			fi = colorArray.iterator();
-			while(fi.hasNext()) {
-				colors.put(fi.next().floatValue());
-			}
-			
-			colors.rewind();
-			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex]);
-		    gl2.glBufferData(GL2.GL_ARRAY_BUFFER, totalBufferSize, colors, GL2.GL_STATIC_DRAW);
-		    vboIndex++;
+		if(numVertexes>0) {
+			rawBoundBottom.set(minX,minY,minZ);
+			rawBoundTop.set(maxX,maxY,maxZ);
+			rawBoundsValid=true;
+			updateCuboidFromRawBounds();
 		}
+
+		// Write out vertex buffer to the currently bound VBO.
+		gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[VERTEX_BUFFER]);
+		gl2.glBufferData(GL2.GL_ARRAY_BUFFER, totalBufferSize, vertices, GL2.GL_STATIC_DRAW);
+		gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+
+		vertexCount = numVertexes;
+		vertexStride = stride;
+		gpuMemoryUsed = (long)totalBufferSize;
 		
-		if(hasUVs) {
-		    // repeat for textures
-			FloatBuffer texCoords = FloatBuffer.allocate(texCoordArray.size());
-			fi = texCoordArray.iterator();
-			while(fi.hasNext()) {
-				texCoords.put(fi.next().floatValue());
+		if(hasIndexes) {
+			// the smallest type that can hold every index.
+			indexCount = indexArray.size();
+			int [] idx = indexArray.getArray();
+			gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, VBO[INDEX_BUFFER]);
+			if(numVertexes<=0x10000) {
+				indexType = GL2.GL_UNSIGNED_SHORT;
+				int size = indexCount*(Short.SIZE/8);
+				ShortBuffer indexes = getScratch(size).asShortBuffer();
+				for(int j=0;j<indexCount;++j) indexes.put(j, (short)idx[j]);
+				gl2.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, size, indexes, GL2.GL_STATIC_DRAW);
+				gpuMemoryUsed += size;
+			} else {
+				indexType = GL2.GL_UNSIGNED_INT;
+				int size = indexCount*(Integer.SIZE/8);
+				IntBuffer indexes = getScratch(size).asIntBuffer();
+				indexes.put(idx,0,indexCount);
+				indexes.rewind();
+				gl2.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, size, indexes, GL2.GL_STATIC_DRAW);
+				gpuMemoryUsed += size;
 			}
-			
-		    texCoords.rewind();
-			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex]);
-		    gl2.glBufferData(GL2.GL_ARRAY_BUFFER, numVertexes*2*s, texCoords, GL2.GL_STATIC_DRAW);
-		    vboIndex++;
+			gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
 		}
 	}
 	
-	public void render(GL2 gl2) {
+	/**
+	 * Create the GPU buffers if needed and copy in any changes.  Must be called from the GL thread.
+	 * If the CPU-side arrays were released they are reloaded on a worker thread, and nothing is uploaded until
+	 * they are back.
+	 * @param gl2 the render context
+	 */
+	public void upload(GL2 gl2) {
 		if(unloadASAP) {
 			unloadASAP=false;
 			unload(gl2);
 		}
+		if((!isLoaded || isDirty) && canRestoreCPUData()) {
+			ModelLoaderService.requestRestore(this);
+			return;
+		}
 		if(!isLoaded) {
 			createBuffers(gl2);
 			isDirty=true;
@@ -213,40 +412,102 @@ public class Model {
 		if(isDirty) {
 			updateBuffers(gl2);
 			isDirty=false;
+			if(releaseCPUDataAfterUpload) releaseCPUData();
+		}
+		if(releaseCPUDataASAP) {
+			releaseCPUDataASAP=false;
+			releaseCPUData();
 		}
+	}
+	
+	public void render(GL2 gl2) {
+		render(gl2,0);
+	}
+	
+	/**
+	 * Draw the model.
+	 * @param gl2 the render context
+	 * @param level 0 for full detail, or a simpler copy from {@link #getNumLevelsOfDetail()}.
+	 * Levels that don't exist draw the nearest one that does.
+	 */
+	public void render(GL2 gl2,int level) {
+		upload(gl2);
 		if(VBO==null) return;
 		
-		int vboIndex=0;
+		Model source = this;
+		Model [] lods = levelsOfDetail;
+		if(level>0 && lods.length>0) {
+			int i = Math.min(level,lods.length);
+			Model lod = lods[i-1];
+			// simpler copies wait their turn in the upload budget like any other model.
+			if(!lod.isLoaded || lod.isDirty) ModelLoaderService.requestUpload(lod);
+			// until then draw the nearest level that is on the GPU.
+			for(;i>0;--i) {
+				if(lods[i-1].VBO!=null) {
+					source = lods[i-1];
+					break;
+				}
+			}
+		}
+		
+		boolean wasNormalized=true;
+		if(!adjustIsIdentity) {
+			gl2.glPushMatrix();
+			gl2.glMultMatrixd(adjustGL, 0);
+			if(adjustHasScale && hasNormals) {
+				// scale would change the length of the normals.
+				wasNormalized = gl2.glIsEnabled(GL2.GL_NORMALIZE);
+				if(!wasNormalized) gl2.glEnable(GL2.GL_NORMALIZE);
+			}
+		}
+		
+		source.drawBuffers(gl2);
+		
+		if(!adjustIsIdentity) {
+			if(!wasNormalized) gl2.glDisable(GL2.GL_NORMALIZE);
+			gl2.glPopMatrix();
+		}
+	}
+	
+	private void drawBuffers(GL2 gl2) {
+		int s=(Float.SIZE/8);
+		int stride=vertexStride*s;
+		int offset=0;
 		gl2.glEnableClientState(GL2.GL_VERTEX_ARRAY);
-		// Bind the vertex buffer to work with
-		gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex++]);
-		gl2.glVertexPointer(3, GL2.GL_FLOAT, 0, 0);
-	    
+		// Bind the interleaved buffer to work with
+		gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[VERTEX_BUFFER]);
+		gl2.glVertexPointer(3, GL2.GL_FLOAT, stride, offset);
+		offset+=3*s;
+		
 		if(hasNormals) {
 			gl2.glEnableClientState(GL2.GL_NORMAL_ARRAY);
-			// Bind the normal buffer to work with
-			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex++]);
-			gl2.glNormalPointer(GL2.GL_FLOAT, 0, 0);
+			gl2.glNormalPointer(GL2.GL_FLOAT, stride, offset);
+			offset+=3*s;
 		}
 		if(hasColors) {
 			gl2.glEnableClientState(GL2.GL_COLOR_ARRAY);
-			// Bind the color buffer to work with
-			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex++]);
-			gl2.glColorPointer(4,GL2.GL_FLOAT, 0, 0);
+			gl2.glColorPointer(4,GL2.GL_FLOAT, stride, offset);
+			offset+=4*s;
 		}
 		if(hasUVs) {
 			gl2.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
-			// Bind the texture buffer to work with
-			gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, VBO[vboIndex++]);
-			gl2.glTexCoordPointer(2, GL2.GL_FLOAT, 0, 0);
+			gl2.glTexCoordPointer(2, GL2.GL_FLOAT, stride, offset);
+			offset+=2*s;
 		}
 		
-		int count=vertexArray.size()/3;
-		if(renderStyle==GL2.GL_POINTS) {
-			count*=3;
+		if(hasIndexes) {
+			gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, VBO[INDEX_BUFFER]);
+			gl2.glDrawElements(renderStyle, indexCount, indexType, 0);
+			gl2.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+		} else {
+			int count=vertexCount;
+			if(renderStyle==GL2.GL_POINTS) {
+				count*=3;
+			}
+			gl2.glDrawArrays(renderStyle, 0, count);
 		}
-		gl2.glDrawArrays(renderStyle, 0, count);
 		//gl2.glDrawArrays(GL2.GL_LINE_LOOP, 0, count);
+		gl2.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
 		
 		gl2.glDisableClientState(GL2.GL_VERTEX_ARRAY);
 		gl2.glDisableClientState(GL2.GL_NORMAL_ARRAY);
@@ -261,7 +522,7 @@ public class Model {
 	 */
 	public void adjustOrigin(Vector3d arg0) {
 		adjust.setTranslation(arg0);
-		isDirty=true;
+		adjustChanged();
 	}
 	
 	/**
@@ -281,7 +542,7 @@ public class Model {
 		pose.mul(rotY);
 		pose.mul(rotZ);
 		adjust.set(pose);
-		isDirty=true;
+		adjustChanged();
 	}
 	
 	/**
@@ -290,37 +551,45 @@ public class Model {
 	 */
 	public void adjustScale(double arg0) {
 		adjust.setScale(arg0);
-		isDirty=true;
+		adjustChanged();
 	}
 	
 	public void adjustMatrix(Matrix4d m) {
 		adjust.set(m);
-		isDirty=true;
+		adjustChanged();
+	}
+	
+	/**
+	 * The vertexes on the GPU are not touched.  Only the draw-time matrix and the bounds change.
+	 */
+	private void adjustChanged() {
+		MatrixHelper.getGLMatrix(adjust, adjustGL);
+		Matrix4d identity = new Matrix4d();
+		identity.setIdentity();
+		adjustIsIdentity = adjust.epsilonEquals(identity, 1e-9);
+		adjustHasScale = Math.abs(adjust.getScale()-1)>1e-6;
+		if(rawBoundsValid) updateCuboidFromRawBounds();
+	}
+	
+	public Matrix4d getAdjustMatrix() {
+		return new Matrix4d(adjust);
 	}
 	
 	public void addNormal(float x,float y,float z) {
-		normalArray.add(x);
-		normalArray.add(y);
-		normalArray.add(z);
+		normalArray.add(x,y,z);
 		hasNormals=true;
 	}
 	
 	public void addVertex(float x,float y,float z) {
-		vertexArray.add(x);
-		vertexArray.add(y);
-		vertexArray.add(z);
+		vertexArray.add(x,y,z);
 	}
 	
 	public void addColor(float r,float g,float b,float a) {
-		colorArray.add(r);
-		colorArray.add(g);
-		colorArray.add(b);
-		colorArray.add(a);
+		colorArray.add(r,g,b,a);
 	}
 	
 	public void addTexCoord(float x,float y) {
-		texCoordArray.add(x);
-		texCoordArray.add(y);
+		texCoordArray.add(x,y);
 		hasUVs=true;
 	}
 	
@@ -328,41 +597,139 @@ public class Model {
 	 * Force recalculation of the the minimum bounding box to contain this STL file.
 	 * Done automatically every time updateBuffers() is called.
 	 * Meaningless if there is no vertexArray of points.
+	 * The box is the bounds of the untransformed vertexes with adjust applied to its corners.
 	 */
 	public void updateCuboid() {
+		if(cpuDataReleased) {
+			// no vertexes to look at.  transform the corners of the box that held them.
+			updateCuboidFromRawBounds();
+			return;
+		}
+		
+		rawBoundBottom.set(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE);
+		rawBoundTop.set(-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE);
+		
+		Point3d p = new Point3d();
+		float [] v = vertexArray.getArray();
+		int size = vertexArray.size();
+		for(int j=0;j+2<size;j+=3) {
+			p.x = v[j+0];
+			p.y = v[j+1];
+			p.z = v[j+2];
+			growBounds(rawBoundBottom,rawBoundTop,p);
+		}
+		rawBoundsValid = size>=3;
+		updateCuboidFromRawBounds();
+	}
+	
+	/**
+	 * Set the bounds of the vertexes before adjustment, when they are already known.  See {@link ModelCache}.
+	 * @param top the largest x, y, and z of any vertex.
+	 * @param bottom the smallest x, y, and z of any vertex.
+	 */
+	public void setRawBounds(Point3d top,Point3d bottom) {
+		rawBoundTop.set(top);
+		rawBoundBottom.set(bottom);
+		rawBoundsValid=true;
+		updateCuboidFromRawBounds();
+	}
+	
+	private void updateCuboidFromRawBounds() {
 		Point3d boundBottom = new Point3d(Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE);
 		Point3d boundTop = new Point3d(-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE);
-		
-		// transform and calculate
-		Iterator<Float> fi = vertexArray.iterator();
 		Point3d p = new Point3d();
-		while(fi.hasNext()) {
-			p.x = fi.next().floatValue();
-			p.y = fi.next().floatValue();
-			p.z = fi.next().floatValue();
+		for(int i=0;i<8;++i) {
+			p.x = ((i&1)==0) ? rawBoundBottom.x : rawBoundTop.x;
+			p.y = ((i&2)==0) ? rawBoundBottom.y : rawBoundTop.y;
+			p.z = ((i&4)==0) ? rawBoundBottom.z : rawBoundTop.z;
 			adjust.transform(p);
-			
-			if(boundBottom.x>p.x) boundBottom.x=p.x;
-			if(boundBottom.y>p.y) boundBottom.y=p.y;
-			if(boundBottom.z>p.z) boundBottom.z=p.z;
-			if(boundTop.x<p.x) boundTop.x=p.x;
-			if(boundTop.y<p.y) boundTop.y=p.y;
-			if(boundTop.z<p.z) boundTop.z=p.z;
+			growBounds(boundBottom,boundTop,p);
 		}
 		cuboid.setBounds(boundTop, boundBottom);
+		boundsVersion++;
+	}
+	
+	private void growBounds(Point3d boundBottom,Point3d boundTop,Point3d p) {
+		if(boundBottom.x>p.x) boundBottom.x=p.x;
+		if(boundBottom.y>p.y) boundBottom.y=p.y;
+		if(boundBottom.z>p.z) boundBottom.z=p.z;
+		if(boundTop.x<p.x) boundTop.x=p.x;
+		if(boundTop.y<p.y) boundTop.y=p.y;
+		if(boundTop.z<p.z) boundTop.z=p.z;
 	}
 
 	public Cuboid getCuboid() {
-		if(isDirty) {
+		if(!rawBoundsValid) {
 			updateCuboid();
 		}
 		return cuboid;
 	}
 	
+	/**
+	 * @return a number that changes every time the cuboid changes.
+	 */
+	public int getBoundsVersion() {
+		return boundsVersion;
+	}
+	
 	public int getNumTriangles() {
-		return vertexArray.size()/3;
+		// same count whether or not the model has been welded.
+		if(hasIndexes) return cpuDataReleased ? indexCount : indexArray.size();
+		return cpuDataReleased ? vertexCount : vertexArray.size()/3;
+	}
+
+	public float getWeldEpsilon() {
+		return weldEpsilon;
+	}
+	
+	public void setWeldEpsilon(float epsilon) {
+		weldEpsilon = epsilon;
 	}
 
+	/**
+	 * @return 1 for full detail only, plus one for each simpler copy.
+	 */
+	public int getNumLevelsOfDetail() {
+		return 1+levelsOfDetail.length;
+	}
+	
+	/**
+	 * @param lods simpler copies, most detailed first.  Their buffers are freed along with this model's.
+	 */
+	public void setLevelsOfDetail(Model [] lods) {
+		levelsOfDetail = (lods==null) ? new Model[0] : lods;
+	}
+	
+	/**
+	 * Ask for simpler copies to be made.  See {@link ModelLoaderService#requestLevelsOfDetail(Model)}.
+	 * @return true the first time it is called.
+	 */
+	public synchronized boolean markLevelsOfDetailRequested() {
+		if(levelsOfDetailRequested) return false;
+		levelsOfDetailRequested=true;
+		return true;
+	}
+	
+	/**
+	 * The tree is made the first time it is asked for and kept as long as the model, so every entity that
+	 * shares this model from the {@link ModelPool} shares the tree.  It is in the model's own coordinates,
+	 * before adjust.
+	 * <p>
+	 * The tree is made from the CPU-side arrays.  They are never reloaded to make it, so a model that will
+	 * release its arrays must have its tree made first.  {@link ModelPool} does this when it loads the model.
+	 * @return a search tree of this model's triangles, or null if the arrays were released before it was made.
+	 */
+	public ModelBVH getBVH() {
+		ModelBVH tree = bvh;
+		if(tree!=null) return tree;
+		synchronized(this) {
+			if(bvh==null && !cpuDataReleased) {
+				bvh = ModelBVH.build(this);
+			}
+			return bvh;
+		}
+	}
+	
 	public ModelLoadAndSave getLoader() {
 		return loader;
 	}
@@ -0,0 +1,517 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
+
+import java.util.Arrays;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import com.jogamp.opengl.GL2;
+import com.marginallyclever.convenience.IntArrayList;
+
+/**
+ * Bounding volume hierarchy of the triangles in a {@link Model}, for finding which triangles a ray or a box touches
+ * without testing every one.
+ * <p>
+ * The tree is split with the surface area heuristic and stored in flat arrays.  Nodes are in depth first order,
+ * so the first child of a node is always the next node.  The corners of each triangle are copied in leaf order,
+ * so queries still work after the model has released its CPU-side arrays.
+ * <p>
+ * Everything is in the model's own coordinates, before the adjust matrix.  Read only once built, so any number of
+ * threads may query at the same time.
+ * @author Dan Royer
+ */
+public class ModelBVH {
+	// most triangles in one leaf.
+	private static final int LEAF_SIZE = 4;
+	// buckets when looking for the best split.
+	private static final int NUM_BINS = 12;
+	// cost of visiting a node, compared to testing one triangle.
+	private static final double TRAVERSAL_COST = 1.0;
+	// deepest the tree can be.  Sets the size of the traversal stack.
+	private static final int MAX_DEPTH = 64;
+
+	/**
+	 * The nearest place a ray touches the model.
+	 */
+	public static class RayHit {
+		// distance along the ray, in lengths of the ray direction.
+		public double t = Double.POSITIVE_INFINITY;
+		// triangle number in the model.  Triangle i uses indexes (or vertexes) i*3, i*3+1, and i*3+2.
+		public int triangle = -1;
+		// barycentric coordinates of the hit on the triangle.
+		public double u, v;
+		public Point3d point = new Point3d();
+		// unit normal of the triangle, by its winding.
+		public Vector3d normal = new Vector3d();
+	}
+
+	// 6 per node: bottom xyz, top xyz.
+	private float [] nodeBounds;
+	// 2 per node.  Leaf: first triangle, count.  Branch: index of second child, 0.
+	private int [] nodeData;
+	private int numNodes;
+	// 9 per triangle, in leaf order.
+	private float [] corners;
+	// model triangle number of each triangle, in leaf order.
+	private int [] triangleID;
+	private int numTriangles;
+	private int depth;
+
+	/**
+	 * @param model the model.  Only GL_TRIANGLES models have triangles; anything else makes an empty tree.
+	 * @return a new tree of the model's triangles.
+	 */
+	public static ModelBVH build(Model model) {
+		float [] v;
+		int [] index;
+		int count;
+		synchronized(model) {
+			v = model.vertexArray.getArray();
+			if(model.renderStyle!=GL2.GL_TRIANGLES) {
+				index = null;
+				count = 0;
+			} else if(model.hasIndexes) {
+				index = model.indexArray.getArray();
+				count = model.indexArray.size()/3;
+			} else {
+				index = null;
+				count = model.vertexArray.size()/9;
+			}
+		}
+		ModelBVH tree = new ModelBVH();
+		tree.build(v,index,count);
+		return tree;
+	}
+
+	private ModelBVH() {}
+
+	private void build(float [] v,int [] index,int count) {
+		numTriangles = count;
+		float [] source = new float[count*9];
+		for(int i=0;i<count*3;++i) {
+			int j = (index!=null ? index[i] : i)*3;
+			source[i*3+0] = v[j+0];
+			source[i*3+1] = v[j+1];
+			source[i*3+2] = v[j+2];
+		}
+
+		// the bounds and center of each triangle.
+		float [] box = new float[count*6];
+		float [] center = new float[count*3];
+		int [] order = new int[count];
+		for(int i=0;i<count;++i) {
+			order[i]=i;
+			for(int k=0;k<3;++k) {
+				float a=source[i*9+k], b=source[i*9+3+k], c=source[i*9+6+k];
+				float lo = Math.min(a,Math.min(b,c));
+				float hi = Math.max(a,Math.max(b,c));
+				box[i*6+k]=lo;
+				box[i*6+3+k]=hi;
+				center[i*3+k]=(lo+hi)/2;
+			}
+		}
+
+		// a binary tree with leaves of at least one triangle has fewer than twice as many nodes as triangles.
+		int maxNodes = Math.max(1,count*2);
+		nodeBounds = new float[maxNodes*6];
+		nodeData = new int[maxNodes*2];
+		numNodes = 0;
+		buildNode(order,0,count,box,center,1);
+
+		corners = new float[count*9];
+		triangleID = order;
+		for(int i=0;i<count;++i) {
+			System.arraycopy(source, order[i]*9, corners, i*9, 9);
+		}
+	}
+
+	/**
+	 * Make a node for order[first...first+count) and everything below it.
+	 * @return index of the new node.
+	 */
+	private int buildNode(int [] order,int first,int count,float [] box,float [] center,int level) {
+		int node = numNodes++;
+		depth = Math.max(depth,level);
+		float [] b = nodeBounds;
+		for(int k=0;k<3;++k) {
+			b[node*6+k] = Float.MAX_VALUE;
+			b[node*6+3+k] = -Float.MAX_VALUE;
+		}
+		float [] cmin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float [] cmax = {-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+		for(int i=first;i<first+count;++i) {
+			int t = order[i];
+			for(int k=0;k<3;++k) {
+				b[node*6+k] = Math.min(b[node*6+k],box[t*6+k]);
+				b[node*6+3+k] = Math.max(b[node*6+3+k],box[t*6+3+k]);
+				cmin[k] = Math.min(cmin[k],center[t*3+k]);
+				cmax[k] = Math.max(cmax[k],center[t*3+k]);
+			}
+		}
+
+		if(count<=LEAF_SIZE || level>=MAX_DEPTH) {
+			makeLeaf(node,first,count);
+			return node;
+		}
+
+		// find the cheapest split of the centers into buckets along any axis.
+		int bestAxis=-1;
+		int bestBin=-1;
+		double bestCost = count;  // cost of not splitting
+		float [] binBox = new float[NUM_BINS*6];
+		int [] binCount = new int[NUM_BINS];
+		double [] leftArea = new double[NUM_BINS];
+		int [] leftCount = new int[NUM_BINS];
+		float [] bounds = new float[6];
+		double parentArea = area(b,node*6);
+		for(int axis=0;axis<3;++axis) {
+			float extent = cmax[axis]-cmin[axis];
+			if(!(extent>0)) continue;
+			Arrays.fill(binCount, 0);
+			for(int j=0;j<NUM_BINS;++j) emptyBounds(binBox,j*6);
+			for(int i=first;i<first+count;++i) {
+				int t = order[i];
+				int j = bin(center[t*3+axis],cmin[axis],extent);
+				binCount[j]++;
+				growBounds(binBox,j*6,box,t*6);
+			}
+			// sweep from the left, then from the right.
+			emptyBounds(bounds,0);
+			int n=0;
+			for(int j=0;j<NUM_BINS-1;++j) {
+				growBounds(bounds,0,binBox,j*6);
+				n+=binCount[j];
+				leftArea[j] = n>0 ? area(bounds,0) : 0;
+				leftCount[j] = n;
+			}
+			emptyBounds(bounds,0);
+			n=0;
+			for(int j=NUM_BINS-1;j>0;--j) {
+				growBounds(bounds,0,binBox,j*6);
+				n+=binCount[j];
+				if(n==0 || leftCount[j-1]==0) continue;
+				double cost = TRAVERSAL_COST + (leftArea[j-1]*leftCount[j-1] + area(bounds,0)*n) / parentArea;
+				if(cost<bestCost) {
+					bestCost=cost;
+					bestAxis=axis;
+					bestBin=j-1;
+				}
+			}
+		}
+
+		int middle;
+		if(bestAxis==-1) {
+			if(count<=LEAF_SIZE*4 || parentArea==0) {
+				// splitting would cost more than testing every triangle.
+				makeLeaf(node,first,count);
+				return node;
+			}
+			// all the centers are in one place.  split in half so the leaves stay small.
+			middle = first+count/2;
+		} else {
+			// partition around the chosen bucket.
+			float extent = cmax[bestAxis]-cmin[bestAxis];
+			int i=first;
+			int j=first+count-1;
+			while(i<=j) {
+				if(bin(center[order[i]*3+bestAxis],cmin[bestAxis],extent)<=bestBin) {
+					i++;
+				} else {
+					int swap=order[i];
+					order[i]=order[j];
+					order[j]=swap;
+					j--;
+				}
+			}
+			middle = i;
+		}
+
+		nodeData[node*2+1]=0;
+		buildNode(order,first,middle-first,box,center,level+1);
+		nodeData[node*2+0]=buildNode(order,middle,first+count-middle,box,center,level+1);
+		return node;
+	}
+
+	private void makeLeaf(int node,int first,int count) {
+		nodeData[node*2+0]=first;
+		// a leaf with no triangles is only possible in an empty tree.  Mark it so it is never mistaken for a branch.
+		nodeData[node*2+1]=(count==0) ? -1 : count;
+	}
+
+	private static int bin(float c,float min,float extent) {
+		int j = (int)((c-min)/extent*NUM_BINS);
+		return j<0 ? 0 : j>=NUM_BINS ? NUM_BINS-1 : j;
+	}
+
+	private static void emptyBounds(float [] b,int i) {
+		b[i+0]=b[i+1]=b[i+2]= Float.MAX_VALUE;
+		b[i+3]=b[i+4]=b[i+5]=-Float.MAX_VALUE;
+	}
+
+	private static void growBounds(float [] b,int i,float [] src,int j) {
+		for(int k=0;k<3;++k) {
+			if(b[i+k]>src[j+k]) b[i+k]=src[j+k];
+			if(b[i+3+k]<src[j+3+k]) b[i+3+k]=src[j+3+k];
+		}
+	}
+
+	/**
+	 * @return half the surface area of a box.  Only ratios of areas are used.
+	 */
+	private static double area(float [] b,int i) {
+		double dx=b[i+3]-b[i], dy=b[i+4]-b[i+1], dz=b[i+5]-b[i+2];
+		if(dx<0 || dy<0 || dz<0) return 0;
+		return dx*dy+dy*dz+dz*dx;
+	}
+
+	/**
+	 * Find the nearest triangle a ray touches.  Triangles are hit from either side.
+	 * @param origin start of the ray, in model coordinates.
+	 * @param direction direction of the ray.  Need not be unit length.
+	 * @param maxT ignore hits further than this many lengths of direction.
+	 * @param hit receives the nearest hit, if any.
+	 * @return true if something was hit.
+	 */
+	public boolean intersectRay(Point3d origin,Vector3d direction,double maxT,RayHit hit) {
+		if(numTriangles==0) return false;
+		double ox=origin.x, oy=origin.y, oz=origin.z;
+		double dx=direction.x, dy=direction.y, dz=direction.z;
+		double ix=1.0/dx, iy=1.0/dy, iz=1.0/dz;
+		double bestT = maxT;
+		int best=-1;
+		double bestU=0, bestV=0;
+
+		int [] stack = new int[MAX_DEPTH*2];
+		int top=0;
+		stack[top++]=0;
+		while(top>0) {
+			int node = stack[--top];
+			if(slab(node,ox,oy,oz,ix,iy,iz,bestT)==Double.POSITIVE_INFINITY) continue;
+			int count = nodeData[node*2+1];
+			if(count!=0) {
+				int first = nodeData[node*2+0];
+				for(int i=first;i<first+count;++i) {
+					int c=i*9;
+					double ax=corners[c  ], ay=corners[c+1], az=corners[c+2];
+					double e1x=corners[c+3]-ax, e1y=corners[c+4]-ay, e1z=corners[c+5]-az;
+					double e2x=corners[c+6]-ax, e2y=corners[c+7]-ay, e2z=corners[c+8]-az;
+					// Moller-Trumbore
+					double px = dy*e2z-dz*e2y;
+					double py = dz*e2x-dx*e2z;
+					double pz = dx*e2y-dy*e2x;
+					double det = e1x*px+e1y*py+e1z*pz;
+					if(det==0) continue;
+					double inv = 1.0/det;
+					double tx=ox-ax, ty=oy-ay, tz=oz-az;
+					double u = (tx*px+ty*py+tz*pz)*inv;
+					if(u<0 || u>1) continue;
+					double qx = ty*e1z-tz*e1y;
+					double qy = tz*e1x-tx*e1z;
+					double qz = tx*e1y-ty*e1x;
+					double v = (dx*qx+dy*qy+dz*qz)*inv;
+					if(v<0 || u+v>1) continue;
+					double t = (e2x*qx+e2y*qy+e2z*qz)*inv;
+					if(t<0 || t>=bestT) continue;
+					bestT=t;
+					best=i;
+					bestU=u;
+					bestV=v;
+				}
+			} else {
+				// visit the nearer child first.
+				int a = node+1;
+				int b = nodeData[node*2+0];
+				double ta = slab(a,ox,oy,oz,ix,iy,iz,bestT);
+				double tb = slab(b,ox,oy,oz,ix,iy,iz,bestT);
+				if(ta<=tb) {
+					if(tb!=Double.POSITIVE_INFINITY) stack[top++]=b;
+					if(ta!=Double.POSITIVE_INFINITY) stack[top++]=a;
+				} else {
+					if(ta!=Double.POSITIVE_INFINITY) stack[top++]=a;
+					stack[top++]=b;
+				}
+			}
+		}
+		if(best==-1) return false;
+
+		hit.t = bestT;
+		hit.triangle = triangleID[best];
+		hit.u = bestU;
+		hit.v = bestV;
+		hit.point.set(ox+dx*bestT, oy+dy*bestT, oz+dz*bestT);
+		getNormal(best,hit.normal);
+		return true;
+	}
+
+	/**
+	 * @return distance along the ray where it enters the node's box, or infinity if it misses or enters after maxT.
+	 */
+	private double slab(int node,double ox,double oy,double oz,double ix,double iy,double iz,double maxT) {
+		int n=node*6;
+		double t0 = (nodeBounds[n  ]-ox)*ix, t1 = (nodeBounds[n+3]-ox)*ix;
+		double near = Math.min(t0,t1), far = Math.max(t0,t1);
+		t0 = (nodeBounds[n+1]-oy)*iy;
+		t1 = (nodeBounds[n+4]-oy)*iy;
+		near = Math.max(near,Math.min(t0,t1));
+		far = Math.min(far,Math.max(t0,t1));
+		t0 = (nodeBounds[n+2]-oz)*iz;
+		t1 = (nodeBounds[n+5]-oz)*iz;
+		near = Math.max(near,Math.min(t0,t1));
+		far = Math.min(far,Math.max(t0,t1));
+		// NaN from a ray along a face of the box counts as a hit.
+		if(near>far || far<0 || near>maxT) return Double.POSITIVE_INFINITY;
+		return near;
+	}
+
+	private void getNormal(int i,Vector3d normal) {
+		int c=i*9;
+		Vector3d e1 = new Vector3d(corners[c+3]-corners[c],corners[c+4]-corners[c+1],corners[c+5]-corners[c+2]);
+		Vector3d e2 = new Vector3d(corners[c+6]-corners[c],corners[c+7]-corners[c+1],corners[c+8]-corners[c+2]);
+		normal.cross(e1,e2);
+		if(normal.lengthSquared()>0) normal.normalize();
+	}
+
+	/**
+	 * @param bottom smallest corner of the box, in model coordinates.
+	 * @param top largest corner of the box.
+	 * @return true if any triangle touches the box.
+	 */
+	public boolean intersectsBox(Point3d bottom,Point3d top) {
+		return findTrianglesInBox(bottom,top,null)>0;
+	}
+
+	/**
+	 * Find every triangle that touches a box.
+	 * @param bottom smallest corner of the box, in model coordinates.
+	 * @param top largest corner of the box.
+	 * @param out if not null, receives the model triangle numbers.  If null, the search stops at the first one.
+	 * @return the number of triangles found.
+	 */
+	public int findTrianglesInBox(Point3d bottom,Point3d top,IntArrayList out) {
+		if(numTriangles==0) return 0;
+		double cx=(bottom.x+top.x)/2, cy=(bottom.y+top.y)/2, cz=(bottom.z+top.z)/2;
+		double hx=(top.x-bottom.x)/2, hy=(top.y-bottom.y)/2, hz=(top.z-bottom.z)/2;
+		int found=0;
+
+		int [] stack = new int[MAX_DEPTH*2];
+		int sp=0;
+		stack[sp++]=0;
+		while(sp>0) {
+			int node = stack[--sp];
+			int n=node*6;
+			if(nodeBounds[n  ]>top.x || nodeBounds[n+3]<bottom.x
+			|| nodeBounds[n+1]>top.y || nodeBounds[n+4]<bottom.y
+			|| nodeBounds[n+2]>top.z || nodeBounds[n+5]<bottom.z) continue;
+			int count = nodeData[node*2+1];
+			if(count!=0) {
+				int first = nodeData[node*2+0];
+				for(int i=first;i<first+count;++i) {
+					if(!triangleTouchesBox(i*9,cx,cy,cz,hx,hy,hz)) continue;
+					found++;
+					if(out==null) return found;
+					out.add(triangleID[i]);
+				}
+			} else {
+				stack[sp++]=nodeData[node*2+0];
+				stack[sp++]=node+1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Separating axis test of a triangle and a box, from Akenine-Moller.  Tries the three box axes,
+	 * the triangle normal, and the nine cross products of their edges.
+	 */
+	private boolean triangleTouchesBox(int c,double cx,double cy,double cz,double hx,double hy,double hz) {
+		double v0x=corners[c  ]-cx, v0y=corners[c+1]-cy, v0z=corners[c+2]-cz;
+		double v1x=corners[c+3]-cx, v1y=corners[c+4]-cy, v1z=corners[c+5]-cz;
+		double v2x=corners[c+6]-cx, v2y=corners[c+7]-cy, v2z=corners[c+8]-cz;
+
+		// box axes
+		if(Math.min(v0x,Math.min(v1x,v2x))>hx || Math.max(v0x,Math.max(v1x,v2x))<-hx) return false;
+		if(Math.min(v0y,Math.min(v1y,v2y))>hy || Math.max(v0y,Math.max(v1y,v2y))<-hy) return false;
+		if(Math.min(v0z,Math.min(v1z,v2z))>hz || Math.max(v0z,Math.max(v1z,v2z))<-hz) return false;
+
+		double e0x=v1x-v0x, e0y=v1y-v0y, e0z=v1z-v0z;
+		double e1x=v2x-v1x, e1y=v2y-v1y, e1z=v2z-v1z;
+		double e2x=v0x-v2x, e2y=v0y-v2y, e2z=v0z-v2z;
+
+		// triangle normal
+		double nx = e0y*e1z-e0z*e1y;
+		double ny = e0z*e1x-e0x*e1z;
+		double nz = e0x*e1y-e0y*e1x;
+		double d = nx*v0x+ny*v0y+nz*v0z;
+		double r = hx*Math.abs(nx)+hy*Math.abs(ny)+hz*Math.abs(nz);
+		if(d>r || d<-r) return false;
+
+		// edge cross products
+		double [] e = { e0x,e0y,e0z, e1x,e1y,e1z, e2x,e2y,e2z };
+		for(int i=0;i<3;++i) {
+			double ex=e[i*3], ey=e[i*3+1], ez=e[i*3+2];
+			// x cross edge = (0,-ez,ey)
+			if(separated(0,-ez,ey, v0x,v0y,v0z,v1x,v1y,v1z,v2x,v2y,v2z,hx,hy,hz)) return false;
+			// y cross edge = (ez,0,-ex)
+			if(separated(ez,0,-ex, v0x,v0y,v0z,v1x,v1y,v1z,v2x,v2y,v2z,hx,hy,hz)) return false;
+			// z cross edge = (-ey,ex,0)
+			if(separated(-ey,ex,0, v0x,v0y,v0z,v1x,v1y,v1z,v2x,v2y,v2z,hx,hy,hz)) return false;
+		}
+		return true;
+	}
+
+	private static boolean separated(double ax,double ay,double az,
+			double v0x,double v0y,double v0z,double v1x,double v1y,double v1z,double v2x,double v2y,double v2z,
+			double hx,double hy,double hz) {
+		double p0 = ax*v0x+ay*v0y+az*v0z;
+		double p1 = ax*v1x+ay*v1y+az*v1z;
+		double p2 = ax*v2x+ay*v2y+az*v2z;
+		double r = hx*Math.abs(ax)+hy*Math.abs(ay)+hz*Math.abs(az);
+		return Math.min(p0,Math.min(p1,p2))>r || Math.max(p0,Math.max(p1,p2))<-r;
+	}
+
+	/**
+	 * @param triangle model triangle number.
+	 * @param a receives the first corner.
+	 * @param b receives the second corner.
+	 * @param c receives the third corner.
+	 */
+	public void getTriangle(int triangle,Point3d a,Point3d b,Point3d c) {
+		int i = leafIndexOf(triangle)*9;
+		a.set(corners[i  ],corners[i+1],corners[i+2]);
+		b.set(corners[i+3],corners[i+4],corners[i+5]);
+		c.set(corners[i+6],corners[i+7],corners[i+8]);
+	}
+
+	private int leafIndexOf(int triangle) {
+		// built on first use.  Most callers only want the corners of a hit or two.
+		int [] inverse = triangleLeafIndex;
+		if(inverse==null) {
+			inverse = new int[numTriangles];
+			for(int i=0;i<numTriangles;++i) inverse[triangleID[i]]=i;
+			triangleLeafIndex = inverse;
+		}
+		return inverse[triangle];
+	}
+	private volatile int [] triangleLeafIndex;
+
+	public int getNumTriangles() {
+		return numTriangles;
+	}
+
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return bytes used by the tree.
+	 */
+	public long getMemoryUsed() {
+		int [] inverse = triangleLeafIndex;
+		return (long)nodeBounds.length*4 + nodeData.length*4 + corners.length*4 + triangleID.length*4
+				+ (inverse!=null ? inverse.length*4 : 0);
+	}
+}
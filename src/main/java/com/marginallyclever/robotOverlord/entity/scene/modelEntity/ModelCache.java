@@ -0,0 +1,221 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.marginallyclever.convenience.FileAccess;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers.ModelLoadAndSaveROMC;
+import com.marginallyclever.robotOverlord.log.Log;
+
+/**
+ * Keeps a parsed copy of every model in a .romc file so the next launch doesn't have to parse the source again.
+ * <p>
+ * Each cache file remembers the stamp of the source it was made from, see {@link #hashSource(String)}.  When the
+ * source changes the stamp no longer matches and the cache file is replaced the next time the model is loaded.
+ * @author Dan Royer
+ */
+public class ModelCache {
+	private static File directory = new File(System.getProperty("user.home") + File.separator + "robotOverlord" + File.separator + "modelCache");
+	private static boolean enabled = true;
+	private static final ModelLoadAndSaveROMC format = new ModelLoadAndSaveROMC();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	// a source modified less than this many ms ago may change again without changing its stamp.
+	private static final long RACY_TIME = 2000;
+
+	/**
+	 * Fill model from the cache, if the cache holds an up-to-date copy of sourceName.
+	 * @param sourceName file from which the model would normally be loaded.
+	 * @param hash see {@link #hashSource(String)}
+	 * @param model where to put the mesh
+	 * @return true if the model was loaded from the cache.
+	 */
+	public static boolean load(String sourceName,long hash,Model model) {
+		if(!enabled || format.canLoad(sourceName)) return false;
+
+		File file = getCacheFile(sourceName);
+		if(file.isFile()) {
+			try {
+				if(format.load(file,model,sourceName,hash)) {
+					hits.incrementAndGet();
+					return true;
+				}
+			} catch(IOException e) {
+				Log.error("Model cache "+file+" is damaged: "+e.getLocalizedMessage());
+			}
+			// stale or damaged.  start over.
+			model.clear();
+			file.delete();
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Same as load(sourceName,hashSource(sourceName),model).
+	 */
+	public static boolean load(String sourceName,Model model) {
+		if(!enabled || format.canLoad(sourceName)) return false;
+		try {
+			return load(sourceName,hashSource(sourceName),model);
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Store a freshly parsed model in the cache.  Failures are logged and otherwise ignored.
+	 * @param sourceName file from which the model was loaded.
+	 * @param hash see {@link #hashSource(String)}
+	 * @param model the mesh, exactly as the loader made it.
+	 */
+	public static void save(String sourceName,long hash,Model model) {
+		if(!enabled || format.canLoad(sourceName)) return;
+
+		File file = getCacheFile(sourceName);
+		File temp = null;
+		try {
+			if(!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("can't create "+directory);
+			}
+			// write somewhere else first so nobody reads half a file.
+			temp = File.createTempFile(file.getName(), ".tmp", directory);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				format.save(out,model,sourceName,hash);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			Log.error("Saving model cache for '"+sourceName+"' failed: "+e.getLocalizedMessage());
+			if(temp!=null) temp.delete();
+		}
+	}
+
+	/**
+	 * Identify the current version of a source without reading it.  The stamp of a file on disk, or of the zip
+	 * or jar that holds it, is its canonical path, size, and last modified time.  The contents are only hashed
+	 * when the stamp can't tell two versions apart: when there is no file to stamp, or when the file changed so
+	 * recently that another write in the same clock tick would leave the same stamp.
+	 * @param sourceName file from which to load.  may be filename.ext or zipfile.zip:filename.ext
+	 * @return a hash of the stamp, and of the contents if they had to be read.
+	 * @throws IOException if the file can't be read.
+	 */
+	public static long hashSource(String sourceName) throws IOException {
+		File file = getBackingFile(sourceName);
+		if(file==null) return hashContents(sourceName);
+
+		long modified = file.lastModified();
+		CRC32 crc = new CRC32();
+		crc.update(file.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+		long hash = (file.length()<<32) ^ crc.getValue() ^ (modified*31);
+		if(Math.abs(System.currentTimeMillis()-modified) < RACY_TIME) {
+			hash ^= hashContents(sourceName);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return a hash of the length and contents of the source.
+	 */
+	private static long hashContents(String sourceName) throws IOException {
+		CRC32 crc = new CRC32();
+		long length=0;
+		BufferedInputStream stream = FileAccess.open(sourceName);
+		try {
+			byte [] buffer = new byte[1<<16];
+			int n;
+			while((n=stream.read(buffer))>0) {
+				crc.update(buffer,0,n);
+				length+=n;
+			}
+		} finally {
+			stream.close();
+		}
+		return (length<<32) ^ crc.getValue();
+	}
+
+	/**
+	 * @return the file on disk that holds sourceName: the file itself, the zip it is in, or the jar it is in.
+	 * null if there is none.
+	 */
+	private static File getBackingFile(String sourceName) {
+		File file = FileAccess.getFile(sourceName);
+		if(file!=null) return file;
+
+		int index = sourceName.lastIndexOf(":");
+		int index2 = sourceName.lastIndexOf(":\\");  // hack for windows file system
+		if(index!=-1 && index!=index2) {
+			file = new File(sourceName.substring(0,index));
+			return file.isFile() ? file : null;
+		}
+
+		URL url = FileAccess.class.getResource(sourceName);
+		if(url==null || !url.getProtocol().equals("jar")) return null;
+		try {
+			URLConnection connection = url.openConnection();
+			if(!(connection instanceof JarURLConnection)) return null;
+			URL jar = ((JarURLConnection)connection).getJarFileURL();
+			if(!jar.getProtocol().equals("file")) return null;
+			file = new File(jar.toURI());
+			return file.isFile() ? file : null;
+		} catch(IOException | URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param sourceName file from which the model would normally be loaded.
+	 * @return where the cached copy of sourceName lives.
+	 */
+	public static File getCacheFile(String sourceName) {
+		String shortName = sourceName.substring(Math.max(sourceName.lastIndexOf('/'),Math.max(sourceName.lastIndexOf('\\'),sourceName.lastIndexOf(':')))+1);
+		shortName = shortName.replaceAll("[^A-Za-z0-9._-]", "_");
+		// different folders may hold files with the same name.
+		CRC32 crc = new CRC32();
+		crc.update(sourceName.getBytes(StandardCharsets.UTF_8));
+		return new File(directory, shortName+"-"+Long.toHexString(crc.getValue())+".romc");
+	}
+
+	public static void setDirectory(File dir) {
+		directory = dir;
+	}
+
+	public static File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param state if false, models are always parsed from their source and nothing is written to the cache.
+	 */
+	public static void setEnabled(boolean state) {
+		enabled = state;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	public static long getMissCount() {
+		return misses.get();
+	}
+}
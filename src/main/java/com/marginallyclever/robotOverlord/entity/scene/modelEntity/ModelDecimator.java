@@ -0,0 +1,532 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+import com.jogamp.opengl.GL2;
+import com.marginallyclever.convenience.FloatArrayList;
+import com.marginallyclever.convenience.IntArrayList;
+import com.marginallyclever.robotOverlord.log.Log;
+
+/**
+ * Makes simpler copies of a model for drawing when it is far away.
+ * <p>
+ * Edges are collapsed cheapest first, where the cost is the quadric error metric of Garland and Heckbert:
+ * the sum of squared distances from the new vertex to the planes of the faces that met at the old ones.
+ * Open edges get an extra plane so the outline of the mesh holds its shape.  A collapse that would fold a
+ * face over or pinch the mesh is skipped.
+ * <p>
+ * Vertexes are joined by position only, so the copies are flat shaded.  Each vertex keeps the color and texture
+ * coordinate of the first vertex found in its place, which is only approximate along texture seams.
+ * @author Dan Royer
+ */
+public class ModelDecimator {
+	// fraction of the triangles kept in each level of detail.
+	public static final float [] LEVEL_RATIOS = { 0.5f, 0.25f, 0.1f };
+	// models with fewer triangles than this are not worth simplifying.
+	public static final int MIN_TRIANGLES = 1000;
+	// open edges resist collapse this much more than the faces around them.
+	private static final double BOUNDARY_WEIGHT = 1000;
+	// a collapse may not turn any face further than this.  cosine of the angle.
+	private static final double MIN_NORMAL_DOT = 0.2;
+
+	/**
+	 * @param model the full detail model.
+	 * @return simpler copies, most detailed first.  Empty if the model is too small or can't be simplified.
+	 */
+	public static Model [] makeLevelsOfDetail(Model model) {
+		ArrayList<Model> list = new ArrayList<Model>();
+		Mesh mesh = Mesh.from(model);
+		if(mesh!=null && mesh.liveFaces>=MIN_TRIANGLES) {
+			int original = mesh.liveFaces;
+			int previous = original;
+			for(float ratio : LEVEL_RATIOS) {
+				// each level starts from the last, so the work is only done once.
+				mesh.simplify((int)(original*ratio));
+				// stop if the mesh won't get any simpler.
+				if(mesh.liveFaces>=previous*0.9) break;
+				list.add(mesh.toModel());
+				previous = mesh.liveFaces;
+			}
+		}
+		return list.toArray(new Model[list.size()]);
+	}
+
+	/**
+	 * @param model the full detail model.  Not changed.
+	 * @param ratio fraction of triangles to keep, 0...1.
+	 * @return a simpler copy, or null if the model can't be simplified.
+	 */
+	public static Model decimate(Model model,float ratio) {
+		Mesh mesh = Mesh.from(model);
+		if(mesh==null) return null;
+		mesh.simplify((int)(mesh.liveFaces*ratio));
+		return mesh.toModel();
+	}
+
+	/**
+	 * One possible edge collapse.  Out of date if either vertex has changed since it was made.
+	 */
+	private static class Collapse implements Comparable<Collapse> {
+		public int u, v;
+		public int versionU, versionV;
+		public double cost;
+		public double x, y, z;
+
+		@Override
+		public int compareTo(Collapse o) {
+			return Double.compare(cost, o.cost);
+		}
+	}
+
+	/**
+	 * Triangles that share vertexes, and what it costs to move each vertex.
+	 */
+	private static class Mesh {
+		private double [] px, py, pz;
+		// color and texture coordinates of the model, or null, and which model vertex each mesh vertex came from.
+		private float [] colors, uvs;
+		private int [] source;
+		// 10 numbers per vertex.  The upper half of a symmetric 4x4 matrix.
+		private double [] quadric;
+		private int [] version;
+		private boolean [] deadVertex;
+		// faces touching each vertex.  Dead faces are removed lazily.
+		private IntArrayList [] vertexFaces;
+		// scratch space, so the collapse loop allocates nothing but queue entries.
+		private int [] seen, owner;
+		private int seenStamp, ownerStamp;
+		private IntArrayList neighborsU = new IntArrayList(), neighborsV = new IntArrayList();
+		private double [] before = new double[4], after = new double[4], sum = new double[10];
+		private int [] face;
+		private boolean [] deadFace;
+		public int liveFaces;
+		private PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>();
+
+		/**
+		 * The model is read, never changed.  If it has released its arrays, a private copy is loaded from the
+		 * source instead, so the model isn't touched while the GL thread may be using it.
+		 * @return the mesh of a model, or null if the model is not made of triangles.
+		 */
+		public static Mesh from(Model model) {
+			if(model.renderStyle!=GL2.GL_TRIANGLES) return null;
+			if(model.isCPUDataReleased()) {
+				if(model.getSourceName()==null) return null;
+				try {
+					model = ModelPool.loadModel(model.getSourceName());
+				} catch(Exception e) {
+					Log.error("Reloading model '"+model.getSourceName()+"' to simplify it failed: "+e.getLocalizedMessage());
+					return null;
+				}
+			}
+			float [] v, colors, uvs;
+			int [] index;
+			int numIndexes;
+			synchronized(model) {
+				if(model.isCPUDataReleased()) return null;
+				v = model.vertexArray.getArray();
+				int numVertexes = model.vertexArray.size()/3;
+				colors = (model.hasColors && model.colorArray.size()>=numVertexes*4) ? model.colorArray.getArray() : null;
+				uvs = (model.hasUVs && model.texCoordArray.size()>=numVertexes*2) ? model.texCoordArray.getArray() : null;
+				if(model.hasIndexes) {
+					index = model.indexArray.getArray();
+					numIndexes = model.indexArray.size();
+				} else {
+					index = null;
+					numIndexes = numVertexes;
+				}
+			}
+			numIndexes -= numIndexes%3;
+			if(numIndexes==0) return null;
+			Mesh mesh = new Mesh();
+			mesh.colors = colors;
+			mesh.uvs = uvs;
+			mesh.build(v,index,numIndexes);
+			return mesh;
+		}
+
+		private void build(float [] v,int [] index,int numIndexes) {
+			// join vertexes in exactly the same place.
+			HashMap<Position,Integer> unique = new HashMap<Position,Integer>();
+			FloatArrayList positions = new FloatArrayList();
+			IntArrayList first = new IntArrayList();
+			int [] remap = new int[numIndexes];
+			for(int i=0;i<numIndexes;++i) {
+				int j = (index!=null ? index[i] : i)*3;
+				Position p = new Position(v[j],v[j+1],v[j+2]);
+				Integer k = unique.get(p);
+				if(k==null) {
+					k = unique.size();
+					unique.put(p, k);
+					positions.add(v[j],v[j+1],v[j+2]);
+					first.add(j/3);
+				}
+				remap[i]=k;
+			}
+
+			int numVertexes = unique.size();
+			source = first.toArray();
+			px = new double[numVertexes];
+			py = new double[numVertexes];
+			pz = new double[numVertexes];
+			float [] pos = positions.getArray();
+			for(int i=0;i<numVertexes;++i) {
+				px[i]=pos[i*3+0];
+				py[i]=pos[i*3+1];
+				pz[i]=pos[i*3+2];
+			}
+			quadric = new double[numVertexes*10];
+			version = new int[numVertexes];
+			deadVertex = new boolean[numVertexes];
+			vertexFaces = new IntArrayList[numVertexes];
+			for(int i=0;i<numVertexes;++i) vertexFaces[i] = new IntArrayList(6);
+			seen = new int[numVertexes];
+			owner = new int[numVertexes];
+
+			// drop triangles with two corners in the same place.
+			IntArrayList faces = new IntArrayList(numIndexes);
+			for(int i=0;i<numIndexes;i+=3) {
+				int a=remap[i], b=remap[i+1], c=remap[i+2];
+				if(a==b || b==c || c==a) continue;
+				faces.add(a);
+				faces.add(b);
+				faces.add(c);
+			}
+			face = faces.toArray();
+			int numFaces = face.length/3;
+			deadFace = new boolean[numFaces];
+			liveFaces = numFaces;
+
+			HashMap<Long,Integer> edgeUse = new HashMap<Long,Integer>();
+			double [] plane = new double[4];
+			for(int f=0;f<numFaces;++f) {
+				for(int k=0;k<3;++k) {
+					vertexFaces[face[f*3+k]].add(f);
+					Long key = edgeKey(face[f*3+k],face[f*3+(k+1)%3]);
+					Integer count = edgeUse.get(key);
+					edgeUse.put(key, count==null ? 1 : count+1);
+				}
+				// area weighted, so big faces matter more than slivers.
+				double area = facePlane(face[f*3],face[f*3+1],face[f*3+2],plane);
+				if(area==0) continue;
+				for(int k=0;k<3;++k) addQuadric(face[f*3+k],plane,area);
+			}
+
+			// open edges get a plane at right angles to their face.
+			for(int f=0;f<numFaces;++f) {
+				if(facePlane(face[f*3],face[f*3+1],face[f*3+2],plane)==0) continue;
+				for(int k=0;k<3;++k) {
+					int a = face[f*3+k];
+					int b = face[f*3+(k+1)%3];
+					if(edgeUse.get(edgeKey(a,b))!=1) continue;
+					double ex=px[b]-px[a], ey=py[b]-py[a], ez=pz[b]-pz[a];
+					double nx = ey*plane[2]-ez*plane[1];
+					double ny = ez*plane[0]-ex*plane[2];
+					double nz = ex*plane[1]-ey*plane[0];
+					double len = Math.sqrt(nx*nx+ny*ny+nz*nz);
+					if(len==0) continue;
+					double [] edgePlane = { nx/len, ny/len, nz/len, 0 };
+					edgePlane[3] = -(edgePlane[0]*px[a]+edgePlane[1]*py[a]+edgePlane[2]*pz[a]);
+					double weight = BOUNDARY_WEIGHT*(ex*ex+ey*ey+ez*ez);
+					addQuadric(a,edgePlane,weight);
+					addQuadric(b,edgePlane,weight);
+				}
+			}
+
+			for(Long key : edgeUse.keySet()) {
+				queueCollapse((int)(key>>>32),(int)(key&0xFFFFFFFFL));
+			}
+		}
+
+		private static long edgeKey(int a,int b) {
+			return a<b ? ((long)a<<32)|b : ((long)b<<32)|a;
+		}
+
+		/**
+		 * @param plane receives the unit normal and distance of the plane through the three vertexes.
+		 * @return area of the triangle.  0 if it has no area.
+		 */
+		private double facePlane(int a,int b,int c,double [] plane) {
+			return facePlane(px[a],py[a],pz[a],px[b],py[b],pz[b],px[c],py[c],pz[c],plane);
+		}
+
+		private static double facePlane(double ax,double ay,double az,double bx,double by,double bz,double cx,double cy,double cz,double [] plane) {
+			double ux=bx-ax, uy=by-ay, uz=bz-az;
+			double wx=cx-ax, wy=cy-ay, wz=cz-az;
+			double nx = uy*wz-uz*wy;
+			double ny = uz*wx-ux*wz;
+			double nz = ux*wy-uy*wx;
+			double len = Math.sqrt(nx*nx+ny*ny+nz*nz);
+			if(len==0) return 0;
+			plane[0]=nx/len;
+			plane[1]=ny/len;
+			plane[2]=nz/len;
+			plane[3]=-(plane[0]*ax+plane[1]*ay+plane[2]*az);
+			return len/2;
+		}
+
+		private void addQuadric(int i,double [] p,double weight) {
+			int q=i*10;
+			double a=p[0], b=p[1], c=p[2], d=p[3];
+			quadric[q+0]+=weight*a*a;
+			quadric[q+1]+=weight*a*b;
+			quadric[q+2]+=weight*a*c;
+			quadric[q+3]+=weight*a*d;
+			quadric[q+4]+=weight*b*b;
+			quadric[q+5]+=weight*b*c;
+			quadric[q+6]+=weight*b*d;
+			quadric[q+7]+=weight*c*c;
+			quadric[q+8]+=weight*c*d;
+			quadric[q+9]+=weight*d*d;
+		}
+
+		private static double error(double [] q,double x,double y,double z) {
+			return q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x
+			     + q[4]*y*y + 2*q[5]*y*z + 2*q[6]*y
+			     + q[7]*z*z + 2*q[8]*z
+			     + q[9];
+		}
+
+		/**
+		 * Find where the merged vertex should go and what it costs, then queue it.
+		 */
+		private void queueCollapse(int u,int v) {
+			double [] q = sum;
+			for(int k=0;k<10;++k) q[k] = quadric[u*10+k]+quadric[v*10+k];
+
+			Collapse c = new Collapse();
+			c.u=u;
+			c.v=v;
+			c.versionU=version[u];
+			c.versionV=version[v];
+
+			// the best place is where the gradient of the error is zero.
+			double det = q[0]*(q[4]*q[7]-q[5]*q[5]) - q[1]*(q[1]*q[7]-q[5]*q[2]) + q[2]*(q[1]*q[5]-q[4]*q[2]);
+			boolean found=false;
+			if(Math.abs(det) > 1e-10*Math.abs(q[0]*q[4]*q[7])) {
+				double bx=-q[3], by=-q[6], bz=-q[8];
+				double x = (bx*(q[4]*q[7]-q[5]*q[5]) - q[1]*(by*q[7]-q[5]*bz) + q[2]*(by*q[5]-q[4]*bz))/det;
+				double y = (q[0]*(by*q[7]-q[5]*bz) - bx*(q[1]*q[7]-q[5]*q[2]) + q[2]*(q[1]*bz-by*q[2]))/det;
+				double z = (q[0]*(q[4]*bz-by*q[5]) - q[1]*(q[1]*bz-by*q[2]) + bx*(q[1]*q[5]-q[4]*q[2]))/det;
+				// a nearly flat region can put the answer far away.  don't trust it.
+				double mx=(px[u]+px[v])/2, my=(py[u]+py[v])/2, mz=(pz[u]+pz[v])/2;
+				double ex=px[u]-px[v], ey=py[u]-py[v], ez=pz[u]-pz[v];
+				double dx=x-mx, dy=y-my, dz=z-mz;
+				if(dx*dx+dy*dy+dz*dz <= ex*ex+ey*ey+ez*ez) {
+					c.x=x;
+					c.y=y;
+					c.z=z;
+					c.cost=error(q,x,y,z);
+					found=true;
+				}
+			}
+			if(!found) {
+				// try both ends and the middle.
+				c.cost=Double.MAX_VALUE;
+				for(int k=0;k<3;++k) {
+					double t = k*0.5;
+					double x = px[u]+(px[v]-px[u])*t;
+					double y = py[u]+(py[v]-py[u])*t;
+					double z = pz[u]+(pz[v]-pz[u])*t;
+					double e = error(q,x,y,z);
+					if(e<c.cost) {
+						c.cost=e;
+						c.x=x;
+						c.y=y;
+						c.z=z;
+					}
+				}
+			}
+			queue.add(c);
+		}
+
+		/**
+		 * Collapse edges until no more than targetFaces remain or no collapse is allowed.
+		 */
+		public void simplify(int targetFaces) {
+			while(liveFaces>targetFaces && !queue.isEmpty()) {
+				Collapse c = queue.poll();
+				if(deadVertex[c.u] || deadVertex[c.v]) continue;
+				if(version[c.u]!=c.versionU || version[c.v]!=c.versionV) continue;
+				if(!canCollapse(c)) continue;
+				collapse(c);
+			}
+		}
+
+		/**
+		 * @param list receives every vertex that shares a face with u, once each.
+		 */
+		private IntArrayList neighbors(int u,IntArrayList list) {
+			list.clear();
+			seenStamp++;
+			IntArrayList faces = vertexFaces[u];
+			for(int i=0;i<faces.size();++i) {
+				int f = faces.get(i);
+				for(int k=0;k<3;++k) {
+					int w = face[f*3+k];
+					if(w==u || seen[w]==seenStamp) continue;
+					seen[w]=seenStamp;
+					list.add(w);
+				}
+			}
+			return list;
+		}
+
+		private void removeDeadFaces(int u) {
+			IntArrayList faces = vertexFaces[u];
+			int [] a = faces.getArray();
+			int n=0;
+			for(int i=0;i<faces.size();++i) {
+				if(!deadFace[a[i]]) a[n++]=a[i];
+			}
+			faces.truncate(n);
+		}
+
+		private boolean contains(int f,int w) {
+			return face[f*3]==w || face[f*3+1]==w || face[f*3+2]==w;
+		}
+
+		private boolean canCollapse(Collapse c) {
+			removeDeadFaces(c.u);
+			removeDeadFaces(c.v);
+
+			// the vertexes may only share the neighbors across the faces they share, or the mesh would pinch.
+			IntArrayList nu = neighbors(c.u,neighborsU);
+			ownerStamp++;
+			for(int i=0;i<nu.size();++i) owner[nu.get(i)]=ownerStamp;
+			IntArrayList nv = neighbors(c.v,neighborsV);
+			int common=0;
+			for(int j=0;j<nv.size();++j) {
+				if(owner[nv.get(j)]==ownerStamp) common++;
+			}
+			int shared=0;
+			IntArrayList faces = vertexFaces[c.u];
+			for(int i=0;i<faces.size();++i) {
+				if(contains(faces.get(i),c.v)) shared++;
+			}
+			if(common>shared) return false;
+
+			return !flips(c.u,c.v,c) && !flips(c.v,c.u,c);
+		}
+
+		/**
+		 * @return true if moving u to the new place would fold over any face of u that does not also touch v.
+		 */
+		private boolean flips(int u,int v,Collapse c) {
+			IntArrayList faces = vertexFaces[u];
+			for(int i=0;i<faces.size();++i) {
+				int f = faces.get(i);
+				if(contains(f,v)) continue;
+				int a=face[f*3], b=face[f*3+1], d=face[f*3+2];
+				if(facePlane(a,b,d,before)==0) continue;
+				double ax=px[a], ay=py[a], az=pz[a];
+				double bx=px[b], by=py[b], bz=pz[b];
+				double dx=px[d], dy=py[d], dz=pz[d];
+				if(a==u) { ax=c.x; ay=c.y; az=c.z; }
+				if(b==u) { bx=c.x; by=c.y; bz=c.z; }
+				if(d==u) { dx=c.x; dy=c.y; dz=c.z; }
+				if(facePlane(ax,ay,az,bx,by,bz,dx,dy,dz,after)==0) return true;
+				if(before[0]*after[0]+before[1]*after[1]+before[2]*after[2] < MIN_NORMAL_DOT) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Move u to the new place and give it every face of v.
+		 */
+		private void collapse(Collapse c) {
+			int u=c.u, v=c.v;
+			px[u]=c.x;
+			py[u]=c.y;
+			pz[u]=c.z;
+			for(int k=0;k<10;++k) quadric[u*10+k]+=quadric[v*10+k];
+
+			IntArrayList faces = vertexFaces[v];
+			for(int i=0;i<faces.size();++i) {
+				int f = faces.get(i);
+				if(deadFace[f]) continue;
+				if(contains(f,u)) {
+					deadFace[f]=true;
+					liveFaces--;
+					continue;
+				}
+				for(int k=0;k<3;++k) {
+					if(face[f*3+k]==v) face[f*3+k]=u;
+				}
+				vertexFaces[u].add(f);
+			}
+			vertexFaces[v]=new IntArrayList(0);
+			deadVertex[v]=true;
+			version[u]++;
+			version[v]++;
+			removeDeadFaces(u);
+
+			IntArrayList nu = neighbors(u,neighborsU);
+			for(int i=0;i<nu.size();++i) {
+				queueCollapse(u,nu.get(i));
+			}
+		}
+
+		/**
+		 * @return the live faces as flat shaded triangles.
+		 */
+		public Model toModel() {
+			Model m = new Model();
+			m.vertexArray = new FloatArrayList(liveFaces*9);
+			m.normalArray = new FloatArrayList(liveFaces*9);
+			double [] plane = new double[4];
+			for(int f=0;f<deadFace.length;++f) {
+				if(deadFace[f]) continue;
+				facePlane(face[f*3],face[f*3+1],face[f*3+2],plane);
+				for(int k=0;k<3;++k) {
+					int i = face[f*3+k];
+					m.addVertex((float)px[i],(float)py[i],(float)pz[i]);
+					m.addNormal((float)plane[0],(float)plane[1],(float)plane[2]);
+					int j = source[i];
+					if(colors!=null) m.addColor(colors[j*4],colors[j*4+1],colors[j*4+2],colors[j*4+3]);
+					if(uvs!=null) m.addTexCoord(uvs[j*2],uvs[j*2+1]);
+				}
+			}
+			m.hasNormals=true;
+			m.hasColors=(colors!=null);
+			m.hasUVs=(uvs!=null);
+			m.renderStyle=GL2.GL_TRIANGLES;
+			m.isDirty=true;
+			// the copy is made again if it is needed after its buffers are freed.
+			m.setReleaseCPUDataAfterUpload(true);
+			m.cpuDataDisposable=true;
+			return m;
+		}
+	}
+
+	/**
+	 * A vertex position, for finding vertexes in the same place.
+	 */
+	private static class Position {
+		public final float x, y, z;
+
+		public Position(float x,float y,float z) {
+			this.x=x;
+			this.y=y;
+			this.z=z;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = Float.floatToIntBits(x);
+			h = h*31 + Float.floatToIntBits(y);
+			h = h*31 + Float.floatToIntBits(z);
+			return h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Position)) return false;
+			Position p = (Position)o;
+			return Float.floatToIntBits(x)==Float.floatToIntBits(p.x)
+				&& Float.floatToIntBits(y)==Float.floatToIntBits(p.y)
+				&& Float.floatToIntBits(z)==Float.floatToIntBits(p.z);
+		}
+	}
+}
@@ -1,25 +1,25 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
 
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.jogamp.opengl.GL2;
 import com.marginallyclever.convenience.Cuboid;
-import com.marginallyclever.convenience.FileAccess;
 import com.marginallyclever.convenience.MatrixHelper;
 import com.marginallyclever.convenience.PrimitiveSolids;
+import com.marginallyclever.robotOverlord.RobotOverlord;
+import com.marginallyclever.robotOverlord.entity.Entity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.BooleanEntity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.DoubleEntity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.IntEntity;
@@ -27,6 +27,7 @@ import com.marginallyclever.robotOverlord.entity.basicDataTypes.MaterialEntity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.StringEntity;
 import com.marginallyclever.robotOverlord.entity.basicDataTypes.Vector3dEntity;
 import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
+import com.marginallyclever.robotOverlord.entity.scene.ViewportEntity;
 import com.marginallyclever.robotOverlord.log.Log;
 import com.marginallyclever.robotOverlord.swingInterface.view.ViewElementButton;
 import com.marginallyclever.robotOverlord.swingInterface.view.ViewPanel;
@@ -37,14 +38,23 @@ public class ModelEntity extends PoseEntity {
 	 * 
 	 */
 	private static final long serialVersionUID = 5888928381757734702L;
-
-	// the pool of all models loaded
-	@JsonIgnore
-	private static LinkedList<Model> modelPool = new LinkedList<Model>();
+	
+	// a model smaller than this many pixels on screen is drawn with the next simpler level of detail.
+	public static final double [] LEVEL_OF_DETAIL_PIXELS = { 300, 150, 60 };
+	// when true every model is drawn at full detail, as for screenshots.
+	private static boolean forceFullDetail=false;
 
 	// the model for this entity
 	@JsonIgnore
 	protected transient Model model;
+	// true while this entity holds a reference to model in the ModelPool
+	private transient boolean holdsModelReference=false;
+	// a model being loaded in the background, and the file it comes from.
+	private transient CompletableFuture<Model> pendingLoad;
+	private transient String pendingFilename;
+	// the model and bounds version the cuboid was last fitted to.
+	private transient Model boundsModel;
+	private transient int boundsVersion;
 
 	protected StringEntity filename = new StringEntity("File","");
 	
@@ -98,7 +108,7 @@ public class ModelEntity extends PoseEntity {
 		scale.set(b.scale.get());
 		
 		filename.set(b.filename.get());
-		model = b.model;
+		setModel(b.getModel());
 		material.set(b.material);
 		originAdjust.set(b.originAdjust.get());
 		rotationAdjust.set(b.rotationAdjust.get());
@@ -110,35 +120,85 @@ public class ModelEntity extends PoseEntity {
 
 	/**
 	 * Sets the new model filename, which causes the model to be reloaded.
+	 * The file is loaded in the background by the {@link ModelLoaderService}.  The old model stays
+	 * until the new one is ready.  Use {@link #getModel()} to wait for it.
 	 * @param newFilename
 	 */
-	public void setModelFilename(String newFilename) {
-		// if the filename has changed, throw out the model so it will be reloaded.
-		//if( this.filename.get().equals(newFilename) ) return;
+	public synchronized void setModelFilename(String newFilename) {
+		// already on the way?
+		if(newFilename!=null && newFilename.equals(pendingFilename)) return;
+		
+		ModelLoaderService.discard(pendingLoad);
+		pendingLoad=null;
+		pendingFilename=null;
+		
+		if(newFilename==null || newFilename.trim().isEmpty()) {
+			releaseModel();
+			model=null;
+			this.filename.set(newFilename==null ? "" : newFilename);
+			return;
+		}
+		
+		pendingFilename = newFilename;
+		pendingLoad = ModelLoaderService.load(newFilename);
+	}
+	
+	/**
+	 * If a background load has finished, start using the new model.  Never blocks.
+	 */
+	protected synchronized void checkPendingLoad() {
+		if(pendingLoad==null || !pendingLoad.isDone()) return;
 		
+		CompletableFuture<Model> future = pendingLoad;
+		String newFilename = pendingFilename;
 		try {
-			model = createModelFromFilename(newFilename);
+			Model newModel = future.join();
+			releaseModel();
+			model = newModel;
+			holdsModelReference = (model!=null);
 			if(model!=null) {
 				model.adjustScale(scale.get());
 				model.adjustOrigin(originAdjust.get());
 				model.adjustRotation(rotationAdjust.get());
-				model.updateCuboid();
 				numTriangles.set(model.getNumTriangles());
 				hasNormals.set(model.hasNormals);
 				hasColors.set(model.hasColors);
 				hasUVs.set(model.hasUVs);
+				refreshCuboidBounds();
 			}
 			// only change this after loading has completely succeeded.
+			// pendingFilename is still set so the filename observer doesn't start another load.
 			this.filename.set(newFilename);
 		} catch (Exception e) {
-			Log.error("Loading model '"+newFilename+"' failed: "+e.getLocalizedMessage());
+			Throwable cause = (e.getCause()!=null) ? e.getCause() : e;
+			Log.error("Loading model '"+newFilename+"' failed: "+cause.getLocalizedMessage());
 		}
+		pendingLoad=null;
+		pendingFilename=null;
+	}
+	
+	/**
+	 * Block until any background load has finished.
+	 */
+	public void waitForModel() {
+		CompletableFuture<Model> future;
+		synchronized(this) {
+			future = pendingLoad;
+		}
+		if(future==null) return;
+		try {
+			future.join();
+		} catch(Exception e) {
+			// reported by checkPendingLoad()
+		}
+		checkPendingLoad();
 	}
 
 	public void setModelScale(double arg0) {
 		scale.set(arg0);
 		if(model!=null) {
 			model.adjustScale(arg0);
+			refreshCuboidBounds();
 		}
 	}
 	
@@ -148,12 +208,18 @@ public class ModelEntity extends PoseEntity {
 
 	public void setModelOrigin(double x,double y,double z) {
 		originAdjust.set(x,y,z);
-		if(model!=null) model.adjustOrigin(originAdjust.get());
+		if(model!=null) {
+			model.adjustOrigin(originAdjust.get());
+			refreshCuboidBounds();
+		}
 	}
 
 	public void setModelOrigin(Vector3d arg0) {
 		originAdjust.set(arg0);
-		if(model!=null) model.adjustOrigin(originAdjust.get());
+		if(model!=null) {
+			model.adjustOrigin(originAdjust.get());
+			refreshCuboidBounds();
+		}
 	}
 	
 	public Vector3d getModelOrigin() {
@@ -162,12 +228,18 @@ public class ModelEntity extends PoseEntity {
 
 	public void setModelRotation(double x,double y,double z) {
 		rotationAdjust.set(x,y,z);
-		if(model!=null) model.adjustRotation(rotationAdjust.get());
+		if(model!=null) {
+			model.adjustRotation(rotationAdjust.get());
+			refreshCuboidBounds();
+		}
 	}
 
 	public void setModelRotation(Vector3d arg0) {
 		rotationAdjust.set(arg0);
-		if(model!=null) model.adjustRotation(rotationAdjust.get());
+		if(model!=null) {
+			model.adjustRotation(rotationAdjust.get());
+			refreshCuboidBounds();
+		}
 	}
 	
 	public Vector3d getModelRotation() {
@@ -176,6 +248,7 @@ public class ModelEntity extends PoseEntity {
 
 	@Override
 	public void update(double dt) {
+		checkPendingLoad();
 		super.update(dt);
 	}
 	
@@ -197,17 +270,28 @@ public class ModelEntity extends PoseEntity {
 	}
 	
 	/**
-	 * obeys super.updatePoseWorld, Updates cuboid
+	 * @return the cuboid, sized to fit the model and moved to the current world pose.
 	 */
 	@Override
-	public void updatePoseWorld() {
-		super.updatePoseWorld();
-		
-		// set up the physical limits
-		if(model != null) {
-			Cuboid mc = model.getCuboid();
-			cuboid.setBounds(mc.getBoundsTop(),mc.getBoundsBottom());
-		}
+	public Cuboid getCuboid() {
+		checkPendingLoad();
+		refreshCuboidBounds();
+		return super.getCuboid();
+	}
+	
+	/**
+	 * Fit the cuboid to the model, if the model or its bounds have changed since last time.  Called wherever
+	 * either can change, so the cuboid field is always current, not only when read through getCuboid().
+	 */
+	private void refreshCuboidBounds() {
+		Model m = model;
+		if(m==null) return;
+		Cuboid mc = m.getCuboid();
+		int version = m.getBoundsVersion();
+		if(m==boundsModel && version==boundsVersion) return;
+		cuboid.setBounds(mc.getBoundsTop(),mc.getBoundsBottom());
+		boundsModel = m;
+		boundsVersion = version;
 	}
 	
 	@Override
@@ -219,22 +303,68 @@ public class ModelEntity extends PoseEntity {
 	}
 
 	
-	public void renderModel(GL2 gl2) {	
+	public void renderModel(GL2 gl2) {
+		checkPendingLoad();
+		
 		gl2.glPushMatrix();
 		MatrixHelper.applyMatrix(gl2, pose);
 
-		if( model==null ) {
-			// draw placeholder
+		if( model==null || !model.isLoaded() ) {
+			// draw placeholder until the model is on the GPU.
+			if(model!=null) ModelLoaderService.requestUpload(model);
 			PrimitiveSolids.drawBox(gl2, 1, 1, 1);
 			PrimitiveSolids.drawStar(gl2,15.0);
 		} else {
 			material.render(gl2);
-			model.render(gl2);
+			model.render(gl2,chooseLevelOfDetail());
+			// uploading measures the model again.
+			refreshCuboidBounds();
 		}
 		gl2.glPopMatrix();
 	}
 	
 	
+	/**
+	 * Pick a level of detail from how big the model looks through the viewport.  The first time a simpler
+	 * level is wanted, the simpler copies are made in the background and full detail is used until they are ready.
+	 * @return 0 for full detail, or a simpler level.  See {@link Model#render(GL2, int)}.
+	 */
+	protected int chooseLevelOfDetail() {
+		if(forceFullDetail || model==null) return 0;
+		Entity root = getRoot();
+		if(!(root instanceof RobotOverlord)) return 0;
+		ViewportEntity viewport = ((RobotOverlord)root).viewport;
+		
+		Cuboid c = model.getCuboid();
+		Point3d top = c.getBoundsTop();
+		Point3d bottom = c.getBoundsBottom();
+		Point3d center = new Point3d(
+				(top.x+bottom.x)/2,
+				(top.y+bottom.y)/2,
+				(top.z+bottom.z)/2);
+		getPoseWorld().transform(center);
+		double pixels = viewport.getProjectedSize(center, top.distance(bottom)/2);
+		
+		int level=0;
+		while(level<LEVEL_OF_DETAIL_PIXELS.length && pixels<LEVEL_OF_DETAIL_PIXELS[level]) level++;
+		if(level>0 && model.getNumLevelsOfDetail()==1) {
+			ModelLoaderService.requestLevelsOfDetail(model);
+		}
+		return level;
+	}
+	
+	/**
+	 * @param state true to draw every model at full detail, as for screenshots.  false to pick a level of
+	 * detail by size on screen.
+	 */
+	public static void setForceFullDetail(boolean state) {
+		forceFullDetail = state;
+	}
+	
+	public static boolean getForceFullDetail() {
+		return forceFullDetail;
+	}
+	
 	public MaterialEntity getMaterial() {
 		return material;
 	}
@@ -246,10 +376,55 @@ public class ModelEntity extends PoseEntity {
 	}
 	
 	public void setModel(Model m) {
+		synchronized(this) {
+			ModelLoaderService.discard(pendingLoad);
+			pendingLoad=null;
+			pendingFilename=null;
+		}
+		if(m==model) return;
+		releaseModel();
 		model = m;
+		acquireModel();
+		refreshCuboidBounds();
 	}
 	
+	private void acquireModel() {
+		if(model==null || holdsModelReference) return;
+		ModelPool.acquire(model);
+		holdsModelReference=true;
+	}
+	
+	private void releaseModel() {
+		if(model==null || !holdsModelReference) return;
+		ModelPool.release(model);
+		holdsModelReference=false;
+	}
+	
+	/**
+	 * Models are shared through the {@link ModelPool}.  Give back the reference while this entity is not in the scene
+	 * so that the model can be evicted, and take it again when the entity returns.
+	 */
+	@Override
+	public void setParent(Entity e) {
+		Entity oldParent = getParent();
+		super.setParent(e);
+		if(oldParent!=null && e==null) releaseModel();
+		else if(oldParent==null && e!=null) acquireModel();
+	}
+	
+	/**
+	 * @return the model, waiting for it to finish loading if needed.
+	 */
 	public Model getModel() {
+		waitForModel();
+		return model;
+	}
+	
+	/**
+	 * @return the model, or null if it is still loading.  Never waits.
+	 */
+	public Model getModelIfReady() {
+		checkPendingLoad();
 		return model;
 	}
 	
@@ -297,68 +472,24 @@ public class ModelEntity extends PoseEntity {
 
 	/**
 	 * Makes sure to only load one instance of each source file.  Loads all the data immediately.
+	 * The caller holds a reference to the model and should give it back with {@link ModelPool#release(Model)}.
 	 * @param sourceName file from which to load.  may be filename.ext or zipfile.zip:filename.ext
 	 * @return the instance.
 	 * @throws Exception if file cannot be read successfully
 	 */
 	public static Model createModelFromFilename(String sourceName) throws Exception {
-		if(sourceName == null || sourceName.trim().length()==0) return null;
-		
-		// find the existing model in the pool
-		Iterator<Model> iter = modelPool.iterator();
-		while(iter.hasNext()) {
-			Model m = iter.next();
-			if(m.getSourceName().equals(sourceName)) {
-				return m;
-			}
-		}
-		
-		Model m=null;
-		
-		// not in pool.  Find a serviceLoader that can load this file type.
-		ServiceLoader<ModelLoadAndSave> loaders = ServiceLoader.load(ModelLoadAndSave.class);
-		Iterator<ModelLoadAndSave> i = loaders.iterator();
-		int count=0;
-		while(i.hasNext()) {
-			count++;
-			ModelLoadAndSave loader = i.next();
-			if(loader.canLoad() && loader.canLoad(sourceName)) {
-				BufferedInputStream stream = FileAccess.open(sourceName);
-				m=new Model();
-				if(loader.load(stream,m)) {
-					m.setSourceName(sourceName);
-					m.setLoader(loader);
-					// Maybe add a m.setSaveAndLoader(loader); ?
-					modelPool.add(m);
-					break;
-				}
-			}
-		}
-
-		if(m==null) {
-			if(count==0) {
-				throw new Exception("No loaders found!");
-			} else {
-				throw new Exception("No loader found for "+sourceName);
-			}
-		}
-		
-		return m;
+		return ModelPool.acquire(sourceName);
 	}
 	
-	protected void reload() {
-		if(model==null) return;
-		try {
-			model.clear();
-			BufferedInputStream stream = FileAccess.open(this.getModelFilename());
-			ModelLoadAndSave loader = model.loader;
-			loader.load(stream,model);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * Read the file again, in the background.  Other entities that share the old model keep it until they
+	 * reload too.  The old model stays here until the new one is ready.
+	 */
+	protected synchronized void reload() {
+		String name = getModelFilename();
+		if(model==null || pendingLoad!=null || name==null || name.trim().isEmpty()) return;
+		ModelPool.forget(name);
+		pendingFilename = name;
+		pendingLoad = ModelLoaderService.load(name);
 	}
 }
@@ -3,6 +3,8 @@ package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
 import java.io.BufferedInputStream;
 import java.io.OutputStream;
 
+import com.marginallyclever.convenience.FileAccess;
+
 public interface ModelLoadAndSave {
 	public String getEnglishName();
 	public String getValidExtensions();
@@ -28,6 +30,23 @@ public interface ModelLoadAndSave {
 	 */
 	public boolean load(BufferedInputStream inputStream,Model model) throws Exception;
 
+	/**
+	 * Load data from a named source into model.  Loaders that can do better with random access
+	 * to a file on disk (memory mapping, for example) should override this.
+	 * @param sourceName file from which to load.  may be filename.ext or zipfile.zip:filename.ext
+	 * @param model
+	 * @returns true if model loaded OK.
+	 * @throws Exception
+	 */
+	default public boolean load(String sourceName,Model model) throws Exception {
+		BufferedInputStream stream = FileAccess.open(sourceName);
+		try {
+			return load(stream,model);
+		} finally {
+			stream.close();
+		}
+	}
+
 	/**
 	 * Can you save at all?
 	 * @return true for yes
@@ -0,0 +1,184 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import com.jogamp.opengl.GL2;
+
+/**
+ * Loads models in the background so that opening a big scene doesn't freeze the user interface.
+ * <p>
+ * Files are parsed on a pool of worker threads, one per core.  Parsed models wait in a bounded queue until
+ * the GL thread calls update(), which uploads as many of them to the GPU as fit in the per-frame time budget.
+ * @author Dan Royer
+ */
+public class ModelLoaderService {
+	private static final int UPLOAD_QUEUE_SIZE = 64;
+
+	private static final ExecutorService workers = Executors.newFixedThreadPool(
+			Math.max(1,Runtime.getRuntime().availableProcessors()),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"ModelLoader-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	// jobs handed to the workers that haven't finished.
+	private static final AtomicInteger jobs = new AtomicInteger();
+
+	// models waiting for the GL thread to upload them.
+	private static final ArrayBlockingQueue<Model> uploadQueue = new ArrayBlockingQueue<Model>(UPLOAD_QUEUE_SIZE);
+
+	// nanoseconds the GL thread may spend on uploads in one frame.
+	private static long uploadBudget = 5L*1000*1000;
+
+	/**
+	 * Start loading a model on a worker thread.  The caller will hold a reference to the model in the
+	 * {@link ModelPool} once the load completes, and must give it back with {@link ModelPool#release(Model)},
+	 * or with discard() if it no longer wants the result.
+	 * @param sourceName file from which to load.  may be filename.ext or zipfile.zip:filename.ext
+	 * @return the pending result.
+	 */
+	public static CompletableFuture<Model> load(final String sourceName) {
+		jobs.incrementAndGet();
+		return CompletableFuture.supplyAsync(new Supplier<Model>() {
+			@Override
+			public Model get() {
+				try {
+					return ModelPool.acquire(sourceName);
+				} catch(Exception e) {
+					throw new CompletionException(e);
+				} finally {
+					jobs.decrementAndGet();
+				}
+			}
+		}, workers);
+	}
+
+	/**
+	 * Give up on a load started with load().  The model reference is given back whenever the load finishes.
+	 * @param future the pending result.  null is ignored.
+	 * @return completes once the reference has been given back, or null if future was null.
+	 */
+	public static CompletableFuture<Model> discard(CompletableFuture<Model> future) {
+		if(future==null) return null;
+		return future.whenComplete(new BiConsumer<Model,Throwable>() {
+			@Override
+			public void accept(Model m, Throwable t) {
+				if(m!=null) ModelPool.release(m);
+			}
+		});
+	}
+
+	/**
+	 * Ask the GL thread to upload a model to the GPU.  Safe to call every frame; a model is only queued once.
+	 * If the queue is full the request is dropped and should be repeated next frame.
+	 * @param model the model
+	 */
+	public static void requestUpload(Model model) {
+		if(model==null || model.uploadQueued) return;
+		model.uploadQueued=true;
+		if(!uploadQueue.offer(model)) {
+			model.uploadQueued=false;
+		}
+	}
+
+	/**
+	 * Reload the released CPU-side arrays of a model on a worker thread, then ask for it to be uploaded.
+	 * See {@link Model#restoreCPUData()}.  Only one restore per model waits at a time.
+	 * @param model the model
+	 * @return the pending result, or null if a restore is already waiting.
+	 */
+	public static CompletableFuture<Model> requestRestore(final Model model) {
+		if(model==null || !model.markRestoreRequested()) return null;
+		jobs.incrementAndGet();
+		return CompletableFuture.supplyAsync(new Supplier<Model>() {
+			@Override
+			public Model get() {
+				try {
+					model.restoreCPUData();
+					model.isDirty=true;
+					requestUpload(model);
+					return model;
+				} finally {
+					model.restoreQueued=false;
+					jobs.decrementAndGet();
+				}
+			}
+		}, workers);
+	}
+
+	/**
+	 * Make simpler copies of a model on a worker thread, for drawing it far away.  See {@link ModelDecimator}.
+	 * Only the first request for each model does anything.  The copies are uploaded when first drawn.
+	 * @param model the model
+	 * @return the pending result, or null if the copies were already requested.
+	 */
+	public static CompletableFuture<Model []> requestLevelsOfDetail(final Model model) {
+		if(model==null || !model.markLevelsOfDetailRequested()) return null;
+		jobs.incrementAndGet();
+		return CompletableFuture.supplyAsync(new Supplier<Model []>() {
+			@Override
+			public Model [] get() {
+				try {
+					Model [] lods = ModelDecimator.makeLevelsOfDetail(model);
+					model.setLevelsOfDetail(lods);
+					return lods;
+				} finally {
+					jobs.decrementAndGet();
+				}
+			}
+		}, workers);
+	}
+
+	/**
+	 * Upload queued models until this frame's time budget is spent.  At least one model is uploaded per call
+	 * so that the queue always makes progress.  Call once per frame from the GL thread.
+	 * @param gl2 the render context
+	 */
+	public static void update(GL2 gl2) {
+		long start = System.nanoTime();
+		Model m;
+		while((m=uploadQueue.poll())!=null) {
+			m.upload(gl2);
+			m.uploadQueued=false;
+			if(System.nanoTime()-start >= uploadBudget) break;
+		}
+	}
+
+	/**
+	 * @param nanoseconds time the GL thread may spend uploading models each frame.
+	 */
+	public static void setUploadBudget(long nanoseconds) {
+		uploadBudget = nanoseconds;
+	}
+
+	public static long getUploadBudget() {
+		return uploadBudget;
+	}
+
+	/**
+	 * @return the number of models waiting to be uploaded.
+	 */
+	public static int getUploadQueueSize() {
+		return uploadQueue.size();
+	}
+
+	/**
+	 * @return the number of loads, restores, and levels of detail being made on the worker threads.
+	 */
+	public static int getJobCount() {
+		return jobs.get();
+	}
+}
@@ -0,0 +1,377 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jogamp.opengl.GL2;
+import com.marginallyclever.robotOverlord.log.Log;
+
+/**
+ * Shares one {@link Model} between everything that loads the same source file.
+ * <p>
+ * Each {@link ModelEntity} holds a reference to its model through acquire() and gives it back with release().
+ * Models nobody references stay in the pool until the pool grows past its memory budget, at which point the
+ * least recently used are evicted.  Eviction queues the CPU-side arrays and the GPU buffers to be freed the next
+ * time update() is called on the GL thread.
+ * <p>
+ * Loads of different files may run in parallel.  Two threads asking for the same file share one load.
+ * @author Dan Royer
+ */
+public class ModelPool {
+	private static class PoolEntry {
+		public volatile Model model;
+		public int referenceCount;
+	}
+
+	// access ordered, so iteration starts with the least recently used.
+	private static final LinkedHashMap<String,PoolEntry> pool = new LinkedHashMap<String,PoolEntry>(16,0.75f,true);
+	// models taken out of the pool by forget() that are still referenced.  Evicted when the last one is given back.
+	private static final IdentityHashMap<Model,PoolEntry> retired = new IdentityHashMap<Model,PoolEntry>();
+	// models waiting for the GL thread to delete their buffers.
+	private static final ConcurrentLinkedQueue<Model> unloadQueue = new ConcurrentLinkedQueue<Model>();
+
+	private static long memoryBudget = 512L*1024*1024;
+	// off by default.  Picking, levels of detail, and reloading all read the CPU-side arrays, and getting them
+	// back after a release means parsing the source again.
+	private static boolean releaseCPUDataAfterUpload = false;
+	// weld the vertexes of every model loaded.  See ModelWelder.
+	private static boolean weldOnLoad = true;
+	private static float weldEpsilon = 1e-4f;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Get the model for a source file, loading it if needed, and hold a reference to it.
+	 * Every call must be matched by a call to release().
+	 * @param sourceName file from which to load.  may be filename.ext or zipfile.zip:filename.ext
+	 * @return the instance, or null if sourceName is empty.
+	 * @throws Exception if file cannot be read successfully
+	 */
+	public static Model acquire(String sourceName) throws Exception {
+		if(sourceName == null || sourceName.trim().length()==0) return null;
+
+		while(true) {
+			PoolEntry entry;
+			synchronized(pool) {
+				entry = pool.get(sourceName);
+				if(entry==null) {
+					entry = new PoolEntry();
+					pool.put(sourceName, entry);
+					misses.incrementAndGet();
+				} else {
+					hits.incrementAndGet();
+				}
+				entry.referenceCount++;
+			}
+
+			// the first thread in does the loading.  anyone else asking for the same file waits here.
+			synchronized(entry) {
+				if(entry.model==null) {
+					// the load this thread waited for failed and took the entry out of the pool.  start over.
+					synchronized(pool) {
+						if(pool.get(sourceName)!=entry) continue;
+					}
+					try {
+						Model m = loadModel(sourceName);
+						m.setReleaseCPUDataAfterUpload(releaseCPUDataAfterUpload);
+						// picking can't get the triangles back once the arrays are gone.
+						if(releaseCPUDataAfterUpload) m.getBVH();
+						entry.model = m;
+					} catch(Exception e) {
+						synchronized(pool) {
+							entry.referenceCount--;
+							if(pool.get(sourceName)==entry) pool.remove(sourceName);
+						}
+						throw e;
+					}
+				}
+			}
+
+			enforceBudget();
+			return entry.model;
+		}
+	}
+
+	/**
+	 * Hold another reference to a model that came from the pool.  If it has been evicted since, put it back.
+	 * @param model the model.  Models without a source name are not pooled and are returned as-is.
+	 * @return model
+	 */
+	public static Model acquire(Model model) {
+		if(model==null || model.getSourceName()==null) return model;
+
+		synchronized(pool) {
+			PoolEntry entry = pool.get(model.getSourceName());
+			if(entry==null) {
+				entry = new PoolEntry();
+				entry.model = model;
+				pool.put(model.getSourceName(), entry);
+				misses.incrementAndGet();
+			} else if(entry.model!=model) {
+				PoolEntry old = retired.get(model);
+				// the file was loaded again after this copy was evicted.  leave this copy untracked.
+				if(old!=null) old.referenceCount++;
+				return model;
+			} else {
+				hits.incrementAndGet();
+			}
+			entry.referenceCount++;
+		}
+		return model;
+	}
+
+	/**
+	 * Give back a reference obtained with acquire().
+	 * @param model the model.  null is ignored.
+	 */
+	public static void release(Model model) {
+		if(model==null || model.getSourceName()==null) return;
+
+		synchronized(pool) {
+			PoolEntry entry = pool.get(model.getSourceName());
+			if(entry==null || entry.model!=model) {
+				entry = retired.get(model);
+				if(entry==null) return;
+				if(--entry.referenceCount<=0) {
+					retired.remove(model);
+					evict(model);
+				}
+				return;
+			}
+			if(entry.referenceCount>0) entry.referenceCount--;
+		}
+		enforceBudget();
+	}
+
+	/**
+	 * Take a file out of the pool so the next acquire() loads it again.  Anyone holding the old model keeps it
+	 * until they give it back with release(), and then it is evicted.
+	 * @param sourceName file from which the model was loaded.
+	 */
+	public static void forget(String sourceName) {
+		if(sourceName==null) return;
+
+		synchronized(pool) {
+			PoolEntry entry = pool.get(sourceName);
+			// still loading.  the loader will put it in the pool anyway, so leave it be.
+			if(entry==null || entry.model==null) return;
+			pool.remove(sourceName);
+			if(entry.referenceCount>0) retired.put(entry.model, entry);
+			else evict(entry.model);
+		}
+	}
+
+	/**
+	 * Evict the least recently used, unreferenced models until the pool fits in the memory budget.
+	 */
+	private static void enforceBudget() {
+		synchronized(pool) {
+			long used = getMemoryUsed();
+			if(used<=memoryBudget) return;
+
+			Iterator<Map.Entry<String,PoolEntry>> iter = pool.entrySet().iterator();
+			while(iter.hasNext() && used>memoryBudget) {
+				PoolEntry entry = iter.next().getValue();
+				if(entry.referenceCount>0 || entry.model==null) continue;
+
+				used -= entry.model.getMemoryUsed();
+				iter.remove();
+				evict(entry.model);
+			}
+		}
+	}
+
+	private static void evict(Model model) {
+		evictions.incrementAndGet();
+		unloadQueue.add(model);
+	}
+
+	/**
+	 * Free the CPU-side arrays and delete the GPU buffers of evicted models.  Call once per frame from the GL
+	 * thread.  The arrays are freed here and not when the model is evicted, so they never vanish in the middle
+	 * of an upload.
+	 * @param gl2 the render context
+	 */
+	public static void update(GL2 gl2) {
+		Model m;
+		while((m=unloadQueue.poll())!=null) {
+			m.releaseCPUData();
+			m.unload(gl2);
+		}
+	}
+
+	/**
+	 * Load a model that will not be shared with anyone else.  Use this when the model will be modified.
+	 * An up-to-date copy in the {@link ModelCache} is used instead of parsing the source, if there is one.
+	 * @param sourceName file from which to load.  may be filename.ext or zipfile.zip:filename.ext
+	 * @return the instance.
+	 * @throws Exception if file cannot be read successfully
+	 */
+	public static Model loadModel(String sourceName) throws Exception {
+		Model m=null;
+
+		// Find a serviceLoader that can load this file type.
+		ServiceLoader<ModelLoadAndSave> loaders = ServiceLoader.load(ModelLoadAndSave.class);
+		Iterator<ModelLoadAndSave> i = loaders.iterator();
+		int count=0;
+		while(i.hasNext()) {
+			count++;
+			ModelLoadAndSave loader = i.next();
+			if(loader.canLoad() && loader.canLoad(sourceName)) {
+				m=new Model();
+				
+				long hash=0;
+				boolean useCache = ModelCache.isEnabled();
+				if(useCache) {
+					try {
+						hash = ModelCache.hashSource(sourceName);
+					} catch(IOException e) {
+						// let the loader report the problem.
+						useCache=false;
+					}
+				}
+				if(useCache && ModelCache.load(sourceName,hash,m)) {
+					// the cache holds the model as it was welded when it was saved.
+					if(isWeldedAsAsked(m)) {
+						m.setSourceName(sourceName);
+						m.setLoader(loader);
+						return m;
+					}
+					// welded some other way.  parse the source again and replace the cache file.
+					m=new Model();
+				}
+				
+				if(loader.load(sourceName,m)) {
+					if(weldOnLoad) ModelWelder.weld(m,weldEpsilon);
+					if(useCache) ModelCache.save(sourceName,hash,m);
+					m.setSourceName(sourceName);
+					m.setLoader(loader);
+					return m;
+				}
+			}
+		}
+
+		if(count==0) {
+			throw new Exception("No loaders found!");
+		} else {
+			throw new Exception("No loader found for "+sourceName);
+		}
+	}
+
+	/**
+	 * @return true if the model is welded with the current settings, or not welded when welding is off.
+	 */
+	private static boolean isWeldedAsAsked(Model m) {
+		if(!weldOnLoad) return !m.hasIndexes;
+		return m.hasIndexes && m.getWeldEpsilon()==weldEpsilon;
+	}
+
+	/**
+	 * @return bytes of CPU and GPU memory used by every model in the pool.
+	 */
+	public static long getMemoryUsed() {
+		long sum=0;
+		synchronized(pool) {
+			for( PoolEntry entry : pool.values() ) {
+				if(entry.model!=null) sum += entry.model.getMemoryUsed();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @param bytes how much memory unreferenced models may use before they are evicted.
+	 */
+	public static void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+		enforceBudget();
+	}
+
+	public static long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param state if true, models loaded from now on drop their CPU-side arrays once the GPU has a copy.
+	 * They will be reloaded from the source file if needed again, which is slow.  Each model's {@link ModelBVH}
+	 * is made as it is loaded, so picking still works.  Only worth it for scenes that don't use levels of detail.
+	 */
+	public static void setReleaseCPUDataAfterUpload(boolean state) {
+		releaseCPUDataAfterUpload = state;
+	}
+
+	public static boolean getReleaseCPUDataAfterUpload() {
+		return releaseCPUDataAfterUpload;
+	}
+
+	/**
+	 * @param state if true, models loaded from now on are turned into indexed meshes.
+	 * @param epsilon vertexes closer than this are merged.
+	 */
+	public static void setWeldOnLoad(boolean state,float epsilon) {
+		weldOnLoad = state;
+		weldEpsilon = epsilon;
+	}
+
+	public static boolean getWeldOnLoad() {
+		return weldOnLoad;
+	}
+
+	public static float getWeldEpsilon() {
+		return weldEpsilon;
+	}
+
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	public static long getMissCount() {
+		return misses.get();
+	}
+
+	public static long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public static int size() {
+		synchronized(pool) {
+			return pool.size();
+		}
+	}
+
+	/**
+	 * @param model the model
+	 * @return the number of references held to this model, or 0 if it is not in the pool.
+	 */
+	public static int getReferenceCount(Model model) {
+		if(model==null || model.getSourceName()==null) return 0;
+		synchronized(pool) {
+			PoolEntry entry = pool.get(model.getSourceName());
+			if(entry==null || entry.model!=model) entry = retired.get(model);
+			return (entry==null) ? 0 : entry.referenceCount;
+		}
+	}
+
+	public static String getStatistics() {
+		return "ModelPool: "+size()+" models, "
+				+(getMemoryUsed()/1024)+"/"+(memoryBudget/1024)+"kb, "
+				+hits.get()+" hits, "
+				+misses.get()+" misses, "
+				+evictions.get()+" evictions";
+	}
+
+	/**
+	 * Log the pool statistics.
+	 */
+	public static void logStatistics() {
+		Log.message(getStatistics());
+	}
+}
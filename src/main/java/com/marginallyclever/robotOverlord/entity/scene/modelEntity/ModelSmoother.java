@@ -1,112 +1,151 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.marginallyclever.robotOverlord.log.Log;
 
 /**
- * Smooth STL models and save them back to disk.  Meant for one time processing files.
+ * Smooth models and save them back to disk.  Meant for one time processing files.
+ * <p>
+ * From the command line:<br>
+ * <code>ModelSmoother [-v vertexEpsilon] [-n normalEpsilon] in out [in out...]</code><br>
+ * For example, to smooth the Sixi2 meshes:<br>
+ * <code>ModelSmoother /Sixi2/anchor.obj anchor.stl /Sixi2/shoulder.obj shoulder.stl /Sixi2/bicep.obj bicep.stl ...</code>
  * @author dan royer
  */
-public class ModelSmoother {/*
+public class ModelSmoother {
+	// vertexes per fork/join task when searching for neighbors.
+	private static final int TASK_SIZE = 4096;
+
 	public static void main(String[] argv) throws IllegalArgumentException, IOException {
 		float vertexEpsilon = 0.1f;
 		float normalEpsilon = 0.25f;
-		
-		if( argv.length     == 0 ) throw new IllegalArgumentException("not enough parameters");
-		if( argv.length % 2 != 0 ) throw new IllegalArgumentException("not enough parameters");
-		
-		int i;
-		for(i=0;i<argv.length;++i) {
+
+		int i=0;
+		while(i<argv.length && argv[i].startsWith("-")) {
+			if(i+1>=argv.length) throw new IllegalArgumentException("missing value for "+argv[i]);
+			if(argv[i].equals("-v")) vertexEpsilon = Float.parseFloat(argv[i+1]);
+			else if(argv[i].equals("-n")) normalEpsilon = Float.parseFloat(argv[i+1]);
+			else throw new IllegalArgumentException("unknown option "+argv[i]);
+			i+=2;
+		}
+
+		if( argv.length - i == 0 ) throw new IllegalArgumentException("not enough parameters");
+		if( (argv.length - i) % 2 != 0 ) throw new IllegalArgumentException("not enough parameters");
+
+		for(;i<argv.length;i+=2) {
 			String sourceName = argv[i+0];
 			String destName   = argv[i+1];
+			Log.message("Smoothing "+sourceName+" to "+destName);
 			smoothModel(sourceName,destName,vertexEpsilon,normalEpsilon);
 		}
-	}*/
+	}
 
 	public static void smoothModel(String inName,String outName,float vertexEpsilon,float normalEpsilon) throws IOException {
 		try {
-			Model m = ModelEntity.createModelFromFilename(inName);
+			Model m = ModelPool.loadModel(inName);
 			smoothNormals(m,vertexEpsilon,normalEpsilon);
-			
-			//File file = new File(outName);
-			//FileOutputStream fos = new FileOutputStream(file);
-			//m.getModelLoadAndSave().saveToStreamAsBinary(fos);
+
+			ModelLoadAndSave saver = findSaver(outName);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(outName));
+			try {
+				saver.save(out,m);
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			throw e;
 		} catch(Exception e) {
-			e.printStackTrace();
+			throw new IOException("Smoothing "+inName+" failed: "+e.getLocalizedMessage(),e);
+		}
+	}
+
+	private static ModelLoadAndSave findSaver(String outName) throws IOException {
+		ServiceLoader<ModelLoadAndSave> loaders = ServiceLoader.load(ModelLoadAndSave.class);
+		Iterator<ModelLoadAndSave> i = loaders.iterator();
+		while(i.hasNext()) {
+			ModelLoadAndSave saver = i.next();
+			if(saver.canSave() && saver.canSave(outName)) return saver;
 		}
+		throw new IOException("No saver found for "+outName);
 	}
 
 	/**
-	 * Smooth normals.  Find points within vertexEpsilon of each other, sharing normals within normalEpsilon 
-	 * of each other, and then smooths the nromals (makes them the same, an average of the normals considered).
+	 * Smooth normals.  Find points within vertexEpsilon of each other, sharing normals within normalEpsilon
+	 * of each other, and then smooths the normals (makes them the same, an average of the normals considered).
 	 * Note: Modified the original model.
-	 * 
-	 * @param model the model containing the data to smooth. 
+	 * <p>
+	 * Vertexes are visited in order.  Each one not already smoothed is grouped with every later vertex not
+	 * already smoothed that is close enough in position and normal.  Vertexes are hashed into a grid of cells
+	 * vertexEpsilon wide, so only neighboring cells are searched, and the search runs in parallel.
+	 *
+	 * @param model the model containing the data to smooth.
 	 * @param vertexEpsilon how close should points be to be considered one and the same.  typically ~0.001
 	 * @param normalEpsilon how close should normals be to be merged. 0...2 larger values more smoothing.
 	 */
 	public static void smoothNormals(Model model,float vertexEpsilon,float normalEpsilon) {
-		float vertexEpsilonSquared = vertexEpsilon * vertexEpsilon;
-		float normalEpsilonSquared = normalEpsilon * normalEpsilon;
+		final float vertexEpsilonSquared = vertexEpsilon * vertexEpsilon;
+		final float normalEpsilonSquared = normalEpsilon * normalEpsilon;
+
+		final int numVertexes = model.vertexArray.size()/3;
+		if(model.normalArray.size() < numVertexes*3) return;
+		final float [] vertexArray = model.vertexArray.getArray();
+		final float [] normalArray = model.normalArray.getArray();
+
+		final Grid grid = new Grid(vertexArray,numVertexes,vertexEpsilon);
+
+		// for each vertex, the later vertexes it could be smoothed with.
+		final int [] start = new int[numVertexes+1];
+		ForkJoinPool.commonPool().invoke(new VertexTask(0,numVertexes,new VertexVisitor() {
+			@Override
+			public void visit(int i) {
+				start[i+1] = grid.findNeighbors(i,vertexArray,normalArray,vertexEpsilonSquared,normalEpsilonSquared,null,0);
+			}
+		}));
+		for(int i=0;i<numVertexes;++i) start[i+1]+=start[i];
 
-		int numFaces = model.vertexArray.size()/3;
-		ArrayList<Integer> indexList = new ArrayList<Integer>();
-		boolean [] skip = new boolean[numFaces];
+		final int [] neighbors = new int[start[numVertexes]];
+		ForkJoinPool.commonPool().invoke(new VertexTask(0,numVertexes,new VertexVisitor() {
+			@Override
+			public void visit(int i) {
+				grid.findNeighbors(i,vertexArray,normalArray,vertexEpsilonSquared,normalEpsilonSquared,neighbors,start[i]);
+				Arrays.sort(neighbors,start[i],start[i+1]);
+			}
+		}));
 
-		int i,j;
-		for(i=0;i<numFaces;++i) {
+		// group in order, exactly as comparing every pair would.
+		boolean [] skip = new boolean[numVertexes];
+		int [] indexList = new int[numVertexes];
+		int size;
+		int i,j,k;
+		for(i=0;i<numVertexes;++i) {
 			if(skip[i]) continue;
-			
-			Log.message("Smoothing "+i);
-			
-
-			// find vertices that are in the same position
-			float p1x = model.vertexArray.get(i*3+0);
-			float p1y = model.vertexArray.get(i*3+1);
-			float p1z = model.vertexArray.get(i*3+2);
-
-			float n1x = model.normalArray.get(i*3+0);
-			float n1y = model.normalArray.get(i*3+1);
-			float n1z = model.normalArray.get(i*3+2);
-
-			indexList.clear();
-			indexList.add(i);
-			
-			for(j=i+1;j<numFaces;++j) {
-				if(skip[j]) continue;
-
-				float p2x = model.vertexArray.get(j*3+0);
-				float p2y = model.vertexArray.get(j*3+1);
-				float p2z = model.vertexArray.get(j*3+2);
-				//if(Math.abs(p1x-p2x)>vertexEpsilonSquared) continue;
-				//if(Math.abs(p1y-p2y)>vertexEpsilonSquared) continue;
-				//if(Math.abs(p1z-p2z)>vertexEpsilonSquared) continue;
-				
-				if( lengthDifferenceSquared(p1x,p1y,p1z,p2x,p2y,p2z) <= vertexEpsilonSquared ) {
-
-					float n2x = model.normalArray.get(j*3+0);
-					float n2y = model.normalArray.get(j*3+1);
-					float n2z = model.normalArray.get(j*3+2);
-					if( lengthDifferenceSquared(n1x,n1y,n1z,n2x,n2y,n2z) <= normalEpsilonSquared ) {
-						indexList.add(j);
-					}
-				}
+
+			size=0;
+			indexList[size++]=i;
+			for(k=start[i];k<start[i+1];++k) {
+				j=neighbors[k];
+				if(!skip[j]) indexList[size++]=j;
 			}
-			
-			if(indexList.size()>1) {
-				n1x=0;
-				n1y=0;
-				n1z=0;
-
-				int size = indexList.size();
-				int k;
+
+			if(size>1) {
+				float n1x=0;
+				float n1y=0;
+				float n1z=0;
+
 				for(k=0;k<size;++k) {
-					j = indexList.get(k)*3;
-					n1x += model.normalArray.get(j+0);
-					n1y += model.normalArray.get(j+1);
-					n1z += model.normalArray.get(j+2);
+					j = indexList[k]*3;
+					n1x += normalArray[j+0];
+					n1y += normalArray[j+1];
+					n1z += normalArray[j+2];
 				}
 				float len = length(n1x,n1y,n1z);
 				n1x /= len;
@@ -114,19 +153,129 @@ public class ModelSmoother {/*
 				n1z /= len;
 
 				for(k=0;k<size;++k) {
-					j = indexList.get(k);
+					j = indexList[k];
 					skip[j]=true;
 					j*=3;
-					model.normalArray.set(j+0, n1x);
-					model.normalArray.set(j+1, n1y);
-					model.normalArray.set(j+2, n1z);
+					normalArray[j+0] = n1x;
+					normalArray[j+1] = n1y;
+					normalArray[j+2] = n1z;
 				}
 			}
 		}
 		model.isDirty=true;
 	}
 
-	
+	private interface VertexVisitor {
+		public void visit(int i);
+	}
+
+	/**
+	 * Visit every vertex in [from,to), splitting the work across the fork/join pool.
+	 */
+	private static class VertexTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+		private final VertexVisitor visitor;
+
+		public VertexTask(int from,int to,VertexVisitor visitor) {
+			this.from=from;
+			this.to=to;
+			this.visitor=visitor;
+		}
+
+		@Override
+		protected void compute() {
+			if(to-from<=TASK_SIZE) {
+				for(int i=from;i<to;++i) visitor.visit(i);
+				return;
+			}
+			int mid = (from+to)>>>1;
+			invokeAll(new VertexTask(from,mid,visitor), new VertexTask(mid,to,visitor));
+		}
+	}
+
+	/**
+	 * Vertexes hashed into cells a little wider than epsilon, so any two vertexes within epsilon
+	 * of each other are in the same or neighboring cells.
+	 */
+	private static class Grid {
+		private final float cellSize;
+		private final int reach;
+		private final int [] cellX, cellY, cellZ;
+		private final int [] table;
+		private final int [] next;
+
+		public Grid(float [] vertexArray,int numVertexes,float epsilon) {
+			// slightly wider than epsilon so rounding in the division can't push a neighbor two cells away.
+			epsilon = Math.abs(epsilon);
+			cellSize = epsilon>0 ? epsilon*1.001f : 1;
+			reach = epsilon>0 ? 1 : 0;
+			cellX = new int[numVertexes];
+			cellY = new int[numVertexes];
+			cellZ = new int[numVertexes];
+			table = new int[Integer.highestOneBit(Math.max(numVertexes,1)*2-1)<<1];
+			Arrays.fill(table, -1);
+			next = new int[numVertexes];
+
+			// insert backwards so every chain runs in ascending order.
+			for(int i=numVertexes-1;i>=0;--i) {
+				cellX[i] = (int)Math.floor(vertexArray[i*3+0]/cellSize);
+				cellY[i] = (int)Math.floor(vertexArray[i*3+1]/cellSize);
+				cellZ[i] = (int)Math.floor(vertexArray[i*3+2]/cellSize);
+				int h = hash(cellX[i],cellY[i],cellZ[i]);
+				next[i] = table[h];
+				table[h] = i;
+			}
+		}
+
+		private int hash(int x,int y,int z) {
+			int h = x*73856093 ^ y*19349663 ^ z*83492791;
+			return (h ^ (h>>>16)) & (table.length-1);
+		}
+
+		/**
+		 * Find every vertex after i within epsilon of i in both position and normal.
+		 * @param out if not null, the neighbors are written here starting at offset.
+		 * @return the number of neighbors.
+		 */
+		public int findNeighbors(int i,float [] vertexArray,float [] normalArray,float vertexEpsilonSquared,float normalEpsilonSquared,int [] out,int offset) {
+			float p1x = vertexArray[i*3+0];
+			float p1y = vertexArray[i*3+1];
+			float p1z = vertexArray[i*3+2];
+			float n1x = normalArray[i*3+0];
+			float n1y = normalArray[i*3+1];
+			float n1z = normalArray[i*3+2];
+			int count=0;
+
+			for(int dx=-reach;dx<=reach;++dx) {
+				for(int dy=-reach;dy<=reach;++dy) {
+					for(int dz=-reach;dz<=reach;++dz) {
+						int ux=cellX[i]+dx, uy=cellY[i]+dy, uz=cellZ[i]+dz;
+						for(int j=table[hash(ux,uy,uz)]; j!=-1; j=next[j]) {
+							if(j<=i) continue;
+							if(cellX[j]!=ux || cellY[j]!=uy || cellZ[j]!=uz) continue;
+
+							float p2x = vertexArray[j*3+0];
+							float p2y = vertexArray[j*3+1];
+							float p2z = vertexArray[j*3+2];
+							if(!( lengthDifferenceSquared(p1x,p1y,p1z,p2x,p2y,p2z) <= vertexEpsilonSquared )) continue;
+
+							float n2x = normalArray[j*3+0];
+							float n2y = normalArray[j*3+1];
+							float n2z = normalArray[j*3+2];
+							if(!( lengthDifferenceSquared(n1x,n1y,n1z,n2x,n2y,n2z) <= normalEpsilonSquared )) continue;
+
+							if(out!=null) out[offset+count]=j;
+							count++;
+						}
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+
 	private static float lengthDifferenceSquared(float p1x,float p1y,float p1z,float p2x,float p2y,float p2z) {
 		float dx = p2x-p1x;
 		float dy = p2y-p1y;
@@ -134,12 +283,12 @@ public class ModelSmoother {/*
 
 		return lengthSquared(dx,dy,dz);
 	}
-	
-	
+
+
 	private static float lengthSquared(float dx,float dy,float dz) {
 		return dx*dx+dy*dy+dz*dz;
 	}
-	
+
 	private static float length(float dx,float dy,float dz) {
 		return (float)Math.sqrt(lengthSquared(dx,dy,dz));
 	}
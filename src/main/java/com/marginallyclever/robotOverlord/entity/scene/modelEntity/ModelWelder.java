@@ -0,0 +1,131 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity;
+
+import java.util.Arrays;
+
+import com.marginallyclever.convenience.FloatArrayList;
+import com.marginallyclever.convenience.IntArrayList;
+
+/**
+ * Turns a triangle soup into an indexed mesh.  Vertexes in the same place with the same normal, color, and
+ * texture coordinate are merged into one, and an index buffer says which of them each triangle uses.
+ * <p>
+ * Vertexes are hashed into a grid of cells epsilon wide, so each one is only compared against the
+ * vertexes in the neighboring cells.
+ * @author Dan Royer
+ */
+public class ModelWelder {
+	// normals, colors, and texture coordinates this close are the same.
+	public static final float ATTRIBUTE_EPSILON = 1e-4f;
+
+	/**
+	 * Weld the vertexes of a model.  Does nothing if the model is already indexed.
+	 * @param model the model to weld.  Its arrays are replaced.
+	 * @param epsilon vertexes closer than this are merged.  0 merges only identical vertexes.
+	 */
+	public static void weld(Model model,float epsilon) {
+		if(model.hasIndexes) return;
+
+		int numVertexes = model.vertexArray.size()/3;
+		boolean hasNormals = model.hasNormals && model.normalArray.size()>=numVertexes*3;
+		boolean hasColors = model.hasColors && model.colorArray.size()>=numVertexes*4;
+		boolean hasUVs = model.hasUVs && model.texCoordArray.size()>=numVertexes*2;
+
+		float [] v = model.vertexArray.getArray();
+		float [] n = model.normalArray.getArray();
+		float [] c = model.colorArray.getArray();
+		float [] t = model.texCoordArray.getArray();
+
+		// a vertex can only match vertexes in its own or neighboring cells.
+		float cellSize = epsilon>0 ? epsilon : 1;
+		int reach = epsilon>0 ? 1 : 0;
+		float epsilonSquared = epsilon*epsilon;
+		float attributeEpsilonSquared = ATTRIBUTE_EPSILON*ATTRIBUTE_EPSILON;
+
+		// chained hash table of unique vertexes, keyed by cell.
+		int tableSize = Integer.highestOneBit(Math.max(numVertexes,1)*2-1)<<1;
+		int [] table = new int[tableSize];
+		Arrays.fill(table, -1);
+		int [] next = new int[numVertexes];
+		int [] unique = new int[numVertexes];  // source vertex of each unique vertex
+		int [] cellX = new int[numVertexes];
+		int [] cellY = new int[numVertexes];
+		int [] cellZ = new int[numVertexes];
+		int numUnique=0;
+
+		IntArrayList indexes = new IntArrayList(numVertexes);
+		int [] index = indexes.getArray();
+		indexes.expand(numVertexes);
+
+		for(int i=0;i<numVertexes;++i) {
+			float x=v[i*3], y=v[i*3+1], z=v[i*3+2];
+			int cx = (int)Math.floor(x/cellSize);
+			int cy = (int)Math.floor(y/cellSize);
+			int cz = (int)Math.floor(z/cellSize);
+
+			int found=-1;
+			search:
+			for(int dx=-reach;dx<=reach;++dx) {
+				for(int dy=-reach;dy<=reach;++dy) {
+					for(int dz=-reach;dz<=reach;++dz) {
+						int ux=cx+dx, uy=cy+dy, uz=cz+dz;
+						for(int u=table[hash(ux,uy,uz)&(tableSize-1)]; u!=-1; u=next[u]) {
+							if(cellX[u]!=ux || cellY[u]!=uy || cellZ[u]!=uz) continue;
+							int j = unique[u];
+							if(distanceSquared(v,i*3,j*3,3)>epsilonSquared) continue;
+							if(hasNormals && distanceSquared(n,i*3,j*3,3)>attributeEpsilonSquared) continue;
+							if(hasColors && distanceSquared(c,i*4,j*4,4)>attributeEpsilonSquared) continue;
+							if(hasUVs && distanceSquared(t,i*2,j*2,2)>attributeEpsilonSquared) continue;
+							found=u;
+							break search;
+						}
+					}
+				}
+			}
+
+			if(found==-1) {
+				found=numUnique++;
+				unique[found]=i;
+				cellX[found]=cx;
+				cellY[found]=cy;
+				cellZ[found]=cz;
+				int h = hash(cx,cy,cz)&(tableSize-1);
+				next[found]=table[h];
+				table[h]=found;
+			}
+			index[i]=found;
+		}
+
+		model.vertexArray = gather(v,unique,numUnique,3);
+		if(hasNormals) model.normalArray = gather(n,unique,numUnique,3);
+		if(hasColors) model.colorArray = gather(c,unique,numUnique,4);
+		if(hasUVs) model.texCoordArray = gather(t,unique,numUnique,2);
+		model.indexArray = indexes;
+		model.hasIndexes = true;
+		model.weldEpsilon = epsilon;
+		model.isDirty = true;
+	}
+
+	private static FloatArrayList gather(float [] src,int [] unique,int numUnique,int stride) {
+		FloatArrayList list = new FloatArrayList(numUnique*stride);
+		float [] dest = list.getArray();
+		list.expand(numUnique*stride);
+		for(int u=0;u<numUnique;++u) {
+			System.arraycopy(src, unique[u]*stride, dest, u*stride, stride);
+		}
+		return list;
+	}
+
+	private static int hash(int x,int y,int z) {
+		int h = x*73856093 ^ y*19349663 ^ z*83492791;
+		return h ^ (h>>>16);
+	}
+
+	private static float distanceSquared(float [] a,int i,int j,int count) {
+		float sum=0;
+		for(int k=0;k<count;++k) {
+			float d = a[i+k]-a[j+k];
+			sum+=d*d;
+		}
+		return sum;
+	}
+}
@@ -1,21 +1,29 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers;
 
 import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
-import javax.vecmath.Vector3f;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import com.marginallyclever.convenience.FloatArrayList;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoadAndSave;
 import com.marginallyclever.robotOverlord.log.Log;
 
+/**
+ * Loads AMF files, plain or zip compressed.
+ * <p>
+ * The XML is read as a stream, one element at a time.  Only the vertexes of the mesh being read are kept;
+ * triangles go straight into the model.  Memory use is the size of the finished model, not the size of the file.
+ * @author Dan Royer
+ */
 public class ModelLoadAndSaveAMF implements ModelLoadAndSave {
 	@Override
 	public String getEnglishName() { return "3D printing file (AMF)"; }
@@ -41,90 +49,174 @@ public class ModelLoadAndSaveAMF implements ModelLoadAndSave {
 	// much help from https://www.sculpteo.com/en/glossary/amf-definition/
 	@Override
 	public boolean load(BufferedInputStream inputStream,Model model) throws Exception {
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        Document doc = dBuilder.parse(inputStream);
-        doc.getDocumentElement().normalize();
-        if(!doc.getDocumentElement().getNodeName().contains("amf")) {
-        	// uh oh!
-        } else {
-    		ArrayList<Float> vertexArray = new ArrayList<Float>();
-    		//ArrayList<Integer> faceArray = new ArrayList<Integer>();
-    		
-        	NodeList coordinateList = doc.getElementsByTagName("coordinates");
-    		int numCoordinates = coordinateList.getLength();
-            Log.message(numCoordinates + " coordinates.");
-            for (int a = 0; a < numCoordinates; a++) {
-            	Element coordinate = (Element)coordinateList.item(a);
-            	//Log.message("x: "+coordinate.getElementsByTagName("x").item(0).getTextContent());
-            	//Log.message("y: "+coordinate.getElementsByTagName("y").item(0).getTextContent());
-            	//Log.message("z: "+coordinate.getElementsByTagName("z").item(0).getTextContent());
-            	float x = Float.parseFloat(coordinate.getElementsByTagName("x").item(0).getTextContent());
-            	float y = Float.parseFloat(coordinate.getElementsByTagName("y").item(0).getTextContent());
-            	float z = Float.parseFloat(coordinate.getElementsByTagName("z").item(0).getTextContent());
-                vertexArray.add(x);
-                vertexArray.add(y);
-                vertexArray.add(z);
-            }
-
-        	NodeList volumeList = doc.getElementsByTagName("volume");
-            Log.message(volumeList.getLength() + " volumes.");
-            int numVolumes = volumeList.getLength();
-            for (int a = 0; a < numVolumes; a++) {
-            	Element volume = (Element)volumeList.item(a);
-            	NodeList triangleList = volume.getElementsByTagName("triangle");
-
-                int numTriangles = triangleList.getLength();
-                Log.message("\t"+ numTriangles + " triangles.");
-                for (int b = 0; b < numTriangles; b++) {
-                	Element triangle = (Element)triangleList.item(b);
-                	int v1 = Integer.parseInt(triangle.getElementsByTagName("v1").item(0).getTextContent());
-                	int v2 = Integer.parseInt(triangle.getElementsByTagName("v2").item(0).getTextContent());
-                	int v3 = Integer.parseInt(triangle.getElementsByTagName("v3").item(0).getTextContent());
-                    //Log.message("\t\t"+v1+", "+v2+", "+v3);
-                	
-                	float x1 = vertexArray.get(v1*3+0);
-                	float y1 = vertexArray.get(v1*3+1);
-                	float z1 = vertexArray.get(v1*3+2);
-
-                	float x2 = vertexArray.get(v2*3+0);
-                	float y2 = vertexArray.get(v2*3+1);
-                	float z2 = vertexArray.get(v2*3+2);
-                	
-                	float x3 = vertexArray.get(v3*3+0);
-                	float y3 = vertexArray.get(v3*3+1);
-                	float z3 = vertexArray.get(v3*3+2);
-                	
-					model.addVertex(x1,y1,z1);
-					model.addVertex(x2,y2,z2);
-					model.addVertex(x3,y3,z3);
-					
-					// calculate normal from triangle face
-					Vector3f p1 = new Vector3f(x1,y1,z1);	
-					Vector3f p2 = new Vector3f(x2,y2,z2);	
-					Vector3f p3 = new Vector3f(x3,y3,z3);	
-					
-					p2.sub(p1);
-					p3.sub(p1);
-					p2.normalize();
-					p3.normalize();
-					p1.cross(p2, p3);
-					p1.normalize();
-					model.addNormal(p1.x, p1.y, p1.z);
-					model.addNormal(p1.x, p1.y, p1.z);
-					model.addNormal(p1.x, p1.y, p1.z);
-                }
-            }
-            model.hasNormals=true;
-        }
-        
+		InputStream in = inputStream;
+		if(isZip(inputStream)) {
+			// a compressed AMF is a zip holding one AMF file.
+			ZipInputStream zip = new ZipInputStream(inputStream);
+			ZipEntry entry;
+			do {
+				entry = zip.getNextEntry();
+				if(entry==null) throw new IOException("AMF zip is empty.");
+			} while(entry.isDirectory());
+			in = zip;
+		}
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			reader.nextTag();
+			if(!reader.getLocalName().contains("amf")) throw new IOException("Not an AMF file.");
+			readAMF(reader,model);
+		} catch(XMLStreamException e) {
+			throw new IOException("AMF is damaged: "+e.getLocalizedMessage(),e);
+		} finally {
+			reader.close();
+		}
 		return true;
 	}
 
-	
+	private boolean isZip(BufferedInputStream inputStream) throws IOException {
+		inputStream.mark(4);
+		int a = inputStream.read();
+		int b = inputStream.read();
+		inputStream.reset();
+		return a=='P' && b=='K';
+	}
+
+	/**
+	 * Read everything after the root element.  Triangle indexes count from the start of their own mesh.
+	 */
+	private void readAMF(XMLStreamReader reader,Model model) throws XMLStreamException, IOException {
+		FloatArrayList vertexArray = new FloatArrayList();
+		float [] xyz = new float[3];
+		int [] v = new int[3];
+		int numCoordinates=0;
+		int numTriangles=0;
+
+		while(reader.hasNext()) {
+			if(reader.next()!=XMLStreamConstants.START_ELEMENT) continue;
+
+			String name = reader.getLocalName();
+			if(name.equals("mesh")) {
+				vertexArray.clear();
+			} else if(name.equals("coordinates")) {
+				readTriple(reader,"x","y","z",xyz);
+				vertexArray.add(xyz[0],xyz[1],xyz[2]);
+				numCoordinates++;
+			} else if(name.equals("triangle")) {
+				readTriangle(reader,v);
+				int count = vertexArray.size()/3;
+				for(int k=0;k<3;++k) {
+					if(v[k]<0 || v[k]>=count) throw new IOException("AMF triangle "+numTriangles+" uses vertex "+v[k]+" of "+count+".");
+				}
+				addTriangle(model,vertexArray.getArray(),v[0]*3,v[1]*3,v[2]*3);
+				numTriangles++;
+			}
+		}
+		Log.message(numCoordinates + " coordinates, "+numTriangles+" triangles.");
+		model.hasNormals=true;
+	}
+
+	/**
+	 * Read the three named children of the current element.
+	 * Leaves the reader on the end of the current element.
+	 */
+	private void readTriple(XMLStreamReader reader,String a,String b,String c,float [] out) throws XMLStreamException, IOException {
+		String parent = reader.getLocalName();
+		int found=0;
+		while(reader.nextTag()==XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			int k = name.equals(a) ? 0 : name.equals(b) ? 1 : name.equals(c) ? 2 : -1;
+			if(k==-1) {
+				skipElement(reader);
+				continue;
+			}
+			out[k] = parseFloat(reader.getElementText());
+			found |= 1<<k;
+		}
+		if(found!=7) throw new IOException("AMF "+parent+" is missing "+a+", "+b+", or "+c+".");
+	}
+
+	private void readTriangle(XMLStreamReader reader,int [] out) throws XMLStreamException, IOException {
+		int found=0;
+		while(reader.nextTag()==XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			int k = name.equals("v1") ? 0 : name.equals("v2") ? 1 : name.equals("v3") ? 2 : -1;
+			if(k==-1) {
+				skipElement(reader);
+				continue;
+			}
+			try {
+				out[k] = Integer.parseInt(reader.getElementText().trim());
+			} catch(NumberFormatException e) {
+				throw new IOException("AMF triangle has a bad vertex index.",e);
+			}
+			found |= 1<<k;
+		}
+		if(found!=7) throw new IOException("AMF triangle is missing v1, v2, or v3.");
+	}
+
+	/**
+	 * Skip the current element and everything inside it.
+	 */
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth=1;
+		while(depth>0) {
+			int event = reader.next();
+			if(event==XMLStreamConstants.START_ELEMENT) depth++;
+			else if(event==XMLStreamConstants.END_ELEMENT) depth--;
+		}
+	}
+
+	private float parseFloat(String text) throws IOException {
+		try {
+			return Float.parseFloat(text.trim());
+		} catch(NumberFormatException e) {
+			throw new IOException("AMF has a bad number: "+text,e);
+		}
+	}
+
+	/**
+	 * Append one triangle and its face normal to the model.
+	 */
+	private void addTriangle(Model model,float [] v,int a,int b,int c) {
+		float x1=v[a], y1=v[a+1], z1=v[a+2];
+		float x2=v[b], y2=v[b+1], z2=v[b+2];
+		float x3=v[c], y3=v[c+1], z3=v[c+2];
+
+		int i = model.vertexArray.expand(9);
+		float [] out = model.vertexArray.getArray();
+		out[i+0]=x1;	out[i+1]=y1;	out[i+2]=z1;
+		out[i+3]=x2;	out[i+4]=y2;	out[i+5]=z2;
+		out[i+6]=x3;	out[i+7]=y3;	out[i+8]=z3;
+
+		// calculate normal from triangle face
+		float ux=x2-x1, uy=y2-y1, uz=z2-z1;
+		float wx=x3-x1, wy=y3-y1, wz=z3-z1;
+		float len = (float)Math.sqrt(ux*ux+uy*uy+uz*uz);
+		ux/=len;	uy/=len;	uz/=len;
+		len = (float)Math.sqrt(wx*wx+wy*wy+wz*wz);
+		wx/=len;	wy/=len;	wz/=len;
+		float nx = uy*wz-uz*wy;
+		float ny = uz*wx-ux*wz;
+		float nz = ux*wy-uy*wx;
+		len = (float)Math.sqrt(nx*nx+ny*ny+nz*nz);
+		nx/=len;	ny/=len;	nz/=len;
+
+		i = model.normalArray.expand(9);
+		out = model.normalArray.getArray();
+		for(int k=0;k<9;k+=3) {
+			out[i+k+0]=nx;
+			out[i+k+1]=ny;
+			out[i+k+2]=nz;
+		}
+	}
+
 	@Override
 	public void save(OutputStream inputStream, Model model) throws Exception {
 		// TODO Auto-generated method stub
-		
+
 	}
 }
@@ -1,12 +1,11 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.util.ArrayList;
 
+import com.marginallyclever.convenience.FloatArrayList;
 import com.marginallyclever.convenience.MathHelper;
+import com.marginallyclever.convenience.TextTokenizer;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoadAndSave;
 
@@ -35,49 +34,35 @@ public class ModelLoadAndSaveOBJ implements ModelLoadAndSave {
 
 	@Override
 	public boolean load(BufferedInputStream inputStream,Model model) throws Exception {
-		ArrayList<Float> vertexArray = new ArrayList<Float>();
-		ArrayList<Float> normalArray = new ArrayList<Float>();
-		ArrayList<Float> texCoordArray = new ArrayList<Float>();
+		FloatArrayList vertexArray = new FloatArrayList();
+		FloatArrayList normalArray = new FloatArrayList();
+		FloatArrayList texCoordArray = new FloatArrayList();
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(inputStream,"UTF-8"));
-		String line;
-		while( ( line = br.readLine() ) != null ) {
-			line = line.trim();
-			if(line.startsWith("v ")) {
+		TextTokenizer tokenizer = new TextTokenizer(inputStream);
+		while(tokenizer.nextLine()) {
+			if(tokenizer.matchKeyword("v")) {
 				// vertex
-				String[] tokens = line.split("\\s+");
-				vertexArray.add(Float.parseFloat(tokens[1]));
-				vertexArray.add(Float.parseFloat(tokens[2]));
-				vertexArray.add(Float.parseFloat(tokens[3]));
-			} else if(line.startsWith("vn ")) {
+				vertexArray.add(tokenizer.nextFloat(),tokenizer.nextFloat(),tokenizer.nextFloat());
+			} else if(tokenizer.matchKeyword("vn")) {
 				// normal - might not be unit length
-				String[] tokens = line.split("\\s+");
-
-				float x=Float.parseFloat(tokens[1]);
-				float y=Float.parseFloat(tokens[2]);
-				float z=Float.parseFloat(tokens[3]);
+				float x=tokenizer.nextFloat();
+				float y=tokenizer.nextFloat();
+				float z=tokenizer.nextFloat();
 				float len = (float)MathHelper.length((double)x,(double)y,(double)z);
 				x/=len;
 				y/=len;
 				z/=len;
 				
-				normalArray.add(x);
-				normalArray.add(y);
-				normalArray.add(z);
-			} else if(line.startsWith("vt ")) {
+				normalArray.add(x,y,z);
+			} else if(tokenizer.matchKeyword("vt")) {
 				// texture coordinate
-				String[] tokens = line.split("\\s+");
-				texCoordArray.add(Float.parseFloat(tokens[1]));
-				texCoordArray.add(Float.parseFloat(tokens[2]));
-			} else if(line.startsWith("f ")) {
-				// face
-				String[] tokens = line.split("\\s+");
-				//Log.message("face len="+tokens.length);
+				texCoordArray.add(tokenizer.nextFloat(),tokenizer.nextFloat());
+			} else if(tokenizer.matchKeyword("f")) {
+				// face.  each vertex is v, v/vt, v//vn, or v/vt/vn
 				int index;
-				for(int i=1;i<tokens.length;++i) {
-					String [] subTokens = tokens[i].split("/");
+				while(tokenizer.hasMoreTokens()) {
 					// vertex data
-					index = Integer.parseInt(subTokens[0])-1;
+					index = tokenizer.nextInt()-1;
 					
 					try {
 						model.addVertex(
@@ -87,9 +72,11 @@ public class ModelLoadAndSaveOBJ implements ModelLoadAndSave {
 					} catch(Exception e) {
 						e.printStackTrace();
 					}
+					if(!tokenizer.skip('/')) continue;
+					
 					// texture data (if any)
-					if(subTokens.length>1 && subTokens[1].length()>0) {
-						int indexT = Integer.parseInt(subTokens[1])-1;
+					if(!tokenizer.skip('/')) {
+						int indexT = tokenizer.nextInt()-1;
 						try {
 							model.addTexCoord(
 									texCoordArray.get(indexT*2+0),
@@ -97,18 +84,17 @@ public class ModelLoadAndSaveOBJ implements ModelLoadAndSave {
 						} catch(Exception e) {
 							e.printStackTrace();
 						}
+						if(!tokenizer.skip('/')) continue;
 					}
 					// normal data (if any)
-					if(subTokens.length>2 && subTokens[2].length()>0) {
-						int indexN = Integer.parseInt(subTokens[2])-1;
-						try {
-							model.addNormal(
-									normalArray.get(indexN*3+0),
-									normalArray.get(indexN*3+1),
-									normalArray.get(indexN*3+2));
-						} catch(Exception e) {
-							e.printStackTrace();
-						}
+					int indexN = tokenizer.nextInt()-1;
+					try {
+						model.addNormal(
+								normalArray.get(indexN*3+0),
+								normalArray.get(indexN*3+1),
+								normalArray.get(indexN*3+2));
+					} catch(Exception e) {
+						e.printStackTrace();
 					}
 				}
 			}
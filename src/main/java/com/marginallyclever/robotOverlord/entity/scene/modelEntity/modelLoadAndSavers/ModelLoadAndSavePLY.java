@@ -1,11 +1,10 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 
 import com.jogamp.opengl.GL2;
+import com.marginallyclever.convenience.TextTokenizer;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoadAndSave;
 
@@ -36,24 +35,29 @@ public class ModelLoadAndSavePLY implements ModelLoadAndSave {
 	public boolean load(BufferedInputStream inputStream,Model model) throws Exception {
 		model.renderStyle = GL2.GL_POINTS;
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(inputStream,"UTF-8"));
-		String line;
+		TextTokenizer tokenizer = new TextTokenizer(inputStream);
 		// eat the first line that says "X,Y,Z,SIGNAL_STRENGTH"
-		line = br.readLine();
+		tokenizer.nextLine();
 		// read the vertexes
-		while( ( line = br.readLine() ) != null ) {
-			line = line.trim();
-			String[] tokens = line.split(",");
-			float x=Float.parseFloat(tokens[0]);
-			float y=Float.parseFloat(tokens[1]);
-			float z=Float.parseFloat(tokens[2]);
-			//float strength=Float.parseFloat(tokens[3]);
+		while( tokenizer.nextLine() ) {
+			if(!tokenizer.hasMoreTokens()) continue;
+			float x=tokenizer.nextFloat();
+			nextField(tokenizer);
+			float y=tokenizer.nextFloat();
+			nextField(tokenizer);
+			float z=tokenizer.nextFloat();
+			//float strength=tokenizer.nextFloat();
 			model.addVertex(x,y,z);
 		}
 		
 		return true;
 	}
 
+	private void nextField(TextTokenizer tokenizer) {
+		tokenizer.hasMoreTokens();
+		if(!tokenizer.skip(',')) throw new NumberFormatException("line "+tokenizer.getLineNumber()+": expected ','");
+	}
+
 	@Override
 	public boolean canSave() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,260 @@
+package com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import javax.vecmath.Point3d;
+
+import com.marginallyclever.convenience.FileAccess;
+import com.marginallyclever.convenience.FloatArrayList;
+import com.marginallyclever.convenience.IntArrayList;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelCache;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoadAndSave;
+
+/**
+ * Robot Overlord model cache.  A mesh that has already been parsed, stored exactly as it sits in memory so
+ * that loading is a handful of bulk copies out of a memory mapped file.  See {@link ModelCache}.
+ * <p>
+ * All values are little endian.  The header is<br>
+ * int magic "ROMC", int version, long hash of the source file,<br>
+ * int flags (1=normals, 2=colors, 4=UVs, 8=indexes), int render style,<br>
+ * int number of floats in each of the vertex, normal, color, and texture coordinate blocks, int number of indexes,<br>
+ * float weld epsilon, float[6] bounds (bottom xyz, top xyz),<br>
+ * int length of the source name, the source name in UTF-8 padded to a multiple of four bytes.<br>
+ * The four blocks of floats and the block of int indexes follow.
+ * @author Dan Royer
+ */
+public class ModelLoadAndSaveROMC implements ModelLoadAndSave {
+	public static final int MAGIC = ('R') | ('O'<<8) | ('M'<<16) | ('C'<<24);
+	public static final int VERSION = 2;
+	private static final int FIXED_HEADER_SIZE = 76;
+	private static final int HAS_NORMALS = 1;
+	private static final int HAS_COLORS = 2;
+	private static final int HAS_UVS = 4;
+	private static final int HAS_INDEXES = 8;
+
+	@Override
+	public String getEnglishName() { return "Robot Overlord model cache (ROMC)"; }
+	@Override
+	public String getValidExtensions() { return "romc"; }
+	@Override
+	public boolean canLoad() {	return true;	}
+	@Override
+	public boolean canSave() {	return true;	}
+
+	@Override
+	public boolean canLoad(String filename) {
+		return filename.toLowerCase().endsWith(".romc");
+	}
+
+	@Override
+	public boolean canSave(String filename) {
+		return filename.toLowerCase().endsWith(".romc");
+	}
+
+	@Override
+	public boolean load(BufferedInputStream inputStream, Model model) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte [] buffer = new byte[1<<16];
+		int n;
+		while((n=inputStream.read(buffer))>0) {
+			bytes.write(buffer,0,n);
+		}
+		return decode(ByteBuffer.wrap(bytes.toByteArray()),model,null,0);
+	}
+
+	/**
+	 * Memory map the file if it is on disk.
+	 */
+	@Override
+	public boolean load(String sourceName, Model model) throws Exception {
+		File file = FileAccess.getFile(sourceName);
+		if(file==null) {
+			BufferedInputStream stream = FileAccess.open(sourceName);
+			try {
+				return load(stream,model);
+			} finally {
+				stream.close();
+			}
+		}
+		return load(file,model,null,0);
+	}
+
+	/**
+	 * Load a cache file, but only if it was made from the expected source.
+	 * @param file the cache file
+	 * @param model where to put the mesh
+	 * @param expectedSource the source name stored in the file must match this.  null to accept any.
+	 * @param expectedHash the source hash stored in the file must match this.  Ignored if expectedSource is null.
+	 * @return true if the model was loaded.  false if the file is for some other source or version.
+	 * @throws IOException if the file can't be read or is damaged.
+	 */
+	public boolean load(File file, Model model, String expectedSource, long expectedHash) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size<FIXED_HEADER_SIZE) throw new IOException("ROMC "+file+" is too short.");
+			if(size>Integer.MAX_VALUE) throw new IOException("ROMC "+file+" is too large.");
+			return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),model,expectedSource,expectedHash);
+		}
+	}
+
+	private boolean decode(ByteBuffer buffer, Model model, String expectedSource, long expectedHash) throws IOException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if(buffer.limit()<FIXED_HEADER_SIZE) throw new IOException("ROMC header is too short.");
+		if(buffer.getInt(0)!=MAGIC) throw new IOException("Not a ROMC file.");
+		if(buffer.getInt(4)!=VERSION) return false;
+		long hash = buffer.getLong(8);
+		int flags = buffer.getInt(16);
+		int renderStyle = buffer.getInt(20);
+		int [] counts = new int[5];
+		long total=0;
+		for(int i=0;i<5;++i) {
+			counts[i] = buffer.getInt(24+i*4);
+			if(counts[i]<0) throw new IOException("ROMC block size is negative.");
+			total += counts[i];
+		}
+		float weldEpsilon = buffer.getFloat(44);
+		Point3d bottom = new Point3d(buffer.getFloat(48),buffer.getFloat(52),buffer.getFloat(56));
+		Point3d top    = new Point3d(buffer.getFloat(60),buffer.getFloat(64),buffer.getFloat(68));
+		int nameLength = buffer.getInt(72);
+		if(nameLength<0 || FIXED_HEADER_SIZE+nameLength>buffer.limit()) throw new IOException("ROMC source name is damaged.");
+		int dataStart = FIXED_HEADER_SIZE+pad(nameLength);
+		if(dataStart+total*4 > buffer.limit()) throw new IOException("ROMC ends before its data.");
+
+		if(expectedSource!=null) {
+			byte [] name = new byte[nameLength];
+			buffer.position(FIXED_HEADER_SIZE);
+			buffer.get(name);
+			if(hash!=expectedHash || !expectedSource.equals(new String(name,StandardCharsets.UTF_8))) return false;
+		}
+
+		buffer.position(dataStart);
+		readBlock(buffer,counts[0],model.vertexArray);
+		readBlock(buffer,counts[1],model.normalArray);
+		readBlock(buffer,counts[2],model.colorArray);
+		readBlock(buffer,counts[3],model.texCoordArray);
+		int start = model.indexArray.expand(counts[4]);
+		buffer.asIntBuffer().get(model.indexArray.getArray(), start, counts[4]);
+		int numVertexes = model.vertexArray.size()/3;
+		for(int i=start;i<start+counts[4];++i) {
+			int index = model.indexArray.get(i);
+			if(index<0 || index>=numVertexes) throw new IOException("ROMC index out of range.");
+		}
+		model.hasNormals = (flags & HAS_NORMALS)!=0;
+		model.hasColors  = (flags & HAS_COLORS )!=0;
+		model.hasUVs     = (flags & HAS_UVS    )!=0;
+		model.hasIndexes = (flags & HAS_INDEXES)!=0;
+		model.setWeldEpsilon(weldEpsilon);
+		model.renderStyle = renderStyle;
+		if(counts[0]>0) model.setRawBounds(top,bottom);
+		return true;
+	}
+
+	private void readBlock(ByteBuffer buffer,int count,FloatArrayList list) {
+		int start = list.expand(count);
+		buffer.asFloatBuffer().get(list.getArray(), start, count);
+		buffer.position(buffer.position()+count*4);
+	}
+
+	private static int pad(int length) {
+		return (length+3) & ~3;
+	}
+
+	/**
+	 * Save the model.  The source hash is calculated from the model's source name, if it has one.
+	 */
+	@Override
+	public void save(OutputStream outputStream, Model model) throws Exception {
+		String source = model.getSourceName();
+		long hash = 0;
+		if(source!=null && !canLoad(source)) {
+			hash = ModelCache.hashSource(source);
+		} else {
+			source = "";
+		}
+		save(outputStream,model,source,hash);
+	}
+
+	/**
+	 * @param outputStream destination
+	 * @param model the mesh to save
+	 * @param source name of the file the mesh came from
+	 * @param hash see {@link ModelCache#hashSource(String)}
+	 * @throws IOException
+	 */
+	public void save(OutputStream outputStream, Model model, String source, long hash) throws IOException {
+		byte [] name = source.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE+pad(name.length));
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(hash);
+		header.putInt((model.hasNormals?HAS_NORMALS:0) | (model.hasColors?HAS_COLORS:0) | (model.hasUVs?HAS_UVS:0) | (model.hasIndexes?HAS_INDEXES:0));
+		header.putInt(model.renderStyle);
+		header.putInt(model.vertexArray.size());
+		header.putInt(model.normalArray.size());
+		header.putInt(model.colorArray.size());
+		header.putInt(model.texCoordArray.size());
+		header.putInt(model.hasIndexes ? model.indexArray.size() : 0);
+		header.putFloat(model.getWeldEpsilon());
+
+		// bounds before any adjustment
+		float [] v = model.vertexArray.getArray();
+		int size = model.vertexArray.size();
+		float [] bottom = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float [] top = {-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+		for(int i=0;i+2<size;i+=3) {
+			for(int k=0;k<3;++k) {
+				if(bottom[k]>v[i+k]) bottom[k]=v[i+k];
+				if(top[k]<v[i+k]) top[k]=v[i+k];
+			}
+		}
+		for(int k=0;k<3;++k) header.putFloat(bottom[k]);
+		for(int k=0;k<3;++k) header.putFloat(top[k]);
+		header.putInt(name.length);
+		header.put(name);
+		outputStream.write(header.array());
+
+		writeBlock(outputStream,model.vertexArray);
+		writeBlock(outputStream,model.normalArray);
+		writeBlock(outputStream,model.colorArray);
+		writeBlock(outputStream,model.texCoordArray);
+		if(model.hasIndexes) writeIndexes(outputStream,model.indexArray);
+	}
+
+	private void writeIndexes(OutputStream outputStream,IntArrayList list) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4*4096);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int [] data = list.getArray();
+		int size = list.size();
+		for(int i=0;i<size;i+=4096) {
+			int count = Math.min(4096,size-i);
+			buffer.clear();
+			buffer.asIntBuffer().put(data, i, count);
+			outputStream.write(buffer.array(),0,count*4);
+		}
+	}
+
+	private void writeBlock(OutputStream outputStream,FloatArrayList list) throws IOException {
+		// a few thousand floats at a time.
+		ByteBuffer buffer = ByteBuffer.allocate(4*4096);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		float [] data = list.getArray();
+		int size = list.size();
+		for(int i=0;i<size;i+=4096) {
+			int count = Math.min(4096,size-i);
+			buffer.clear();
+			buffer.asFloatBuffer().put(data, i, count);
+			outputStream.write(buffer.array(),0,count*4);
+		}
+	}
+}
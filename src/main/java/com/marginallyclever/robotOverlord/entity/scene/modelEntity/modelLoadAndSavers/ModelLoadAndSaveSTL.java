@@ -1,20 +1,32 @@
 package com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.CharBuffer;
-import java.util.Iterator;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
+import com.marginallyclever.convenience.FileAccess;
 import com.marginallyclever.convenience.MathHelper;
+import com.marginallyclever.convenience.TextTokenizer;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoadAndSave;
 
 public class ModelLoadAndSaveSTL implements ModelLoadAndSave {
+	private static final int HEADER_SIZE = 80;
+	// bytes per face in a binary STL: normal, three vertexes, and two attribute bytes.
+	private static final int RECORD_SIZE = 50;
+	private static final int MAX_MAP_RECORDS = Integer.MAX_VALUE/RECORD_SIZE;
+	// bytes after the header that must be text for a file to be ASCII.
+	private static final int TEXT_CHECK_SIZE = 512;
+	
 	@Override
 	public String getEnglishName() { return "3D printing file (STL)"; }
 	@Override
@@ -22,7 +34,7 @@ public class ModelLoadAndSaveSTL implements ModelLoadAndSave {
 	@Override
 	public boolean canLoad() {	return true;	}
 	@Override
-	public boolean canSave() {	return false;	}
+	public boolean canSave() {	return true;	}
 
 	@Override
 	public boolean canLoad(String filename) {
@@ -33,42 +45,35 @@ public class ModelLoadAndSaveSTL implements ModelLoadAndSave {
 
 	@Override
 	public boolean canSave(String filename) {
-		return false;
+		return filename.toLowerCase().endsWith(".stl");
 	}
 
 	// much help from http://www.java-gaming.org/index.php?;topic=18710.0
 	@Override
 	public boolean load(BufferedInputStream inputStream,Model model) throws Exception {
-		InputStreamReader br = null;
-		try {
-			if(!inputStream.markSupported()) throw new IOException("BufferedInputStream mark unsupported");
-			inputStream.mark(2000);
-			br = new InputStreamReader(inputStream,"UTF-8");
-			CharBuffer binaryCheck = CharBuffer.allocate(80);
-			br.read(binaryCheck);
-			binaryCheck.rewind();
-			String test = binaryCheck.toString();
-			boolean isASCII = test.toLowerCase().contains("facet");
-			inputStream.reset();
-			
-			if(!isASCII) {
-				loadBinary(inputStream,model);
-			} else {
-			    loadASCII(inputStream,model);   
-			}
-		}
-		catch(IOException e) {
-			e.printStackTrace();
-			return false;
+		if(!inputStream.markSupported()) throw new IOException("BufferedInputStream mark unsupported");
+		byte [] head = new byte[HEADER_SIZE+4+TEXT_CHECK_SIZE];
+		inputStream.mark(head.length);
+		int length=0;
+		while(length<head.length) {
+			int n = inputStream.read(head, length, head.length-length);
+			if(n<0) break;
+			length+=n;
 		}
+		inputStream.reset();
 		
+		if(isASCII(ByteBuffer.wrap(head,0,length),-1)) {
+			loadASCII(inputStream,model);
+		} else {
+			loadBinary(inputStream,model);
+		}
 		return true;
 	}
 
 	@Override
 	public void save(OutputStream outputStream, Model model) throws Exception {
-		byte[] info = new byte[80];
-		for(int k=0;k<80;++k) info[k]=' ';
+		byte[] info = new byte[HEADER_SIZE];
+		for(int k=0;k<HEADER_SIZE;++k) info[k]=' ';
 	    info[0]='M';
 	    info[1]='C';
 	    info[2]='R';
@@ -76,44 +81,41 @@ public class ModelLoadAndSaveSTL implements ModelLoadAndSave {
 	    info[5]='R';
 	    outputStream.write(info);
 
-	    int numTriangles = model.vertexArray.size()/3;
+	    // indexed models are written out as one triangle per three indexes.
+	    int numTriangles = model.hasIndexes ? model.indexArray.size()/3 : model.vertexArray.size()/9;
+	    int [] index = model.indexArray.getArray();
 		ByteBuffer dataBuffer = ByteBuffer.allocate(4);
 	    dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
 	    dataBuffer.putInt(numTriangles);
 	    outputStream.write(dataBuffer.array());
 
-	    dataBuffer = ByteBuffer.allocate(74);
+	    dataBuffer = ByteBuffer.allocate(RECORD_SIZE);
 	    dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
 	    
-	    Iterator<Float> vi = model.vertexArray.iterator();
-	    Iterator<Float> ni = model.normalArray.iterator();
+	    float [] v = model.vertexArray.getArray();
+	    float [] n = model.normalArray.getArray();
 	    
-	    int i;
+	    int i,j;
 	    for(i=0;i<numTriangles;++i) {
 	    	dataBuffer.rewind();
-	    	dataBuffer.putFloat(ni.next().floatValue());
-	    	dataBuffer.putFloat(ni.next().floatValue());
-	    	dataBuffer.putFloat(ni.next().floatValue());
-
-	    	dataBuffer.putFloat(ni.next().floatValue());
-	    	dataBuffer.putFloat(ni.next().floatValue());
-	    	dataBuffer.putFloat(ni.next().floatValue());
+	    	// one normal per face.  use the first vertex normal.
+	    	j = (model.hasIndexes ? index[i*3] : i*3)*3;
+	    	if(model.hasNormals) {
+		    	dataBuffer.putFloat(n[j+0]);
+		    	dataBuffer.putFloat(n[j+1]);
+		    	dataBuffer.putFloat(n[j+2]);
+	    	} else {
+		    	dataBuffer.putFloat(0);
+		    	dataBuffer.putFloat(0);
+		    	dataBuffer.putFloat(0);
+	    	}
 
-	    	dataBuffer.putFloat(ni.next().floatValue());
-	    	dataBuffer.putFloat(ni.next().floatValue());
-	    	dataBuffer.putFloat(ni.next().floatValue());
-
-	    	dataBuffer.putFloat(vi.next().floatValue());
-	    	dataBuffer.putFloat(vi.next().floatValue());
-	    	dataBuffer.putFloat(vi.next().floatValue());
-
-	    	dataBuffer.putFloat(vi.next().floatValue());
-	    	dataBuffer.putFloat(vi.next().floatValue());
-	    	dataBuffer.putFloat(vi.next().floatValue());
-
-	    	dataBuffer.putFloat(vi.next().floatValue());
-	    	dataBuffer.putFloat(vi.next().floatValue());
-	    	dataBuffer.putFloat(vi.next().floatValue());
+	    	for(int k=0;k<3;++k) {
+	    		j = (model.hasIndexes ? index[i*3+k] : i*3+k)*3;
+	    		dataBuffer.putFloat(v[j+0]);
+	    		dataBuffer.putFloat(v[j+1]);
+	    		dataBuffer.putFloat(v[j+2]);
+	    	}
 	    	
 	    	dataBuffer.put((byte)0);
 	    	dataBuffer.put((byte)0);
@@ -124,73 +126,167 @@ public class ModelLoadAndSaveSTL implements ModelLoadAndSave {
 
 	// see https://github.com/cpedrinaci/STL-Loader/blob/master/StlFile.java#L345
 	protected void loadBinary(BufferedInputStream inputStream,Model model) throws IOException {
-		int j;
-
-	    byte[] headerInfo=new byte[80];             // Header data
-	    inputStream.read(headerInfo);
+	    byte[] headerInfo=new byte[HEADER_SIZE];             // Header data
+	    readFully(inputStream,headerInfo,headerInfo.length);
 
 	    byte[] arrayNumber= new byte[4];     // Holds the number of faces
-	    inputStream.read(arrayNumber);
+	    readFully(inputStream,arrayNumber,arrayNumber.length);
 	    ByteBuffer dataBuffer = ByteBuffer.wrap(arrayNumber);
 	    dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
-	    int numTriangles = dataBuffer.getInt();
-	    int byteCount = 50;
-	    byte[] tempInfo = new byte[byteCount*numTriangles];     // Each face has 50 bytes of data
-        inputStream.read(tempInfo);                         // We get the rest of the file
-        dataBuffer = ByteBuffer.wrap(tempInfo);    // Now we have all the data in this ByteBuffer
-        dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        		
-		float x,y,z;
-		for(j=0;j<numTriangles;++j) {
-			x=dataBuffer.getFloat();
-			y=dataBuffer.getFloat();
-			z=dataBuffer.getFloat();
-
-			model.addNormal(x, y, z);
-			model.addNormal(x, y, z);
-			model.addNormal(x, y, z);
-
-			x=dataBuffer.getFloat();
-			y=dataBuffer.getFloat();
-			z=dataBuffer.getFloat();
-			model.addVertex(x, y, z);
-
-			x=dataBuffer.getFloat();
-			y=dataBuffer.getFloat();
-			z=dataBuffer.getFloat();
-			model.addVertex(x, y, z);
-
-			x=dataBuffer.getFloat();
-			y=dataBuffer.getFloat();
-			z=dataBuffer.getFloat();
-			model.addVertex(x, y, z);
+	    long claimed = dataBuffer.getInt() & 0xFFFFFFFFL;
+	    if(claimed>Integer.MAX_VALUE/9) throw new IOException("STL triangle count "+claimed+" too large.");
+	    int numTriangles = (int)claimed;
+
+	    // a damaged file can claim far more triangles than it has.  reserve no more than the stream says it holds,
+	    // plus one batch.  The arrays grow as the rest arrive.
+	    long available = inputStream.available()/RECORD_SIZE;
+	    reserve(model,(int)Math.min(numTriangles, available+4096));
+
+	    // read and decode a few thousand faces at a time.
+	    byte[] tempInfo = new byte[RECORD_SIZE*Math.min(numTriangles,4096)];
+	    dataBuffer = ByteBuffer.wrap(tempInfo);
+	    dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	    int j=0;
+	    while(j<numTriangles) {
+	    	int count = Math.min(numTriangles-j, tempInfo.length/RECORD_SIZE);
+	    	readFully(inputStream,tempInfo,count*RECORD_SIZE);
+	    	decodeRecords(dataBuffer,0,count,model);
+	    	j+=count;
+	    }
+		model.hasNormals=true;
+	}
+	
+	/**
+	 * Load an STL file on disk by memory mapping it.  Falls back to streaming for anything that isn't
+	 * a plain file, such as jar resources and zip entries.
+	 */
+	@Override
+	public boolean load(String sourceName,Model model) throws Exception {
+		File file = FileAccess.getFile(sourceName);
+		if(file==null) return loadStream(sourceName,model);
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if(fileSize<HEADER_SIZE+4) return loadStream(sourceName,model);
+
+			ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize,HEADER_SIZE+4+TEXT_CHECK_SIZE));
+			if(isASCII(head,fileSize)) return loadStream(sourceName,model);
+			head.order(ByteOrder.LITTLE_ENDIAN);
+			long numTriangles = head.getInt(HEADER_SIZE) & 0xFFFFFFFFL;
+			long expectedSize = HEADER_SIZE+4+numTriangles*RECORD_SIZE;
+			if(fileSize < expectedSize) {
+				throw new EOFException("STL "+sourceName+" is "+fileSize+" bytes, expected "+expectedSize+" for "+numTriangles+" triangles.");
+			}
+			if(numTriangles>Integer.MAX_VALUE/9) throw new IOException("STL triangle count "+numTriangles+" too large.");
 			
-			// attribute bytes
-			dataBuffer.get();
-			dataBuffer.get();
+			reserve(model,(int)numTriangles);
+
+			// map no more than MAX_MAP_RECORDS faces at once so files larger than 2GB still work.
+			long position = HEADER_SIZE+4;
+			long j=0;
+			while(j<numTriangles) {
+				int count = (int)Math.min(numTriangles-j, MAX_MAP_RECORDS);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, (long)count*RECORD_SIZE);
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				decodeRecords(buffer,0,count,model);
+				position+=(long)count*RECORD_SIZE;
+				j+=count;
+			}
+			model.hasNormals=true;
 		}
-		model.hasNormals=true;
+		return true;
 	}
+	
+	private boolean loadStream(String sourceName,Model model) throws Exception {
+		BufferedInputStream stream = FileAccess.open(sourceName);
+		try {
+			return load(stream,model);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Some binary files start their header with "solid", same as an ASCII file, so the header alone is not enough.
+	 * A binary file is exactly as long as its triangle count says, and an ASCII file is all text.
+	 * @param head the start of the file, as much as is available up to TEXT_CHECK_SIZE bytes after the header.
+	 * @param fileSize the length of the file, or -1 if it is not known.
+	 * @return true if the file is ASCII.
+	 */
+	private boolean isASCII(ByteBuffer head,long fileSize) {
+		int length = head.limit()-head.position();
+		if(fileSize>=0 && length>=HEADER_SIZE+4) {
+			long numTriangles = head.order(ByteOrder.LITTLE_ENDIAN).getInt(head.position()+HEADER_SIZE) & 0xFFFFFFFFL;
+			if(fileSize == HEADER_SIZE+4+numTriangles*RECORD_SIZE) return false;
+		}
 
+		byte [] bytes = new byte[length];
+		head.duplicate().get(bytes);
+		String test = new String(bytes,0,Math.min(length,HEADER_SIZE),StandardCharsets.UTF_8);
+		if(!test.trim().toLowerCase().startsWith("solid")) return false;
+		
+		for(int i=HEADER_SIZE;i<length;++i) {
+			int c = bytes[i] & 0xFF;
+			if(c>=0x7F || (c<0x20 && c!='\t' && c!='\n' && c!='\r')) return false;
+		}
+		return true;
+	}
 	
-	protected void loadASCII(BufferedInputStream inputStream,Model model) throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(inputStream,"UTF-8"));
+	private void reserve(Model model,int numTriangles) {
+		model.vertexArray.ensureCapacity(model.vertexArray.size()+numTriangles*9);
+		model.normalArray.ensureCapacity(model.normalArray.size()+numTriangles*9);
+	}
+	
+	/**
+	 * Decode count 50-byte binary STL records starting at offset straight into the model's arrays.
+	 * Each face normal is copied to all three vertexes.
+	 */
+	private void decodeRecords(ByteBuffer src,int offset,int count,Model model) {
+		int vi = model.vertexArray.expand(count*9);
+		int ni = model.normalArray.expand(count*9);
+		float [] v = model.vertexArray.getArray();
+		float [] n = model.normalArray.getArray();
 		
-		String line;
+		for(int j=0;j<count;++j) {
+			float x=src.getFloat(offset   );
+			float y=src.getFloat(offset+ 4);
+			float z=src.getFloat(offset+ 8);
+			n[ni++]=x;	n[ni++]=y;	n[ni++]=z;
+			n[ni++]=x;	n[ni++]=y;	n[ni++]=z;
+			n[ni++]=x;	n[ni++]=y;	n[ni++]=z;
+			
+			for(int k=12;k<48;k+=4) {
+				v[vi++]=src.getFloat(offset+k);
+			}
+			// skip the attribute bytes
+			offset+=RECORD_SIZE;
+		}
+	}
+	
+	/**
+	 * InputStream.read() may return less than asked.  Keep reading until length bytes have arrived.
+	 * @throws EOFException if the stream ends first.
+	 */
+	private void readFully(InputStream inputStream,byte [] buffer,int length) throws IOException {
+		int total=0;
+		while(total<length) {
+			int n = inputStream.read(buffer, total, length-total);
+			if(n<0) throw new EOFException("STL ended after "+total+" of "+length+" expected bytes.");
+			total+=n;
+		}
+	}
+
+	
+	protected void loadASCII(BufferedInputStream inputStream,Model model) throws IOException {
+		TextTokenizer tokenizer = new TextTokenizer(inputStream);
 		float x,y,z,len;
-		final String facet_normal = "facet normal ";
-		final String vertex = "vertex ";
 
-		//int lineCount=0;
-		
-		while( ( line = br.readLine() ) != null ) {
-			line = line.trim();
-			if( line.startsWith(facet_normal) ) {
-				line = line.substring(facet_normal.length()).trim();
-				String c[] = line.split(" ");
-				x=Float.parseFloat(c[0]);
-				y=Float.parseFloat(c[1]);
-				z=Float.parseFloat(c[2]);
+		while( tokenizer.nextLine() ) {
+			if( tokenizer.matchKeyword("facet") ) {
+				if( !tokenizer.matchKeyword("normal") ) continue;
+				x=tokenizer.nextFloat();
+				y=tokenizer.nextFloat();
+				z=tokenizer.nextFloat();
 				len = (float)MathHelper.length((double)x,(double)y,(double)z);
 				x/=len;
 				y/=len;
@@ -199,20 +295,14 @@ public class ModelLoadAndSaveSTL implements ModelLoadAndSave {
 				model.addNormal(x,y,z);
 				model.addNormal(x,y,z);
 				model.addNormal(x,y,z);
-			} else if( line.startsWith(vertex) ) {
-				line = line.substring(vertex.length()).trim();
-				String c[] = line.split(" ");
-				x=Float.parseFloat(c[0]);
-				y=Float.parseFloat(c[1]);
-				z=Float.parseFloat(c[2]);
+			} else if( tokenizer.matchKeyword("vertex") ) {
+				x=tokenizer.nextFloat();
+				y=tokenizer.nextFloat();
+				z=tokenizer.nextFloat();
 				
 				model.addVertex(x,y,z);
-			} else {
-				//throw new IOException("Unsupported line ("+lineCount+"): "+line);
-				//Log.message("STL format reading unsupported line ("+lineCount+"): "+line);
-				continue;
 			}
-			//++lineCount;
+			// everything else (solid, outer loop, endloop, endfacet, endsolid) is ignored.
 		}
 		model.hasNormals=true;
 	}
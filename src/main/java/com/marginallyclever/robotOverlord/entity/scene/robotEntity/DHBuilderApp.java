@@ -24,7 +24,7 @@ import com.marginallyclever.robotOverlord.entity.basicDataTypes.MaterialEntity;
 import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
-import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_GradientDescent;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_FABRIK;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
 import com.marginallyclever.robotOverlord.swingInterface.view.ViewElement;
@@ -53,7 +53,7 @@ public class DHBuilderApp extends DHRobotEntity {
 		super();
 		setName("DHBuilderApp");
 		setNumLinks(BONE_NAMES.length);
-		setIKSolver(new DHIKSolver_GradientDescent());
+		setIKSolver(new DHIKSolver_FABRIK(BONE_NAMES.length));
 		
 		int i=0;
 		for(DHLink bone : links) {
@@ -92,6 +92,7 @@ public class DHBuilderApp extends DHRobotEntity {
 		gl2.glPushMatrix();
 			MatrixHelper.applyMatrix(gl2, pose);
 			anchor.render(gl2);
+			renderReachability(gl2);
 			
 			if(!inTest) {
 				for( int i=0;i<BONE_NAMES.length;++i) {
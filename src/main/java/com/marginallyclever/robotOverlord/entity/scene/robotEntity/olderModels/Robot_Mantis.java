@@ -8,7 +8,7 @@ import com.marginallyclever.robotOverlord.entity.basicDataTypes.MaterialEntity;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
-import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_RTTRTR;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_LevenbergMarquardt;
 import com.marginallyclever.robotOverlord.entity.scene.robotEntity.RobotEntity;
 import com.marginallyclever.robotOverlord.entity.scene.robotEntity.RobotKeyframe;
 
@@ -32,7 +32,7 @@ public class Robot_Mantis extends RobotEntity {
 		setName("Mantis");
 		
 		live = new DHRobotEntity();
-		live.setIKSolver(new DHIKSolver_RTTRTR());
+		live.setIKSolver(new DHIKSolver_LevenbergMarquardt());
 		setupLinks(live);
 		isFirstTime=true;
 	}
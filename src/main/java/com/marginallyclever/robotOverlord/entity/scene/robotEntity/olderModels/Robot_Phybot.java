@@ -11,7 +11,7 @@ import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
-import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_RTTRTR;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_LevenbergMarquardt;
 import com.marginallyclever.robotOverlord.entity.scene.robotEntity.RobotEntity;
 import com.marginallyclever.robotOverlord.entity.scene.robotEntity.RobotKeyframe;
 
@@ -30,7 +30,7 @@ public class Robot_Phybot extends RobotEntity {
 		setName("Phybot");
 
 		live = new DHRobotEntity();
-		live.setIKSolver(new DHIKSolver_RTTRTR());
+		live.setIKSolver(new DHIKSolver_LevenbergMarquardt());
 		setupLinks(live);
 		
 		isFirstTime=true;
@@ -145,7 +145,7 @@ public class Robot_Phybot extends RobotEntity {
 	}
 	
 	public DHIKSolver getIKSolver() {
-		return new DHIKSolver_RTTRTR();
+		return new DHIKSolver_LevenbergMarquardt();
 	}
 
 	public void sendNewStateToRobot(DHKeyframe keyframe) {}
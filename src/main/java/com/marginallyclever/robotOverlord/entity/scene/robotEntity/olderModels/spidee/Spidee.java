@@ -638,7 +638,6 @@ public class Spidee extends RobotEntity {
 
 	public void render(GL2 gl2) {
 		super.render(gl2);
-		gl2.glPushName(getPickName());
 		gl2.glPushMatrix();
 
 		Vector3d p = getPosition();
@@ -647,7 +646,6 @@ public class Spidee extends RobotEntity {
 		Draw_Legs(gl2);
 		Draw_Body(gl2);
 		gl2.glPopMatrix();
-		gl2.glPopName();
 	}
 
 
@@ -0,0 +1,163 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_GradientDescent;
+
+public class DHChainTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	/**
+	 * @return a small arm with a fixed link in the middle and a prismatic slide at the end.
+	 */
+	private DHRobotEntity makeRobot() {
+		DHRobotEntity robot = new DHRobotEntity();
+		robot.setPosition(new Vector3d(1,2,3));
+		robot.setNumLinks(4);
+		DHLink a = robot.links.get(0);
+		a.setD(10);	a.setAlpha(-90);	a.setRange(-170,170);
+		DHLink b = robot.links.get(1);
+		b.flags = LinkAdjust.NONE;
+		b.setR(5);	b.setTheta(30);
+		DHLink c = robot.links.get(2);
+		c.setR(20);	c.setRange(-120,120);
+		DHLink e = robot.links.get(3);
+		e.flags = LinkAdjust.D;
+		e.setAlpha(90);	e.setRange(0,15);
+		return robot;
+	}
+
+	@Test
+	public void testForwardMatchesRobot() {
+		DHRobotEntity robot = makeRobot();
+		DHChain chain = new DHChain(robot);
+		assertEquals(4,chain.getNumLinks());
+		assertEquals(3,chain.getNumAdjustable());
+		assertEquals(2,chain.getAdjustableLink(1));
+
+		Random random = new Random(1);
+		double [] poses = new double[chain.getPosesSize()];
+		Matrix4d m = new Matrix4d();
+		for(int k=0;k<20;++k) {
+			double [] q = DHTestRobots.randomValues(chain,random);
+			chain.getPoses(q, poses);
+			robot.setPoseFK(new DHKeyframe(q));
+			for(int i=0;i<4;++i) {
+				DHChain.getMatrix(poses, 16*i, m);
+				assertTrue(m.epsilonEquals(robot.links.get(i).getPoseWorld(),1e-9));
+			}
+			double [] tip = new double[16];
+			chain.getEndEffector(q, tip);
+			for(int i=0;i<16;++i) assertEquals(poses[16*4+i],tip[i],1e-12);
+		}
+	}
+
+	@Test
+	public void testSixi2EndEffector() {
+		Sixi2Model model = new Sixi2().sim;
+		DHChain chain = new DHChain(model);
+		double [] q = { 10,-80,20,30,40,50 };
+		Matrix4d m = new Matrix4d();
+		chain.getEndEffector(q, chain.createWorkspace(), m);
+		model.setPoseFK(new DHKeyframe(q));
+		assertTrue(m.epsilonEquals(model.endEffector.getPoseWorld(),1e-9));
+	}
+
+	@Test
+	public void testJacobianPredictsSmallMoves() {
+		DHChain chain = new DHChain(makeRobot());
+		DHChain.Workspace work = chain.createWorkspace();
+		double [] q = { 20, 35, 7 };
+		double [][] jacobian = new double[3][6];
+		chain.getJacobian(q, work, jacobian);
+
+		double [] before = new double[16];
+		double [] after = new double[16];
+		chain.getEndEffector(q, before);
+		final double step = 1e-6;
+		for(int j=0;j<3;++j) {
+			// nudge one value: the tip moves that much times the linear part of the column.
+			double v = chain.isRotary(j) ? Math.toRadians(step) : step;
+			q[j] += step;
+			chain.getEndEffector(q, after);
+			q[j] -= step;
+			assertEquals(jacobian[j][0]*v, after[3]-before[3], 1e-9);
+			assertEquals(jacobian[j][1]*v, after[7]-before[7], 1e-9);
+			assertEquals(jacobian[j][2]*v, after[11]-before[11], 1e-9);
+			// and the x axis of the tip turns by the angular part.
+			double wx=jacobian[j][3]*v, wy=jacobian[j][4]*v, wz=jacobian[j][5]*v;
+			assertEquals(wy*before[8]-wz*before[4], after[0]-before[0], 1e-9);
+			assertEquals(wz*before[0]-wx*before[8], after[4]-before[4], 1e-9);
+			assertEquals(wx*before[4]-wy*before[0], after[8]-before[8], 1e-9);
+		}
+
+		// the first joint turns about world z (the robot is not rotated), so the angular part is (0,0,1).
+		assertEquals(0,jacobian[0][3],1e-12);
+		assertEquals(0,jacobian[0][4],1e-12);
+		assertEquals(1,jacobian[0][5],1e-12);
+		// the slide does not turn anything.
+		assertEquals(0,jacobian[2][5],0);
+	}
+
+	@Test
+	public void testChainIsRemadeWhenRobotChanges() {
+		DHRobotEntity robot = makeRobot();
+		DHChain chain = robot.getDHChain();
+		// moving a joint is not a change to the chain.
+		robot.setPoseFK(new DHKeyframe(new double[] { 10,20,5 }));
+		assertSame(chain,robot.getDHChain());
+		// changing the shape or moving the base is.
+		robot.links.get(1).setR(6);
+		DHChain chain2 = robot.getDHChain();
+		assertNotSame(chain,chain2);
+		robot.setPosition(new Vector3d(0,0,0));
+		assertNotSame(chain2,robot.getDHChain());
+	}
+
+	@Test
+	public void testSolverLeavesRobotAlone() throws Exception {
+		final DHRobotEntity robot = makeRobot();
+		final DHChain chain = new DHChain(robot);
+		final DHIKSolver_GradientDescent solver = new DHIKSolver_GradientDescent();
+		Matrix4d before = robot.links.get(3).getPoseWorld();
+		final Matrix4d target = new Matrix4d();
+		chain.getEndEffector(new double[] { 10,20,5 }, chain.createWorkspace(), target);
+
+		// two threads sharing a chain and a solver.
+		final DHKeyframe [] results = { new DHKeyframe(3), new DHKeyframe(3) };
+		Thread [] threads = new Thread[2];
+		for(int i=0;i<2;++i) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					solver.solveWithSuggestion(chain, target, results[index], null);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+
+		assertEquals(before,robot.links.get(3).getPoseWorld());
+		for(int j=0;j<3;++j) assertEquals(results[0].fkValues[j],results[1].fkValues[j],0);
+	}
+}
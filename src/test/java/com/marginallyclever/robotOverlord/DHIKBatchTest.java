@@ -0,0 +1,95 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Matrix4d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKBatch;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_LevenbergMarquardt;
+
+public class DHIKBatchTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	/**
+	 * @return a smooth loop through joint space, as end effector poses.
+	 */
+	private Matrix4d [] makePath(DHChain chain,int size) {
+		DHChain.Workspace work = chain.createWorkspace();
+		Matrix4d [] path = new Matrix4d[size];
+		for(int i=0;i<size;++i) {
+			double s = i*2*Math.PI/size;
+			double [] q = {
+				30*Math.sin(s),
+				-60+20*Math.sin(2*s),
+				30+20*Math.cos(3*s),
+				40*Math.sin(s),
+				30+20*Math.sin(5*s),
+				60*Math.cos(s),
+			};
+			path[i] = new Matrix4d();
+			chain.getEndEffector(q, work, path[i]);
+		}
+		return path;
+	}
+
+	/**
+	 * Every pose is found, the answers are as smooth as the path, and they match solving one at a time.
+	 */
+	@Test
+	public void testMatchesSerial() {
+		Sixi2Model model = new Sixi2().sim;
+		DHChain chain = model.getDHChain();
+		DHIKSolver_LevenbergMarquardt solver = new DHIKSolver_LevenbergMarquardt();
+		Matrix4d [] path = makePath(chain,5000);
+		// far from the first pose, so the start of every segment is a cold start.
+		DHKeyframe start = new DHKeyframe(new double[] { 0,-60,50,0,30,60 });
+
+		DHKeyframe [] keyframes = new DHKeyframe[path.length];
+		DHIKSolver.SolutionType [] results = DHIKBatch.solve(solver, chain, path, start, keyframes);
+
+		DHKeyframe serial = new DHKeyframe(6);
+		DHKeyframe suggestion = start;
+		Matrix4d found = new Matrix4d();
+		DHChain.Workspace work = chain.createWorkspace();
+		for(int i=0;i<path.length;++i) {
+			assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,results[i]);
+			chain.getEndEffector(keyframes[i].fkValues, work, found);
+			assertTrue(path[i].epsilonEquals(found, 1e-3));
+
+			assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,solver.solveWithSuggestion(chain, path[i], serial, suggestion));
+			for(int j=0;j<6;++j) {
+				assertEquals(serial.fkValues[j],keyframes[i].fkValues[j],1e-2);
+				if(i>0) assertEquals(keyframes[i-1].fkValues[j],keyframes[i].fkValues[j],1);
+			}
+			suggestion = keyframes[i];
+		}
+	}
+
+	@Test
+	public void testRobotDoesNotMove() {
+		Sixi2Model model = new Sixi2().sim;
+		Matrix4d before = model.endEffector.getPoseWorld();
+		Matrix4d [] path = makePath(model.getDHChain(),600);
+		DHKeyframe [] keyframes = new DHKeyframe[path.length];
+		DHIKSolver.SolutionType [] results = model.solvePathIK(path, keyframes);
+		assertEquals(path.length,results.length);
+		for(int i=0;i<path.length;++i) assertTrue(keyframes[i]!=null);
+		assertEquals(before,model.endEffector.getPoseWorld());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNeedsChainSolver() {
+		Sixi2Model model = new Sixi2().sim;
+		DHIKBatch.solve(new DHIKSolver(), model.getDHChain(), new Matrix4d[1], null, new DHKeyframe[1]);
+	}
+}
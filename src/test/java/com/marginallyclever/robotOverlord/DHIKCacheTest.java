@@ -0,0 +1,203 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKCache;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolutionSet;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_RTTRTR;
+
+public class DHIKCacheTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	private Matrix4d nearHome(Sixi2Model model,double dx) {
+		Matrix4d m = model.endEffector.getPoseWorld();
+		m.m03 += dx;
+		return m;
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		Sixi2Model model = new Sixi2().sim;
+		DHIKSolver solver = model.getIKSolver();
+		DHIKCache cache = new DHIKCache();
+		DHKeyframe first = solver.createDHKeyframe();
+		DHKeyframe again = solver.createDHKeyframe();
+
+		Matrix4d target = nearHome(model,1);
+		assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,cache.solveWithSuggestion(solver, model, target, first, null));
+		assertEquals(0,cache.getHitCount());
+		assertEquals(1,cache.getMissCount());
+
+		// the same pose, and one closer than the tolerance, are hits with the same answer.
+		assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,cache.solveWithSuggestion(solver, model, target, again, null));
+		target.m03 += cache.getPositionTolerance()*0.1;
+		assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,cache.solveWithSuggestion(solver, model, target, again, null));
+		assertEquals(2,cache.getHitCount());
+		for(int j=0;j<6;++j) assertEquals(first.fkValues[j],again.fkValues[j],0);
+		assertEquals(2.0/3.0,cache.getHitRate(),1e-9);
+		assertTrue(cache.getSavedNanos()>0);
+
+		// a move bigger than the tolerance is a miss.
+		cache.solveWithSuggestion(solver, model, nearHome(model,1+cache.getPositionTolerance()*2), again, null);
+		assertEquals(2,cache.getMissCount());
+		assertEquals(2,cache.size());
+	}
+
+	/**
+	 * A target just over the edge of a grid cell still finds the answer on the other side.
+	 */
+	@Test
+	public void testNeighbourCellIsAsked() {
+		Sixi2Model model = new Sixi2().sim;
+		DHIKSolver solver = model.getIKSolver();
+		DHIKCache cache = new DHIKCache();
+		DHKeyframe keyframe = solver.createDHKeyframe();
+		double tolerance = cache.getPositionTolerance();
+
+		// pairs of targets 0.6 tolerance apart, straddling points 3 tolerances apart.  the grid is a whole number of
+		// tolerances wide, so some pairs straddle a cell edge.
+		Matrix4d target = nearHome(model,1);
+		double edge = Math.floor(target.m03/tolerance)*tolerance;
+		for(int i=0;i<8;++i) {
+			target.m03 = edge - tolerance*0.3;
+			cache.solveWithSuggestion(solver, model, target, keyframe, null);
+			target.m03 = edge + tolerance*0.3;
+			cache.solveWithSuggestion(solver, model, target, keyframe, null);
+			edge += tolerance*3;
+		}
+		// of each pair only the first is a miss, wherever the edge is.
+		assertEquals(8,cache.getMissCount());
+		assertEquals(8,cache.getHitCount());
+	}
+
+	/**
+	 * A jog moves the target a little every frame.  Most frames should be answered from the cache, and every answer
+	 * should put the end effector within the tolerance of the target.
+	 */
+	@Test
+	public void testJogHitRate() {
+		Sixi2Model model = new Sixi2().sim;
+		DHIKSolver solver = model.getIKSolver();
+		DHChain chain = model.getDHChain();
+		DHIKCache cache = new DHIKCache();
+		DHKeyframe keyframe = solver.createDHKeyframe();
+		Matrix4d reached = new Matrix4d();
+		DHChain.Workspace workspace = chain.createWorkspace();
+
+		Matrix4d target = nearHome(model,1);
+		// a slow diagonal jog with a little twist.
+		double step = cache.getPositionTolerance()/5;
+		Matrix4d turn = new Matrix4d();
+		turn.rotZ(cache.getAngleTolerance()/20);
+		final int frames = 500;
+		for(int i=0;i<frames;++i) {
+			Vector3d p = new Vector3d(target.m03+step,target.m13+step*0.5,target.m23-step*0.25);
+			target.mul(turn);
+			target.setTranslation(p);
+			assertTrue(cache.solveWithSuggestion(solver, model, target, keyframe, null)!=DHIKSolver.SolutionType.NO_SOLUTIONS);
+			chain.getEndEffector(keyframe.fkValues, workspace, reached);
+			assertEquals(target.m03,reached.m03,cache.getPositionTolerance()+1e-6);
+			assertEquals(target.m13,reached.m13,cache.getPositionTolerance()+1e-6);
+			assertEquals(target.m23,reached.m23,cache.getPositionTolerance()+1e-6);
+		}
+		System.out.println("jog: "+cache.getStatistics());
+		assertEquals(frames,cache.getHitCount()+cache.getMissCount());
+		assertTrue("hit rate "+cache.getHitRate(),cache.getHitRate()>0.7);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsDropped() {
+		Sixi2Model model = new Sixi2().sim;
+		DHIKSolver solver = model.getIKSolver();
+		DHIKCache cache = new DHIKCache(2);
+		DHKeyframe keyframe = solver.createDHKeyframe();
+
+		cache.solveWithSuggestion(solver, model, nearHome(model,1), keyframe, null);
+		cache.solveWithSuggestion(solver, model, nearHome(model,2), keyframe, null);
+		// use the first again, so the second is the oldest.
+		cache.solveWithSuggestion(solver, model, nearHome(model,1), keyframe, null);
+		cache.solveWithSuggestion(solver, model, nearHome(model,3), keyframe, null);
+		assertEquals(2,cache.size());
+		assertEquals(1,cache.getEvictionCount());
+
+		cache.solveWithSuggestion(solver, model, nearHome(model,1), keyframe, null);
+		assertEquals(2,cache.getHitCount());
+		cache.solveWithSuggestion(solver, model, nearHome(model,2), keyframe, null);
+		assertEquals(2,cache.getHitCount());
+	}
+
+	@Test
+	public void testFailuresAndChangesAreNotKept() {
+		Sixi2Model model = new Sixi2().sim;
+		DHIKSolver solver = model.getIKSolver();
+		DHIKCache cache = new DHIKCache();
+		DHKeyframe keyframe = solver.createDHKeyframe();
+
+		Matrix4d far = model.endEffector.getPoseWorld();
+		far.setTranslation(new Vector3d(1000,0,0));
+		assertEquals(DHIKSolver.SolutionType.NO_SOLUTIONS,cache.solveWithSuggestion(solver, model, far, keyframe, null));
+		assertEquals(0,cache.size());
+
+		Matrix4d target = nearHome(model,1);
+		cache.solveWithSuggestion(solver, model, target, keyframe, null);
+		assertEquals(1,cache.size());
+		// a different robot is a different answer.
+		model.links.get(1).setR(model.links.get(1).getR()+1);
+		cache.solveWithSuggestion(solver, model, target, keyframe, null);
+		assertEquals(0,cache.getHitCount());
+		assertEquals(1,cache.size());
+	}
+
+	@Test
+	public void testSetPoseIKUsesCache() {
+		Sixi2Model model = new Sixi2().sim;
+		Matrix4d target = nearHome(model,1);
+		assertTrue(model.setPoseIK(target));
+		long hits = model.getIKCache().getHitCount();
+		// the drag ball asks again every frame.
+		assertTrue(model.setPoseIK(target));
+		assertEquals(hits+1,model.getIKCache().getHitCount());
+		assertTrue(target.epsilonEquals(model.endEffector.getPoseWorld(), 1e-3));
+	}
+
+	/**
+	 * The same pose from another branch is not answered with the branch that was cached.
+	 */
+	@Test
+	public void testOtherBranchIsSolved() {
+		Sixi2Model model = new Sixi2().sim;
+		DHChain chain = model.getDHChain();
+		DHIKSolver_RTTRTR solver = new DHIKSolver_RTTRTR();
+		DHIKCache cache = new DHIKCache();
+		Matrix4d target = new Matrix4d();
+		chain.getEndEffector(new double[] { 10,-100,20,30,40,50 }, chain.createWorkspace(), target);
+		DHIKSolutionSet solutions = solver.createSolutionSet();
+		assertEquals(DHIKSolver.SolutionType.MANY_SOLUTIONS,solver.solveAll(chain, target, null, solutions));
+		DHKeyframe a = new DHKeyframe(solutions.get(0).fkValues);
+		DHKeyframe b = new DHKeyframe(solutions.get(1).fkValues);
+		DHKeyframe keyframe = solver.createDHKeyframe();
+
+		cache.solveWithSuggestion(solver, model, target, keyframe, a);
+		for(int j=0;j<6;++j) assertEquals(a.fkValues[j],keyframe.fkValues[j],1e-6);
+		cache.solveWithSuggestion(solver, model, target, keyframe, b);
+		assertEquals(0,cache.getHitCount());
+		for(int j=0;j<6;++j) assertEquals(b.fkValues[j],keyframe.fkValues[j],1e-6);
+		// the new branch replaced the old one.
+		cache.solveWithSuggestion(solver, model, target, keyframe, b);
+		assertEquals(1,cache.getHitCount());
+		assertEquals(1,cache.size());
+	}
+}
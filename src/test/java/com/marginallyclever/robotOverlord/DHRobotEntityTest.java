@@ -0,0 +1,109 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Observable;
+import java.util.Observer;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink.LinkAdjust;
+
+public class DHRobotEntityTest {
+	/**
+	 * @return a small arm with a twist, a lift, and a prismatic slide.
+	 */
+	private DHRobotEntity makeRobot() {
+		DHRobotEntity robot = new DHRobotEntity();
+		robot.setPosition(new Vector3d(1,2,3));
+		robot.setNumLinks(3);
+		DHLink a = robot.links.get(0);
+		a.setD(10);	a.setAlpha(-90);	a.setRange(-170,170);
+		DHLink b = robot.links.get(1);
+		b.setR(20);	b.setRange(-120,120);
+		DHLink c = robot.links.get(2);
+		c.flags = LinkAdjust.D;
+		c.setAlpha(90);	c.setRange(0,15);
+		return robot;
+	}
+
+	private class Counter implements Observer {
+		public int count;
+		@Override
+		public void update(Observable o, Object arg) {
+			++count;
+		}
+	}
+
+	@Test
+	public void testComputeMatchesSet() {
+		DHRobotEntity robot = makeRobot();
+		DHKeyframe key = new DHKeyframe(new double[] { 30, -45, 7 });
+
+		robot.computePoseFK(key);
+		Matrix4d [] computed = new Matrix4d[3];
+		for(int i=0;i<3;++i) {
+			computed[i] = new Matrix4d();
+			robot.getComputedPoseWorld(i, computed[i]);
+		}
+		Matrix4d tip = new Matrix4d();
+		robot.getComputedEndEffector(tip);
+
+		robot.setPoseFK(key);
+		for(int i=0;i<3;++i) {
+			assertTrue(computed[i].epsilonEquals(robot.links.get(i).getPoseWorld(),1e-9));
+		}
+		assertTrue(tip.epsilonEquals(robot.links.get(2).getPoseWorld(),1e-9));
+		assertEquals(7,robot.links.get(2).getD(),0);
+	}
+
+	@Test
+	public void testNothingMovesUntilCommit() {
+		DHRobotEntity robot = makeRobot();
+		Counter valueCounter = new Counter();
+		Counter poseCounter = new Counter();
+		robot.links.get(1).theta.addObserver(valueCounter);
+		robot.links.get(2).addObserver(poseCounter);
+		Matrix4d before = robot.links.get(2).getPoseWorld();
+
+		// out of range values are clamped, like setPoseFK().
+		DHKeyframe key = new DHKeyframe(new double[] { 10, -200, 99 });
+		for(int i=0;i<5;++i) robot.computePoseFK(key);
+		assertEquals(0,valueCounter.count);
+		assertEquals(0,poseCounter.count);
+		assertEquals(before,robot.links.get(2).getPoseWorld());
+
+		Matrix4d tip = new Matrix4d();
+		robot.getComputedEndEffector(tip);
+		robot.commitPoseFK();
+		assertEquals(1,valueCounter.count);
+		assertEquals(-120,robot.links.get(1).getTheta(),0);
+		assertEquals(15,robot.links.get(2).getD(),0);
+		assertTrue(tip.epsilonEquals(robot.links.get(2).getPoseWorld(),1e-9));
+	}
+
+	@Test
+	public void testCopyWithoutObservers() {
+		// a copied link doesn't watch its own parameters.  commit must move it anyway.
+		DHRobotEntity robot = makeRobot();
+		DHLink copy = new DHLink(robot.links.get(1));
+		robot.links.get(0).removeChild(robot.links.get(1));
+		robot.links.get(0).addChild(copy);
+		copy.addChild(robot.links.get(2));
+		robot.links.set(1,copy);
+
+		DHKeyframe key = new DHKeyframe(new double[] { 0, 60, 5 });
+		robot.computePoseFK(key);
+		Matrix4d tip = new Matrix4d();
+		robot.getComputedEndEffector(tip);
+		robot.commitPoseFK();
+		assertTrue(tip.epsilonEquals(robot.links.get(2).getPoseWorld(),1e-9));
+	}
+}
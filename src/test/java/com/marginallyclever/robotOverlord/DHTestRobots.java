@@ -0,0 +1,49 @@
+package com.marginallyclever.robotOverlord;
+
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+
+/**
+ * Robots and poses shared by the DH tests.
+ * @author Dan Royer
+ */
+public class DHTestRobots {
+	/**
+	 * @return a leg like one on the SpotMicro: hip, thigh, knee.  22 long.
+	 */
+	public static DHRobotEntity makeLeg() {
+		DHRobotEntity robot = new DHRobotEntity();
+		robot.setPosition(new Vector3d(0,0,10));
+		robot.setNumLinks(3);
+		DHLink hip = robot.links.get(0);
+		hip.setR(2);	hip.setAlpha(90);	hip.setRange(-45,45);
+		DHLink thigh = robot.links.get(1);
+		thigh.setR(10);	thigh.setRange(-90,90);
+		DHLink knee = robot.links.get(2);
+		knee.setR(10);	knee.setRange(-150,-10);
+		return robot;
+	}
+
+	/**
+	 * @return a value for each adjustable link, evenly spread between its limits.
+	 */
+	public static double [] randomValues(DHChain chain,Random random) {
+		return randomValues(chain,random,new double[chain.getNumAdjustable()]);
+	}
+
+	/**
+	 * @param q receives a value for each adjustable link, evenly spread between its limits.
+	 * @return q
+	 */
+	public static double [] randomValues(DHChain chain,Random random,double [] q) {
+		for(int j=0;j<chain.getNumAdjustable();++j) {
+			q[j] = chain.getRangeMin(j) + random.nextDouble()*(chain.getRangeMax(j)-chain.getRangeMin(j));
+		}
+		return q;
+	}
+}
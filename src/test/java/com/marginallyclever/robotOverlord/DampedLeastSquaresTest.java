@@ -0,0 +1,92 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.marginallyclever.convenience.DampedLeastSquares;
+
+public class DampedLeastSquaresTest {
+	private double [][] randomJacobian(int n,Random random) {
+		double [][] j = new double[n][6];
+		for(int k=0;k<n;++k) {
+			for(int r=0;r<6;++r) j[k][r] = random.nextDouble()*2-1;
+		}
+		return j;
+	}
+
+	/**
+	 * @return J * qDot
+	 */
+	private double [] multiply(double [][] jacobian,double [] qDot) {
+		double [] v = new double[6];
+		for(int k=0;k<jacobian.length;++k) {
+			for(int r=0;r<6;++r) v[r] += jacobian[k][r]*qDot[k];
+		}
+		return v;
+	}
+
+	@Test
+	public void testExactAwayFromSingularity() {
+		Random random = new Random(3);
+		DampedLeastSquares dls = new DampedLeastSquares(0.5,1e-6);
+		double [] v = { 1,-2,3,0.1,0.2,-0.3 };
+		// square and redundant arms.
+		for(int n=6;n<=8;++n) {
+			double [][] jacobian = randomJacobian(n,random);
+			double [] qDot = new double[n];
+			assertTrue(dls.solve(jacobian, v, qDot));
+			assertEquals(0,dls.getDamping(),0);
+			assertTrue(dls.getManipulability()>0);
+			double [] result = multiply(jacobian,qDot);
+			for(int r=0;r<6;++r) assertEquals(v[r],result[r],1e-9);
+		}
+	}
+
+	@Test
+	public void testDampedAtSingularity() {
+		Random random = new Random(4);
+		DampedLeastSquares dls = new DampedLeastSquares(0.5,1e-3);
+		double [][] jacobian = randomJacobian(6,random);
+		// two joints that do the same thing, like a straight wrist.
+		for(int r=0;r<6;++r) jacobian[5][r] = jacobian[3][r];
+		// ask for a move in the direction the arm can't go.
+		double [] v = { 0,0,0,0,0,0 };
+		v[0] = 1;
+
+		double [] qDot = new double[6];
+		assertTrue(dls.solve(jacobian, v, qDot));
+		assertEquals(0,dls.getManipulability(),1e-9);
+		assertEquals(0.5,dls.getDamping(),1e-6);
+		for(int k=0;k<6;++k) {
+			assertTrue(!Double.isNaN(qDot[k]));
+			assertTrue(Math.abs(qDot[k])<100);
+		}
+		// the two joints share the work.
+		assertEquals(qDot[3],qDot[5],1e-9);
+	}
+
+	@Test
+	public void testDampingGrowsNearSingularity() {
+		DampedLeastSquares dls = new DampedLeastSquares(1,1);
+		double [][] jacobian = new double[6][6];
+		double [] v = { 1,1,1,1,1,1 };
+		double [] qDot = new double[6];
+		double lastDamping = -1;
+		// the last joint fades away.
+		for(double s=2;s>0.001;s*=0.5) {
+			for(int k=0;k<6;++k) jacobian[k][k]=1;
+			jacobian[5][5]=s;
+			assertTrue(dls.solve(jacobian, v, qDot));
+			assertEquals(Math.min(s,2),dls.getManipulability(),1e-9);
+			assertTrue(dls.getDamping()>=lastDamping);
+			lastDamping = dls.getDamping();
+			// without damping this would be 1/s.
+			assertTrue(qDot[5]<=1.0/s+1e-9);
+		}
+		assertTrue(lastDamping>0.99);
+	}
+}
@@ -0,0 +1,153 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_FABRIK;
+import com.marginallyclever.robotOverlord.entity.scene.robotEntity.DHBuilderApp;
+
+public class FABRIKTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	/**
+	 * Jogging: from a degree away nearly every pose is found, and every answer is within the limits.
+	 */
+	@Test
+	public void testSixi2WarmStart() {
+		Sixi2Model model = new Sixi2().sim;
+		DHChain chain = model.getDHChain();
+		DHChain.Workspace work = chain.createWorkspace();
+		DHIKSolver_FABRIK solver = new DHIKSolver_FABRIK();
+		Random random = new Random(1);
+		Matrix4d target = new Matrix4d();
+		Matrix4d found = new Matrix4d();
+		DHKeyframe suggestion = new DHKeyframe(6);
+		DHKeyframe keyframe = new DHKeyframe(6);
+
+		int solved=0;
+		for(int k=0;k<200;++k) {
+			double [] q = DHTestRobots.randomValues(chain,random);
+			chain.getEndEffector(q, work, target);
+			for(int j=0;j<6;++j) suggestion.fkValues[j] = q[j] + (random.nextDouble()*2-1);
+
+			DHIKSolver.SolutionType result = solver.solveWithSuggestion(chain, target, keyframe, suggestion);
+			assertTrue(chain.isWithinLimits(keyframe.fkValues));
+			if(result!=DHIKSolver.SolutionType.ONE_SOLUTION) continue;
+			++solved;
+			chain.getEndEffector(keyframe.fkValues, work, found);
+			assertTrue(target.epsilonEquals(found, 1e-2));
+		}
+		assertTrue(solved>=180);
+	}
+
+	/**
+	 * A leg has only 3 joints, so only the position of the foot can be matched.
+	 */
+	@Test
+	public void testLegPositionOnly() {
+		DHRobotEntity leg = DHTestRobots.makeLeg();
+		DHChain chain = leg.getDHChain();
+		DHChain.Workspace work = chain.createWorkspace();
+		DHIKSolver_FABRIK solver = new DHIKSolver_FABRIK(3);
+		Random random = new Random(2);
+		assertEquals(chain.getNumAdjustable(),solver.getSolutionSize());
+		Matrix4d target = new Matrix4d();
+		Matrix4d found = new Matrix4d();
+		DHKeyframe keyframe = new DHKeyframe(3);
+		Matrix4d before = leg.links.get(2).getPoseWorld();
+		Matrix4d twist = new Matrix4d();
+		twist.rotX(Math.toRadians(40));
+
+		int solved=0;
+		for(int k=0;k<100;++k) {
+			double [] q = DHTestRobots.randomValues(chain,random);
+			chain.getEndEffector(q, work, target);
+			// turn the target so that only the position can match.
+			target.mul(twist);
+			if(solver.solveWithSuggestion(leg, target, keyframe, null)!=DHIKSolver.SolutionType.ONE_SOLUTION) continue;
+			++solved;
+			assertTrue(chain.isWithinLimits(keyframe.fkValues));
+			chain.getEndEffector(keyframe.fkValues, work, found);
+			assertEquals(target.m03,found.m03,1e-2);
+			assertEquals(target.m13,found.m13,1e-2);
+			assertEquals(target.m23,found.m23,1e-2);
+		}
+		assertTrue(solved>=90);
+		// the leg did not move.
+		assertEquals(before,leg.links.get(2).getPoseWorld());
+	}
+
+	@Test
+	public void testOutOfReach() {
+		DHRobotEntity leg = DHTestRobots.makeLeg();
+		Matrix4d target = new Matrix4d();
+		target.setIdentity();
+		target.setTranslation(new Vector3d(100,0,0));
+		DHKeyframe keyframe = new DHKeyframe(3);
+		DHIKSolver_FABRIK solver = new DHIKSolver_FABRIK(3);
+		assertEquals(DHIKSolver.SolutionType.NO_SOLUTIONS,solver.solveWithSuggestion(leg, target, keyframe, null));
+		// the closest it can get is straight out toward the target, within the limits.
+		assertTrue(leg.getDHChain().isWithinLimits(keyframe.fkValues));
+		assertEquals(0,keyframe.fkValues[0],1);
+	}
+
+	/**
+	 * solve() is the same as solveWithSuggestion() from where the robot is now.
+	 */
+	@Test
+	public void testSolve() {
+		DHRobotEntity leg = DHTestRobots.makeLeg();
+		DHChain chain = leg.getDHChain();
+		Matrix4d target = new Matrix4d();
+		chain.getEndEffector(new double[] { 10,-30,-60 }, chain.createWorkspace(), target);
+		DHIKSolver_FABRIK solver = new DHIKSolver_FABRIK(3);
+		DHKeyframe a = new DHKeyframe(3);
+		DHKeyframe b = new DHKeyframe(3);
+		assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,solver.solve(leg, target, a));
+		assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,solver.solveWithSuggestion(leg, target, b, null));
+		for(int j=0;j<3;++j) assertEquals(b.fkValues[j],a.fkValues[j],0);
+	}
+
+	/**
+	 * The builder app drags its test robot with FABRIK.
+	 */
+	@Test
+	public void testBuilderApp() {
+		DHBuilderApp app = new DHBuilderApp();
+		assertTrue(app.getIKSolver() instanceof DHIKSolver_FABRIK);
+		// a robot shaped like the Sixi 2.
+		Sixi2Model model = new Sixi2().sim;
+		for(int i=0;i<app.links.size();++i) {
+			DHLink from = model.links.get(i);
+			DHLink to = app.links.get(i);
+			to.setD(from.getD());
+			to.setR(from.getR());
+			to.setAlpha(from.getAlpha());
+			to.setTheta(from.getTheta());
+			to.setRange(from.getRangeMin(),from.getRangeMax());
+			to.flags = DHLink.LinkAdjust.THETA;
+		}
+		app.refreshPose();
+		Matrix4d target = app.endEffector.getPoseWorld();
+		target.m03 += 1;
+		target.m23 -= 1;
+		assertTrue(app.setPoseIK(target));
+		assertTrue(target.epsilonEquals(app.endEffector.getPoseWorld(), 1e-2));
+	}
+}
@@ -0,0 +1,44 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+import com.marginallyclever.convenience.FloatArrayList;
+
+public class FloatArrayListTest {
+	@Test
+	public void testGrowAndGet() {
+		FloatArrayList list = new FloatArrayList(1);
+		for(int i=0;i<1000;++i) {
+			list.add(i,i+1,i+2);
+		}
+		assertEquals(3000,list.size());
+		assertEquals(999,list.get(2997),0);
+		assertEquals(1001,list.get(2999),0);
+		list.set(0, -1);
+		assertEquals(-1,list.get(0),0);
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testOutOfBounds() {
+		FloatArrayList list = new FloatArrayList();
+		list.add(1);
+		list.get(1);
+	}
+
+	@Test
+	public void testPutInto() {
+		FloatArrayList list = new FloatArrayList();
+		list.add(1,2,3,4);
+		list.addAll(new float[] {5,6,7}, 1, 2);
+		FloatBuffer buffer = FloatBuffer.allocate(list.size());
+		list.putInto(buffer);
+		assertArrayEquals(new float[] {1,2,3,4,6,7}, buffer.array(), 0);
+		list.clear();
+		assertEquals(0,list.size());
+	}
+}
@@ -0,0 +1,131 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_LevenbergMarquardt;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_RTTRTR;
+import com.marginallyclever.robotOverlord.entity.scene.robotEntity.olderModels.Robot_Mantis;
+import com.marginallyclever.robotOverlord.entity.scene.robotEntity.olderModels.Robot_Phybot;
+import com.marginallyclever.robotOverlord.entity.scene.robotEntity.olderModels.Robot_Thor;
+
+public class LevenbergMarquardtTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	/**
+	 * From a few degrees away, as when jogging, every reachable pose is found.
+	 */
+	@Test
+	public void testWarmStart() {
+		Sixi2Model model = new Sixi2().sim;
+		DHChain chain = model.getDHChain();
+		DHChain.Workspace work = chain.createWorkspace();
+		DHIKSolver_LevenbergMarquardt solver = new DHIKSolver_LevenbergMarquardt();
+		Random random = new Random(1);
+		Matrix4d target = new Matrix4d();
+		Matrix4d found = new Matrix4d();
+		DHKeyframe suggestion = new DHKeyframe(6);
+		DHKeyframe keyframe = new DHKeyframe(6);
+
+		for(int k=0;k<200;++k) {
+			double [] q = DHTestRobots.randomValues(chain,random);
+			chain.getEndEffector(q, work, target);
+			for(int j=0;j<6;++j) suggestion.fkValues[j] = q[j] + (random.nextDouble()*2-1)*5;
+
+			assertEquals(DHIKSolver.SolutionType.ONE_SOLUTION,solver.solveWithSuggestion(chain, target, keyframe, suggestion));
+			assertTrue(chain.isWithinLimits(keyframe.fkValues));
+			chain.getEndEffector(keyframe.fkValues, work, found);
+			assertTrue(target.epsilonEquals(found, 1e-3));
+		}
+	}
+
+	@Test
+	public void testOutOfReach() {
+		Sixi2Model model = new Sixi2().sim;
+		Matrix4d target = model.endEffector.getPoseWorld();
+		target.setTranslation(new Vector3d(1000,0,0));
+		DHKeyframe keyframe = model.getIKSolver().createDHKeyframe();
+		assertEquals(DHIKSolver.SolutionType.NO_SOLUTIONS,model.getIKSolver().solveWithSuggestion(model, target, keyframe, null));
+		// the robot did not move, and does not move to a bad answer.
+		assertTrue(!model.setPoseIK(target));
+	}
+
+	@Test
+	public void testSetPoseIK() {
+		Sixi2Model model = new Sixi2().sim;
+		Matrix4d target = model.endEffector.getPoseWorld();
+		target.m03 += 2;
+		target.m23 -= 1;
+		assertTrue(model.setPoseIK(target));
+		assertTrue(target.epsilonEquals(model.endEffector.getPoseWorld(), 1e-3));
+	}
+
+	private void assertWarmStart(DHRobotEntity robot) {
+		DHChain chain = robot.getDHChain();
+		DHChain.Workspace work = chain.createWorkspace();
+		DHIKSolver_LevenbergMarquardt solver = new DHIKSolver_LevenbergMarquardt();
+		Random random = new Random(2);
+		Matrix4d target = new Matrix4d();
+		Matrix4d found = new Matrix4d();
+		DHKeyframe suggestion = new DHKeyframe(6);
+		DHKeyframe keyframe = new DHKeyframe(6);
+
+		// these are not the shape the analytic solver expects.
+		assertTrue(!new DHIKSolver_RTTRTR().isRTTRTR(chain));
+		assertEquals(6,chain.getNumAdjustable());
+		int solved=0;
+		for(int k=0;k<100;++k) {
+			double [] q = DHTestRobots.randomValues(chain,random);
+			chain.getEndEffector(q, work, target);
+			for(int j=0;j<6;++j) suggestion.fkValues[j] = q[j] + (random.nextDouble()*2-1);
+			if(solver.solveWithSuggestion(chain, target, keyframe, suggestion)!=DHIKSolver.SolutionType.ONE_SOLUTION) continue;
+			++solved;
+			assertTrue(chain.isWithinLimits(keyframe.fkValues));
+			chain.getEndEffector(keyframe.fkValues, work, found);
+			assertTrue(target.epsilonEquals(found, 1e-3));
+		}
+		assertTrue(solved>=90);
+	}
+
+	/**
+	 * The older arms have fixed links and links that turn alpha.
+	 */
+	@Test
+	public void testOlderRobots() {
+		final DHRobotEntity thor = new DHRobotEntity();
+		new Robot_Thor() {
+			private static final long serialVersionUID = 1L;
+			{ setupLinks(thor); }
+		};
+		assertWarmStart(thor);
+
+		final DHRobotEntity phybot = new DHRobotEntity();
+		new Robot_Phybot() {
+			private static final long serialVersionUID = 1L;
+			{ setupLinks(phybot); }
+		};
+		assertWarmStart(phybot);
+
+		final DHRobotEntity mantis = new DHRobotEntity();
+		new Robot_Mantis() {
+			private static final long serialVersionUID = 1L;
+			{ setupLinks(mantis); }
+		};
+		assertWarmStart(mantis);
+	}
+}
@@ -11,6 +11,7 @@ import javax.vecmath.Matrix4d;
 import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
 
+import org.junit.Rule;
 import org.junit.Test;
 
 import com.marginallyclever.convenience.MathHelper;
@@ -24,6 +25,9 @@ import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHI
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_RTTRTR;
 
 public class MiscTests {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
 	@Test
 	public void testChecksums() {
 		//>>G0 X0.000 Y-86.789 Z27.498 U0.000 V-30.692 W0.000*78
@@ -470,7 +474,7 @@ public class MiscTests {
 
 			assert( robot.sim instanceof Sixi2Sim );
 			Sixi2Sim sim = (Sixi2Sim)(robot.sim);
-			double [][] jacobian = sim.approximateJacobian(keyframe);
+			double [][] jacobian = sim.getJacobian(keyframe);
 			
 			int i,j;
 			for(i=0;i<6;++i) {
@@ -533,7 +537,7 @@ public class MiscTests {
 				if(sim.setPoseIK(m)) {
 					sim.getPoseFK(keyframe);
 					// matrix m has a sane solution (is reachable)
-					double [][] jacobian = sim.approximateJacobian(keyframe);
+					double [][] jacobian = sim.getJacobian(keyframe);
 					double [][] inverseJacobian = MatrixHelper.invert(jacobian);
 					
 					out.write(m.m03+"\t"+m.m13+"\t"+m.m23+"\t");
@@ -0,0 +1,208 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.convenience.IntArrayList;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelBVH;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelWelder;
+
+public class ModelBVHTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	/**
+	 * A cloud of small random triangles in a 100 unit cube.
+	 */
+	private Model makeCloud(Random r,int count) {
+		Model m = new Model();
+		for(int i=0;i<count;++i) {
+			double x=r.nextDouble()*100, y=r.nextDouble()*100, z=r.nextDouble()*100;
+			for(int k=0;k<3;++k) {
+				m.addVertex((float)(x+r.nextDouble()*5),(float)(y+r.nextDouble()*5),(float)(z+r.nextDouble()*5));
+				m.addNormal(0,0,1);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Test every triangle, the slow way.
+	 * @return distance to the nearest hit, or infinity.
+	 */
+	private double bruteForceRay(Model m,Point3d o,Vector3d d) {
+		float [] v = m.vertexArray.toArray();
+		double best = Double.POSITIVE_INFINITY;
+		for(int i=0;i<v.length;i+=9) {
+			Vector3d a = new Vector3d(v[i],v[i+1],v[i+2]);
+			Vector3d e1 = new Vector3d(v[i+3],v[i+4],v[i+5]);	e1.sub(a);
+			Vector3d e2 = new Vector3d(v[i+6],v[i+7],v[i+8]);	e2.sub(a);
+			Vector3d n = new Vector3d();
+			n.cross(e1,e2);
+			double denom = n.dot(d);
+			if(denom==0) continue;
+			Vector3d ao = new Vector3d(a);
+			ao.sub(o);
+			double t = n.dot(ao)/denom;
+			if(t<0 || t>=best) continue;
+			// is the plane hit inside the triangle?
+			Vector3d p = new Vector3d(d);
+			p.scaleAdd(t,new Vector3d(o));
+			p.sub(a);
+			double d00=e1.dot(e1), d01=e1.dot(e2), d11=e2.dot(e2), d20=p.dot(e1), d21=p.dot(e2);
+			double det = d00*d11-d01*d01;
+			double u = (d11*d20-d01*d21)/det;
+			double w = (d00*d21-d01*d20)/det;
+			if(u>=0 && w>=0 && u+w<=1) best=t;
+		}
+		return best;
+	}
+
+	@Test
+	public void testRayMatchesBruteForce() {
+		Random r = new Random(1234);
+		Model m = makeCloud(r,2000);
+		ModelBVH tree = m.getBVH();
+		assertEquals(2000,tree.getNumTriangles());
+		assertTrue(tree.getDepth()<40);
+
+		int hits=0;
+		ModelBVH.RayHit hit = new ModelBVH.RayHit();
+		for(int i=0;i<500;++i) {
+			Point3d o = new Point3d(r.nextDouble()*140-20,r.nextDouble()*140-20,-10);
+			Vector3d d = new Vector3d(r.nextDouble()-0.5,r.nextDouble()-0.5,1);
+			double expected = bruteForceRay(m,o,d);
+			boolean found = tree.intersectRay(o,d,Double.MAX_VALUE,hit);
+			assertEquals(expected!=Double.POSITIVE_INFINITY,found);
+			if(!found) continue;
+			hits++;
+			assertEquals(expected,hit.t,1e-6);
+
+			// the hit is on the triangle it names.
+			Point3d a=new Point3d(), b=new Point3d(), c=new Point3d();
+			tree.getTriangle(hit.triangle,a,b,c);
+			float [] v = m.vertexArray.toArray();
+			assertEquals(v[hit.triangle*9],a.x,0);
+			Vector3d ap = new Vector3d(hit.point);
+			ap.sub(a);
+			assertEquals(0,ap.dot(hit.normal),1e-6);
+		}
+		// enough rays hit something to be a fair test.
+		assertTrue(hits>50);
+	}
+
+	@Test
+	public void testMaxDistance() {
+		Model m = new Model();
+		m.addVertex(-1,-1,5);	m.addVertex(1,-1,5);	m.addVertex(0,1,5);
+		ModelBVH tree = m.getBVH();
+		ModelBVH.RayHit hit = new ModelBVH.RayHit();
+		Point3d o = new Point3d(0,0,0);
+		Vector3d d = new Vector3d(0,0,1);
+		assertFalse(tree.intersectRay(o,d,4,hit));
+		assertTrue(tree.intersectRay(o,d,6,hit));
+		assertEquals(5,hit.t,1e-9);
+		assertEquals(1,hit.normal.z,1e-9);
+		// from behind
+		d.z=-1;
+		assertFalse(tree.intersectRay(o,d,6,hit));
+		o.z=10;
+		assertTrue(tree.intersectRay(o,d,6,hit));
+		assertEquals(5,hit.t,1e-9);
+	}
+
+	@Test
+	public void testBoxMatchesBruteForce() {
+		Random r = new Random(42);
+		Model m = makeCloud(r,1000);
+		// the tree works the same on a welded model.
+		ModelWelder.weld(m,0);
+		ModelBVH tree = m.getBVH();
+		assertSame(tree,m.getBVH());
+		assertEquals(1000,tree.getNumTriangles());
+
+		float [] v = m.vertexArray.toArray();
+		int [] index = m.indexArray.toArray();
+		IntArrayList found = new IntArrayList();
+		for(int i=0;i<200;++i) {
+			double x=r.nextDouble()*100, y=r.nextDouble()*100, z=r.nextDouble()*100, s=r.nextDouble()*10;
+			Point3d bottom = new Point3d(x,y,z);
+			Point3d top = new Point3d(x+s,y+s,z+s);
+			found.clear();
+			int count = tree.findTrianglesInBox(bottom,top,found);
+			assertEquals(count,found.size());
+			assertEquals(count>0,tree.intersectsBox(bottom,top));
+
+			int [] got = found.toArray();
+			Arrays.sort(got);
+			// every triangle reported really is in the box, and none in the box are missed.
+			for(int t=0;t<index.length/3;++t) {
+				int inside = 0;
+				double [] lo = {Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE};
+				double [] hi = {-Double.MAX_VALUE,-Double.MAX_VALUE,-Double.MAX_VALUE};
+				for(int k=0;k<3;++k) {
+					int j=index[t*3+k]*3;
+					for(int a=0;a<3;++a) {
+						lo[a]=Math.min(lo[a],v[j+a]);
+						hi[a]=Math.max(hi[a],v[j+a]);
+					}
+					boolean in = v[j]>=bottom.x && v[j]<=top.x && v[j+1]>=bottom.y && v[j+1]<=top.y && v[j+2]>=bottom.z && v[j+2]<=top.z;
+					if(in) inside++;
+				}
+				// a triangle with a corner in the box must be found.
+				if(inside>0) assertTrue(Arrays.binarySearch(got,t)>=0);
+				// a triangle whose bounds miss the box must not.
+				boolean inBounds = lo[0]<=top.x && hi[0]>=bottom.x && lo[1]<=top.y && hi[1]>=bottom.y && lo[2]<=top.z && hi[2]>=bottom.z;
+				if(!inBounds) assertTrue(Arrays.binarySearch(got,t)<0);
+			}
+		}
+	}
+
+	@Test
+	public void testBoxEdgeCases() {
+		Model m = new Model();
+		// a big triangle with no corner inside the box but passing through it.
+		m.addVertex(-10,-10,0);	m.addVertex(10,-10,0);	m.addVertex(0,10,0);
+		ModelBVH tree = m.getBVH();
+		assertTrue(tree.intersectsBox(new Point3d(-1,-1,-1),new Point3d(1,1,1)));
+		// above the triangle
+		assertFalse(tree.intersectsBox(new Point3d(-1,-1,0.5),new Point3d(1,1,1)));
+		// beside the slanted edge, inside the bounds of the triangle.
+		assertFalse(tree.intersectsBox(new Point3d(7,5,-1),new Point3d(9,9,1)));
+
+		Model empty = new Model();
+		assertFalse(empty.getBVH().intersectsBox(new Point3d(-1,-1,-1),new Point3d(1,1,1)));
+		assertFalse(empty.getBVH().intersectRay(new Point3d(),new Vector3d(0,0,1),1,new ModelBVH.RayHit()));
+	}
+
+	/**
+	 * The tree is never made by reloading released arrays.
+	 */
+	@Test
+	public void testReleasedArrays() throws Exception {
+		Model m = ModelPool.loadModel("/table.stl");
+		ModelBVH tree = m.getBVH();
+		m.releaseCPUData();
+		assertTrue(m.isCPUDataReleased());
+		assertSame(tree,m.getBVH());
+
+		Model late = ModelPool.loadModel("/table.stl");
+		late.releaseCPUData();
+		assertNull(late.getBVH());
+		assertTrue(late.isCPUDataReleased());
+	}
+}
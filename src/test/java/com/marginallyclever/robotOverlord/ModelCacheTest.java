@@ -0,0 +1,152 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelCache;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+
+public class ModelCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File oldDirectory;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		oldDirectory = ModelCache.getDirectory();
+		directory = folder.newFolder("romc");
+		ModelCache.setDirectory(directory);
+	}
+
+	@After
+	public void tearDown() {
+		ModelCache.setDirectory(oldDirectory);
+	}
+
+	private void assertSameMesh(Model a,Model b) {
+		assertArrayEquals(a.vertexArray.toArray(),b.vertexArray.toArray(),0);
+		assertArrayEquals(a.normalArray.toArray(),b.normalArray.toArray(),0);
+		assertArrayEquals(a.colorArray.toArray(),b.colorArray.toArray(),0);
+		assertArrayEquals(a.texCoordArray.toArray(),b.texCoordArray.toArray(),0);
+		assertArrayEquals(a.indexArray.toArray(),b.indexArray.toArray());
+		assertEquals(a.hasIndexes,b.hasIndexes);
+		assertEquals(a.hasNormals,b.hasNormals);
+		assertEquals(a.hasUVs,b.hasUVs);
+		assertEquals(a.getCuboid().getBoundsTop(),b.getCuboid().getBoundsTop());
+		assertEquals(a.getCuboid().getBoundsBottom(),b.getCuboid().getBoundsBottom());
+	}
+
+	@Test
+	public void testSecondLoadComesFromCache() throws Exception {
+		String [] names = { "/table.stl", "/Sixi2/hand.obj", "/viewCube.obj" };
+		for(String name : names) {
+			long hits = ModelCache.getHitCount();
+			Model parsed = ModelPool.loadModel(name);
+			assertTrue(ModelCache.getCacheFile(name).isFile());
+			Model cached = ModelPool.loadModel(name);
+			assertEquals(hits+1,ModelCache.getHitCount());
+			assertSameMesh(parsed,cached);
+		}
+	}
+
+	/**
+	 * A model cached while welding was on is not used when welding is off, and the other way around.
+	 */
+	@Test
+	public void testWeldSettingsAreKept() throws Exception {
+		String name = "/table.stl";
+		boolean weld = ModelPool.getWeldOnLoad();
+		float epsilon = ModelPool.getWeldEpsilon();
+		try {
+			ModelPool.setWeldOnLoad(true,1e-4f);
+			assertTrue(ModelPool.loadModel(name).hasIndexes);
+			ModelPool.setWeldOnLoad(false,1e-4f);
+			assertFalse(ModelPool.loadModel(name).hasIndexes);
+			assertFalse(ModelPool.loadModel(name).hasIndexes);
+			ModelPool.setWeldOnLoad(true,1e-3f);
+			Model m = ModelPool.loadModel(name);
+			assertTrue(m.hasIndexes);
+			assertEquals(1e-3f,m.getWeldEpsilon(),0);
+		} finally {
+			ModelPool.setWeldOnLoad(weld,epsilon);
+		}
+	}
+
+	@Test
+	public void testChangedSourceInvalidatesCache() throws Exception {
+		File source = new File(directory,"copy.stl");
+		copy("/table.stl",source);
+		String name = source.getAbsolutePath();
+
+		ModelPool.loadModel(name);
+		long hits = ModelCache.getHitCount();
+		ModelPool.loadModel(name);
+		assertEquals(hits+1,ModelCache.getHitCount());
+
+		// different contents.
+		copy("/tray.stl",source);
+		Model fresh = ModelPool.loadModel(name);
+		assertEquals(hits+1,ModelCache.getHitCount());
+		ModelCache.setEnabled(false);
+		try {
+			assertSameMesh(ModelPool.loadModel(name),fresh);
+		} finally {
+			ModelCache.setEnabled(true);
+		}
+
+		// damaged cache files are thrown away.
+		File cacheFile = ModelCache.getCacheFile(name);
+		OutputStream out = new FileOutputStream(cacheFile);
+		out.write(new byte[10]);
+		out.close();
+		Model m = new Model();
+		assertFalse(ModelCache.load(name,m));
+		assertFalse(cacheFile.exists());
+		assertEquals(0,m.vertexArray.size());
+	}
+
+	/**
+	 * A file that has settled is known by its stamp.  Touching it is a new version.
+	 */
+	@Test
+	public void testStamp() throws Exception {
+		File source = new File(directory,"copy.stl");
+		copy("/table.stl",source);
+		String name = source.getAbsolutePath();
+		long settled = System.currentTimeMillis()-60000;
+		assertTrue(source.setLastModified(settled));
+
+		long hash = ModelCache.hashSource(name);
+		assertEquals(hash,ModelCache.hashSource(name));
+		assertTrue(source.setLastModified(settled-60000));
+		assertNotEquals(hash,ModelCache.hashSource(name));
+	}
+
+	private void copy(String resource,File destination) throws IOException {
+		InputStream in = getClass().getResourceAsStream(resource);
+		try {
+			Files.copy(in,destination.toPath(),StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			in.close();
+		}
+	}
+}
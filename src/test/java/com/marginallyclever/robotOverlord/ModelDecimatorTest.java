@@ -0,0 +1,152 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelDecimator;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelWelder;
+
+public class ModelDecimatorTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	private void addTriangle(Model m,double [] a,double [] b,double [] c) {
+		m.addVertex((float)a[0],(float)a[1],(float)a[2]);
+		m.addVertex((float)b[0],(float)b[1],(float)b[2]);
+		m.addVertex((float)c[0],(float)c[1],(float)c[2]);
+		for(int k=0;k<3;++k) m.addNormal(0,0,1);
+	}
+
+	/**
+	 * A flat square of size*size cells, two triangles each.
+	 */
+	private Model makeGrid(int size) {
+		Model m = new Model();
+		for(int y=0;y<size;++y) {
+			for(int x=0;x<size;++x) {
+				double [] a = {x  ,y  ,0};
+				double [] b = {x+1,y  ,0};
+				double [] c = {x+1,y+1,0};
+				double [] d = {x  ,y+1,0};
+				addTriangle(m,a,b,c);
+				addTriangle(m,a,c,d);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * A closed sphere, in latitude and longitude bands.
+	 */
+	private Model makeSphere(double radius,int bands) {
+		Model m = new Model();
+		for(int i=0;i<bands;++i) {
+			double t0 = Math.PI*i/bands;
+			double t1 = Math.PI*(i+1)/bands;
+			for(int j=0;j<bands*2;++j) {
+				double p0 = Math.PI*j/bands;
+				double p1 = Math.PI*(j+1)/bands;
+				double [] a = point(radius,t0,p0);
+				double [] b = point(radius,t1,p0);
+				double [] c = point(radius,t1,p1);
+				double [] d = point(radius,t0,p1);
+				if(i>0) addTriangle(m,a,b,d);
+				if(i<bands-1) addTriangle(m,b,c,d);
+			}
+		}
+		return m;
+	}
+
+	private double [] point(double radius,double theta,double phi) {
+		// exactly on the poles, so the triangles there share a vertex.
+		if(theta==0) return new double[] {0,0,radius};
+		if(theta==Math.PI) return new double[] {0,0,-radius};
+		return new double[] {
+			radius*Math.sin(theta)*Math.cos(phi),
+			radius*Math.sin(theta)*Math.sin(phi),
+			radius*Math.cos(theta) };
+	}
+
+	private int countTriangles(Model m) {
+		return m.vertexArray.size()/9;
+	}
+
+	@Test
+	public void testFlatGridStaysFlat() {
+		Model grid = makeGrid(40);
+		Model lod = ModelDecimator.decimate(grid, 0.1f);
+		assertTrue(countTriangles(lod) <= 320);
+		assertTrue(countTriangles(lod) > 0);
+		float [] v = lod.vertexArray.toArray();
+		float [] n = lod.normalArray.toArray();
+		for(int i=0;i<v.length;i+=3) {
+			assertEquals(0,v[i+2],1e-5);
+			assertEquals(1,n[i+2],1e-5);
+		}
+		// the outline holds its shape.
+		assertEquals(0,lod.getCuboid().getBoundsBottom().x,1e-5);
+		assertEquals(0,lod.getCuboid().getBoundsBottom().y,1e-5);
+		assertEquals(40,lod.getCuboid().getBoundsTop().x,1e-5);
+		assertEquals(40,lod.getCuboid().getBoundsTop().y,1e-5);
+	}
+
+	@Test
+	public void testSphereKeepsShape() {
+		double radius=10;
+		Model sphere = makeSphere(radius,40);
+		// an indexed model works too.
+		ModelWelder.weld(sphere, 0);
+		Model [] lods = ModelDecimator.makeLevelsOfDetail(sphere);
+		assertEquals(ModelDecimator.LEVEL_RATIOS.length,lods.length);
+
+		int previous = Integer.MAX_VALUE;
+		for(Model lod : lods) {
+			int count = countTriangles(lod);
+			assertTrue(count < previous);
+			previous = count;
+
+			float [] v = lod.vertexArray.toArray();
+			float [] n = lod.normalArray.toArray();
+			for(int i=0;i<v.length;i+=3) {
+				double len = Math.sqrt(v[i]*v[i]+v[i+1]*v[i+1]+v[i+2]*v[i+2]);
+				assertEquals(radius,len,radius*0.05);
+			}
+			// every face still points out.
+			for(int i=0;i<v.length;i+=9) {
+				double cx = (v[i]+v[i+3]+v[i+6])/3;
+				double cy = (v[i+1]+v[i+4]+v[i+7])/3;
+				double cz = (v[i+2]+v[i+5]+v[i+8])/3;
+				assertTrue(cx*n[i]+cy*n[i+1]+cz*n[i+2] > 0);
+			}
+		}
+	}
+
+	@Test
+	public void testSmallModelIsLeftAlone() {
+		assertEquals(0,ModelDecimator.makeLevelsOfDetail(makeGrid(5)).length);
+	}
+
+	/**
+	 * A model that released its arrays is simplified from a private copy and stays released.
+	 */
+	@Test
+	public void testReleasedModel() throws Exception {
+		Model m = ModelPool.loadModel("/table.stl");
+		// welded, so indexed.
+		int triangles = m.indexArray.size()/3;
+		m.releaseCPUData();
+		Model lod = ModelDecimator.decimate(m, 0.5f);
+		assertTrue(m.isCPUDataReleased());
+		assertTrue(countTriangles(lod) <= triangles/2);
+		assertTrue(countTriangles(lod) > 0);
+
+		// the copies have no source, but may still let go of their arrays.
+		lod.releaseCPUData();
+		assertTrue(lod.isCPUDataReleased());
+	}
+}
@@ -0,0 +1,122 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers.ModelLoadAndSaveAMF;
+
+public class ModelLoadAndSaveAMFTest {
+	// two objects.  Triangle indexes count from the start of each mesh.
+	private static final String TWO_OBJECTS =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+"<amf unit=\"millimeter\">\n"
+		+"  <metadata type=\"name\">test</metadata>\n"
+		+"  <object id=\"0\"><mesh>\n"
+		+"    <vertices>\n"
+		+"      <vertex><coordinates><x>0</x><y>0</y><z>0</z></coordinates></vertex>\n"
+		+"      <vertex><coordinates><z>0</z><y>0</y><x>1</x></coordinates></vertex>\n"
+		+"      <vertex><coordinates><x>0</x><y>1</y><z>0</z></coordinates><color><r>1</r><g>0</g><b>0</b></color></vertex>\n"
+		+"    </vertices>\n"
+		+"    <volume><triangle><v1>0</v1><v2>1</v2><v3>2</v3></triangle></volume>\n"
+		+"  </mesh></object>\n"
+		+"  <object id=\"1\"><mesh>\n"
+		+"    <vertices>\n"
+		+"      <vertex><coordinates><x>5</x><y>0</y><z>0</z></coordinates></vertex>\n"
+		+"      <vertex><coordinates><x>5</x><y>0</y><z>1</z></coordinates></vertex>\n"
+		+"      <vertex><coordinates><x>5</x><y>1</y><z>0</z></coordinates></vertex>\n"
+		+"    </vertices>\n"
+		+"    <volume materialid=\"1\">\n"
+		+"      <metadata type=\"name\">side</metadata>\n"
+		+"      <triangle><v1>0</v1><v2>2</v2><v3>1</v3></triangle>\n"
+		+"      <triangle><v1> 2 </v1><v2>1</v2><v3>0</v3></triangle>\n"
+		+"    </volume>\n"
+		+"  </mesh></object>\n"
+		+"</amf>\n";
+
+	private Model load(byte [] data) throws Exception {
+		Model m = new Model();
+		assertTrue(new ModelLoadAndSaveAMF().load(new BufferedInputStream(new ByteArrayInputStream(data)),m));
+		return m;
+	}
+
+	private byte [] zip(byte [] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		out.putNextEntry(new ZipEntry("test.amf"));
+		out.write(data);
+		out.closeEntry();
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testTwoObjects() throws Exception {
+		Model m = load(TWO_OBJECTS.getBytes("UTF-8"));
+		assertEquals(3,m.vertexArray.size()/9);
+		assertArrayEquals(new float[] {
+				0,0,0, 1,0,0, 0,1,0,
+				5,0,0, 5,1,0, 5,0,1,
+				5,1,0, 5,0,1, 5,0,0,
+			},m.vertexArray.toArray(),0);
+		float [] n = m.normalArray.toArray();
+		assertEquals(27,n.length);
+		assertArrayEquals(new float[] {0,0,1},new float[] {n[0],n[1],n[2]},1e-6f);
+		assertArrayEquals(new float[] {1,0,0},new float[] {n[9],n[10],n[11]},1e-6f);
+		assertArrayEquals(new float[] {1,0,0},new float[] {n[18],n[19],n[20]},1e-6f);
+	}
+
+	@Test
+	public void testZipped() throws Exception {
+		byte [] plain = TWO_OBJECTS.getBytes("UTF-8");
+		Model a = load(plain);
+		Model b = load(zip(plain));
+		assertArrayEquals(a.vertexArray.toArray(),b.vertexArray.toArray(),0);
+		assertArrayEquals(a.normalArray.toArray(),b.normalArray.toArray(),0);
+	}
+
+	@Test(expected=IOException.class)
+	public void testBadIndex() throws Exception {
+		load(TWO_OBJECTS.replace("<v3>2</v3>","<v3>3</v3>").getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testLargeGrid() throws Exception {
+		// a grid of 200x200 squares, each two triangles.
+		int size=200;
+		StringBuilder sb = new StringBuilder();
+		sb.append("<amf><object id=\"0\"><mesh><vertices>");
+		for(int y=0;y<=size;++y) {
+			for(int x=0;x<=size;++x) {
+				sb.append("<vertex><coordinates><x>").append(x).append("</x><y>").append(y).append("</y><z>0</z></coordinates></vertex>");
+			}
+		}
+		sb.append("</vertices><volume>");
+		for(int y=0;y<size;++y) {
+			for(int x=0;x<size;++x) {
+				int a=y*(size+1)+x;
+				int b=a+1;
+				int c=a+size+1;
+				int d=c+1;
+				sb.append("<triangle><v1>").append(a).append("</v1><v2>").append(b).append("</v2><v3>").append(d).append("</v3></triangle>");
+				sb.append("<triangle><v1>").append(a).append("</v1><v2>").append(d).append("</v2><v3>").append(c).append("</v3></triangle>");
+			}
+		}
+		sb.append("</volume></mesh></object></amf>");
+
+		Model m = load(zip(sb.toString().getBytes("UTF-8")));
+		assertEquals(size*size*2,m.vertexArray.size()/9);
+		float [] n = m.normalArray.toArray();
+		for(int i=2;i<n.length;i+=3) assertEquals(1,n[i],1e-6f);
+	}
+}
@@ -0,0 +1,148 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers.ModelLoadAndSaveSTL;
+
+public class ModelLoadAndSaveSTLTest {
+	private static final String ASCII =
+		"solid test\n"
+		+" facet normal 0 0 1\n"
+		+"  outer loop\n"
+		+"   vertex 0 0 0\n"
+		+"   vertex 1 0 0\n"
+		+"   vertex 0 1 0\n"
+		+"  endloop\n"
+		+" endfacet\n"
+		+"endsolid test\n";
+
+	/**
+	 * @return a binary STL of two triangles whose header starts with "solid", as some exporters write.
+	 */
+	private byte [] makeBinary() throws Exception {
+		Model m = new Model();
+		m.addVertex(0,0,0);	m.addVertex(1,0,0);	m.addVertex(0,1,0);
+		m.addVertex(0,0,1);	m.addVertex(1,0,1);	m.addVertex(0,1,1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ModelLoadAndSaveSTL().save(out, m);
+		byte [] data = out.toByteArray();
+		byte [] header = "solid exported by a CAD program facet".getBytes(StandardCharsets.US_ASCII);
+		Arrays.fill(data, 0, 80, (byte)' ');
+		System.arraycopy(header, 0, data, 0, header.length);
+		return data;
+	}
+
+	private File write(byte [] data) throws Exception {
+		File file = File.createTempFile("test", ".stl");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+		return file;
+	}
+
+	private Model loadStream(byte [] data) throws Exception {
+		Model m = new Model();
+		assertTrue(new ModelLoadAndSaveSTL().load(new BufferedInputStream(new ByteArrayInputStream(data)),m));
+		return m;
+	}
+
+	private Model loadFile(File file) throws Exception {
+		Model m = new Model();
+		assertTrue(new ModelLoadAndSaveSTL().load(file.getAbsolutePath(),m));
+		return m;
+	}
+
+	@Test
+	public void testBinaryWithSolidHeader() throws Exception {
+		byte [] data = makeBinary();
+		File file = write(data);
+		try {
+			assertEquals(2*9,loadStream(data).vertexArray.size());
+			assertEquals(2*9,loadFile(file).vertexArray.size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testASCII() throws Exception {
+		byte [] data = ASCII.getBytes(StandardCharsets.US_ASCII);
+		File file = write(data);
+		try {
+			assertEquals(9,loadStream(data).vertexArray.size());
+			assertEquals(9,loadFile(file).vertexArray.size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * A short file fails the same way from a stream or from a mapped file.
+	 */
+	@Test
+	public void testTruncated() throws Exception {
+		byte [] data = Arrays.copyOf(makeBinary(), 84+60);
+		File file = write(data);
+		try {
+			try {
+				loadStream(data);
+				assertTrue(false);
+			} catch(EOFException e) {}
+			try {
+				loadFile(file);
+				assertTrue(false);
+			} catch(EOFException e) {}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * A damaged count fails before anything big is allocated.
+	 */
+	@Test
+	public void testDamagedCount() throws Exception {
+		byte [] data = Arrays.copyOf(makeBinary(), 84+100);
+		// 200 million would be gigabytes of floats.
+		data[80]=(byte)0x00;	data[81]=(byte)0xC2;	data[82]=(byte)0xEB;	data[83]=(byte)0x0B;
+		try {
+			loadStream(data);
+			assertTrue(false);
+		} catch(EOFException e) {}
+		// 2^31-1, then 2^32-1.
+		data[80]=(byte)0xFF;	data[81]=(byte)0xFF;	data[82]=(byte)0xFF;	data[83]=(byte)0x7F;
+		try {
+			loadStream(data);
+			assertTrue(false);
+		} catch(IOException e) {}
+		data[83]=(byte)0xFF;
+		try {
+			loadStream(data);
+			assertTrue(false);
+		} catch(IOException e) {}
+		File file = write(data);
+		try {
+			try {
+				loadFile(file);
+				assertTrue(false);
+			} catch(IOException e) {}
+		} finally {
+			file.delete();
+		}
+	}
+}
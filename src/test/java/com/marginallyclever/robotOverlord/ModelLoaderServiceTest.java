@@ -0,0 +1,125 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoaderService;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+
+public class ModelLoaderServiceTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	private static final String [] SIXI2_MESHES = {
+		"/Sixi2/anchor.obj",
+		"/Sixi2/shoulder.obj",
+		"/Sixi2/bicep.obj",
+		"/Sixi2/tuningFork.obj",
+		"/Sixi2/picassoBox.obj",
+		"/Sixi2/hand.obj",
+	};
+
+	@Test
+	public void testEntityWaitsForBackgroundLoad() {
+		ModelEntity entity = new ModelEntity("/table.stl");
+		Model m = entity.getModel();
+		assertNotNull(m);
+		assertEquals("/table.stl",entity.getModelFilename());
+		assertTrue(m.getNumTriangles()>0);
+
+		// a bad file leaves the old model in place.
+		entity.setModelFilename("/doesNotExist.stl");
+		assertEquals(m,entity.getModel());
+		assertEquals("/table.stl",entity.getModelFilename());
+
+		entity.setModelFilename("");
+		assertNull(entity.getModel());
+		assertEquals(0,ModelPool.getReferenceCount(m));
+	}
+
+	@Test
+	public void testDiscardGivesBackReference() throws Exception {
+		CompletableFuture<Model> future = ModelLoaderService.load("/tray.stl");
+		// wait for the reference to be given back, not just for the load.
+		Model m = ModelLoaderService.discard(future).get();
+		assertEquals(0,ModelPool.getReferenceCount(m));
+	}
+
+	/**
+	 * A model whose arrays were released is parsed again on a worker, not in upload() on the GL thread.
+	 */
+	@Test
+	public void testRestoreOnWorker() throws Exception {
+		Model m = ModelPool.acquire("/tray.stl");
+		try {
+			int triangles = m.getNumTriangles();
+			m.releaseCPUData();
+			assertTrue(m.canRestoreCPUData());
+			int queued = ModelLoaderService.getUploadQueueSize();
+
+			// nothing is uploaded yet, so no GL context is needed.
+			m.upload(null);
+			assertFalse(m.isLoaded());
+
+			long start = System.currentTimeMillis();
+			while(m.isCPUDataReleased() || ModelLoaderService.getJobCount()>0) {
+				assertTrue("restore took too long.",System.currentTimeMillis()-start<30000);
+				Thread.sleep(10);
+			}
+			assertEquals(triangles,m.getNumTriangles());
+			assertTrue(m.vertexArray.size()>0);
+			// then it waits its turn to be uploaded.
+			assertEquals(queued+1,ModelLoaderService.getUploadQueueSize());
+		} finally {
+			ModelPool.release(m);
+		}
+	}
+
+	/**
+	 * Reports the time to load the Sixi2 meshes one after another and all at once.
+	 */
+	@Ignore("benchmark, run by hand")
+	@Test
+	public void testParallelLoadSpeed() throws Exception {
+		long budget = ModelPool.getMemoryBudget();
+		long sequential = 0;
+		long parallel = 0;
+		try {
+			// warm up the loaders
+			for(String name : SIXI2_MESHES) ModelPool.loadModel(name);
+
+			long start = System.nanoTime();
+			for(String name : SIXI2_MESHES) ModelPool.loadModel(name);
+			sequential = System.nanoTime()-start;
+
+			// flush the pool so every file is parsed again.
+			ModelPool.setMemoryBudget(0);
+			start = System.nanoTime();
+			ArrayList<CompletableFuture<Model>> futures = new ArrayList<CompletableFuture<Model>>();
+			for(String name : SIXI2_MESHES) futures.add(ModelLoaderService.load(name));
+			for(CompletableFuture<Model> f : futures) {
+				Model m = f.get();
+				assertTrue(m.getNumTriangles()>0);
+				ModelPool.release(m);
+			}
+			parallel = System.nanoTime()-start;
+		} finally {
+			ModelPool.setMemoryBudget(budget);
+		}
+		System.out.println("Sixi2 meshes on "+Runtime.getRuntime().availableProcessors()+" cores."
+				+" sequential: "+(sequential/1000000)+"ms."
+				+" parallel: "+(parallel/1000000)+"ms.");
+	}
+}
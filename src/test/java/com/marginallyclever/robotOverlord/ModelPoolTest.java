@@ -0,0 +1,213 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+
+public class ModelPoolTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void restoreBudget() {
+		ModelPool.setMemoryBudget(512L*1024*1024);
+	}
+
+	@Test
+	public void testReferenceCountAndEviction() throws Exception {
+		// flush anything left over from other tests.
+		ModelPool.setMemoryBudget(0);
+		ModelPool.setMemoryBudget(512L*1024*1024);
+		long hits = ModelPool.getHitCount();
+		long misses = ModelPool.getMissCount();
+		long evictions = ModelPool.getEvictionCount();
+
+		Model a = ModelPool.acquire("/table.stl");
+		Model b = ModelPool.acquire("/table.stl");
+		assertSame(a,b);
+		assertEquals(2,ModelPool.getReferenceCount(a));
+		assertEquals(misses+1,ModelPool.getMissCount());
+		assertEquals(hits+1,ModelPool.getHitCount());
+		int triangles = a.getNumTriangles();
+
+		// referenced models are never evicted.
+		ModelPool.setMemoryBudget(0);
+		assertEquals(evictions,ModelPool.getEvictionCount());
+
+		ModelPool.release(a);
+		assertEquals(evictions,ModelPool.getEvictionCount());
+		ModelPool.release(b);
+		assertEquals(evictions+1,ModelPool.getEvictionCount());
+		assertEquals(0,ModelPool.getReferenceCount(a));
+		// the arrays are freed on the next frame.  a was never uploaded, so no GL context is needed.
+		ModelPool.update(null);
+		assertTrue(a.isCPUDataReleased());
+		assertEquals(triangles,a.getNumTriangles());
+
+		// evicted, so the next request loads a fresh copy.
+		ModelPool.setMemoryBudget(512L*1024*1024);
+		Model c = ModelPool.acquire("/table.stl");
+		assertNotSame(a,c);
+		assertEquals(triangles,c.getNumTriangles());
+		ModelPool.release(c);
+	}
+
+	@Test
+	public void testConcurrentLoadsShareOneModel() throws Exception {
+		final String name = "/tray.stl";
+		// flush anything left over from other tests.
+		ModelPool.setMemoryBudget(0);
+		ModelPool.setMemoryBudget(512L*1024*1024);
+		long misses = ModelPool.getMissCount();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		ArrayList<Future<Model>> results = new ArrayList<Future<Model>>();
+		for(int i=0;i<16;++i) {
+			results.add(pool.submit(new Callable<Model>() {
+				@Override
+				public Model call() throws Exception {
+					return ModelPool.acquire(name);
+				}
+			}));
+		}
+		Model first = results.get(0).get();
+		for(Future<Model> f : results) {
+			assertSame(first,f.get());
+		}
+		pool.shutdown();
+		assertEquals(misses+1,ModelPool.getMissCount());
+		assertEquals(16,ModelPool.getReferenceCount(first));
+		for(int i=0;i<16;++i) ModelPool.release(first);
+		System.out.println(ModelPool.getStatistics());
+	}
+
+	/**
+	 * @return what each thread got, started together so that most of them wait on the first one's load.
+	 */
+	private ArrayList<Future<Model>> acquireAtOnce(final String name,int count) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(count);
+		final CountDownLatch start = new CountDownLatch(1);
+		ArrayList<Future<Model>> results = new ArrayList<Future<Model>>();
+		for(int i=0;i<count;++i) {
+			results.add(pool.submit(new Callable<Model>() {
+				@Override
+				public Model call() throws Exception {
+					start.await();
+					return ModelPool.acquire(name);
+				}
+			}));
+		}
+		start.countDown();
+		pool.shutdown();
+		return results;
+	}
+
+	/**
+	 * A failed load leaves nothing behind, and the threads that waited for it don't keep a dead entry.
+	 */
+	@Test
+	public void testConcurrentLoadsOfMissingFile() throws Exception {
+		File file = new File(folder.getRoot(),"missing.stl");
+		String name = file.getAbsolutePath();
+		int size = ModelPool.size();
+
+		for(Future<Model> f : acquireAtOnce(name,8)) {
+			try {
+				f.get();
+				assertTrue(false);
+			} catch(ExecutionException e) {}
+		}
+		assertEquals(size,ModelPool.size());
+
+		// once the file is there everyone shares it, and every reference is counted.
+		InputStream in = ModelPoolTest.class.getResourceAsStream("/tray.stl");
+		try {
+			Files.copy(in,file.toPath());
+		} finally {
+			in.close();
+		}
+		ArrayList<Future<Model>> results = acquireAtOnce(name,8);
+		Model first = results.get(0).get();
+		for(Future<Model> f : results) {
+			assertSame(first,f.get());
+		}
+		assertEquals(8,ModelPool.getReferenceCount(first));
+		assertFalse(first.isCPUDataReleased());
+		for(int i=0;i<8;++i) ModelPool.release(first);
+		assertEquals(0,ModelPool.getReferenceCount(first));
+	}
+
+	/**
+	 * Reloading one entity gives it a fresh copy.  The old copy is evicted when its last user lets go.
+	 */
+	@Test
+	public void testReload() throws Exception {
+		final String name = "/table.stl";
+		final Model other = ModelPool.acquire(name);
+		final long evictions = ModelPool.getEvictionCount();
+		new ModelEntity(name) {
+			private static final long serialVersionUID = 1L;
+			{
+				waitForModel();
+				assertSame(other,getModel());
+				reload();
+				waitForModel();
+				assertNotSame(other,getModel());
+				assertEquals(other.getNumTriangles(),getModel().getNumTriangles());
+				assertTrue(getModel().hasIndexes==ModelPool.getWeldOnLoad());
+				assertEquals(1,ModelPool.getReferenceCount(getModel()));
+				// the other user still has the old copy.
+				assertEquals(1,ModelPool.getReferenceCount(other));
+				assertFalse(other.isCPUDataReleased());
+			}
+		};
+		ModelPool.release(other);
+		assertEquals(evictions+1,ModelPool.getEvictionCount());
+	}
+
+	@Test
+	public void testForget() throws Exception {
+		final String name = "/tray.stl";
+		long evictions = ModelPool.getEvictionCount();
+		Model a = ModelPool.acquire(name);
+		ModelPool.acquire(a);
+		ModelPool.forget(name);
+		Model b = ModelPool.acquire(name);
+		assertNotSame(a,b);
+		assertEquals(2,ModelPool.getReferenceCount(a));
+		assertEquals(1,ModelPool.getReferenceCount(b));
+
+		ModelPool.release(a);
+		assertEquals(evictions,ModelPool.getEvictionCount());
+		ModelPool.release(a);
+		assertEquals(evictions+1,ModelPool.getEvictionCount());
+		assertEquals(0,ModelPool.getReferenceCount(a));
+		ModelPool.update(null);
+		assertTrue(a.isCPUDataReleased());
+		ModelPool.release(b);
+	}
+}
@@ -1,10 +1,21 @@
 package com.marginallyclever.robotOverlord;
 
+import static org.junit.Assert.assertArrayEquals;
+
 import java.io.IOException;
 
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
 import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelSmoother;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers.ModelLoadAndSaveSTL;
 
 public class ModelSmootherTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
 	
 	//@Test
 	public void smoothAll() throws IOException {		
@@ -21,4 +32,105 @@ public class ModelSmootherTest {
 		System.out.println("wrist");		ModelSmoother.smoothModel("/AH/Wrist_r1.stl",		wd + "/AH/Wrist_r1-smooth.stl",		vertexEpsilon,normalEpsilon);
 	}
 	
+	/**
+	 * The grid search must give exactly the same normals as comparing every pair of vertexes.
+	 */
+	@Test
+	public void testSameAsBruteForce() throws Exception {
+		float [][] epsilons = { {0.1f,0.25f}, {1f,1f}, {0,2f} };
+		for(float [] e : epsilons) {
+			Model a = new Model();
+			Model b = new Model();
+			new ModelLoadAndSaveSTL().load("/tray.stl",a);
+			new ModelLoadAndSaveSTL().load("/tray.stl",b);
+
+			long start = System.nanoTime();
+			smoothNormalsBruteForce(a,e[0],e[1]);
+			long bruteForce = System.nanoTime()-start;
+			start = System.nanoTime();
+			ModelSmoother.smoothNormals(b,e[0],e[1]);
+			long grid = System.nanoTime()-start;
+
+			assertArrayEquals(a.normalArray.toArray(),b.normalArray.toArray(),0);
+			System.out.println("smooth "+(a.vertexArray.size()/3)+" vertexes."
+					+" brute force: "+(bruteForce/1000000)+"ms."
+					+" grid: "+(grid/1000000)+"ms.");
+		}
+	}
+
+	/**
+	 * Reports how long a big mesh takes.
+	 */
+	@Test
+	public void testLargeMesh() throws Exception {
+		Model m = ModelPool.loadModel("/Sixi2/shoulder.obj");
+		long start = System.nanoTime();
+		ModelSmoother.smoothNormals(m,0.1f,0.25f);
+		System.out.println("smooth "+(m.vertexArray.size()/3)+" vertexes: "+((System.nanoTime()-start)/1000000)+"ms.");
+	}
+
+	// the original O(n^2) version.
+	private void smoothNormalsBruteForce(Model model,float vertexEpsilon,float normalEpsilon) {
+		float vertexEpsilonSquared = vertexEpsilon * vertexEpsilon;
+		float normalEpsilonSquared = normalEpsilon * normalEpsilon;
+
+		int numFaces = model.vertexArray.size()/3;
+		float [] vertexArray = model.vertexArray.getArray();
+		float [] normalArray = model.normalArray.getArray();
+		int [] indexList = new int[numFaces];
+		int size;
+		boolean [] skip = new boolean[numFaces];
+
+		int i,j;
+		for(i=0;i<numFaces;++i) {
+			if(skip[i]) continue;
+			float p1x = vertexArray[i*3+0];
+			float p1y = vertexArray[i*3+1];
+			float p1z = vertexArray[i*3+2];
+			float n1x = normalArray[i*3+0];
+			float n1y = normalArray[i*3+1];
+			float n1z = normalArray[i*3+2];
+
+			size=0;
+			indexList[size++]=i;
+			for(j=i+1;j<numFaces;++j) {
+				if(skip[j]) continue;
+				float dx = vertexArray[j*3+0]-p1x;
+				float dy = vertexArray[j*3+1]-p1y;
+				float dz = vertexArray[j*3+2]-p1z;
+				if( dx*dx+dy*dy+dz*dz <= vertexEpsilonSquared ) {
+					dx = normalArray[j*3+0]-n1x;
+					dy = normalArray[j*3+1]-n1y;
+					dz = normalArray[j*3+2]-n1z;
+					if( dx*dx+dy*dy+dz*dz <= normalEpsilonSquared ) {
+						indexList[size++]=j;
+					}
+				}
+			}
+			if(size>1) {
+				n1x=0;
+				n1y=0;
+				n1z=0;
+				int k;
+				for(k=0;k<size;++k) {
+					j = indexList[k]*3;
+					n1x += normalArray[j+0];
+					n1y += normalArray[j+1];
+					n1z += normalArray[j+2];
+				}
+				float len = (float)Math.sqrt(n1x*n1x+n1y*n1y+n1z*n1z);
+				n1x /= len;
+				n1y /= len;
+				n1z /= len;
+				for(k=0;k<size;++k) {
+					j = indexList[k];
+					skip[j]=true;
+					j*=3;
+					normalArray[j+0] = n1x;
+					normalArray[j+1] = n1y;
+					normalArray[j+2] = n1z;
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,72 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Test;
+
+import com.marginallyclever.convenience.Cuboid;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
+
+public class ModelTest {
+	private Model makeTriangle() {
+		Model m = new Model();
+		m.addVertex(0,0,0);	m.addNormal(0,0,1);	m.addTexCoord(0,0);
+		m.addVertex(2,0,0);	m.addNormal(0,0,1);	m.addTexCoord(1,0);
+		m.addVertex(0,4,0);	m.addNormal(0,0,1);	m.addTexCoord(0,1);
+		return m;
+	}
+
+	@Test
+	public void testAdjustDoesNotTouchVertexes() {
+		Model m = makeTriangle();
+		m.isDirty=false;
+		m.adjustScale(10);
+		m.adjustOrigin(new Vector3d(1,2,3));
+		m.adjustRotation(new Vector3d(0,0,90));
+		// no new upload is needed and the vertexes are unchanged.
+		assertFalse(m.isDirty);
+		assertArrayEquals(new float[] {0,0,0, 2,0,0, 0,4,0},m.vertexArray.toArray(),0);
+	}
+
+	@Test
+	public void testBoundsFollowAdjust() {
+		Model m = makeTriangle();
+		Cuboid c = m.getCuboid();
+		assertEquals(new Point3d(0,0,0),c.getBoundsBottom());
+		assertEquals(new Point3d(2,4,0),c.getBoundsTop());
+
+		m.adjustOrigin(new Vector3d(1,2,3));
+		assertEquals(new Point3d(1,2,3),m.getCuboid().getBoundsBottom());
+		assertEquals(new Point3d(3,6,3),m.getCuboid().getBoundsTop());
+
+		// rotate 90 degrees around z.  x becomes y, y becomes -x.
+		m.adjustRotation(new Vector3d(0,0,90));
+		assertTrue(new Point3d(-4,0,0).epsilonEquals(m.getCuboid().getBoundsBottom(),1e-6));
+		assertTrue(new Point3d(0,2,0).epsilonEquals(m.getCuboid().getBoundsTop(),1e-6));
+
+		m.adjustScale(2);
+		assertTrue(new Point3d(-8,0,0).epsilonEquals(m.getCuboid().getBoundsBottom(),1e-6));
+		assertTrue(new Point3d(0,4,0).epsilonEquals(m.getCuboid().getBoundsTop(),1e-6));
+	}
+
+	/**
+	 * The entity's cuboid field follows the model without anyone calling getCuboid().
+	 */
+	@Test
+	public void testEntityBoundsFollowModel() {
+		ModelEntity e = new ModelEntity();
+		e.setModel(makeTriangle());
+		assertEquals(new Point3d(2,4,0),e.cuboid.getBoundsTop());
+		e.setModelScale(2);
+		assertEquals(new Point3d(4,8,0),e.cuboid.getBoundsTop());
+		e.setModelOrigin(1,0,0);
+		assertEquals(new Point3d(5,8,0),e.cuboid.getBoundsTop());
+	}
+}
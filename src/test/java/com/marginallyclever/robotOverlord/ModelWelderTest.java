@@ -0,0 +1,89 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelWelder;
+
+public class ModelWelderTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	private void addVertex(Model m,float x,float y,float z) {
+		m.addVertex(x,y,z);
+		m.addNormal(0,0,1);
+	}
+
+	@Test
+	public void testSharedEdge() {
+		Model m = new Model();
+		// two triangles sharing the edge (1,0,0)-(0,1,0).  The copies are a hair apart, on both sides of a cell boundary.
+		addVertex(m,0,0,0);
+		addVertex(m,1,0,0);
+		addVertex(m,0,1,0);
+		addVertex(m,1.00004f,0,0);
+		addVertex(m,1,1,0);
+		addVertex(m,0,0.99996f,0);
+		ModelWelder.weld(m,1e-4f);
+		assertTrue(m.hasIndexes);
+		assertEquals(4*3,m.vertexArray.size());
+		assertEquals(4*3,m.normalArray.size());
+		assertEquals(6,m.indexArray.size());
+		assertEquals(m.indexArray.get(1),m.indexArray.get(3));
+		assertEquals(m.indexArray.get(2),m.indexArray.get(5));
+		assertEquals(6,m.getNumTriangles());
+	}
+
+	@Test
+	public void testDifferentNormalsStaySeparate() {
+		Model m = new Model();
+		m.addVertex(0,0,0);	m.addNormal(0,0,1);
+		m.addVertex(0,0,0);	m.addNormal(0,1,0);
+		m.addVertex(0,0,0);	m.addNormal(0,0,1);
+		ModelWelder.weld(m,0);
+		assertEquals(2*3,m.vertexArray.size());
+		assertEquals(0,m.indexArray.get(0));
+		assertEquals(1,m.indexArray.get(1));
+		assertEquals(0,m.indexArray.get(2));
+	}
+
+	/**
+	 * Welding must not move any vertex more than epsilon.  Reports how much smaller the resource meshes get.
+	 */
+	@Test
+	public void testResourceMeshes() throws Exception {
+		String [] names = { "/table.stl", "/tray.stl", "/Sixi2/shoulder.obj", "/Sixi2/hand.obj" };
+		float epsilon = 1e-4f;
+		for(String name : names) {
+			boolean weld = ModelPool.getWeldOnLoad();
+			ModelPool.setWeldOnLoad(false,epsilon);
+			Model soup;
+			Model welded;
+			try {
+				soup = ModelPool.loadModel(name);
+				welded = ModelPool.loadModel(name);
+			} finally {
+				ModelPool.setWeldOnLoad(weld,ModelPool.getWeldEpsilon());
+			}
+			ModelWelder.weld(welded,epsilon);
+
+			int numVertexes = soup.vertexArray.size()/3;
+			assertEquals(numVertexes,welded.indexArray.size());
+			float [] a = soup.vertexArray.getArray();
+			float [] b = welded.vertexArray.getArray();
+			for(int i=0;i<numVertexes;++i) {
+				int j = welded.indexArray.get(i);
+				float dx = a[i*3  ]-b[j*3  ];
+				float dy = a[i*3+1]-b[j*3+1];
+				float dz = a[i*3+2]-b[j*3+2];
+				assertTrue(Math.sqrt(dx*dx+dy*dy+dz*dz)<=epsilon);
+			}
+			System.out.println(name+" "+numVertexes+" vertexes welded to "+(welded.vertexArray.size()/3));
+		}
+	}
+}
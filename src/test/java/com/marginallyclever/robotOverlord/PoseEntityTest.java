@@ -0,0 +1,147 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.PoseEntity;
+
+public class PoseEntityTest {
+	private static final int LENGTH=7;
+
+	/**
+	 * @return a chain of entities, each the child of the one before.
+	 */
+	private PoseEntity [] makeChain() {
+		PoseEntity [] chain = new PoseEntity[LENGTH];
+		for(int i=0;i<LENGTH;++i) {
+			chain[i] = new PoseEntity("link"+i);
+			if(i>0) chain[i-1].addChild(chain[i]);
+		}
+		return chain;
+	}
+
+	private Matrix4d makePose(double angle,double x) {
+		Matrix4d m = new Matrix4d();
+		m.rotZ(angle);
+		m.setTranslation(new Vector3d(x,0,1));
+		return m;
+	}
+
+	@Test
+	public void testWorldIsProductOfPoses() {
+		PoseEntity [] chain = makeChain();
+		Matrix4d expected = new Matrix4d();
+		expected.setIdentity();
+		for(int i=0;i<LENGTH;++i) {
+			Matrix4d m = makePose(0.1*i,i);
+			chain[i].setPose(m);
+			expected.mul(m);
+		}
+		assertTrue(expected.epsilonEquals(chain[LENGTH-1].getPoseWorld(),1e-9));
+
+		// change the middle.  the end follows, the start does not.
+		Matrix4d start = chain[0].getPoseWorld();
+		chain[3].setPosition(new Vector3d(100,0,0));
+		expected.setIdentity();
+		for(int i=0;i<LENGTH;++i) expected.mul(chain[i].getPose());
+		Matrix4d out = new Matrix4d();
+		chain[LENGTH-1].getPoseWorld(out);
+		assertTrue(expected.epsilonEquals(out,1e-9));
+		assertEquals(start,chain[0].getPoseWorld());
+	}
+
+	@Test
+	public void testOnePassAfterManyChanges() {
+		PoseEntity [] chain = makeChain();
+		chain[LENGTH-1].getPoseWorld();
+		long [] before = new long[LENGTH];
+		for(int i=0;i<LENGTH;++i) before[i] = chain[i].getPoseWorldVersion();
+
+		// like setting every joint of a robot arm, twice.
+		for(int j=0;j<2;++j) {
+			for(int i=0;i<LENGTH;++i) chain[i].setPose(makePose(0.2*j,i));
+		}
+		chain[LENGTH-1].getPoseWorld();
+		chain[LENGTH-1].getPoseWorld();
+		// every world pose was worked out once.
+		for(int i=0;i<LENGTH;++i) assertEquals(before[i]+1,chain[i].getPoseWorldVersion());
+	}
+
+	@Test
+	public void testNewParent() {
+		PoseEntity a = new PoseEntity("a");
+		PoseEntity b = new PoseEntity("b");
+		PoseEntity child = new PoseEntity("child");
+		a.setPosition(new Vector3d(1,0,0));
+		b.setPosition(new Vector3d(0,2,0));
+		a.addChild(child);
+		assertEquals(1,child.getPoseWorld().m03,0);
+
+		a.removeChild(child);
+		assertEquals(0,child.getPoseWorld().m03,0);
+		b.addChild(child);
+		assertEquals(2,child.getPoseWorld().m13,0);
+	}
+
+	@Test
+	public void testCuboidFollows() {
+		PoseEntity a = new PoseEntity("a");
+		PoseEntity child = new PoseEntity("child");
+		a.addChild(child);
+		child.cuboid.setBounds(new Point3d(1,1,1),new Point3d(0,0,0));
+		a.setPosition(new Vector3d(10,0,0));
+		child.getCuboid().updatePoints();
+		assertEquals(10,child.getCuboid().p[0].x,1e-9);
+		a.setPosition(new Vector3d(20,0,0));
+		child.getCuboid().updatePoints();
+		assertEquals(20,child.getCuboid().p[0].x,1e-9);
+	}
+
+	/**
+	 * A reader on another thread always sees a whole world pose, never one half refreshed.
+	 */
+	@Test
+	public void testReadFromAnotherThread() throws Exception {
+		final PoseEntity [] chain = makeChain();
+		final Matrix4d [] roots = { makePose(0,1), makePose(1,5) };
+		Matrix4d rest = makePose(0.3,2);
+		for(int i=1;i<LENGTH;++i) chain[i].setPose(rest);
+		final Matrix4d [] expected = new Matrix4d[2];
+		for(int k=0;k<2;++k) {
+			expected[k] = new Matrix4d(roots[k]);
+			for(int i=1;i<LENGTH;++i) expected[k].mul(rest);
+		}
+		chain[0].setPose(roots[0]);
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicBoolean torn = new AtomicBoolean();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				Matrix4d out = new Matrix4d();
+				while(!done.get()) {
+					chain[LENGTH-1].getPoseWorld(out);
+					if(!out.epsilonEquals(expected[0],1e-9) && !out.epsilonEquals(expected[1],1e-9)) torn.set(true);
+				}
+			}
+		};
+		reader.start();
+		Matrix4d out = new Matrix4d();
+		for(int j=0;j<20000;++j) {
+			chain[0].setPose(roots[j%2]);
+			chain[LENGTH-1].getPoseWorld(out);
+		}
+		done.set(true);
+		reader.join();
+		assertFalse(torn.get());
+	}
+}
@@ -0,0 +1,131 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolutionSet;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.solvers.DHIKSolver_RTTRTR;
+
+public class RTTRTRTest {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
+	private void assertReaches(DHChain chain,Matrix4d target,DHKeyframe keyframe) {
+		Matrix4d found = new Matrix4d();
+		chain.getEndEffector(keyframe.fkValues, chain.createWorkspace(), found);
+		assertTrue(target.epsilonEquals(found, 1e-6));
+		assertTrue(chain.isWithinLimits(keyframe.fkValues));
+	}
+
+	/**
+	 * Every answer reaches the target, and the cheapest is the pose the target came from.
+	 */
+	@Test
+	public void testEveryAnswer() {
+		Sixi2Model model = new Sixi2().sim;
+		Matrix4d before = model.endEffector.getPoseWorld();
+		DHChain chain = model.getDHChain();
+		DHIKSolver_RTTRTR solver = new DHIKSolver_RTTRTR();
+		DHIKSolutionSet solutions = solver.createSolutionSet();
+		DHChain.Workspace work = chain.createWorkspace();
+		Matrix4d target = new Matrix4d();
+		DHKeyframe start = new DHKeyframe(6);
+		Random random = new Random(5);
+		int many=0;
+
+		for(int k=0;k<1000;++k) {
+			DHTestRobots.randomValues(chain,random,start.fkValues);
+			chain.getEndEffector(start.fkValues, work, target);
+			DHIKSolver.SolutionType result = solver.solveAll(chain, target, start, solutions);
+			assertTrue(result!=DHIKSolver.SolutionType.NO_SOLUTIONS);
+			if(result==DHIKSolver.SolutionType.MANY_SOLUTIONS) ++many;
+
+			for(int j=0;j<6;++j) assertEquals(start.fkValues[j],solutions.get(0).fkValues[j],1e-6);
+			for(int i=0;i<solutions.size();++i) {
+				assertReaches(chain,target,solutions.get(i));
+				if(i>0) assertTrue(solutions.getCost(i-1)<=solutions.getCost(i));
+			}
+		}
+		assertTrue(many>0);
+		assertEquals(before,model.endEffector.getPoseWorld());
+	}
+
+	/**
+	 * Whichever answer the robot is nearest is the one it gets.
+	 */
+	@Test
+	public void testNearestFirst() {
+		DHChain chain = new Sixi2().sim.getDHChain();
+		DHIKSolver_RTTRTR solver = new DHIKSolver_RTTRTR();
+		DHIKSolutionSet solutions = solver.createSolutionSet();
+		Matrix4d target = new Matrix4d();
+		chain.getEndEffector(new double[] { 10,-100,20,30,40,50 }, chain.createWorkspace(), target);
+
+		assertEquals(DHIKSolver.SolutionType.MANY_SOLUTIONS,solver.solveAll(chain, target, null, solutions));
+		DHKeyframe [] all = new DHKeyframe[solutions.size()];
+		for(int i=0;i<all.length;++i) all[i] = new DHKeyframe(solutions.get(i).fkValues);
+
+		DHKeyframe keyframe = solver.createDHKeyframe();
+		for(int i=0;i<all.length;++i) {
+			assertEquals(DHIKSolver.SolutionType.MANY_SOLUTIONS,solver.solveWithSuggestion(chain, target, keyframe, all[i]));
+			for(int j=0;j<6;++j) assertEquals(all[i].fkValues[j],keyframe.fkValues[j],1e-9);
+		}
+	}
+
+	/**
+	 * When the nearest answer is past a limit, the next nearest is used.
+	 */
+	@Test
+	public void testOtherBranchWhenOutOfRange() {
+		Sixi2Model model = new Sixi2().sim;
+		double [] q = { 0,-60,30,10,-40,20 };
+		Matrix4d target = new Matrix4d();
+		DHChain chain = model.getDHChain();
+		chain.getEndEffector(q, chain.createWorkspace(), target);
+
+		// the wrist can no longer bend that way.
+		model.links.get(4).setRange(0,120);
+		chain = model.getDHChain();
+		DHIKSolver_RTTRTR solver = new DHIKSolver_RTTRTR();
+		DHKeyframe keyframe = solver.createDHKeyframe();
+		DHIKSolver.SolutionType result = solver.solveWithSuggestion(chain, target, keyframe, new DHKeyframe(q));
+		assertTrue(result!=DHIKSolver.SolutionType.NO_SOLUTIONS);
+		assertEquals(40,keyframe.fkValues[4],1e-6);
+		assertReaches(chain,target,keyframe);
+	}
+
+	/**
+	 * With a straight wrist only the sum of the two rolls is known, so the first roll stays where it was.
+	 */
+	@Test
+	public void testStraightWrist() {
+		DHChain chain = new Sixi2().sim.getDHChain();
+		double [] q = { 20,-80,40,30,0,50 };
+		Matrix4d target = new Matrix4d();
+		chain.getEndEffector(q, chain.createWorkspace(), target);
+
+		DHIKSolver_RTTRTR solver = new DHIKSolver_RTTRTR();
+		DHKeyframe keyframe = solver.createDHKeyframe();
+		DHKeyframe suggestion = new DHKeyframe(new double[] { 20,-80,40,60,0,0 });
+		assertTrue(solver.solveWithSuggestion(chain, target, keyframe, suggestion)!=DHIKSolver.SolutionType.NO_SOLUTIONS);
+		assertEquals(60,keyframe.fkValues[3],1e-6);
+		assertEquals(20,keyframe.fkValues[5],1e-6);
+		assertReaches(chain,target,keyframe);
+
+		// out of reach.
+		target.m03 += 1000;
+		assertEquals(DHIKSolver.SolutionType.NO_SOLUTIONS,solver.solveWithSuggestion(chain, target, keyframe, suggestion));
+	}
+}
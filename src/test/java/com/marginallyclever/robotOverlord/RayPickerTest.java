@@ -0,0 +1,168 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Test;
+
+import com.marginallyclever.convenience.Ray;
+import com.marginallyclever.robotOverlord.entity.scene.RayPicker;
+import com.marginallyclever.robotOverlord.entity.scene.Scene;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelEntity;
+
+public class RayPickerTest {
+	/**
+	 * A triangle on the XY plane, facing +Z, from (0,0) to (10,0) to (0,10).
+	 */
+	private Model makeTriangle() {
+		Model m = new Model();
+		m.addVertex(0,0,0);	m.addNormal(0,0,1);
+		m.addVertex(10,0,0);	m.addNormal(0,0,1);
+		m.addVertex(0,10,0);	m.addNormal(0,0,1);
+		return m;
+	}
+
+	private ModelEntity addTriangle(Scene scene,String name,double x,double y,double z) {
+		ModelEntity me = new ModelEntity();
+		me.setName(name);
+		me.setModel(makeTriangle());
+		scene.addChild(me);
+		me.setPosition(new Vector3d(x,y,z));
+		return me;
+	}
+
+	private Ray makeRay(double x,double y,double z,double dx,double dy,double dz) {
+		Ray ray = new Ray();
+		ray.start.set(x,y,z);
+		ray.direction.set(dx,dy,dz);
+		ray.direction.normalize();
+		return ray;
+	}
+
+	@Test
+	public void testNearestFirst() {
+		Scene scene = new Scene();
+		ModelEntity low = addTriangle(scene,"low",0,0,10);
+		ModelEntity high = addTriangle(scene,"high",0,0,20);
+
+		RayPicker picker = new RayPicker(scene);
+		assertEquals(2,picker.getNumCandidates());
+		RayPicker.Hit hit = new RayPicker.Hit();
+
+		// from above, the high one is first.
+		assertTrue(picker.pick(makeRay(2,2,100, 0,0,-1),hit));
+		assertSame(high,hit.entity);
+		assertEquals(80,hit.t,1e-9);
+		assertTrue(new Point3d(2,2,20).epsilonEquals(hit.point,1e-9));
+		assertTrue(new Vector3d(0,0,1).epsilonEquals(hit.normal,1e-9));
+
+		// from below, the low one is first.
+		assertTrue(picker.pick(makeRay(2,2,-100, 0,0,1),hit));
+		assertSame(low,hit.entity);
+		assertTrue(new Point3d(2,2,10).epsilonEquals(hit.point,1e-9));
+
+		// beside both.
+		assertFalse(picker.pick(makeRay(20,20,100, 0,0,-1),hit));
+		assertEquals(null,hit.entity);
+	}
+
+	@Test
+	public void testRayThroughBoxMissesTriangle() {
+		Scene scene = new Scene();
+		ModelEntity high = addTriangle(scene,"high",0,0,20);
+		ModelEntity low = addTriangle(scene,"low",0,0,10);
+		// turn the high one around so its empty half covers the low one's full half.
+		high.setRotation(new Vector3d(0,0,Math.toRadians(180)));
+		high.setPosition(new Vector3d(10,10,20));
+
+		RayPicker.Hit hit = new RayPicker.Hit();
+		// inside the bounds of the high one but not on its triangle.
+		assertTrue(new RayPicker(scene).pick(makeRay(2,2,100, 0,0,-1),hit));
+		assertSame(low,hit.entity);
+	}
+
+	@Test
+	public void testPoseAndAdjust() throws Exception {
+		Scene scene = new Scene();
+		ModelEntity me = addTriangle(scene,"wall",0,0,0);
+		// stand the triangle up to face -Y, then push it 5 along y and 3 along the model's own x.
+		me.setRotation(new Vector3d(Math.toRadians(90),0,0));
+		me.setPosition(new Vector3d(0,5,0));
+		me.setModelOrigin(3,0,0);
+		me.setModelScale(2);
+
+		RayPicker.Hit hit = new RayPicker.Hit();
+		// off the calling thread, too.
+		assertSame(me,RayPicker.pickLater(scene,makeRay(8,-100,4, 0,1,0)).get().entity);
+		assertTrue(new RayPicker(scene).pick(makeRay(8,-100,4, 0,1,0),hit));
+		assertTrue(new Point3d(8,5,4).epsilonEquals(hit.point,1e-6));
+		assertEquals(1,Math.abs(hit.normal.y),1e-6);
+		// scaled by 2, the triangle reaches 20 along x from 3, so 24 is past the end.
+		assertFalse(new RayPicker(scene).pick(makeRay(24,-100,1, 0,1,0),hit));
+		assertTrue(new RayPicker(scene).pick(makeRay(22,-100,0.5, 0,1,0),hit));
+	}
+
+	/**
+	 * Enough entities for a deep tree.  Every one is found where it is.
+	 */
+	@Test
+	public void testManyEntities() {
+		Scene scene = new Scene();
+		ModelEntity [][] grid = new ModelEntity[20][20];
+		for(int y=0;y<20;++y) {
+			for(int x=0;x<20;++x) {
+				grid[y][x] = addTriangle(scene,x+","+y,x*20,y*20,(x+y)%3);
+			}
+		}
+		RayPicker picker = new RayPicker(scene);
+		assertEquals(400,picker.getNumCandidates());
+		RayPicker.Hit hit = new RayPicker.Hit();
+		for(int y=0;y<20;++y) {
+			for(int x=0;x<20;++x) {
+				assertTrue(picker.pick(makeRay(x*20+2,y*20+2,100, 0,0,-1),hit));
+				assertSame(grid[y][x],hit.entity);
+			}
+		}
+		// in the gaps.
+		assertFalse(picker.pick(makeRay(15,15,100, 0,0,-1),hit));
+	}
+
+	/**
+	 * Only what moved is copied again, and the moved entity is found in its new place.
+	 */
+	@Test
+	public void testReuse() {
+		Scene scene = new Scene();
+		ModelEntity a = addTriangle(scene,"a",0,0,0);
+		addTriangle(scene,"b",100,0,0);
+		addTriangle(scene,"c",200,0,0);
+		RayPicker first = new RayPicker(scene);
+		RayPicker.Hit hit = new RayPicker.Hit();
+
+		RayPicker second = new RayPicker(scene,first);
+		assertEquals(3,second.getNumReused());
+
+		a.setPosition(new Vector3d(300,0,0));
+		RayPicker third = new RayPicker(scene,second);
+		assertEquals(2,third.getNumReused());
+		assertFalse(third.pick(makeRay(2,2,100, 0,0,-1),hit));
+		assertTrue(third.pick(makeRay(302,2,100, 0,0,-1),hit));
+		assertSame(a,hit.entity);
+		// the earlier picker still sees the scene as it was.
+		assertTrue(second.pick(makeRay(2,2,100, 0,0,-1),hit));
+		assertSame(a,hit.entity);
+
+		// a new entity means a new tree.
+		ModelEntity d = addTriangle(scene,"d",400,0,0);
+		RayPicker fourth = new RayPicker(scene,third);
+		assertEquals(3,fourth.getNumReused());
+		assertTrue(fourth.pick(makeRay(402,2,100, 0,0,-1),hit));
+		assertSame(d,hit.entity);
+	}
+}
@@ -0,0 +1,120 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHChain;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHRobotEntity;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.ReachabilityMap;
+
+public class ReachabilityMapTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private int countMisses(ReachabilityMap map,DHChain chain,int count) {
+		Random random = new Random(3);
+		DHChain.Workspace work = chain.createWorkspace();
+		Matrix4d m = new Matrix4d();
+		double [] q = new double[chain.getNumAdjustable()];
+		int misses=0;
+		for(int k=0;k<count;++k) {
+			chain.getEndEffector(DHTestRobots.randomValues(chain,random,q), work, m);
+			if(!map.isReachable(chain, m)) ++misses;
+		}
+		return misses;
+	}
+
+	@Test
+	public void testReach() {
+		DHRobotEntity leg = DHTestRobots.makeLeg();
+		DHChain chain = leg.getDHChain();
+		ReachabilityMap map = ReachabilityMap.build(chain, 32, 100000);
+		assertTrue(map.getReachedCount()>0);
+		assertTrue(map.getMaxManipulability()>0);
+		// poses the leg can make are in the map.
+		assertTrue(countMisses(map,chain,1000)<10);
+
+		// the leg is 22 long, so these are out of reach.
+		Matrix4d far = new Matrix4d();
+		far.setIdentity();
+		far.setTranslation(new Vector3d(5,0,40));
+		assertTrue(!map.isReachable(chain, far));
+		assertTrue(!map.isReachable(1000,0,0));
+		assertEquals(0,map.getManipulability(1000,0,0),0);
+
+		// the map is in the frame of the base, so it moves with the leg.
+		leg.setPosition(new Vector3d(-50,20,0));
+		DHChain moved = leg.getDHChain();
+		assertTrue(map.matches(moved));
+		assertTrue(countMisses(map,moved,1000)<10);
+
+		// a different shape needs a different map.
+		leg.links.get(2).setR(15);
+		assertTrue(!map.matches(leg.getDHChain()));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		DHChain chain = DHTestRobots.makeLeg().getDHChain();
+		ReachabilityMap map = ReachabilityMap.build(chain, 16, 20000);
+		File file = File.createTempFile("leg", ReachabilityMap.EXTENSION);
+		try {
+			map.save(file);
+			assertEquals(72+16*16*16,file.length());
+			ReachabilityMap loaded = ReachabilityMap.load(file);
+			assertTrue(loaded.matches(chain));
+			assertEquals(map.getCells(),loaded.getCells());
+			assertEquals(map.getSamples(),loaded.getSamples());
+			assertEquals(map.getReachedCount(),loaded.getReachedCount());
+			Random random = new Random(4);
+			for(int k=0;k<1000;++k) {
+				double x = random.nextDouble()*50-25;
+				double y = random.nextDouble()*50-25;
+				double z = random.nextDouble()*50-25;
+				assertEquals(map.getValue(x,y,z),loaded.getValue(x,y,z));
+			}
+			// loading or making finds the saved map.
+			assertEquals(map.getReachedCount(),ReachabilityMap.loadOrBuild(chain, file).getReachedCount());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Turning the map on twice makes it once, in the folder of the user.
+	 */
+	@Test
+	public void testLoadInBackground() throws Exception {
+		File before = ReachabilityMap.getDirectory();
+		File dir = folder.newFolder("reachability");
+		ReachabilityMap.setDirectory(dir);
+		try {
+			DHRobotEntity leg = DHTestRobots.makeLeg();
+			File file = ReachabilityMap.getFile(leg);
+			assertEquals(dir,file.getParentFile());
+
+			Future<ReachabilityMap> a = leg.loadReachabilityMap();
+			Future<ReachabilityMap> b = leg.loadReachabilityMap();
+			assertTrue(a==b || a.isDone());
+			assertNotNull(a.get());
+			b.get();
+			assertTrue(file.isFile());
+			assertNotNull(leg.getReachabilityMap());
+			assertTrue(leg.getReachabilityMap().matches(leg.getDHChain()));
+		} finally {
+			ReachabilityMap.setDirectory(before);
+		}
+	}
+}
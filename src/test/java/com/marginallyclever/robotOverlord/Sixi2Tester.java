@@ -1,15 +1,27 @@
 package com.marginallyclever.robotOverlord;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
 
+import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
 
 import com.marginallyclever.convenience.StringHelper;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHKeyframe;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.DHLink;
 import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2;
+import com.marginallyclever.robotOverlord.entity.scene.dhRobotEntity.sixi2.Sixi2Model;
 
 public class Sixi2Tester {
+	@Rule
+	public TemporaryModelCache modelCache = new TemporaryModelCache();
+
 	/**
 	 * Test that IK(FK(A))==A for many random fk pose A. 
 	 */
@@ -64,21 +76,115 @@ public class Sixi2Tester {
 	
 
 	/**
-	 * Test that approximate jacobian at the home position does not generate any NaN values. 
+	 * The old way: finite differences of the end effector pose, one joint at a time.  The angular part is the
+	 * negated angular velocity, as it always was.
+	 * See https://robotacademy.net.au/masterclass/velocity-kinematics-in-3d/?lesson=346
+	 */
+	private double [][] approximateJacobian(Sixi2Model model,DHKeyframe keyframe) {
+		final double ANGLE_STEP_SIZE_DEGREES=0.5;
+		int size = keyframe.fkValues.length;
+		double [][] jacobian = new double[size][6];
+		Matrix4d T = new Matrix4d();
+		Matrix4d Tnew = new Matrix4d();
+		model.computePoseFK(keyframe);
+		model.getComputedEndEffector(T);
+		DHKeyframe newPoseFK = model.getIKSolver().createDHKeyframe();
+		for(int i=0;i<size;++i) {
+			newPoseFK.set(keyframe);
+			newPoseFK.fkValues[i]+=ANGLE_STEP_SIZE_DEGREES;
+			model.computePoseFK(newPoseFK);
+			model.getComputedEndEffector(Tnew);
+			Matrix4d dT = new Matrix4d();
+			dT.sub(Tnew,T);
+			dT.mul(1.0/Math.toRadians(ANGLE_STEP_SIZE_DEGREES));
+			jacobian[i][0]=dT.m03;
+			jacobian[i][1]=dT.m13;
+			jacobian[i][2]=dT.m23;
+
+			Matrix3d T3 = new Matrix3d();
+			Matrix3d dT3 = new Matrix3d();
+			T.getRotationScale(T3);
+			dT.getRotationScale(dT3);
+			T3.transpose();  // inverse of a rotation matrix is its transpose
+			Matrix3d skewSymmetric = new Matrix3d();
+			skewSymmetric.mul(dT3,T3);
+			//[  0 -Wz  Wy]
+			//[ Wz   0 -Wx]
+			//[-Wy  Wx   0]
+			jacobian[i][3]=skewSymmetric.m12;
+			jacobian[i][4]=skewSymmetric.m20;
+			jacobian[i][5]=skewSymmetric.m01;
+		}
+		return jacobian;
+	}
+	
+	private void randomPose(Sixi2Model model,DHKeyframe keyframe,Random random) {
+		for(int i=0;i<keyframe.fkValues.length;++i) {
+			DHLink link = model.links.get(i);
+			keyframe.fkValues[i] = link.getRangeMin() + random.nextDouble()*(link.getRangeMax()-link.getRangeMin());
+		}
+	}
+
+	/**
+	 * Test that the jacobian has no NaN values and agrees with the finite difference approximation.
 	 */
 	@Test
 	public void TestApproximateJacobian() {
 		System.out.println("TestApproximateJacobian start");
 		Sixi2 robot = new Sixi2();
-		//robot.goHome();
 		DHKeyframe keyframe = robot.sim.getIKSolver().createDHKeyframe();
 		robot.sim.getPoseFK(keyframe);
-		double [][] aj = robot.sim.approximateJacobian(keyframe);
-		for( int y=0;y<aj.length;++y ) {
-			for( int x=0;x<aj[y].length;++x ) {
-				assert(!Double.isNaN(aj[y][x]));
+		Random random = new Random(0);
+		
+		for(int k=0;k<100;++k) {
+			double [][] aj = approximateJacobian(robot.sim,keyframe);
+			double [][] j = robot.sim.getJacobian(keyframe);
+			for( int y=0;y<aj.length;++y ) {
+				// the step of the approximation is half a degree, so expect to be close, not equal.
+				double scale = 0;
+				for( int x=0;x<6;++x ) scale = Math.max(scale,Math.abs(aj[y][x]));
+				for( int x=0;x<aj[y].length;++x ) {
+					assertFalse(Double.isNaN(j[y][x]));
+					// getJacobian() uses the right handed sign for the angular part.
+					double expected = (x<3) ? aj[y][x] : -aj[y][x];
+					assertEquals(expected,j[y][x],0.01*scale+1e-9);
+				}
 			}
+			randomPose(robot.sim,keyframe,random);
 		}
 		System.out.println("TestApproximateJacobian end");
 	}
+	
+	/**
+	 * Compare the speed of the finite difference approximation and the jacobian from joint axes.
+	 */
+	@Ignore("benchmark, run by hand")
+	@Test
+	public void BenchmarkJacobian() {
+		Sixi2 robot = new Sixi2();
+		DHKeyframe keyframe = robot.sim.getIKSolver().createDHKeyframe();
+		Random random = new Random(0);
+		final int count = 20000;
+		double sum=0;
+		
+		for(int pass=0;pass<2;++pass) {
+			// the first pass warms up the JIT.
+			long t0 = System.nanoTime();
+			for(int k=0;k<count;++k) {
+				randomPose(robot.sim,keyframe,random);
+				sum += approximateJacobian(robot.sim,keyframe)[0][0];
+			}
+			long t1 = System.nanoTime();
+			for(int k=0;k<count;++k) {
+				randomPose(robot.sim,keyframe,random);
+				sum += robot.sim.getJacobian(keyframe)[0][0];
+			}
+			long t2 = System.nanoTime();
+			if(pass==1) {
+				System.out.println("BenchmarkJacobian approximate="+((t1-t0)/count)+"ns"
+						+" analytic="+((t2-t1)/count)+"ns"
+						+" ("+StringHelper.formatDouble((double)(t1-t0)/(double)(t2-t1))+"x) "+sum);
+			}
+		}
+	}
 }
@@ -0,0 +1,49 @@
+package com.marginallyclever.robotOverlord;
+
+import java.io.File;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelCache;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelLoaderService;
+
+/**
+ * Keeps the {@link ModelCache} files of a test in a temporary folder instead of the home folder of the user.
+ * Models loaded in the background are waited for before the old folder is put back.
+ * <p>
+ * <code>@Rule public TemporaryModelCache modelCache = new TemporaryModelCache();</code>
+ * @author Dan Royer
+ */
+public class TemporaryModelCache extends ExternalResource {
+	// longest to wait for background loads, in ms.
+	private static final long TIMEOUT = 30000;
+
+	private final TemporaryFolder folder = new TemporaryFolder();
+	private File oldDirectory;
+
+	@Override
+	protected void before() throws Throwable {
+		folder.create();
+		oldDirectory = ModelCache.getDirectory();
+		ModelCache.setDirectory(folder.newFolder("romc"));
+	}
+
+	@Override
+	protected void after() {
+		long end = System.currentTimeMillis()+TIMEOUT;
+		while(ModelLoaderService.getJobCount()>0 && System.currentTimeMillis()<end) {
+			try {
+				Thread.sleep(5);
+			} catch(InterruptedException e) {
+				break;
+			}
+		}
+		ModelCache.setDirectory(oldDirectory);
+		folder.delete();
+	}
+
+	public File getDirectory() {
+		return ModelCache.getDirectory();
+	}
+}
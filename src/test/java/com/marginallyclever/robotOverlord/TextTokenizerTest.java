@@ -0,0 +1,194 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.marginallyclever.convenience.TextTokenizer;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.modelLoadAndSavers.ModelLoadAndSaveOBJ;
+
+public class TextTokenizerTest {
+	private TextTokenizer tokenize(String s,int bufferSize) {
+		return new TextTokenizer(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)),bufferSize);
+	}
+
+	@Test
+	public void testLines() throws IOException {
+		// tiny buffer forces lines to straddle refills and the buffer to grow.
+		TextTokenizer t = tokenize("v 1 2 3\r\n\nfacet normal 0 0 1\nsome line that is longer than the buffer\nlast",16);
+		assertTrue(t.nextLine());
+		assertTrue(t.matchKeyword("v"));
+		assertEquals(1,t.nextInt());
+		assertEquals(2,t.nextFloat(),0);
+		assertEquals(3,t.nextFloat(),0);
+		assertFalse(t.hasMoreTokens());
+		assertTrue(t.nextLine());
+		assertFalse(t.hasMoreTokens());
+		assertTrue(t.nextLine());
+		assertFalse(t.matchKeyword("face"));
+		assertTrue(t.matchKeyword("FACET"));
+		assertTrue(t.matchKeyword("normal"));
+		assertTrue(t.nextLine());
+		assertEquals("some line that is longer than the buffer",t.restOfLine());
+		assertTrue(t.nextLine());
+		assertEquals("last",t.nextToken());
+		assertFalse(t.nextLine());
+		assertEquals(5,t.getLineNumber());
+	}
+
+	@Test
+	public void testObjFaceSeparators() throws IOException {
+		TextTokenizer t = tokenize("f 1/2/3 4//5 -6",64);
+		assertTrue(t.nextLine());
+		assertTrue(t.matchKeyword("f"));
+		assertEquals(1,t.nextInt());	assertTrue(t.skip('/'));
+		assertEquals(2,t.nextInt());	assertTrue(t.skip('/'));
+		assertEquals(3,t.nextInt());	assertFalse(t.skip('/'));
+		assertEquals(4,t.nextInt());	assertTrue(t.skip('/'));	assertTrue(t.skip('/'));
+		assertEquals(5,t.nextInt());
+		assertEquals(-6,t.nextInt());
+	}
+
+	@Test
+	public void testFloatsMatchParseFloat() throws IOException {
+		Random r = new Random(1234);
+		StringBuilder sb = new StringBuilder();
+		String [] samples = new String[10000];
+		for(int i=0;i<samples.length;++i) {
+			switch(i%5) {
+			case 0:  samples[i] = Float.toString((r.nextFloat()-0.5f)*1000);  break;
+			case 1:  samples[i] = Double.toString(r.nextGaussian()*1e-6);  break;
+			case 2:  samples[i] = String.format("%.6e",r.nextGaussian()*1e12);  break;
+			case 3:  samples[i] = Integer.toString(r.nextInt());  break;
+			default: samples[i] = String.format("%.3f",r.nextDouble()*100);  break;
+			}
+			sb.append(samples[i]).append(' ');
+		}
+		sb.append("NaN -Infinity 1.23456789012345678901234");
+		TextTokenizer t = tokenize(sb.toString(),1024);
+		assertTrue(t.nextLine());
+		for(int i=0;i<samples.length;++i) {
+			assertEquals(samples[i],Float.parseFloat(samples[i]),t.nextFloat(),0);
+		}
+		assertTrue(Float.isNaN(t.nextFloat()));
+		assertEquals(Float.NEGATIVE_INFINITY,t.nextFloat(),0);
+		assertEquals(1.23456789012345678901234f,t.nextFloat(),0);
+	}
+
+	/**
+	 * Numbers next to the halfway point between two floats, where rounding to double first would round the
+	 * wrong way.
+	 */
+	@Test
+	public void testNearHalfway() throws IOException {
+		Random r = new Random(4321);
+		StringBuilder sb = new StringBuilder();
+		String [] samples = new String[20000];
+		for(int i=0;i<samples.length;++i) {
+			float f = (r.nextFloat()-0.5f)*(float)Math.pow(10,r.nextInt(8)-3);
+			BigDecimal halfway = new BigDecimal(f).add(new BigDecimal(Math.nextUp(f))).divide(BigDecimal.valueOf(2));
+			int digits = 8+r.nextInt(9);
+			RoundingMode mode = (i%2==0) ? RoundingMode.UP : RoundingMode.DOWN;
+			samples[i] = halfway.round(new MathContext(digits,mode)).toPlainString();
+			sb.append(samples[i]).append(' ');
+		}
+		sb.append("-0 -0.000 0.0");
+		TextTokenizer t = tokenize(sb.toString(),1024);
+		assertTrue(t.nextLine());
+		for(int i=0;i<samples.length;++i) {
+			assertEquals(samples[i],Float.floatToIntBits(Float.parseFloat(samples[i])),Float.floatToIntBits(t.nextFloat()));
+		}
+		assertEquals(Float.floatToIntBits(-0.0f),Float.floatToIntBits(t.nextFloat()));
+		assertEquals(Float.floatToIntBits(-0.0f),Float.floatToIntBits(t.nextFloat()));
+		assertEquals(Float.floatToIntBits(0.0f),Float.floatToIntBits(t.nextFloat()));
+	}
+
+	@Test
+	public void testTypeSuffix() throws IOException {
+		TextTokenizer t = tokenize("1.5f 2d -0F 3e2D 0.1 4",64);
+		assertTrue(t.nextLine());
+		assertEquals(1.5f,t.nextFloat(),0);
+		assertEquals(2,t.nextFloat(),0);
+		assertEquals(Float.floatToIntBits(-0.0f),Float.floatToIntBits(t.nextFloat()));
+		assertEquals(300,t.nextFloat(),0);
+		assertEquals(0.1f,t.nextFloat(),0);
+		assertEquals(4,t.nextInt());
+		assertFalse(t.hasMoreTokens());
+	}
+
+	@Test(expected=NumberFormatException.class)
+	public void testNotANumber() throws IOException {
+		TextTokenizer t = tokenize("vertex x",64);
+		t.nextLine();
+		t.matchKeyword("vertex");
+		t.nextFloat();
+	}
+
+	/**
+	 * Reports loading speed for a large generated OBJ, compared against the old String.split() approach.
+	 */
+	@Ignore("benchmark, run by hand")
+	@Test
+	public void testObjThroughput() throws Exception {
+		Random r = new Random(5678);
+		StringBuilder sb = new StringBuilder();
+		int numVertexes = 200000;
+		for(int i=0;i<numVertexes;++i) {
+			sb.append("v ").append(r.nextFloat()*100).append(' ').append(r.nextFloat()*100).append(' ').append(r.nextFloat()*100).append('\n');
+			sb.append("vn ").append(r.nextFloat()).append(' ').append(r.nextFloat()).append(' ').append(r.nextFloat()).append('\n');
+		}
+		for(int i=1;i+2<=numVertexes;i+=3) {
+			sb.append("f ").append(i).append("//").append(i).append(' ')
+						   .append(i+1).append("//").append(i+1).append(' ')
+						   .append(i+2).append("//").append(i+2).append('\n');
+		}
+		byte [] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+		ModelLoadAndSaveOBJ loader = new ModelLoadAndSaveOBJ();
+		Model model = null;
+		long best=Long.MAX_VALUE;
+		for(int pass=0;pass<3;++pass) {
+			model = new Model();
+			long start = System.nanoTime();
+			loader.load(new BufferedInputStream(new ByteArrayInputStream(data)), model);
+			best = Math.min(best,System.nanoTime()-start);
+		}
+		assertEquals((numVertexes/3)*3*3,model.vertexArray.size());
+		assertEquals(model.vertexArray.size(),model.normalArray.size());
+
+		long bestSplit=Long.MAX_VALUE;
+		float sum=0;
+		for(int pass=0;pass<3;++pass) {
+			long start = System.nanoTime();
+			BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data),"UTF-8"));
+			String line;
+			while((line=br.readLine())!=null) {
+				String [] tokens = line.trim().split("\\s+");
+				for(int i=1;i<tokens.length;++i) {
+					String [] subTokens = tokens[i].split("/");
+					sum += Float.parseFloat(subTokens[0]);
+				}
+			}
+			bestSplit = Math.min(bestSplit,System.nanoTime()-start);
+		}
+
+		System.out.println("OBJ "+data.length+" bytes."
+				+" TextTokenizer: "+(long)(data.length/(best*1e-9))+" bytes/s."
+				+" String.split: "+(long)(data.length/(bestSplit*1e-9))+" bytes/s. ("+sum+")");
+	}
+}
@@ -0,0 +1,221 @@
+package com.marginallyclever.robotOverlord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marginallyclever.convenience.FileAccess;
+import com.marginallyclever.convenience.ZipAssetProvider;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.Model;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelCache;
+import com.marginallyclever.robotOverlord.entity.scene.modelEntity.ModelPool;
+
+public class ZipAssetProviderTest {
+	private File zip;
+	private byte [] text;
+	private byte [] noise;
+	private byte [] table;
+
+	@Before
+	public void setUp() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<10000;++i) sb.append("line ").append(i).append('\n');
+		text = sb.toString().getBytes("UTF-8");
+		noise = new byte[100000];
+		new Random(1).nextBytes(noise);
+		table = readAll(getClass().getResourceAsStream("/table.stl"));
+
+		zip = File.createTempFile("assets", ".zip");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+		addEntry(out,"text.txt",text,ZipEntry.DEFLATED);
+		addEntry(out,"noise.bin",noise,ZipEntry.STORED);
+		addEntry(out,"parts/table.stl",table,ZipEntry.DEFLATED);
+		out.close();
+	}
+
+	@After
+	public void tearDown() {
+		ZipAssetProvider.forget(zip.getAbsolutePath());
+		zip.delete();
+	}
+
+	private void addEntry(ZipOutputStream out,String name,byte [] data,int method) throws IOException {
+		ZipEntry e = new ZipEntry(name);
+		e.setMethod(method);
+		if(method==ZipEntry.STORED) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			e.setCrc(crc.getValue());
+			e.setSize(data.length);
+			e.setCompressedSize(data.length);
+		}
+		out.putNextEntry(e);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	private byte [] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte [] buffer = new byte[777];
+			int n;
+			while((n=in.read(buffer))!=-1) bytes.write(buffer,0,n);
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private byte [] toArray(ByteBuffer b) {
+		byte [] a = new byte[b.remaining()];
+		b.get(a);
+		return a;
+	}
+
+	@Test
+	public void testStreamsAndBuffers() throws IOException {
+		String name = zip.getAbsolutePath();
+		assertArrayEquals(text,readAll(ZipAssetProvider.open(name,"text.txt")));
+		assertArrayEquals(noise,readAll(ZipAssetProvider.open(name,"noise.bin")));
+		assertArrayEquals(table,readAll(FileAccess.open(name+":parts/table.stl")));
+		assertArrayEquals(text,toArray(ZipAssetProvider.getBuffer(name,"text.txt")));
+		assertArrayEquals(noise,toArray(ZipAssetProvider.getBuffer(name,"noise.bin")));
+		assertTrue(ZipAssetProvider.contains(name,"parts/table.stl"));
+		assertFalse(ZipAssetProvider.contains(name,"table.stl"));
+	}
+
+	@Test(expected=FileNotFoundException.class)
+	public void testMissingEntry() throws IOException {
+		ZipAssetProvider.open(zip.getAbsolutePath(),"nothing.txt");
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		final String name = zip.getAbsolutePath();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for(int i=0;i<64;++i) {
+			final int j=i;
+			results.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					switch(j%3) {
+					case 0:  return Arrays.equals(text,readAll(ZipAssetProvider.open(name,"text.txt")));
+					case 1:  return Arrays.equals(noise,toArray(ZipAssetProvider.getBuffer(name,"noise.bin")));
+					default: return Arrays.equals(table,readAll(ZipAssetProvider.open(name,"parts/table.stl")));
+					}
+				}
+			}));
+		}
+		for(Future<Boolean> f : results) assertTrue(f.get());
+		pool.shutdown();
+	}
+
+	/**
+	 * Only the most recently used archives stay open.
+	 */
+	@Test
+	public void testEviction() throws IOException {
+		ZipAssetProvider.forgetAll();
+		ArrayList<File> zips = new ArrayList<File>();
+		try {
+			for(int i=0;i<ZipAssetProvider.MAX_OPEN_ARCHIVES+2;++i) {
+				File f = File.createTempFile("assets", ".zip");
+				zips.add(f);
+				ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+				addEntry(out,"text.txt",text,ZipEntry.DEFLATED);
+				out.close();
+				assertArrayEquals(text,readAll(ZipAssetProvider.open(f.getAbsolutePath(),"text.txt")));
+				assertEquals(Math.min(i+1,ZipAssetProvider.MAX_OPEN_ARCHIVES),ZipAssetProvider.getOpenCount());
+			}
+			// the first was dropped, and is opened again.
+			assertArrayEquals(text,readAll(ZipAssetProvider.open(zips.get(0).getAbsolutePath(),"text.txt")));
+		} finally {
+			ZipAssetProvider.forgetAll();
+			for(File f : zips) f.delete();
+		}
+	}
+
+	/**
+	 * Damaged central directory fields are refused with an IOException, not a runtime exception or a huge allocation.
+	 */
+	@Test
+	public void testDamagedDirectory() throws IOException {
+		// offsets into the first central directory entry.
+		final int COMPRESSED_SIZE=20, SIZE=24, NAME_LENGTH=28, COMMENT_LENGTH=32, LOCAL_HEADER_OFFSET=42;
+		assertDamaged(COMPRESSED_SIZE,0x7FFFFFF0);
+		assertDamaged(SIZE,0x7FFFFFF0);
+		assertDamaged(SIZE,0xFFFFFFF0);
+		assertDamaged(NAME_LENGTH,0xFFFF);
+		assertDamaged(COMMENT_LENGTH,0xFFFF);
+		assertDamaged(LOCAL_HEADER_OFFSET,0x7FFFFFF0);
+		assertDamaged(LOCAL_HEADER_OFFSET,0xFFFFFFF0);
+	}
+
+	/**
+	 * Write a copy of the test zip with one field of the first central directory entry changed, then open it.
+	 */
+	private void assertDamaged(int field,int value) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(zip.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		// the test zip has no comment, so the end record is the last 22 bytes.
+		int directory = b.getInt(b.limit()-22+16);
+		if(field==20 || field==24 || field==42) b.putInt(directory+field,value);
+		else b.putShort(directory+field,(short)value);
+
+		File damaged = File.createTempFile("damaged", ".zip");
+		try {
+			Files.write(damaged.toPath(),b.array());
+			try {
+				ZipAssetProvider.getBuffer(damaged.getAbsolutePath(),"text.txt");
+				fail("field "+field+"="+Integer.toHexString(value)+" was accepted.");
+			} catch(FileNotFoundException ex) {
+				fail("field "+field+"="+Integer.toHexString(value)+" was not reported as damaged.");
+			} catch(IOException ex) {
+				// expected
+			}
+		} finally {
+			ZipAssetProvider.forget(damaged.getAbsolutePath());
+			damaged.delete();
+		}
+	}
+
+	@Test
+	public void testLoadModelFromZip() throws Exception {
+		boolean cache = ModelCache.isEnabled();
+		ModelCache.setEnabled(false);
+		try {
+			Model a = ModelPool.loadModel(zip.getAbsolutePath()+":parts/table.stl");
+			Model b = ModelPool.loadModel("/table.stl");
+			assertEquals(b.getNumTriangles(),a.getNumTriangles());
+			assertArrayEquals(b.vertexArray.toArray(),a.vertexArray.toArray(),0);
+		} finally {
+			ModelCache.setEnabled(cache);
+		}
+	}
+}